@@ -0,0 +1,51 @@
+package com.tomansill.redis.exception;
+
+/** TooManyWaitersException class
+ *  This is class used for throwing exception when a lock would have to wait while the waiters of its lockpoint
+ *  or of its client are already at their limit, so it is turned away instead of adding to the pile
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class TooManyWaitersException extends RuntimeException{
+
+    /** Lockpoint */
+    private final String lockpoint;
+
+    /** Limit that was reached */
+    private final int limit;
+
+    /** True if the limit of the client was reached, false if the limit of the lockpoint */
+    private final boolean client_limit;
+
+    /** Constructs the exception
+     *  @param lockpoint lockpoint that the lock was turned away from
+     *  @param limit limit that was reached
+     *  @param client_limit true if the limit of the client was reached, false if the limit of the lockpoint
+     */
+    public TooManyWaitersException(final String lockpoint, final int limit, final boolean client_limit){
+        super((client_limit ? "Client" : "Lockpoint '" + lockpoint + "'") + " has reached its limit of " + limit + " waiters");
+        this.lockpoint = lockpoint;
+        this.limit = limit;
+        this.client_limit = client_limit;
+    }
+
+    /** Retrieves the lockpoint that the lock was turned away from
+     *  @return lockpoint
+     */
+    public String getLockpoint(){
+        return this.lockpoint;
+    }
+
+    /** Retrieves the limit that was reached
+     *  @return limit
+     */
+    public int getLimit(){
+        return this.limit;
+    }
+
+    /** Returns true if the limit of the client was reached, false if the limit of the lockpoint
+     *  @return true if the limit of the client was reached, false otherwise
+     */
+    public boolean isClientLimit(){
+        return this.client_limit;
+    }
+}
@@ -0,0 +1,28 @@
+package com.tomansill.redis.exception;
+
+/** UnexpectedReplyException class
+ *  This is class used for throwing exception when a script replies with a type that its caller does not expect,
+ *  which means the script on the server is not the one the client was built with
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class UnexpectedReplyException extends RuntimeException{
+
+    /** Script name */
+    private final String script_name;
+
+    /** Constructs the exception
+     *  @param script_name name of script that replied
+     *  @param reply reply that was not expected
+     */
+    public UnexpectedReplyException(final String script_name, final Object reply){
+        super("Script '" + script_name + "' replied with " + (reply == null ? "nil" : "a reply of type " + reply.getClass().getName()));
+        this.script_name = script_name;
+    }
+
+    /** Retrieves the name of the script that replied
+     *  @return script name
+     */
+    public String getScriptName(){
+        return this.script_name;
+    }
+}
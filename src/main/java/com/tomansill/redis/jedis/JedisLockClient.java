@@ -2,12 +2,30 @@ package com.tomansill.redis.jedis;
 
 import com.tomansill.redis.exception.NoScriptFoundException;
 import com.tomansill.redis.lock.AbstractRedisLockClient;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
-
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.Pool;
+import redis.clients.util.SafeEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Predicate;
 
 public class JedisLockClient extends AbstractRedisLockClient {
@@ -16,13 +34,32 @@ public class JedisLockClient extends AbstractRedisLockClient {
     private Jedis connection = null;
 
     /** */
-    private JedisPool pool = null;
+    private Pool<Jedis> pool = null;
 
     /** */
     private Jedis listener_connection = null;
 
+    /** Initial wait before reconnecting the listener */
+    private final static long MIN_RECONNECT_BACKOFF_MILLISECONDS = 10;
+
+    /** Maximum wait between listener reconnection attempts */
+    private final static long MAX_RECONNECT_BACKOFF_MILLISECONDS = 1000;
+
+    /** Batches script evaluations, null if pipelining is not used */
+    private PipelinedCommandChannel pipeline = null;
+
+    /** Error codes of a server that cannot take writes for now, such as an old primary after a Sentinel failover */
+    private final static String[] FAILOVER_ERRORS = {"READONLY", "LOADING", "MASTERDOWN"};
+
+    /** Connection that carries FUNCTION LOAD and FCALL, taken from the pool on first use and kept apart from it until the
+     *  client is closed, so it is never pipelined. Null if there is none yet. Guarded by function_lock */
+    private Jedis function_connection = null;
+
+    /** Lock of the function connection, one command at a time */
+    private final Object function_lock = new Object();
+
     /** */
-    private final ConcurrentHashMap<String,JedisPubSub> listeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Listener> listeners = new ConcurrentHashMap<>();
 
     public JedisLockClient(final Jedis jedis){
 
@@ -34,6 +71,17 @@ public class JedisLockClient extends AbstractRedisLockClient {
     }
 
     public JedisLockClient(final JedisPool pool){
+        this((Pool<Jedis>) pool);
+    }
+
+    /**
+     * Creates a client on any Jedis pool. With a JedisSentinelPool, the client follows the primary chosen by Redis Sentinel.
+     * Whenever the subscription connection is lost, for example by a failover, it is re-established through the pool,
+     * scripts are loaded again and every waiter retries once, since notifications published in the meantime are lost.
+     *
+     * @param pool pool, such as JedisPool or JedisSentinelPool
+     */
+    public JedisLockClient(final Pool<Jedis> pool){
 
         // Check parameter
         if(pool == null) throw new IllegalArgumentException("pool is null");
@@ -42,6 +90,64 @@ public class JedisLockClient extends AbstractRedisLockClient {
         this.pool = pool;
     }
 
+    /**
+     * Creates a client that sends script evaluations in pipelined batches over dedicated connections.
+     * Evaluations from concurrent threads share round trips instead of each checking out a pooled connection.
+     *
+     * @param pool pool to take connections from
+     * @param pipeline_connections number of connections held for pipelining
+     */
+    public JedisLockClient(final Pool<Jedis> pool, final int pipeline_connections){
+        this(pool, pipeline_connections, PipelinedCommandChannel.DEFAULT_BATCH_SIZE, 0, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Creates a client that sends script evaluations in pipelined batches over dedicated connections.
+     * Evaluations from concurrent threads share round trips instead of each checking out a pooled connection.
+     *
+     * @param pool pool to take connections from
+     * @param pipeline_connections number of connections held for pipelining
+     * @param batch_size maximum number of evaluations per batch
+     * @param flush_interval time a batch that is not full waits for more evaluations, 0 to send right away
+     * @param unit the time unit of the flush_interval argument
+     */
+    public JedisLockClient(final Pool<Jedis> pool, final int pipeline_connections, final int batch_size, final long flush_interval, final TimeUnit unit){
+        this(pool);
+        this.pipeline = new PipelinedCommandChannel(pool, pipeline_connections, batch_size, flush_interval, unit);
+    }
+
+    /**
+     * Returns the average number of evaluations sent per pipelined batch
+     *
+     * @return average batch size, 0 if pipelining is not used or nothing has been sent
+     */
+    public double getAveragePipelineBatchSize(){
+        if(this.pipeline == null) return 0;
+        long batches = this.pipeline.getBatchCount();
+        return (batches == 0 ? 0 : ((double) this.pipeline.getCommandCount()) / batches);
+    }
+
+    /**
+     * Stops pipelining and returns the pipelining connections to the pool
+     */
+    public void closePipeline(){
+        if(this.pipeline != null) this.pipeline.close();
+    }
+
+    /**
+     * Closes the client, releasing the locks held through it, then stops pipelining and returns the function connection.
+     * The pool is left to its owner.
+     */
+    @Override
+    public void close(){
+        super.close();
+        this.closePipeline();
+        synchronized(this.function_lock){
+            if(this.function_connection != null) this.function_connection.close();
+            this.function_connection = null;
+        }
+    }
+
     /** Returns true if this client is connected to a cluster, false otherwise
      *  @return true if this client is connected to a cluster, false otherwise
      */
@@ -77,36 +183,171 @@ public class JedisLockClient extends AbstractRedisLockClient {
     }
 
     /**
-     * Evaluates and returns boolean value
+     * Evaluates script by its hash on the connection, the pipeline or a pooled connection.
+     * A pooled connection to a server that cannot take writes is destroyed rather than returned, so the next one
+     * is made to wherever the pool points now.
      *
      * @param hash hash to Lua script
      * @param args argument parameters
-     * @return boolean
-     * @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     * @return reply
      */
-    @Override
-    protected boolean booleanEval(final String hash, final String... args) throws NoScriptFoundException {
-        //System.out.print("booleanEval(");
-        //for (String str : args){
-            //System.out.print(str + " ");
-        //}
-        //System.out.println();
+    @SuppressWarnings("deprecation") // Pool.returnBrokenResource is the only way this Jedis version destroys a connection that is not marked broken
+    private Object evalsha(final String hash, final String... args) throws NoScriptFoundException {
+        try{
+            if(this.connection != null){
+                return this.connection.evalsha(hash, args.length, args);
+            }else if(this.pipeline != null){
+                return this.pipeline.evalsha(hash, args);
+            }else{
+                Jedis jedis = this.pool.getResource();
+                boolean failover = false;
+                try{
+                    return jedis.evalsha(hash, args.length, args);
+                }catch(JedisDataException e){
+                    failover = isFailoverError(e);
+                    throw e;
+                }finally{
+                    if(failover) this.pool.returnBrokenResource(jedis);
+                    else jedis.close();
+                }
+            }
+        }catch(JedisNoScriptException e){
+            throw new NoScriptFoundException(hash); // Server lost its scripts, for example after a failover
+        }
+    }
+
+    /**
+     * Returns true if the error reply says the server cannot take writes for now, the connection should then be
+     * treated as broken. Scripts wrap the error of the call that failed, so the code is looked for after the script error too.
+     *
+     * @param e error reply
+     * @return true if the server is read-only, loading or without a primary
+     */
+    static boolean isFailoverError(final JedisDataException e){
+        String message = e.getMessage();
+        if(message == null) return false;
+        for(String code : FAILOVER_ERRORS){
+            if(message.startsWith(code) || message.contains(" -" + code)) return true;
+        }
+        return false;
+    }
 
+    /**
+     * Loads function library on the server with FUNCTION LOAD REPLACE
+     *
+     * @param library library code
+     */
+    @Override
+    protected void functionLoad(final String library) {
         if(this.connection != null){
-            Object return_obj = this.connection.evalsha(hash, args.length, args);
-            if(return_obj instanceof Boolean){
-                return ((Boolean)return_obj).booleanValue();
-            }else throw new RuntimeException(return_obj.getClass().getName()); //TODO
+            sendCommand(this.connection, "FUNCTION", "LOAD", "REPLACE", library);
         }else{
-            try(Jedis jedis = this.pool.getResource()){
-                Object return_obj = jedis.evalsha(hash, args.length, args);
-                if(return_obj == null) throw new RuntimeException("returned null"); //TODO
-                else if(return_obj instanceof Long){
-                    long res = ((Long)return_obj).longValue();
-                    if(res == 0) return false;
-                    else return true;
-                }else throw new RuntimeException(return_obj.getClass().getName()); //TODO
+            this.sendFunctionCommand("FUNCTION", "LOAD", "REPLACE", library);
+        }
+    }
+
+    /**
+     * Calls function of the function library with FCALL on the connection or the function connection.
+     * The pipeline only carries EVALSHA, so function calls do not go through it.
+     *
+     * @param function name of function
+     * @param args argument parameters
+     * @return reply
+     * @throws NoScriptFoundException thrown if the function cannot be found on the database
+     */
+    @Override
+    protected Object functionCall(final String function, final String... args) throws NoScriptFoundException {
+        String[] command = new String[args.length + 3];
+        command[0] = "FCALL";
+        command[1] = function;
+        command[2] = Integer.toString(args.length);
+        System.arraycopy(args, 0, command, 3, args.length);
+        try{
+            if(this.connection != null){
+                return sendCommand(this.connection, command);
+            }else{
+                return this.sendFunctionCommand(command);
             }
+        }catch(JedisDataException e){
+            if(e.getMessage() != null && e.getMessage().startsWith("ERR Function not found")) throw new NoScriptFoundException(function);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a command on the function connection, taking one from the pool if there is none. A connection that breaks,
+     * or that reaches a server that cannot take writes, is destroyed and the next command takes a new one.
+     *
+     * @param args command and its arguments
+     * @return reply, Long for integer replies and byte[] for bulk replies
+     */
+    @SuppressWarnings("deprecation") // Pool.returnBrokenResource is the only way this Jedis version destroys a connection that is not marked broken
+    private Object sendFunctionCommand(final String... args) {
+        synchronized(this.function_lock){
+            if(this.function_connection == null) this.function_connection = this.pool.getResource();
+            boolean broken = false;
+            try{
+                return sendCommand(this.function_connection, args);
+            }catch(JedisDataException e){
+                broken = isFailoverError(e);
+                throw e;
+            }catch(RuntimeException e){
+                broken = true;
+                throw e;
+            }finally{
+                if(broken){
+                    this.pool.returnBrokenResource(this.function_connection);
+                    this.function_connection = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a command that this version of Jedis does not know, such as FUNCTION and FCALL, and reads its reply.
+     * Jedis has no way to send it, so it is written to the socket around Jedis, which is only safe while nothing of Jedis
+     * is pending on the connection. Whatever Jedis buffered is flushed first, and a connection in a transaction or with
+     * pipelined replies still to read is refused. The reply is then read through the connection as usual, which counts it
+     * against the pipelined commands of the connection, so the count is put back to where it was, which is 0.
+     *
+     * @param jedis connection, never pipelined while this runs
+     * @param args command and its arguments
+     * @return reply, Long for integer replies and byte[] for bulk replies
+     * @throws IllegalStateException thrown if the connection is in a transaction or has pipelined replies to read
+     */
+    private static Object sendCommand(final Jedis jedis, final String... args) {
+
+        // Encode it
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] count = SafeEncoder.encode("*" + args.length + "\r\n");
+        buffer.write(count, 0, count.length);
+        for(String arg : args){
+            byte[] value = SafeEncoder.encode(arg);
+            byte[] length = SafeEncoder.encode("$" + value.length + "\r\n");
+            buffer.write(length, 0, length.length);
+            buffer.write(value, 0, value.length);
+            buffer.write('\r');
+            buffer.write('\n');
+        }
+
+        // Flush whatever Jedis buffered, making sure no pipelined reply is waiting to be read
+        Client client = jedis.getClient();
+        client.connect();
+        if(client.isInMulti()) throw new IllegalStateException("Connection is in a transaction");
+        if(!client.getAll().isEmpty()) throw new IllegalStateException("Connection had pipelined replies that were not read");
+
+        // Send it and read the reply, the connection did not count this command so its count is put back afterwards
+        try{
+            OutputStream out = client.getSocket().getOutputStream();
+            buffer.writeTo(out);
+            out.flush();
+        }catch(IOException e){
+            throw new JedisConnectionException(e);
+        }
+        try{
+            return client.getOne();
+        }finally{
+            client.resetPipelinedCount();
         }
     }
 
@@ -115,35 +356,141 @@ public class JedisLockClient extends AbstractRedisLockClient {
      *
      * @param hash hash to Lua script
      * @param args argument parameters
+     * @return boolean
+     * @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     */
+    @Override
+    protected boolean booleanEval(final String hash, final String... args) throws NoScriptFoundException {
+        return replyToBoolean(this.evalsha(hash, args), hash);
+    }
+
+    /**
+     * Evaluates and returns long value
+     *
+     * @param hash hash to Lua script
+     * @param args argument parameters
+     * @return long
+     * @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     */
+    @Override
+    protected long longEval(final String hash, final String... args) throws NoScriptFoundException {
+        return replyToLong(this.evalsha(hash, args), hash);
+    }
+
+    /**
+     * Evaluates and returns string value
+     *
+     * @param hash hash to Lua script
+     * @param args argument parameters
      * @return string
      * @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
      */
     @Override
     protected String stringEval(final String hash, final String... args) throws NoScriptFoundException {
+        return replyToString(this.evalsha(hash, args), hash);
+    }
+
+    /**
+     * Gets value of the key
+     *
+     * @param key key
+     * @return value, null if the key does not exist
+     */
+    @Override
+    protected String get(final String key) {
+        if(this.connection != null){
+            return this.connection.get(key);
+        }else{
+            try(Jedis jedis = this.pool.getResource()){
+                return jedis.get(key);
+            }
+        }
+    }
+
+    /**
+     * Scans the keyspace one step with SCAN
+     *
+     * @param cursor  cursor returned by the previous step, "0" to start
+     * @param pattern MATCH pattern
+     * @param count   COUNT hint
+     * @param keys    list that receives the keys of this step
+     * @return cursor for the next step, "0" when the scan is complete
+     */
+    @Override
+    protected String scan(final String cursor, final String pattern, final int count, final List<String> keys) {
+        ScanParams params = new ScanParams().match(pattern).count(count);
+        ScanResult<String> result;
         if(this.connection != null){
-            Object return_obj = this.connection.evalsha(hash, args.length, args);
-            if(return_obj instanceof String){
-                return (String)return_obj;
-            }else throw new RuntimeException(return_obj.getClass().getName()); //TODO
+            result = this.connection.scan(cursor, params);
         }else{
             try(Jedis jedis = this.pool.getResource()){
-                Object return_obj = jedis.evalsha(hash, args.length, args);
-                if(return_obj instanceof String){
-                    return (String)return_obj;
-                }else throw new RuntimeException(return_obj.getClass().getName()); //TODO
+                result = jedis.scan(cursor, params);
+            }
+        }
+        keys.addAll(result.getResult());
+        return result.getStringCursor();
+    }
+
+    /**
+     * Sends read-only commands in one pipelined round trip
+     *
+     * @param commands commands, each being the command name followed by its arguments
+     * @return replies in command order
+     */
+    @Override
+    protected List<Object> pipelinedRead(final String[][] commands) {
+        if(this.connection != null) return pipelinedRead(this.connection, commands);
+        try(Jedis jedis = this.pool.getResource()){
+            return pipelinedRead(jedis, commands);
+        }
+    }
+
+    /**
+     * Sends read-only commands in one pipelined round trip on the connection
+     *
+     * @param jedis connection
+     * @param commands commands, each being the command name followed by its arguments
+     * @return replies in command order
+     */
+    private static List<Object> pipelinedRead(final Jedis jedis, final String[][] commands) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<?>> responses = new ArrayList<>(commands.length);
+        for(String[] command : commands){
+            switch(command[0]){
+                case "GET":
+                    responses.add(pipeline.get(command[1]));
+                    break;
+                case "PTTL":
+                    responses.add(pipeline.pttl(command[1]));
+                    break;
+                case "SCARD":
+                    responses.add(pipeline.scard(command[1]));
+                    break;
+                case "LLEN":
+                    responses.add(pipeline.llen(command[1]));
+                    break;
+                case "LRANGE":
+                    responses.add(pipeline.lrange(command[1], Long.parseLong(command[2]), Long.parseLong(command[3])));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported command " + command[0]);
             }
         }
+        pipeline.sync();
+        List<Object> replies = new ArrayList<>(responses.size());
+        for(Response<?> response : responses) replies.add(response.get());
+        return replies;
     }
 
     /**
      * Subscribes to channel
      *
      * @param channel  channel name
-     * @param function function to fire when new topic comes up
+     * @param function function to fire with the raw bytes of each message, on the listener thread
      * @return string hash of function
      */
     @Override
-    protected synchronized String subscribe(final String channel, final Predicate<String> function) {
+    protected synchronized String subscribe(final String channel, final Predicate<byte[]> function) {
 
         //System.out.println("subscribe(channel=" + channel + ")");
 
@@ -154,24 +501,27 @@ public class JedisLockClient extends AbstractRedisLockClient {
         if(!this.listeners.containsKey(channel)){
             this.listeners.put(channel, new Listener(function));
         }
-        final JedisPubSub listener = this.listeners.get(channel);
+        final Listener listener = this.listeners.get(channel);
 
         // Hook it up
+        final Jedis con;
         if(this.connection != null){
-            final Jedis con = this.connection;
-            new Thread(() -> {
-                //System.out.println("run");
-                con.subscribe(listener, channel);
-                //System.out.println("exit");
-            }).start();
+            con = this.connection;
         }else{
             this.listener_connection = this.pool.getResource();
-            final Jedis con = this.listener_connection;
-            new Thread(() -> {
-                //System.out.println("run");
-                con.subscribe(listener, channel);
-                //System.out.println("exit");
-            }).start();
+            con = this.listener_connection;
+        }
+        new Thread(() -> this.listen(con, channel, listener)).start();
+
+        // Wait until the subscription is in place so a quick unsubscribe cannot race it
+        try{
+            listener.subscribed.await();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if(listener.failure != null){
+            this.listeners.remove(channel);
+            throw listener.failure;
         }
 
         return id;
@@ -184,28 +534,110 @@ public class JedisLockClient extends AbstractRedisLockClient {
      * @param function_hash hash to identify function on the channel
      */
     @Override
-    protected void unsubscribe(final String channel, final String function_hash) {
+    protected synchronized void unsubscribe(final String channel, final String function_hash) {
 
         //System.out.println("unsubscribe(channel=" + channel + ")");
 
-        this.listeners.remove(channel).unsubscribe();
+        Listener listener = this.listeners.remove(channel);
+        if(listener != null){
+            listener.closed = true;
+
+            // Written from this thread, so the listener thread must not hand the connection back before the write is done
+            synchronized(listener){
+                if(listener.isSubscribed()) listener.unsubscribe();
+            }
+        }
 
         //System.out.println("toredown");
 
     }
 
-    private class Listener extends JedisPubSub{
+    /**
+     * Listener thread loop. When the connection is lost, it keeps reconnecting through the pool until it subscribes again,
+     * which with a Sentinel pool lands on whichever server is the primary by then.
+     *
+     * @param first_connection connection to subscribe on first
+     * @param channel channel name
+     * @param listener listener
+     */
+    private void listen(final Jedis first_connection, final String channel, final Listener listener){
+        Jedis con = first_connection;
+        long backoff_ms = MIN_RECONNECT_BACKOFF_MILLISECONDS;
+        while(true){
+            try{
+                con.subscribe(listener, SafeEncoder.encode(channel));
+            }catch(RuntimeException e){
+                if(listener.subscribed.getCount() != 0) listener.failure = e; // Never got subscribed
+            }finally{
+                // Return listener connection to the pool once any unsubscribe write on it is done, and release anyone waiting on the subscription
+                synchronized(listener){
+
+                    // Unlike JedisPubSub, BinaryJedisPubSub leaves the subscribe and unsubscribe counted as pipelined replies
+                    con.getClient().resetPipelinedCount();
+                    if(this.connection == null) con.close();
+                }
+                listener.subscribed.countDown();
+            }
+
+            // Done if unsubscribed on purpose, if it never worked, or if there is no pool to reconnect through
+            if(listener.closed || listener.failure != null || this.connection != null) return;
+
+            // Connection was lost, keep trying to get it back
+            if(listener.lost_at == 0) listener.lost_at = System.nanoTime();
+            con = null;
+            while(con == null && !listener.closed){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff_ms));
+                backoff_ms = Math.min(backoff_ms * 2, MAX_RECONNECT_BACKOFF_MILLISECONDS);
+                try{
+                    con = this.pool.getResource();
+                }catch(RuntimeException e){
+                    // Server is not back yet
+                }
+            }
+            if(listener.closed){
+                if(con != null) con.close();
+                return;
+            }
+            backoff_ms = MIN_RECONNECT_BACKOFF_MILLISECONDS;
+        }
+    }
 
-        private Predicate<String> function;
+    /** Binary listener, so messages reach the client as the bytes off the wire without being decoded to strings */
+    private class Listener extends BinaryJedisPubSub{
+
+        private Predicate<byte[]> function;
 
         AtomicLong counter = new AtomicLong();
 
-        public Listener(Predicate<String> function){
+        /** Released once the subscription is confirmed or has failed */
+        final CountDownLatch subscribed = new CountDownLatch(1);
+
+        /** Exception that ended the subscription thread, if any */
+        volatile RuntimeException failure = null;
+
+        /** Set when unsubscribed on purpose, so a lost connection is not mistaken for it */
+        volatile boolean closed = false;
+
+        /** When the connection was lost in System.nanoTime(), 0 while connected */
+        volatile long lost_at = 0;
+
+        public Listener(Predicate<byte[]> function){
             this.function = function;
             //System.out.println("Listener " + counter.incrementAndGet());
         }
 
-        public void onMessage(final String channel, final String message){
+        public void onSubscribe(final byte[] channel, final int subscribed_channels){
+            this.subscribed.countDown();
+
+            // Back after losing the connection, the client catches up on what was missed off this thread
+            long lost_at = this.lost_at;
+            if(lost_at != 0){
+                this.lost_at = 0;
+                JedisLockClient.this.onReconnect(lost_at);
+            }
+        }
+
+        public void onMessage(final byte[] channel, final byte[] message){
             //System.out.println("MESSAGE: " + message);
             this.function.test(message);
         }
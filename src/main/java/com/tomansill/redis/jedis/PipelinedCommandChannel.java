@@ -0,0 +1,252 @@
+package com.tomansill.redis.jedis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** PipelinedCommandChannel class
+ *  Collects EVALSHA commands from any number of threads and sends them in pipelined batches over a few dedicated connections,
+ *  so concurrent callers share one round trip per batch instead of paying a pool checkout and a round trip each.
+ *  Each connection has its own dispatcher thread that takes whatever commands are queued, up to the batch size, and sends them at once.
+ *  Commands queue up while a batch is in flight, so batches grow with load without any waiting. A flush interval can be set
+ *  to hold a batch that is not full for a little while longer, trading latency for bigger batches.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+class PipelinedCommandChannel{
+
+    /** Default maximum number of commands per batch */
+    final static int DEFAULT_BATCH_SIZE = 128;
+
+    /** Comfy little class that holds a queued command and the future of its reply */
+    private static class Command{
+        private final String hash;
+        private final String[] args;
+        private final CompletableFuture<Object> reply = new CompletableFuture<>();
+        Command(final String hash, final String[] args){
+            this.hash = hash;
+            this.args = args;
+        }
+    }
+
+    /** Queued commands */
+    private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+
+    /** Dispatcher threads */
+    private final Thread[] dispatchers;
+
+    /** Maximum number of commands per batch */
+    private final int batch_size;
+
+    /** Time a batch that is not full waits for more commands in nanoseconds */
+    private final long flush_interval_nanos;
+
+    /** Number of batches sent */
+    private final LongAdder batches = new LongAdder();
+
+    /** Number of commands sent */
+    private final LongAdder commands = new LongAdder();
+
+    /** Running flag */
+    private volatile boolean running = true;
+
+    /** Creates a channel and starts its dispatchers
+     *  @param pool pool to take the connections from, the connections are held until the channel is closed
+     *  @param connections number of connections
+     *  @param batch_size maximum number of commands per batch
+     *  @param flush_interval time a batch that is not full waits for more commands, 0 to send right away
+     *  @param unit the time unit of the flush_interval argument
+     *  @throws IllegalArgumentException thrown if pool or unit is null, connections or batch_size is not positive or flush_interval is negative
+     */
+    PipelinedCommandChannel(final Pool<Jedis> pool, final int connections, final int batch_size, final long flush_interval, final TimeUnit unit){
+
+        // Check parameters
+        if(pool == null) throw new IllegalArgumentException("pool is null");
+        if(connections <= 0) throw new IllegalArgumentException("connections parameter is below the minimum value of 1");
+        if(batch_size <= 0) throw new IllegalArgumentException("batch_size parameter is below the minimum value of 1");
+        if(flush_interval < 0) throw new IllegalArgumentException("flush_interval parameter is below the minimum value of 0");
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+
+        // Assign
+        this.batch_size = batch_size;
+        this.flush_interval_nanos = unit.toNanos(flush_interval);
+
+        // Start dispatchers
+        this.dispatchers = new Thread[connections];
+        for(int i = 0; i < connections; i++){
+            this.dispatchers[i] = new Thread(() -> this.dispatch(pool), "redis-lock-pipeline-" + i);
+            this.dispatchers[i].setDaemon(true);
+            this.dispatchers[i].start();
+        }
+    }
+
+    /** Queues EVALSHA and waits for its reply
+     *  @param hash hash to Lua script
+     *  @param args argument parameters, all passed as keys
+     *  @return reply
+     *  @throws RuntimeException the exception thrown by the connection for this command, such as JedisNoScriptException
+     */
+    Object evalsha(final String hash, final String... args){
+
+        // Check state
+        if(!this.running) throw new IllegalStateException("Pipelined command channel is closed");
+
+        // Queue it
+        Command command = new Command(hash, args);
+        this.queue.add(command);
+        if(!this.running && this.queue.remove(command)) throw new IllegalStateException("Pipelined command channel is closed"); // Closed in the meantime
+
+        // Wait for the reply
+        boolean interrupted = false;
+        try{
+            while(true){
+                try{
+                    return command.reply.get();
+                }catch(InterruptedException e){
+                    interrupted = true; // The command is already on its way, so the reply has to be waited for
+                }catch(ExecutionException e){
+                    if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }finally{
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of batches sent
+     *  @return number of batches
+     */
+    long getBatchCount(){
+        return this.batches.sum();
+    }
+
+    /** Returns the number of commands sent
+     *  @return number of commands
+     */
+    long getCommandCount(){
+        return this.commands.sum();
+    }
+
+    /** Stops the dispatchers and returns their connections. Commands still queued fail with IllegalStateException. */
+    void close(){
+        this.running = false;
+        for(Thread dispatcher : this.dispatchers) dispatcher.interrupt();
+        Command command;
+        while((command = this.queue.poll()) != null){
+            command.reply.completeExceptionally(new IllegalStateException("Pipelined command channel is closed"));
+        }
+    }
+
+    /** Dispatcher loop, sends batches over one connection until the channel is closed.
+     *  A broken connection, or one to a server that no longer takes writes, fails the batch in flight and is destroyed,
+     *  then replaced with a new one from the pool.
+     *  @param pool pool to take the connection from
+     */
+    @SuppressWarnings("deprecation") // Pool.returnBrokenResource is the only way this Jedis version destroys a connection that is not marked broken
+    private void dispatch(final Pool<Jedis> pool){
+        List<Command> batch = new ArrayList<>(this.batch_size);
+        while(this.running){
+            Jedis jedis = null;
+            boolean broken = false;
+            try{
+                jedis = pool.getResource();
+                while(this.running){
+
+                    // Wait for the first command
+                    try{
+                        batch.add(this.queue.take());
+                    }catch(InterruptedException e){
+                        continue; // Check running flag
+                    }
+
+                    // Take whatever else is queued, holding the batch open for the flush interval if it is not full
+                    this.queue.drainTo(batch, this.batch_size - batch.size());
+                    if(this.flush_interval_nanos > 0 && batch.size() < this.batch_size){
+                        long deadline = System.nanoTime() + this.flush_interval_nanos;
+                        while(batch.size() < this.batch_size && System.nanoTime() < deadline){
+                            LockSupport.parkNanos(Math.min(deadline - System.nanoTime(), 10000));
+                            this.queue.drainTo(batch, this.batch_size - batch.size());
+                        }
+                    }
+
+                    // Send it
+                    this.send(jedis, batch);
+                    batch.clear();
+                }
+            }catch(RuntimeException e){
+                broken = true;
+
+                // Fail whatever this dispatcher had taken, or a queued command if no connection could be had, so callers don't wait forever
+                if(batch.isEmpty()){
+                    Command command = this.queue.poll();
+                    if(command != null) batch.add(command);
+                }
+                for(Command command : batch) command.reply.completeExceptionally(e);
+                batch.clear();
+            }finally{
+                if(jedis != null){
+                    if(broken) pool.returnBrokenResource(jedis); // Never hand it to anyone else
+                    else jedis.close();
+                }
+            }
+
+            // Back off before reconnecting
+            if(broken) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    /** Sends a batch in one pipeline and hands out the replies. Error replies fail their own command only,
+     *  anything else means the connection is broken and is thrown to the dispatcher. So is a reply saying the server
+     *  cannot take writes, once every command has its reply, so the dispatcher moves to a new connection.
+     *  @param jedis connection
+     *  @param batch commands
+     */
+    private void send(final Jedis jedis, final List<Command> batch){
+
+        // Single command does not need a pipeline
+        JedisDataException failover = null;
+        if(batch.size() == 1){
+            Command command = batch.get(0);
+            try{
+                command.reply.complete(jedis.evalsha(command.hash, command.args.length, command.args));
+            }catch(JedisDataException e){
+                command.reply.completeExceptionally(e); // Error reply for this command only
+                if(JedisLockClient.isFailoverError(e)) failover = e;
+            }
+        }else{
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Object>> responses = new ArrayList<>(batch.size());
+            for(Command command : batch) responses.add(pipeline.evalsha(SafeEncoder.encode(command.hash), command.args.length, SafeEncoder.encodeMany(command.args)));
+            pipeline.sync();
+            for(int i = 0; i < batch.size(); i++){
+                try{
+                    Object reply = responses.get(i).get();
+                    if(reply instanceof byte[]) reply = SafeEncoder.encode((byte[]) reply); // Binary pipeline, decode like Jedis.evalsha does
+                    batch.get(i).reply.complete(reply);
+                }catch(JedisDataException e){
+                    batch.get(i).reply.completeExceptionally(e); // Error reply for this command only
+                    if(JedisLockClient.isFailoverError(e)) failover = e;
+                }
+            }
+        }
+
+        // Update statistics
+        this.batches.increment();
+        this.commands.add(batch.size());
+
+        // Server is no longer the primary, drop the connection
+        if(failover != null) throw failover;
+    }
+}
@@ -1,33 +1,59 @@
 package com.tomansill.redis.lock;
 
 import com.tomansill.redis.exception.NoScriptFoundException;
+import com.tomansill.redis.exception.TooManyWaitersException;
+import com.tomansill.redis.exception.UnexpectedReplyException;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /** AbstractRedisLockClient class
  *  This class is abstract and defines methods for subclasses to implement with their own Redis client.
+ *  Every lockpoint of the client lives on its one server.
  *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
  */
-public abstract class AbstractRedisLockClient{
+public abstract class AbstractRedisLockClient implements RedisLockClient{
 
     // ##### PUBLIC STATIC MEMBERS #####
 
     /** Default lease duration */
     public final static long DEFAULT_LEASE_DURATION_SECONDS = 60;
 
+    /** Default interval between rechecks of waiters that may have missed their notification */
+    public final static long DEFAULT_RECHECK_INTERVAL_MILLISECONDS = 2000;
+
+    /** Default waiting time that one priority level is worth */
+    public final static long DEFAULT_PRIORITY_AGING_MILLISECONDS = 1000;
+
+    /** Default maximum number of keys per second that forEachLock scans */
+    public final static int DEFAULT_INTROSPECTION_KEYS_PER_SECOND = 10000;
+
     // ##### PRIVATE STATIC MEMBERS #####
 
     /** Map of Redis lua scripts */
@@ -36,9 +62,77 @@ public abstract class AbstractRedisLockClient{
     /** Map of Redis lua script hash */
     private static Map<String, String> SCRIPT_NAME_TO_SCRIPT_HASH = null;
 
+    /** Redis Functions library with every script registered as a function, generated from the scripts */
+    private static String FUNCTION_LIBRARY = null;
+
+    /** Name of the function library, versioned by the digest of the scripts so that different versions can be loaded side by side */
+    private static String FUNCTION_LIBRARY_NAME = null;
+
+    /** Number of digest bytes that name a lockpoint in compact key mode */
+    private final static int COMPACT_LOCKPOINT_BYTES = 12;
+
+    /** Digest per thread for compact lockpoint names */
+    private final static ThreadLocal<MessageDigest> LOCKPOINT_DIGEST = ThreadLocal.withInitial(() -> {
+        try{
+            return MessageDigest.getInstance("SHA-1");
+        }catch(NoSuchAlgorithmException nsae){
+            throw new IllegalStateException("SHA-1 is not available", nsae);
+        }
+    });
+
+    /** Number of keys that forEachLock asks SCAN for at a time */
+    private final static int INTROSPECTION_SCAN_COUNT = 100;
+
+    /** Maximum number of waiters that forEachLock lists per lockpoint */
+    private final static int INTROSPECTION_MAX_WAITERS = 100;
+
+    /** Maximum number of lockpoints remembered as held */
+    private final static int NEGATIVE_CACHE_CAPACITY = 4096;
+
+    /** Time taken off the holding time announced by a claim, for the time the announcement took to arrive */
+    private final static long CLAIM_MARGIN_MILLISECONDS = 10;
+
+    /** Maximum number of locks released by one evaluation when the client closes */
+    private final static int RELEASE_BATCH_SIZE = 1000;
+
+    /** Lockwait lease in milliseconds, formatted once for script arguments */
+    final static String LOCKWAIT_LEASE_MILLISECONDS = DEFAULT_LEASE_DURATION_SECONDS * 1000 + "";
+
+    /** Lease of lockpoint versions used by optimistic reads in milliseconds, formatted once for script arguments.
+     *  An optimistic read that outlives the version fails validation, so this only has to outlast any read. */
+    final static String VERSION_LEASE_MILLISECONDS = TimeUnit.HOURS.toMillis(1) + "";
+
     /** Map of lease durations per server */
     private final Duration lease_duration = new Duration(DEFAULT_LEASE_DURATION_SECONDS, TimeUnit.SECONDS);
 
+    /** Interval between rechecks of waiters that may have missed their notification */
+    private final Duration recheck_interval = new Duration(DEFAULT_RECHECK_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+    /** Waiting time that one priority level is worth */
+    private final Duration priority_aging = new Duration(DEFAULT_PRIORITY_AGING_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+    /** Comfy little class that identifies a lock held through this client */
+    private static class HeldLock{
+        private final String lockpoint;
+        private final String lock_id;
+        private final boolean read;
+        HeldLock(final String lockpoint, final String lock_id, final boolean read){
+            this.lockpoint = lockpoint;
+            this.lock_id = lock_id;
+            this.read = read;
+        }
+        @Override
+        public boolean equals(final Object other){
+            if(!(other instanceof HeldLock)) return false;
+            HeldLock held = (HeldLock) other;
+            return this.read == held.read && this.lockpoint.equals(held.lockpoint) && this.lock_id.equals(held.lock_id);
+        }
+        @Override
+        public int hashCode(){
+            return (this.lockpoint.hashCode() * 31 + this.lock_id.hashCode()) * 2 + (this.read ? 1 : 0);
+        }
+    }
+
     /** Comfy little class that holds time and time unit */
     private static class Duration{
         private long time;
@@ -59,10 +153,35 @@ public abstract class AbstractRedisLockClient{
         }
     }
 
+    /** Function that evaluates a script by its hash */
+    private interface EvalFunction<T>{
+        T eval(final String hash, final String... args) throws NoScriptFoundException;
+    }
+
+    /** Function that performs a single acquisition attempt for the acquire loop */
+    interface AcquireFunction{
+
+        /** Performs an acquisition attempt
+         *  @param first_attempt true if this is the first attempt
+         *  @return 0 if acquired, a positive number of milliseconds to wait at most before the next attempt,
+         *          or a negative number to wait until woken up
+         */
+        long attempt(final boolean first_attempt);
+    }
+
     // ##### CLASS MEMBERS #####
 
     /** Client id to identify the client */
-    private String client_id;
+    private volatile String client_id;
+
+    /** Random bytes that the client id is formatted from */
+    private byte[] client_id_bytes;
+
+    /** Compact key flag, true to name lockpoints on the server by digest and shorten the client id */
+    private volatile boolean compact_keys = false;
+
+    /** Set once a server name of a lockpoint, a semaphore or a session was handed out, after which the key mode is fixed */
+    private volatile boolean keys_in_use = false;
 
     /** Listener Counter */
     private AtomicLong listener_users;
@@ -72,6 +191,78 @@ public abstract class AbstractRedisLockClient{
 
     private Set<String> unfair_locks_set;
 
+    /** Ids of locks that are waiting, including those in between attempts that have no CDL in lock_to_cdl_map */
+    private final Set<String> waiting_lock_ids = ConcurrentHashMap.newKeySet();
+
+    /** Event name to CDLs of waiters Map */
+    private final ConcurrentHashMap<String, Set<CountDownLatch>> event_to_cdl_map = new ConcurrentHashMap<>();
+
+    /** Messages handed over from the listener thread to the dispatcher thread */
+    private final MessageRing message_ring = new MessageRing(MessageRing.DEFAULT_CAPACITY);
+
+    /** Dispatcher thread, started with the first subscription */
+    private volatile Thread dispatcher = null;
+
+    /** Set while the dispatcher is about to park or parked, so the listener only unparks it when needed */
+    private volatile boolean dispatcher_idle = false;
+
+    /** Number of times the subscription came back after its connection was lost */
+    private final AtomicLong reconnect_count = new AtomicLong();
+
+    /** When the subscription that came back was lost in System.nanoTime(), 0 if no reconnect waits for the dispatcher */
+    private final AtomicLong pending_reconnect = new AtomicLong();
+
+    /** Time from losing the subscription to retrying every waiter, on the last reconnect, in nanoseconds */
+    private volatile long last_recovery_nanos = 0;
+
+    /** Function library flag, true to call the scripts as functions of the library instead of by EVALSHA */
+    private volatile boolean function_library = false;
+
+    /** Registry of interned RedisReadWriteLock instances */
+    private final LockRegistry lock_registry = new LockRegistry(this);
+
+    /** Time a held lockpoint is remembered in milliseconds, 0 if held lockpoints are not remembered */
+    private volatile long negative_cache_ms = 0;
+
+    /** Lockpoints on the server known to be held by a writer, to System.nanoTime() until when it is known */
+    private final ConcurrentHashMap<String, Long> held_lockpoints = new ConcurrentHashMap<>();
+
+    /** Number of unlock announcements received, so a held lockpoint learned from a reply that crossed one is not remembered */
+    private final AtomicLong held_invalidations = new AtomicLong();
+
+    /** Read registrations shared among read locks of this client */
+    private final SharedReadLeases shared_reads = new SharedReadLeases(this);
+
+    /** Maximum number of locks of this client waiting at once, 0 for no limit */
+    private volatile int max_waiters = 0;
+
+    /** Maximum number of locks of this client waiting on one lockpoint at once, 0 for no limit */
+    private volatile int max_lockpoint_waiters = 0;
+
+    /** Number of locks of this client waiting */
+    private final AtomicLong waiter_count = new AtomicLong();
+
+    /** Number of locks of this client waiting by lockpoint, lockpoints without waiters are removed */
+    private final ConcurrentHashMap<String, Integer> lockpoint_waiters = new ConcurrentHashMap<>();
+
+    /** Number of locks turned away by a waiter limit */
+    private final LongAdder shed_count = new LongAdder();
+
+    /** Read and write locks held through this client, by server lockpoint, so closing can release them */
+    private final Set<HeldLock> held_locks = ConcurrentHashMap.newKeySet();
+
+    /** Closed flag */
+    private volatile boolean closed = false;
+
+    /** Session timeout in milliseconds, 0 if locks carry their own lease */
+    private volatile long session_ms = 0;
+
+    /** Heartbeat that keeps the session alive, created on first use */
+    private ScheduledThreadPoolExecutor session_heartbeat = null;
+
+    /** Scheduled renewal of the session, null if there is no session */
+    private ScheduledFuture<?> session_renewal = null;
+
     /** Constructor for AbstractRedisLockClient
      *  On the first run, AbstractRedisLockClient will retrieve Redis Lua scripts
      *  that are located on the resources directory on the project and load them
@@ -86,6 +277,7 @@ public abstract class AbstractRedisLockClient{
             byte[] digest = new byte[8];
             SecureRandom sr = SecureRandom.getInstanceStrong();
             sr.nextBytes(digest);
+            this.client_id_bytes = digest;
             this.client_id = Utility.toHex(digest);
 
             System.out.println("Client id: " + this.client_id);
@@ -98,14 +290,37 @@ public abstract class AbstractRedisLockClient{
         if(SCRIPT_NAME_TO_SCRIPTS == null && SCRIPT_NAME_TO_SCRIPT_HASH == null){
 
             // Initialize script maps
-            SCRIPT_NAME_TO_SCRIPTS = new HashMap<>();
-            SCRIPT_NAME_TO_SCRIPT_HASH = new HashMap<>();
+            SCRIPT_NAME_TO_SCRIPTS = new ConcurrentHashMap<>();
+            SCRIPT_NAME_TO_SCRIPT_HASH = new ConcurrentHashMap<>();
 
             // Class loader
             ClassLoader class_loader = getClass().getClassLoader();
 
             // Filenames
-            String[] filenames = {"single_write_lock", "single_write_unlock", "single_refire"};
+            String[] filenames = {
+                "single_write_lock",
+                "single_write_unlock",
+                "single_refire",
+                "single_semaphore_acquire",
+                "single_semaphore_release",
+                "single_semaphore_available",
+                "single_latch_set_count",
+                "single_latch_count_down",
+                "single_barrier_await",
+                "single_barrier_state",
+                "single_condition_await",
+                "single_condition_signal",
+                "single_read_lock",
+                "single_read_unlock",
+                "single_optimistic_read",
+                "single_lockwait_leave",
+                "single_condition_waiting",
+                "single_downgrade",
+                "single_upgrade",
+                "single_session_renew",
+                "single_write_renew",
+                "single_release_all"
+            };
 
             // Load scripts
             for(String filename : filenames){
@@ -137,6 +352,22 @@ public abstract class AbstractRedisLockClient{
                 // Add it to the script
                 SCRIPT_NAME_TO_SCRIPTS.put(filename, sb.toString());
             }
+
+            // Generate the function library, versioned by the scripts, each script becomes the body of a function taking the same keys
+            try{
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                for(String filename : filenames) md.update(SCRIPT_NAME_TO_SCRIPTS.get(filename).getBytes(StandardCharsets.UTF_8));
+                FUNCTION_LIBRARY_NAME = "redislock_" + Utility.toHex(md.digest()).substring(0, 12);
+            }catch(NoSuchAlgorithmException nsae){
+                throw new ExceptionInInitializerError("Failed to version the function library because SHA-1 is not available. Reason: " + nsae.getMessage());
+            }
+            StringBuilder library = new StringBuilder("#!lua name=" + FUNCTION_LIBRARY_NAME + "\n");
+            for(String filename : filenames){
+                library.append("redis.register_function('").append(FUNCTION_LIBRARY_NAME).append('_').append(filename).append("', function(KEYS, ARGV)\n");
+                library.append(SCRIPT_NAME_TO_SCRIPTS.get(filename));
+                library.append("end)\n");
+            }
+            FUNCTION_LIBRARY = library.toString();
         }
 
         // Initialize listener_users
@@ -149,6 +380,13 @@ public abstract class AbstractRedisLockClient{
         this.unfair_locks_set = ConcurrentHashMap.newKeySet();
     }
 
+    /** Returns the id that identifies this client on the Redis server
+     *  @return client id
+     */
+    public String getClientId(){
+        return this.client_id;
+    }
+
     /** Returns true if this client is connected to a cluster, false otherwise
      *  @return true if this client is connected to a cluster, false otherwise
      */
@@ -182,225 +420,1874 @@ public abstract class AbstractRedisLockClient{
         lease_duration.set(time, unit);
     }
 
-    public RedisReadWriteLock getLock(final String lockpoint){
-        return new RedisReadWriteLock(lockpoint, this);
+    /** Retrieves current recheck interval
+     *  Waiters on latches and barriers recheck the state on the server at this interval in case they missed their notification.
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getRecheckInterval(final TimeUnit unit) throws IllegalArgumentException{
+
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+
+        // Return it
+        return recheck_interval.getTime(unit);
     }
 
-    public RedisReadWriteLock getLock(final String lockpoint, final boolean is_fair){
-        return new RedisReadWriteLock(lockpoint, this, is_fair);
+    /** Sets recheck interval
+     *  @param time time
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is not a positive number
+     */
+    public void setRecheckInterval(final long time, final TimeUnit unit){
+
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time <= 0) throw new IllegalArgumentException("time is not positive");
+
+        recheck_interval.set(time, unit);
     }
 
-    /** Loads script on the server and retrieve SHA1 digest of script
-     *  @param script Lua script
-     *  @return SHA1 digest of script
+    /** Returns the name of the Redis Functions library used when the function library is enabled.
+     *  The name carries the version of the scripts, so libraries left behind by older versions can be told apart and deleted.
+     *  @return name of library
      */
-    protected abstract String scriptLoad(String script);
+    public static String getFunctionLibraryName(){
+        return FUNCTION_LIBRARY_NAME;
+    }
 
-    /** Evaluates and returns boolean value
-     *  @param hash hash to Lua script
-     *  @param args argument parameters
-     *  @return boolean
-     *  @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+    /** Returns the state of function library
+     *  @return true if the scripts are called as functions of the library, false if they are evaluated by EVALSHA
      */
-    protected abstract boolean booleanEval(final String hash, final String... args) throws NoScriptFoundException;
+    public boolean isFunctionLibraryEnabled(){
+        return this.function_library;
+    }
 
-    /** Evaluates and returns boolean value
-     *  @param hash hash to Lua script
-     *  @param args argument parameters
-     *  @return string
-     *  @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+    /** Switches between calling the scripts as functions of one Redis Functions library and evaluating them by EVALSHA.
+     *  Enabling it loads the library on the server right away. The server keeps libraries in its persistence and
+     *  replicates them, so a restarted server or a promoted replica still has them, unlike the script cache.
+     *  Requires Redis 7 or later.
+     *  @param enabled true to use the function library, false to use EVALSHA
+     *  @throws UnsupportedOperationException thrown if the client does not support Redis Functions
+     *  @throws RuntimeException thrown by the client if the server fails to load the library, for example when it is older than Redis 7
      */
-    protected abstract String stringEval(final String hash, final String... args) throws NoScriptFoundException;
+    public void setFunctionLibraryEnabled(final boolean enabled){
+        if(enabled) this.functionLoad(FUNCTION_LIBRARY);
+        this.function_library = enabled;
+    }
 
-    /** Subscribes to channel
-     *  @param channel channel name
-     *  @param function function to fire when new topic comes up
-     *  @return string hash of function
+    /** Returns the state of compact key mode
+     *  @return true if lockpoints are named by digest on the server, false if by their full name
      */
-    protected abstract String subscribe(final String channel, final Predicate<String> function);
+    public boolean isCompactKeys(){
+        return this.compact_keys;
+    }
 
-    /** Unsunscribes channel
-     *  @param channel channel name
-     *  @param function_hash hash to identify function on the channel
+    /** Switches compact key mode. In compact mode, lockpoints are named on the server by a fixed-size digest of
+     *  their name instead of the name itself, and the client id in lock holders and lockwait entries is shortened
+     *  from 16 hex characters to 11 base64 characters. It pays off when lockpoint names are long, such as URIs.
+     *  Every client sharing lockpoints must use the same mode, and the mode must be set before the client is used,
+     *  since locks held or waited for under one mode are not recognized under the other. Locks also keep the server
+     *  name of their lockpoint for as long as they are interned.
+     *  Semaphores, latches and barriers are not affected.
+     *  @param compact true to use compact keys, false to use full names
+     *  @throws IllegalStateException thrown if the mode is changed after the client has handed out locks, semaphores or a session
      */
-    protected abstract void unsubscribe(final String channel, final String function_hash);
+    public synchronized void setCompactKeys(final boolean compact){
+        if(compact == this.compact_keys) return;
+        if(this.keys_in_use) throw new IllegalStateException("compact key mode cannot be changed after the client is used");
+        this.compact_keys = compact;
+        this.client_id = (compact ? Base64.getUrlEncoder().withoutPadding().encodeToString(this.client_id_bytes) : Utility.toHex(this.client_id_bytes));
+    }
 
-    private CountDownLatch setUpSubscription(final String lock_id, final boolean is_fair, final boolean first_time){
+    /** Returns true once the key mode can no longer be changed
+     *  @return true if the client has handed out locks, semaphores or a session
+     */
+    boolean isKeyModeFixed(){
+        return this.keys_in_use;
+    }
 
-        // Set up subscription listener
-        if(first_time && this.listener_users.getAndIncrement() == 0){
+    /** Returns the name that the lockpoint goes by on the Redis server, which is the lockpoint itself unless compact
+     *  key mode is on. In compact mode, it is '~' followed by base64 of the first 12 bytes of SHA-1 of the lockpoint.
+     *  Base64 text is used rather than raw bytes so the names stay valid strings on every client.
+     *  @param lockpoint lockpoint
+     *  @return server name of lockpoint
+     */
+    public String getServerLockpoint(final String lockpoint){
+        if(!this.keys_in_use) this.keys_in_use = true;
+        if(!this.compact_keys) return lockpoint;
+        byte[] digest = LOCKPOINT_DIGEST.get().digest(lockpoint.getBytes(StandardCharsets.UTF_8));
+        return "~" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, COMPACT_LOCKPOINT_BYTES));
+    }
 
-            // Build a function pointer
-            Predicate<String> fire_function = (message) -> {
+    /** Retrieves the waiting time that one priority level is worth
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getPriorityAging(final TimeUnit unit){
 
-                // Fire function to process message
-                this.processMessage(message);
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
 
-                // Does nothing
-                return true;
-            };
+        // Return it
+        return priority_aging.getTime(unit);
+    }
 
-            // Set up subscription
-            this.subscribe("lockchannel", fire_function);
-        }
+    /** Sets the waiting time that one priority level is worth. A fair waiter of priority p queues as if it had arrived
+     *  p times this long before it did, so it goes ahead of lower priorities that have not waited that much longer,
+     *  and a low priority waiter is never passed by waiters that arrive more than the priority difference times this later.
+     *  Every client sharing lockpoints should use the same aging.
+     *  @param time time
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is a negative number
+     */
+    public void setPriorityAging(final long time, final TimeUnit unit){
 
-        // Subscribe
-        CountDownLatch cdl = new CountDownLatch(1);
-        this.lock_to_cdl_map.put(lock_id, cdl);
-        if(!is_fair) this.unfair_locks_set.add(lock_id);
-        return cdl;
-    }
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time < 0) throw new IllegalArgumentException("time is negative");
 
-    private void tearDownSubscription(final String lock_id){
+        priority_aging.set(time, unit);
+    }
 
-        // Remove entry
-        this.lock_to_cdl_map.remove(lock_id);
-        synchronized(this.unfair_locks_set) {
-            this.unfair_locks_set.remove(lock_id);
-        }
+    /** Returns true if read locks of this client on the same lockpoint share one read registration on the server
+     *  @return true if shared, false otherwise
+     */
+    public boolean isSharedReadLeases(){
+        return this.shared_reads.isEnabled();
+    }
 
-        // Countdown and check if anyone else is using it. If not, unsubscribe
-        if(this.listener_users.decrementAndGet() == 0){ this.unsubscribe("lockchannel", "");
-        }
+    /** Switches shared read leases. When on, read locks of this client that use the client lease duration share
+     *  one read registration per lockpoint on the server and count themselves in and out locally, so a read lock
+     *  on a lockpoint that other threads already read costs no round trip. A writer that finds the registration
+     *  in its way is announced over pub/sub, after which the registration takes no new readers and is given up
+     *  once the readers holding it are done. Read locks with their own lease time always register on their own.
+     *  @param shared true to share read registrations, false to register every read lock on its own
+     */
+    public void setSharedReadLeases(final boolean shared){
+        this.shared_reads.setEnabled(shared);
     }
 
-    private boolean performBooleanEval(final String script_name, final String... arguments){
+    /** Retrieves how long a shared read registration is kept after its last reader leaves
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getSharedReadLinger(final TimeUnit unit){
 
-        // Check if we have script loaded. If not, load it on the database
-        if(!SCRIPT_NAME_TO_SCRIPT_HASH.containsKey(script_name)){
-            SCRIPT_NAME_TO_SCRIPT_HASH.put(script_name, this.scriptLoad(SCRIPT_NAME_TO_SCRIPTS.get(script_name)));
-        }
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
 
-        try{
-            return booleanEval(SCRIPT_NAME_TO_SCRIPT_HASH.get(script_name), arguments);
-        }catch(NoScriptFoundException nsfe){ // Catch a possible no script found error
-            try{
+        // Return it
+        return this.shared_reads.getLinger(unit);
+    }
 
-                // Load the script
-                SCRIPT_NAME_TO_SCRIPT_HASH.put(script_name, this.scriptLoad(SCRIPT_NAME_TO_SCRIPTS.get(script_name)));
+    /** Sets how long a shared read registration is kept after its last reader leaves, so readers that come
+     *  right after do not have to register again. A writer announcing itself cuts it short.
+     *  @param time time, 0 to give up the registration as soon as the last reader leaves
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is a negative number
+     */
+    public void setSharedReadLinger(final long time, final TimeUnit unit){
 
-                // Try again
-                return booleanEval(SCRIPT_NAME_TO_SCRIPT_HASH.get(script_name), arguments);
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time < 0) throw new IllegalArgumentException("time is negative");
 
-            }catch(NoScriptFoundException nsfe_again){
-                // AbstractRedisLockClient is hosed at this point
-                throw new RuntimeException(nsfe_again); //TODO different exception
-            }
-        }
+        this.shared_reads.setLinger(time, unit);
     }
 
-    private boolean performSingleWriteLock(final String lockpoint, final String lock_id, final boolean is_fair, final boolean first_attempt, final TimeUnit unit, final long lock_lease_time){
+    /** Retrieves how long a lockpoint found held by a writer is remembered
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter, 0 if held lockpoints are not remembered
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getNegativeCacheTime(final TimeUnit unit){
 
-        // Get TimeUnit
-        TimeUnit ms_unit = TimeUnit.MILLISECONDS;
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
 
-        // Evaluate
-        return this.performBooleanEval(
-            "single_write_lock",
-            lockpoint,
-            this.client_id,
-            lock_id,
-            is_fair ? "1" : "0",
-            first_attempt ? "1" : "0",
-            ms_unit.convert(lock_lease_time, unit) + "",
-            DEFAULT_LEASE_DURATION_SECONDS * 1000 + ""
-        );
+        // Return it
+        return unit.convert(this.negative_cache_ms, TimeUnit.MILLISECONDS);
     }
 
-    private void performSingleWriteUnlock(final String lockpoint){
+    /** Sets how long a lockpoint found held by a writer is remembered, so tryLock() without waiting time fails
+     *  on the client without a round trip while the lockpoint is known to be held. A failed tryLock() learns how long
+     *  the writer holds it and asks the server to announce unlocks and new holders of the lockpoint for this long.
+     *  A lockpoint is remembered for no longer than the writer lease or this time, whichever ends first, and is
+     *  forgotten when its unlock is announced, when the subscription is lost, or when an unlock announcement may have
+     *  crossed the reply that found it held. Locks of this client that wait or have a waiting time always go to the server.
+     *  Remembering keeps the client subscribed to the lock channel.
+     *  @param time time, 0 to not remember held lockpoints
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is a negative number
+     */
+    public synchronized void setNegativeCacheTime(final long time, final TimeUnit unit){
 
-        // Evaluate
-        this.performBooleanEval(
-            "single_write_unlock",
-            lockpoint
-        );
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time < 0) throw new IllegalArgumentException("time is negative");
+
+        // Announcements arrive over the subscription, so keep it while remembering
+        long milliseconds = unit.toMillis(time);
+        if(milliseconds > 0 && this.negative_cache_ms == 0) this.retainSubscription();
+        if(milliseconds == 0 && this.negative_cache_ms > 0) this.releaseSubscription();
+        this.negative_cache_ms = milliseconds;
+        if(milliseconds == 0) this.held_lockpoints.clear();
     }
 
-    /** Performs a single write lock
-     *  @param lockpoint lockpoint to acquire a lock
-     *  @param lock_id id of lock
-     *  @param is_fair true to enforce fairness policy, false otherwise
-     *  @return true if lock was acquired, false otherwise
+    /** Returns true if the lockpoint is known to be held by a writer, forgetting it once that is no longer known
+     *  @param key server lockpoint
+     *  @return true if known to be held, false if it is not known
      */
-    boolean writeLock(final String lockpoint, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit) throws InterruptedException{
-        boolean result = writeLock(lockpoint, lock_id, is_fair, time_out, TimeUnit.MILLISECONDS, getLeaseDuration(TimeUnit.MILLISECONDS));
-        return result;
+    private boolean isKnownHeld(final String key){
+        Long until = this.held_lockpoints.get(key);
+        if(until == null) return false;
+        if(System.nanoTime() - until < 0) return true;
+        this.held_lockpoints.remove(key, until);
+        return false;
     }
 
-    /** Performs a single write lock
-     *  @param lockpoint lockpoint to acquire a lock
-     *  @param lock_id id of lock
-     *  @param is_fair true to enforce fairness policy, false otherwise
-     *  @return true if lock was acquired, false otherwise
+    /** Remembers the lockpoint as held by a writer
+     *  @param key server lockpoint
+     *  @param from System.nanoTime() from when the holding time counts
+     *  @param held_ms holding time in milliseconds
      */
-    boolean writeLock(final String lockpoint, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final long lock_lease_time) throws InterruptedException{
-
-
-        //System.out.println("writeLock(lockpoint=" + lockpoint + ", lock_id=" + lock_id + ", is_fair=" + is_fair + ", time_out=" + time_out + ", unit=" + unit + " lock_lease_time=" + lock_lease_time + ")");
-
-        long actual_lease_time = (lock_lease_time < 1 ? getLeaseDuration(unit): lock_lease_time);
-        boolean result;
-        boolean first_attempt = true;
-        long start_time = System.currentTimeMillis(); // Record the start time before continuing
-        try{
-            do{
-                // Subscribe now
-                /*  REASON WHY WE DO THIS NOW INSTEAD OF ON UNSUCCESSFUL LOCK:
-                 *  Suppose we attempt to lock but it is unavailable, as soon as the locking script exits,
-                 *  other lock may unlock the lockpoint then announce and exit the unlocking script.
-                 *  Then this lock will fire the subscription but it had already missed the announcement
-                 *  and get stuck on waiting for lock message that may never arrive.
-                 */
-                CountDownLatch cdl = this.setUpSubscription(lock_id, is_fair, first_attempt);
-
-                // Execute it
-                result = this.performSingleWriteLock(lockpoint, lock_id, is_fair, first_attempt, unit, actual_lease_time);
-                first_attempt = false;
-
-                //System.out.println("lock id: " + lock_id + " result: " + result);
-
-                // If it was not success, wait then try again
-                if(!result) {
-
-                    //System.out.println("#lock id: " + lock_id + " awaits.");
+    private void rememberHeld(final String key, final long from, final long held_ms){
+        if(this.negative_cache_ms == 0 || held_ms <= 0) return;
+        if(this.held_lockpoints.size() >= NEGATIVE_CACHE_CAPACITY && !this.held_lockpoints.containsKey(key)) return;
+        this.held_lockpoints.put(key, from + TimeUnit.MILLISECONDS.toNanos(held_ms));
+    }
 
-                    // Wait for next unlock
-                    boolean await_result = true;
-                    if (time_out < 0) cdl.await();
-                    else{
-                        long new_time = unit.convert((TimeUnit.MILLISECONDS.convert(time_out, unit) - (System.currentTimeMillis() - start_time)), TimeUnit.MILLISECONDS);
-                        await_result = cdl.await(new_time, unit);
-                    }
+    /** Closes the client, giving up what it holds on the server so other clients do not wait for leases to run out.
+     *  Acquisitions that are waiting are woken up and fail with IllegalStateException, as do acquisitions made after this.
+     *  Every read and write lock held through this client is released in one batch with the same announcements as unlocking
+     *  them one by one, and the session of the client ends. The session heartbeat, lingering shared read registrations, the
+     *  subscription and the dispatcher are stopped. Unlocking a lock released this way does nothing. Semaphore permits are
+     *  not tracked and run out with their leases. Connections and pools given to the client are left open.
+     *  Closing a closed client does nothing.
+     */
+    @Override
+    public void close(){
+
+        // Turn away new acquisitions and stop renewing the session
+        synchronized(this){
+            if(this.closed) return;
+            this.closed = true;
+            if(this.session_renewal != null){
+                this.session_renewal.cancel(false);
+                this.session_renewal = null;
+            }
+            if(this.session_heartbeat != null) this.session_heartbeat.shutdownNow();
+        }
 
-                    //System.out.println("#lock id: " + lock_id + " await_result: " + await_result);
+        // Wake up every waiter, they find the client closed and give up
+        this.recoverLostMessages();
+        this.shared_reads.close();
 
-                    // Check
-                    if (await_result) continue; // Retry to attempt to lock again
-                    else return false; // Give up
+        // Give up the locks
+        this.releaseHeldLocks();
 
-                // Successful
-                }else return result;
-            }while(true);
-        }finally{
-            // Tear down
-            this.tearDownSubscription(lock_id);
+        // Tear down the subscription and let the dispatcher finish
+        synchronized(this.listener_users){
+            if(this.listener_users.getAndSet(0) > 0) this.unsubscribe("lockchannel", "");
         }
+        Thread dispatcher = this.dispatcher;
+        if(dispatcher != null) LockSupport.unpark(dispatcher);
     }
 
-    /** Performs a single write unlock
-     *  @param lockpoint lockpoint to unlock
+    /** Returns true if the client is closed
+     *  @return true if closed, false otherwise
      */
-    void writeUnlock(final String lockpoint, final String lock_id){
+    public boolean isClosed(){
+        return this.closed;
+    }
 
-        //System.out.println("writeUnlock(lockpoint=" + lockpoint + ", lock_id=" + lock_id +")");
+    /** Records a lock acquired through this client, releasing it right away if the client closed meanwhile
+     *  @param held held lock
+     *  @throws IllegalStateException thrown if the client is closed
+     */
+    private void addHeld(final HeldLock held){
+        this.held_locks.add(held);
+        if(!this.closed) return;
 
-        this.performSingleWriteUnlock(lockpoint);
+        // Acquired while closing, release it like the rest
+        this.releaseHeldLocks();
+        throw new IllegalStateException("client is closed");
     }
 
-    private void processMessage(final String message){
+    /** Releases every lock recorded as held in batches of evaluations, ending the session with the last batch */
+    private void releaseHeldLocks(){
+
+        // Take them off the record, each one only once if closing races with an acquisition
+        List<HeldLock> locks = new ArrayList<>();
+        for(HeldLock held : this.held_locks) if(this.held_locks.remove(held)) locks.add(held);
+        if(locks.isEmpty() && this.session_ms == 0) return;
+
+        int index = 0;
+        do{
+            int count = Math.min(RELEASE_BATCH_SIZE, locks.size() - index);
+            String[] arguments = new String[3 + count * 3];
+            arguments[0] = this.client_id;
+            arguments[1] = newVersion();
+            arguments[2] = VERSION_LEASE_MILLISECONDS;
+            for(int i = 0; i < count; i++){
+                HeldLock held = locks.get(index + i);
+                arguments[3 + i * 3] = (held.read ? "r" : "w");
+                arguments[4 + i * 3] = held.lockpoint;
+                arguments[5 + i * 3] = held.lock_id;
+            }
+            index += count;
+            try{
+                this.performLongEval("single_release_all", arguments);
+            }catch(RuntimeException e){
+                // The locks run out with their leases instead
+            }
+        }while(index < locks.size());
+    }
+
+    /** Retrieves the session timeout
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter, 0 if locks carry their own lease
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getSessionTimeout(final TimeUnit unit){
+
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+
+        // Return it
+        return unit.convert(this.session_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sets the session timeout. With a session, the client keeps one session key alive on the server with a heartbeat
+     *  every third of the timeout, and read and write locks that use the client lease duration are owned by the session
+     *  instead of carrying a lease of their own. Such locks are held for as long as the client keeps its session, however
+     *  long that is, and once the session key runs out, the next lock that finds them in its way treats them as released.
+     *  A client that crashes or loses its connection gives up its locks within the timeout, so the timeout can be much
+     *  shorter than the lease duration without renewing every held lock. Locks with their own lease time, shared read
+     *  registrations, stripes and semaphores keep their leases. Turning the session off stops the heartbeat, and locks
+     *  still owned by the session are released once its key runs out.
+     *  @param time time, 0 to not keep a session
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is a negative number
+     */
+    public synchronized void setSessionTimeout(final long time, final TimeUnit unit){
+
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time < 0) throw new IllegalArgumentException("time is negative");
+
+        // Stop the heartbeat of the old timeout
+        if(this.session_renewal != null){
+            this.session_renewal.cancel(false);
+            this.session_renewal = null;
+        }
+
+        // The session has to exist before the first lock is owned by it
+        final long milliseconds = unit.toMillis(time);
+        if(milliseconds > 0){
+            this.keys_in_use = true; // The session key is named by the client id
+            this.renewSession(milliseconds);
+            if(this.session_heartbeat == null){
+                this.session_heartbeat = new ScheduledThreadPoolExecutor(1, runnable -> {
+                    Thread thread = new Thread(runnable, "redis-lock-session-" + this.client_id);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.session_heartbeat.setRemoveOnCancelPolicy(true);
+            }
+            final long period = Math.max(1, milliseconds / 3);
+            this.session_renewal = this.session_heartbeat.scheduleWithFixedDelay(() -> {
+                try{
+                    this.renewSession(milliseconds);
+                }catch(RuntimeException e){
+                    // The next heartbeat tries again, the session runs out if none gets through in time
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        this.session_ms = milliseconds;
+    }
+
+    /** Refreshes the session key of this client
+     *  @param milliseconds session timeout in milliseconds
+     */
+    private void renewSession(final long milliseconds){
+        LockEvents.Renewal event = (LockEvents.AVAILABLE ? new LockEvents.Renewal() : null);
+        if(event != null) event.begin();
+        boolean renewed = this.performBooleanEval("single_session_renew", this.client_id, milliseconds + "");
+        commitRenewal(event, null, renewed, (renewed ? milliseconds : 0));
+    }
+
+    /** Returns the lease of a lock that uses the client lease duration
+     *  @return lease in milliseconds, 0 if the lock is owned by the session of the client
+     */
+    long getDefaultLockLease(){
+        return (this.getSessionTimeout(TimeUnit.MILLISECONDS) > 0 ? 0 : this.getLeaseDuration(TimeUnit.MILLISECONDS));
+    }
+
+    /** Retrieves the maximum number of lockpoints that getLock keeps interned per fairness policy
+     *  @return capacity of the lock registry
+     */
+    public int getLockRegistryCapacity(){
+        return this.lock_registry.getCapacity();
+    }
+
+    /** Sets the maximum number of lockpoints that getLock keeps interned per fairness policy.
+     *  Lockpoints beyond the capacity are evicted and recreated on the next getLock call.
+     *  @param capacity capacity of the lock registry, 0 to disable interning
+     *  @throws IllegalArgumentException thrown if capacity is a negative number
+     */
+    public void setLockRegistryCapacity(final int capacity){
+
+        // Check capacity
+        if(capacity < 0) throw new IllegalArgumentException("capacity is negative");
+
+        this.lock_registry.setCapacity(capacity);
+    }
+
+    /** Returns the number of lockpoints currently interned
+     *  @return number of interned lockpoints
+     */
+    int getLockRegistrySize(){
+        return this.lock_registry.size();
+    }
+
+    /** Returns the number of servers that lockpoints are spread over
+     *  @return 1, the server of this client
+     */
+    public int getShardCount(){
+        return 1;
+    }
+
+    /** Returns the index of the server that the lockpoint lives on, which orders multi-lock acquisitions by server
+     *  @param lockpoint lockpoint
+     *  @return 0, the server of this client
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    public int getShardIndex(final String lockpoint){
+        if(lockpoint == null) throw new IllegalArgumentException("lockpoint is null");
+        return 0;
+    }
+
+    /** Returns the client of the server that the lockpoint lives on
+     *  @param lockpoint lockpoint
+     *  @return this client
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    public AbstractRedisLockClient getShard(final String lockpoint){
+        if(lockpoint == null) throw new IllegalArgumentException("lockpoint is null");
+        return this;
+    }
+
+    /** Returns unfair RedisReadWriteLock on the lockpoint. Instances are interned,
+     *  so repeated calls on the same lockpoint return the same instance.
+     *  @param lockpoint lockpoint
+     *  @return RedisReadWriteLock instance
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    public RedisReadWriteLock getLock(final String lockpoint){
+        return this.lock_registry.get(lockpoint, false);
+    }
+
+    /** Returns RedisReadWriteLock on the lockpoint. Instances are interned,
+     *  so repeated calls on the same lockpoint return the same instance.
+     *  @param lockpoint lockpoint
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return RedisReadWriteLock instance
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    public RedisReadWriteLock getLock(final String lockpoint, final boolean is_fair){
+        return this.lock_registry.get(lockpoint, is_fair);
+    }
+
+    /** Returns striped lock that hashes logical keys onto a fixed number of lockpoints
+     *  @param name name of striped lock, used as prefix of the stripe lockpoints
+     *  @param stripes number of stripes
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return StripedRedisLock instance
+     *  @throws IllegalArgumentException thrown if name is null or stripes is not positive
+     */
+    public StripedRedisLock getStripedLock(final String name, final int stripes, final boolean is_fair){
+        return new StripedRedisLock(name, stripes, is_fair, this);
+    }
+
+    /** Returns executor that runs tasks while holding the write lock of their lockpoint, batching the tasks
+     *  queued for one lockpoint under one acquisition. Combiners run on daemon threads of the executor.
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return LockedExecutor instance
+     */
+    public LockedExecutor getLockedExecutor(final boolean is_fair){
+        return new LockedExecutor(is_fair, null, this);
+    }
+
+    /** Returns executor that runs tasks while holding the write lock of their lockpoint, batching the tasks
+     *  queued for one lockpoint under one acquisition
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @param executor executor that runs the combiners, one task per lockpoint with queued tasks at a time
+     *  @return LockedExecutor instance
+     *  @throws IllegalArgumentException thrown if executor is null
+     */
+    public LockedExecutor getLockedExecutor(final boolean is_fair, final Executor executor){
+        if(executor == null) throw new IllegalArgumentException("executor is null");
+        return new LockedExecutor(is_fair, executor, this);
+    }
+
+    /** Returns leader election among every candidate that runs an election of the same name
+     *  @param name name of election, used as the lockpoint that the leader holds
+     *  @return LeaderElection instance
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    public LeaderElection getLeaderElection(final String name){
+        return new LeaderElection(name, this);
+    }
+
+    /** Returns distributed counting semaphore
+     *  @param name name of semaphore
+     *  @param permits total number of permits shared by all users of the semaphore
+     *  @return RedisSemaphore instance
+     *  @throws IllegalArgumentException thrown if name is null or permits is not positive
+     */
+    public RedisSemaphore getSemaphore(final String name, final int permits){
+        if(!this.keys_in_use) this.keys_in_use = true; // Holders carry the client id
+        return new RedisSemaphore(name, permits, this);
+    }
+
+    /** Returns distributed count down latch
+     *  @param name name of latch
+     *  @return RedisCountDownLatch instance
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    public RedisCountDownLatch getCountDownLatch(final String name){
+        return new RedisCountDownLatch(name, this);
+    }
+
+    /** Returns distributed cyclic barrier
+     *  @param name name of barrier
+     *  @param parties number of parties that must call await before the barrier trips
+     *  @return RedisCyclicBarrier instance
+     *  @throws IllegalArgumentException thrown if name is null or parties is not positive
+     */
+    public RedisCyclicBarrier getCyclicBarrier(final String name, final int parties){
+        return new RedisCyclicBarrier(name, parties, null, this);
+    }
+
+    /** Returns distributed cyclic barrier
+     *  @param name name of barrier
+     *  @param parties number of parties that must call await before the barrier trips
+     *  @param barrier_action action run by the last arriving party of this client before the barrier trips, may be null
+     *  @return RedisCyclicBarrier instance
+     *  @throws IllegalArgumentException thrown if name is null or parties is not positive
+     */
+    public RedisCyclicBarrier getCyclicBarrier(final String name, final int parties, final Runnable barrier_action){
+        return new RedisCyclicBarrier(name, parties, barrier_action, this);
+    }
+
+    /** Lists every lockpoint that is held or has fair waiters, scanning at most DEFAULT_INTROSPECTION_KEYS_PER_SECOND keys per second
+     *  @param consumer consumer that receives each lockpoint as it is read
+     *  @throws IllegalArgumentException thrown if consumer is null
+     *  @throws InterruptedException if the current thread is interrupted while pacing the scan
+     *  @see #forEachLock(Consumer, int)
+     */
+    public void forEachLock(final Consumer<LockInfo> consumer) throws InterruptedException{
+        this.forEachLock(consumer, DEFAULT_INTROSPECTION_KEYS_PER_SECOND);
+    }
+
+    /** Lists every lockpoint that is held or has fair waiters. Made for diagnosing stalls on a live server:
+     *  keys are walked with SCAN a few at a time, the state of each batch of lockpoints is read with one pipelined round trip,
+     *  and the scan is paced to the given number of keys per second so it never hogs the server.
+     *  Results are handed to the consumer as they are read, nothing is collected. A lockpoint that changes during the scan
+     *  may be missed or listed twice, as SCAN only guarantees keys that exist throughout the scan.
+     *  In compact key mode, lockpoints are listed by their server names, see getServerLockpoint.
+     *  @param consumer consumer that receives each lockpoint as it is read
+     *  @param keys_per_second maximum number of keys scanned per second
+     *  @throws IllegalArgumentException thrown if consumer is null or keys_per_second is not positive
+     *  @throws InterruptedException if the current thread is interrupted while pacing the scan
+     */
+    public void forEachLock(final Consumer<LockInfo> consumer, final int keys_per_second) throws InterruptedException{
+
+        // Check parameters
+        if(consumer == null) throw new IllegalArgumentException("consumer is null");
+        if(keys_per_second <= 0) throw new IllegalArgumentException("keys_per_second is not positive");
+
+        long nanos_per_key = TimeUnit.SECONDS.toNanos(1) / keys_per_second;
+        long next_batch = System.nanoTime();
+        String cursor = "0";
+        List<String> keys = new ArrayList<>(INTROSPECTION_SCAN_COUNT);
+        List<String> lockpoints = new ArrayList<>(INTROSPECTION_SCAN_COUNT);
+        StringBuilder sources = new StringBuilder(INTROSPECTION_SCAN_COUNT);
+        do{
+
+            // Pace it
+            long wait = next_batch - System.nanoTime();
+            if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            else if(Thread.interrupted()) throw new InterruptedException();
+
+            // Next batch of keys, one lockpoint may have several of them
+            keys.clear();
+            cursor = this.scan(cursor, "lock[pwr]*", INTROSPECTION_SCAN_COUNT, keys);
+            next_batch = Math.max(next_batch, System.nanoTime()) + Math.max(keys.size(), 1) * nanos_per_key;
+            lockpoints.clear();
+            sources.setLength(0);
+            for(String key : keys){
+                if(key.startsWith("lockpoint:")){
+                    lockpoints.add(key.substring(10));
+                    sources.append('p');
+                }else if(key.startsWith("lockreaders:")){
+                    lockpoints.add(key.substring(12));
+                    sources.append('r');
+                }else if(key.startsWith("lockwait:")){
+                    lockpoints.add(key.substring(9));
+                    sources.append('w');
+                }
+            }
+            if(lockpoints.isEmpty()) continue;
+
+            // Read the state of every lockpoint in one go
+            String[][] commands = new String[lockpoints.size() * 6][];
+            for(int i = 0; i < lockpoints.size(); i++){
+                String lockpoint = lockpoints.get(i);
+                commands[i * 6] = new String[]{"GET", "lockpoint:" + lockpoint};
+                commands[i * 6 + 1] = new String[]{"PTTL", "lockpoint:" + lockpoint};
+                commands[i * 6 + 2] = new String[]{"SCARD", "lockreaders:" + lockpoint};
+                commands[i * 6 + 3] = new String[]{"PTTL", "lockreaders:" + lockpoint};
+                commands[i * 6 + 4] = new String[]{"LLEN", "lockwait:" + lockpoint};
+                commands[i * 6 + 5] = new String[]{"LRANGE", "lockwait:" + lockpoint, "0", Integer.toString(INTROSPECTION_MAX_WAITERS - 1)};
+            }
+            List<Object> replies = this.pipelinedRead(commands);
+
+            // Hand them out, each lockpoint only under the key that describes its state so it is not listed once per key
+            for(int i = 0; i < lockpoints.size(); i++){
+                String lockpoint = lockpoints.get(i);
+                String holder = (String) replies.get(i * 6);
+                long readers = (Long) replies.get(i * 6 + 2);
+                long queue_depth = (Long) replies.get(i * 6 + 4);
+                char source = (holder != null ? 'p' : (readers > 0 ? 'r' : (queue_depth > 0 ? 'w' : ' ')));
+                if(source != sources.charAt(i)) continue;
+                @SuppressWarnings("unchecked")
+                List<String> waiters = (List<String>) replies.get(i * 6 + 5);
+                long lease_ms = (holder != null ? (Long) replies.get(i * 6 + 1) : (readers > 0 ? (Long) replies.get(i * 6 + 3) : -1));
+                consumer.accept(new LockInfo(lockpoint, holder, readers, Math.max(lease_ms, -1), queue_depth, waiters));
+            }
+        }while(!cursor.equals("0"));
+    }
+
+    /** Returns the number of times the subscription came back after its connection was lost
+     *  @return number of reconnects
+     */
+    public long getReconnectCount(){
+        return this.reconnect_count.get();
+    }
+
+    /** Returns how long the last reconnect took, from losing the subscription to having every waiter retried
+     *  @param unit the time unit of the returned value
+     *  @return recovery time, 0 if the subscription was never lost
+     *  @throws IllegalArgumentException thrown if unit is null
+     */
+    public long getLastRecoveryTime(final TimeUnit unit){
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        return unit.convert(this.last_recovery_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Called by subclasses once the subscription is back after its connection was lost, for example by a failover.
+     *  It is called on the listener thread, so it only hands the reconnect over to the dispatcher, which loads the scripts
+     *  again in case the server lost them and wakes up every waiter to retry once, since the notifications published
+     *  while the subscription was down never arrived.
+     *  @param lost_at when the subscription was lost in System.nanoTime()
+     */
+    protected void onReconnect(final long lost_at){
+        this.pending_reconnect.compareAndSet(0, lost_at); // A reconnect not handled yet keeps the earlier loss
+        Thread dispatcher = this.dispatcher;
+        if(dispatcher != null) LockSupport.unpark(dispatcher);
+    }
+
+    /** Catches up after the subscription came back, run by the dispatcher
+     *  @param lost_at when the subscription was lost in System.nanoTime()
+     */
+    private void recoverReconnect(final long lost_at){
+
+        // Load the scripts again, performEval loads any that fail here on their next use
+        try{
+            for(Map.Entry<String, String> entry : SCRIPT_NAME_TO_SCRIPTS.entrySet()){
+                LockEvents.ScriptReload event = (LockEvents.AVAILABLE ? new LockEvents.ScriptReload() : null);
+                if(event != null) event.begin();
+                SCRIPT_NAME_TO_SCRIPT_HASH.put(entry.getKey(), this.scriptLoad(entry.getValue()));
+                commitScriptReload(event, entry.getKey(), "reconnect");
+            }
+            if(this.function_library){
+                LockEvents.ScriptReload event = (LockEvents.AVAILABLE ? new LockEvents.ScriptReload() : null);
+                if(event != null) event.begin();
+                this.functionLoad(FUNCTION_LIBRARY);
+                commitScriptReload(event, FUNCTION_LIBRARY_NAME, "reconnect");
+            }
+        }catch(RuntimeException e){
+            // Server is still settling
+        }
+
+        // Record it before anyone gets to see the retried waiters
+        this.last_recovery_nanos = System.nanoTime() - lost_at;
+        this.reconnect_count.incrementAndGet();
+
+        // Make up for the notifications published while the subscription was down
+        this.recoverLostMessages();
+    }
+
+    /** Makes up for messages that never reached the client. Held lockpoints are forgotten since their unlock may have
+     *  been announced, and every waiter is woken up to retry once. Waiters must therefore check what woke them up.
+     */
+    void recoverLostMessages(){
+
+        // Unlocks announced in the meantime never arrived
+        this.held_invalidations.incrementAndGet();
+        this.held_lockpoints.clear();
+
+        // Wake up every waiter to retry once
+        for(CountDownLatch cdl : this.lock_to_cdl_map.values()) cdl.countDown();
+        for(Set<CountDownLatch> set : this.event_to_cdl_map.values()){
+            for(CountDownLatch cdl : set) cdl.countDown();
+        }
+    }
+
+    /** Dispatcher thread loop. Takes messages handed over by the listener thread and processes them, so wake-ups,
+     *  lookups, the occasional script call and the catching up after a reconnect never hold up the listener.
+     *  Parks while there is nothing to do.
+     */
+    private void dispatch(){
+        long dropped = 0;
+        while(!this.closed){
+
+            // Process everything there is
+            byte[] message;
+            while((message = this.message_ring.poll()) != null){
+                try{
+                    this.processMessage(message);
+                }catch(RuntimeException e){
+                    // One bad message must not stop the dispatcher
+                }
+            }
+
+            // Messages were dropped while the ring was full
+            long dropped_now = this.message_ring.getDroppedCount();
+            if(dropped_now != dropped){
+                dropped = dropped_now;
+                this.recoverLostMessages();
+                continue;
+            }
+
+            // Subscription came back, catch up on what was missed
+            long lost_at = this.pending_reconnect.getAndSet(0);
+            if(lost_at != 0){
+                try{
+                    this.recoverReconnect(lost_at);
+                }catch(RuntimeException e){
+                    // Waiters still get to it on their next recheck
+                }
+                continue;
+            }
+
+            // Park until the listener hands something over, checking again after announcing it so nothing is missed
+            this.dispatcher_idle = true;
+            if(this.message_ring.isEmpty() && this.message_ring.getDroppedCount() == dropped && this.pending_reconnect.get() == 0) LockSupport.park(this);
+            this.dispatcher_idle = false;
+        }
+    }
+
+    /** Retrieves the number of messages received from the lock channel that are waiting to be processed
+     *  @return number of messages
+     */
+    public int getListenerBacklog(){
+        return this.message_ring.size();
+    }
+
+    /** Retrieves the number of messages that were dropped because too many were waiting to be processed.
+     *  Every drop is made up for by waking up every waiter to retry once, like after a reconnect.
+     *  @return number of dropped messages
+     */
+    public long getDroppedMessageCount(){
+        return this.message_ring.getDroppedCount();
+    }
+
+    /** Retrieves the maximum number of read and write locks of this client that may wait at once
+     *  @return maximum number of waiters, 0 if there is no limit
+     */
+    public int getMaxWaiters(){
+        return this.max_waiters;
+    }
+
+    /** Sets the maximum number of read and write locks of this client that may wait at once. A lock that would have to wait
+     *  while the limit is reached fails right away with TooManyWaitersException instead of adding a latch, a subscription
+     *  and retries on every wake-up to the pile. Locks that do not wait, such as tryLock() without waiting time, are never
+     *  turned away, and neither are condition waiters that reacquire their lock. Read locks waiting for a shared read
+     *  registration to be set up by another reader of this client do not count.
+     *  @param max_waiters maximum number of waiters, 0 for no limit
+     *  @throws IllegalArgumentException thrown if max_waiters is a negative number
+     */
+    public void setMaxWaiters(final int max_waiters){
+
+        // Check limit
+        if(max_waiters < 0) throw new IllegalArgumentException("max_waiters is negative");
+
+        this.max_waiters = max_waiters;
+    }
+
+    /** Retrieves the maximum number of read and write locks of this client that may wait on one lockpoint at once
+     *  @return maximum number of waiters per lockpoint, 0 if there is no limit
+     */
+    public int getMaxWaitersPerLockpoint(){
+        return this.max_lockpoint_waiters;
+    }
+
+    /** Sets the maximum number of read and write locks of this client that may wait on one lockpoint at once, so a hot
+     *  lockpoint sheds its waiters before it drags down locks on other lockpoints. Locks are turned away the same way
+     *  as by setMaxWaiters.
+     *  @param max_waiters maximum number of waiters per lockpoint, 0 for no limit
+     *  @throws IllegalArgumentException thrown if max_waiters is a negative number
+     */
+    public void setMaxWaitersPerLockpoint(final int max_waiters){
+
+        // Check limit
+        if(max_waiters < 0) throw new IllegalArgumentException("max_waiters is negative");
+
+        this.max_lockpoint_waiters = max_waiters;
+    }
+
+    /** Retrieves the number of read and write locks of this client that are waiting
+     *  @return number of waiters
+     */
+    public long getWaiterCount(){
+        return this.waiter_count.get();
+    }
+
+    /** Retrieves the number of read and write locks of this client that are waiting on the lockpoint
+     *  @param lockpoint lockpoint
+     *  @return number of waiters
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    public int getWaiterCount(final String lockpoint){
+
+        // Check lockpoint
+        if(lockpoint == null) throw new IllegalArgumentException("lockpoint is null");
+
+        return this.lockpoint_waiters.getOrDefault(lockpoint, 0);
+    }
+
+    /** Retrieves the number of locks turned away so far because a waiter limit was reached
+     *  @return number of shed locks
+     */
+    public long getShedCount(){
+        return this.shed_count.sum();
+    }
+
+    /** Counts in a lock that is about to wait, turning it away if that goes over a waiter limit
+     *  @param lockpoint lockpoint
+     *  @throws TooManyWaitersException thrown if a waiter limit is reached
+     */
+    private void admitWaiter(final String lockpoint){
+        final long waiting = this.waiter_count.incrementAndGet();
+        final int[] waiting_on_lockpoint = new int[1];
+        this.lockpoint_waiters.compute(lockpoint, (key, count) -> (waiting_on_lockpoint[0] = (count == null ? 1 : count + 1)));
+        final int max_waiters = this.max_waiters;
+        final int max_lockpoint_waiters = this.max_lockpoint_waiters;
+        final boolean client_limit = (max_waiters > 0 && waiting > max_waiters);
+        if(!client_limit && (max_lockpoint_waiters == 0 || waiting_on_lockpoint[0] <= max_lockpoint_waiters)) return;
+
+        // Turn it away
+        this.leaveWaiters(lockpoint);
+        this.shed_count.increment();
+        final int limit = (client_limit ? max_waiters : max_lockpoint_waiters);
+        LockEvents.Shed event = (LockEvents.AVAILABLE ? new LockEvents.Shed() : null);
+        if(event != null && event.shouldCommit()){
+            event.lockpoint = lockpoint;
+            event.clientLimit = client_limit;
+            event.limit = limit;
+            event.commit();
+        }
+        throw new TooManyWaitersException(lockpoint, limit, client_limit);
+    }
+
+    /** Counts out a lock that was counted in by admitWaiter
+     *  @param lockpoint lockpoint
+     */
+    private void leaveWaiters(final String lockpoint){
+        this.lockpoint_waiters.computeIfPresent(lockpoint, (key, count) -> (count == 1 ? null : count - 1));
+        this.waiter_count.decrementAndGet();
+    }
+
+    /** Fills in and commits script reload event if it is enabled
+     *  @param event script reload event, null if the flight recorder is not available
+     *  @param script name of script or function library
+     *  @param reason reason for reload
+     */
+    private static void commitScriptReload(final LockEvents.ScriptReload event, final String script, final String reason){
+        if(event != null && event.shouldCommit()){
+            event.script = script;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /** Loads script on the server and retrieve SHA1 digest of script
+     *  @param script Lua script
+     *  @return SHA1 digest of script
+     */
+    protected abstract String scriptLoad(String script);
+
+    /** Loads function library on the server, replacing the library of the same name.
+     *  Clients that support Redis Functions override this along with functionCall.
+     *  @param library library code
+     *  @throws UnsupportedOperationException thrown if the client does not support Redis Functions
+     */
+    protected void functionLoad(final String library){
+        throw new UnsupportedOperationException(this.getClass().getSimpleName() + " does not support Redis Functions");
+    }
+
+    /** Calls function of the function library
+     *  @param function name of function
+     *  @param args argument parameters, all passed as keys
+     *  @return reply, Long for integer replies and String or byte[] for bulk replies
+     *  @throws NoScriptFoundException thrown if the function cannot be found on the database
+     *  @throws UnsupportedOperationException thrown if the client does not support Redis Functions
+     */
+    protected Object functionCall(final String function, final String... args) throws NoScriptFoundException{
+        throw new UnsupportedOperationException(this.getClass().getSimpleName() + " does not support Redis Functions");
+    }
+
+    /** Evaluates and returns boolean value
+     *  @param hash hash to Lua script
+     *  @param args argument parameters
+     *  @return boolean
+     *  @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     */
+    protected abstract boolean booleanEval(final String hash, final String... args) throws NoScriptFoundException;
+
+    /** Evaluates and returns long value
+     *  @param hash hash to Lua script
+     *  @param args argument parameters
+     *  @return long
+     *  @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     */
+    protected abstract long longEval(final String hash, final String... args) throws NoScriptFoundException;
+
+    /** Evaluates and returns string value
+     *  @param hash hash to Lua script
+     *  @param args argument parameters
+     *  @return string
+     *  @throws NoScriptFoundException thrown if the script to the corresponding hash cannot be found on the database
+     */
+    protected abstract String stringEval(final String hash, final String... args) throws NoScriptFoundException;
+
+    /** Gets value of the key
+     *  @param key key
+     *  @return value, null if the key does not exist
+     */
+    protected abstract String get(final String key);
+
+    /** Scans the keyspace one step with SCAN
+     *  @param cursor cursor returned by the previous step, "0" to start
+     *  @param pattern MATCH pattern
+     *  @param count COUNT hint
+     *  @param keys list that receives the keys of this step
+     *  @return cursor for the next step, "0" when the scan is complete
+     */
+    protected abstract String scan(final String cursor, final String pattern, final int count, final List<String> keys);
+
+    /** Sends read-only commands in one pipelined round trip. Only GET, PTTL, SCARD, LLEN and LRANGE are used.
+     *  @param commands commands, each being the command name followed by its arguments
+     *  @return replies in command order, String or null for GET, Long for PTTL, SCARD and LLEN, List of String for LRANGE
+     */
+    protected abstract List<Object> pipelinedRead(final String[][] commands);
+
+    /** Subscribes to channel
+     *  @param channel channel name
+     *  @param function function to fire when new topic comes up
+     *  @return string hash of function
+     */
+    protected abstract String subscribe(final String channel, final Predicate<byte[]> function);
+
+    /** Unsunscribes channel
+     *  @param channel channel name
+     *  @param function_hash hash to identify function on the channel
+     */
+    protected abstract void unsubscribe(final String channel, final String function_hash);
+
+    /** Makes sure the client is subscribed to the lock channel for as long as the caller needs it.
+     *  Each call must be paired with a releaseSubscription call.
+     */
+    void retainSubscription(){
+
+        // Set up subscription listener, guarded so it cannot interleave with a teardown
+        synchronized(this.listener_users){
+            if(this.closed) throw new IllegalStateException("client is closed");
+            if(this.listener_users.getAndIncrement() == 0){
+
+                // Build a function pointer, it runs on the listener thread so it only hands the message over
+                Predicate<byte[]> fire_function = (message) -> {
+
+                    // Hand it to the dispatcher, a dropped message is made up for by the dispatcher
+                    this.message_ring.offer(message);
+                    if(this.dispatcher_idle) LockSupport.unpark(this.dispatcher);
+
+                    // Does nothing
+                    return true;
+                };
+
+                // Start the dispatcher on first use
+                if(this.dispatcher == null){
+                    Thread thread = new Thread(this::dispatch, "redis-lock-dispatcher-" + this.client_id);
+                    thread.setDaemon(true);
+                    this.dispatcher = thread;
+                    thread.start();
+                }
+
+                // Set up subscription, a failure is undone by the releaseSubscription call that follows it
+                this.subscribe("lockchannel", fire_function);
+            }
+        }
+    }
+
+    /** Releases the subscription retained by retainSubscription, unsubscribing if nobody else uses it */
+    void releaseSubscription(){
+
+        // Countdown and check if anyone else is using it. If not, unsubscribe
+        synchronized(this.listener_users){
+            if(this.closed) return; // Closing tore it down already
+            if(this.listener_users.decrementAndGet() == 0) this.unsubscribe("lockchannel", "");
+        }
+    }
+
+    private CountDownLatch setUpSubscription(final String lock_id, final boolean is_fair, final boolean first_time){
+
+        // Set up subscription listener
+        if(first_time){
+            this.retainSubscription();
+            this.waiting_lock_ids.add(lock_id);
+        }
+
+        // Subscribe
+        CountDownLatch cdl = new CountDownLatch(1);
+        this.lock_to_cdl_map.put(lock_id, cdl);
+        if(!is_fair) this.unfair_locks_set.add(lock_id);
+        return cdl;
+    }
+
+    private void tearDownSubscription(final String lock_id){
+
+        // Remove entry
+        this.lock_to_cdl_map.remove(lock_id);
+        this.waiting_lock_ids.remove(lock_id);
+        synchronized(this.unfair_locks_set) {
+            this.unfair_locks_set.remove(lock_id);
+        }
+
+        // Check if anyone else is using it. If not, unsubscribe
+        this.releaseSubscription();
+    }
+
+    /** Waits until the condition holds. The condition is checked once up front and again whenever
+     *  a notification for the event arrives. It is also rechecked every recheck interval,
+     *  so a waiter that missed the notification, for example while the client was reconnecting, still finishes.
+     *  @param event name of event
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @param condition condition to wait for
+     *  @return true if the condition holds, false if timed out
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    boolean awaitEvent(final String event, final long time_out, final TimeUnit unit, final BooleanSupplier condition) throws InterruptedException{
+
+        long time_out_ms = (time_out < 0 ? -1 : TimeUnit.MILLISECONDS.convert(time_out, unit));
+        long start_time = System.currentTimeMillis(); // Record the start time before continuing
+        this.retainSubscription();
+        try{
+            do{
+                if(this.closed) throw new IllegalStateException("client is closed");
+
+                // Register before checking so a notification sent right after the check is not missed
+                CountDownLatch cdl = new CountDownLatch(1);
+                this.event_to_cdl_map.compute(event, (key, set) -> {
+                    if(set == null) set = ConcurrentHashMap.newKeySet();
+                    set.add(cdl);
+                    return set;
+                });
+
+                try{
+                    // Check condition
+                    if(condition.getAsBoolean()) return true;
+
+                    // Find out how long we can wait
+                    long wait_time = this.recheck_interval.getTime(TimeUnit.MILLISECONDS);
+                    if(time_out_ms >= 0){
+                        long remaining = time_out_ms - (System.currentTimeMillis() - start_time);
+                        if(remaining <= 0) return false;
+                        wait_time = Math.min(wait_time, remaining);
+                    }
+
+                    // Wait for notification or recheck
+                    cdl.await(wait_time, TimeUnit.MILLISECONDS);
+
+                }finally{
+                    this.event_to_cdl_map.computeIfPresent(event, (key, set) -> {
+                        set.remove(cdl);
+                        return (set.isEmpty() ? null : set);
+                    });
+                }
+            }while(true);
+        }finally{
+            this.releaseSubscription();
+        }
+    }
+
+    /** Wakes up everyone waiting on the event
+     *  @param event name of event
+     */
+    private void notifyEvent(final String event){
+        Set<CountDownLatch> set = this.event_to_cdl_map.remove(event);
+        if(set != null) for(CountDownLatch cdl : set) cdl.countDown();
+    }
+
+    /** Evaluates script by its name, loading it on the server if the server does not have it
+     *  @param script_name name of script
+     *  @param function evaluation function
+     *  @param conversion conversion of reply when the script is called as a function
+     *  @param arguments argument parameters
+     *  @return result of evaluation
+     */
+    private <T> T performEval(final String script_name, final EvalFunction<T> function, final BiFunction<Object, String, T> conversion, final String... arguments){
+
+        // Call it from the library if enabled
+        if(this.function_library) return conversion.apply(this.performFunctionCall(script_name, arguments), script_name);
+
+        // Check if we have script loaded. If not, load it on the database
+        if(!SCRIPT_NAME_TO_SCRIPT_HASH.containsKey(script_name)){
+            SCRIPT_NAME_TO_SCRIPT_HASH.put(script_name, this.scriptLoad(SCRIPT_NAME_TO_SCRIPTS.get(script_name)));
+        }
+
+        try{
+            return function.eval(SCRIPT_NAME_TO_SCRIPT_HASH.get(script_name), arguments);
+        }catch(NoScriptFoundException nsfe){ // Catch a possible no script found error
+            try{
+
+                // Load the script
+                LockEvents.ScriptReload event = (LockEvents.AVAILABLE ? new LockEvents.ScriptReload() : null);
+                if(event != null) event.begin();
+                SCRIPT_NAME_TO_SCRIPT_HASH.put(script_name, this.scriptLoad(SCRIPT_NAME_TO_SCRIPTS.get(script_name)));
+                commitScriptReload(event, script_name, "noscript");
+
+                // Try again
+                return function.eval(SCRIPT_NAME_TO_SCRIPT_HASH.get(script_name), arguments);
+
+            }catch(NoScriptFoundException nsfe_again){
+                // AbstractRedisLockClient is hosed at this point
+                throw new RuntimeException(nsfe_again); //TODO different exception
+            }
+        }
+    }
+
+    /** Calls script by its name as a function of the library, loading the library again if the server does not have it
+     *  @param script_name name of script
+     *  @param arguments argument parameters
+     *  @return reply
+     */
+    private Object performFunctionCall(final String script_name, final String... arguments){
+        String function = FUNCTION_LIBRARY_NAME + "_" + script_name;
+        try{
+            return this.functionCall(function, arguments);
+        }catch(NoScriptFoundException nsfe){ // Server has been flushed or replaced with one that never had it
+            try{
+                LockEvents.ScriptReload event = (LockEvents.AVAILABLE ? new LockEvents.ScriptReload() : null);
+                if(event != null) event.begin();
+                this.functionLoad(FUNCTION_LIBRARY);
+                commitScriptReload(event, FUNCTION_LIBRARY_NAME, "noscript");
+                return this.functionCall(function, arguments);
+            }catch(NoScriptFoundException nsfe_again){
+                throw new RuntimeException(nsfe_again);
+            }
+        }
+    }
+
+    /** Converts reply of script to boolean value
+     *  @param reply reply
+     *  @param script name or hash of script that replied
+     *  @return boolean
+     *  @throws UnexpectedReplyException thrown if the reply is not an integer
+     */
+    protected static boolean replyToBoolean(final Object reply, final String script){
+        return replyToLong(reply, script) != 0;
+    }
+
+    /** Converts reply of script to long value
+     *  @param reply reply
+     *  @param script name or hash of script that replied
+     *  @return long
+     *  @throws UnexpectedReplyException thrown if the reply is not an integer
+     */
+    protected static long replyToLong(final Object reply, final String script){
+        if(reply instanceof Long) return (Long) reply;
+        throw new UnexpectedReplyException(getScriptName(script), reply);
+    }
+
+    /** Converts reply of script to string value
+     *  @param reply reply
+     *  @param script name or hash of script that replied
+     *  @return string
+     *  @throws UnexpectedReplyException thrown if the reply is not a string
+     */
+    protected static String replyToString(final Object reply, final String script){
+        if(reply instanceof String) return (String) reply;
+        if(reply instanceof byte[]) return new String((byte[]) reply, StandardCharsets.UTF_8);
+        throw new UnexpectedReplyException(getScriptName(script), reply);
+    }
+
+    /** Returns the name of the script, looking it up if given its hash
+     *  @param script name or hash of script
+     *  @return name of script, or the hash if no loaded script has it
+     */
+    private static String getScriptName(final String script){
+        for(Map.Entry<String, String> entry : SCRIPT_NAME_TO_SCRIPT_HASH.entrySet()){
+            if(entry.getValue().equals(script)) return entry.getKey();
+        }
+        return script;
+    }
+
+    /** Evaluates script by its name and returns boolean value
+     *  @param script_name name of script
+     *  @param arguments argument parameters
+     *  @return boolean
+     */
+    boolean performBooleanEval(final String script_name, final String... arguments){
+        return this.performEval(script_name, this::booleanEval, AbstractRedisLockClient::replyToBoolean, arguments);
+    }
+
+    /** Evaluates script by its name and returns string value
+     *  @param script_name name of script
+     *  @param arguments argument parameters
+     *  @return string
+     */
+    String performStringEval(final String script_name, final String... arguments){
+        return this.performEval(script_name, this::stringEval, AbstractRedisLockClient::replyToString, arguments);
+    }
+
+    /** Evaluates script by its name and returns long value
+     *  @param script_name name of script
+     *  @param arguments argument parameters
+     *  @return long
+     */
+    long performLongEval(final String script_name, final String... arguments){
+        return this.performEval(script_name, this::longEval, AbstractRedisLockClient::replyToLong, arguments);
+    }
+
+    private long performSingleWriteLock(final String lockpoint, final String lock_id, final boolean is_fair, final boolean first_attempt, final TimeUnit unit, final long lock_lease_time, final int priority, final long watch_lease){
+
+        // Get TimeUnit
+        TimeUnit ms_unit = TimeUnit.MILLISECONDS;
+
+        // Evaluate, 1 if acquired, 0 if not, or the remaining writer lease negated if watched
+        return this.performLongEval(
+            "single_write_lock",
+            lockpoint,
+            this.client_id,
+            lock_id,
+            is_fair ? "1" : "0",
+            first_attempt ? "1" : "0",
+            ms_unit.convert(lock_lease_time, unit) + "",
+            LOCKWAIT_LEASE_MILLISECONDS,
+            newVersion(),
+            VERSION_LEASE_MILLISECONDS,
+            Integer.toString(priority),
+            this.priority_aging.getTime(TimeUnit.MILLISECONDS) + "",
+            watch_lease + ""
+        );
+    }
+
+    private boolean performSingleWriteUnlock(final String lockpoint, final String lock_id){
+
+        // Evaluate
+        return this.performBooleanEval(
+            "single_write_unlock",
+            lockpoint,
+            this.client_id,
+            lock_id,
+            newVersion(),
+            VERSION_LEASE_MILLISECONDS
+        );
+    }
+
+    /** Returns the version that a lockpoint without one starts from. Versions start from the current time
+     *  so a version that expired and started over does not repeat stamps handed out before it expired.
+     *  @return initial version formatted for script arguments
+     */
+    private static String newVersion(){
+        return (System.currentTimeMillis() << 10) + "";
+    }
+
+    /** Performs a single write lock
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @return true if lock was acquired, false otherwise
+     */
+    boolean writeLock(final String lockpoint, final String key, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit) throws InterruptedException{
+        boolean result = writeLock(lockpoint, key, lock_id, is_fair, time_out, TimeUnit.MILLISECONDS, getLeaseDuration(TimeUnit.MILLISECONDS));
+        return result;
+    }
+
+    /** Performs a single write lock
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @return true if lock was acquired, false otherwise
+     */
+    boolean writeLock(final String lockpoint, final String key, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final long lock_lease_time) throws InterruptedException{
+        return writeLock(lockpoint, key, lock_id, is_fair, time_out, unit, lock_lease_time, null);
+    }
+
+    /** Performs a single write lock
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @param contended counter incremented when the first attempt fails, may be null
+     *  @return true if lock was acquired, false otherwise
+     */
+    boolean writeLock(final String lockpoint, final String key, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final long lock_lease_time, final LongAdder contended) throws InterruptedException{
+        return writeLock(lockpoint, key, lock_id, is_fair, time_out, unit, lock_lease_time, contended, 0);
+    }
+
+    /** Performs a single write lock
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @param contended counter incremented when the first attempt fails, may be null
+     *  @param priority priority in the lockwait, higher goes first, only used when fair
+     *  @return true if lock was acquired, false otherwise
+     *  @throws TooManyWaitersException thrown if the lock would wait while a waiter limit is reached
+     */
+    boolean writeLock(final String lockpoint, final String key, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final long lock_lease_time, final LongAdder contended, final int priority) throws InterruptedException{
+
+
+        //System.out.println("writeLock(lockpoint=" + lockpoint + ", lock_id=" + lock_id + ", is_fair=" + is_fair + ", time_out=" + time_out + ", unit=" + unit + " lock_lease_time=" + lock_lease_time + ")");
+
+        long actual_lease_time = (lock_lease_time < 1 ? unit.convert(getDefaultLockLease(), TimeUnit.MILLISECONDS) : lock_lease_time);
+
+        // A try without waiting fails right here while the lockpoint is known to be held
+        final long watch_lease = (time_out == 0 ? this.negative_cache_ms : 0);
+        if(watch_lease > 0 && this.isKnownHeld(key)){
+            if(contended != null) contended.increment();
+            return false;
+        }
+
+        // Attempt to lock until successful or timed out
+        boolean acquired = false;
+        try{
+            acquired = this.acquire(lockpoint, lock_id, is_fair, time_out, unit, true, (first_attempt) -> {
+                final long invalidations = this.held_invalidations.get();
+                final long sent_at = System.nanoTime();
+                long result = this.performSingleWriteLock(key, lock_id, is_fair, first_attempt, unit, actual_lease_time, priority, (first_attempt ? watch_lease : 0));
+                if(result == 1) return 0;
+                if(result < 0){
+
+                    // Remember it unless an unlock was announced while the reply was on its way
+                    this.rememberHeld(key, sent_at, Math.min(-result, watch_lease));
+                    if(this.held_invalidations.get() != invalidations) this.held_lockpoints.remove(key);
+                }
+                if(first_attempt && contended != null) contended.increment();
+                return -1;
+            });
+        }finally{
+            if(!acquired && is_fair) this.leaveLockwait(key, lock_id);
+        }
+        if(acquired) this.addHeld(new HeldLock(key, lock_id, false));
+        return acquired;
+    }
+
+    /** Performs a single read lock
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time arguments
+     *  @param lock_lease_time lock lease time, 0 for the client lease duration
+     *  @param priority priority in the lockwait, higher goes first, only used when fair
+     *  @return true if lock was acquired, false otherwise
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     *  @throws TooManyWaitersException thrown if the lock would wait while a waiter limit is reached
+     */
+    boolean readLock(final String lockpoint, final String key, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final long lock_lease_time, final int priority) throws InterruptedException{
+
+        final String lease_string = (lock_lease_time < 1 ? getDefaultLockLease() : TimeUnit.MILLISECONDS.convert(lock_lease_time, unit)) + "";
+
+        // Attempt to lock until successful or timed out
+        boolean acquired = false;
+        try{
+            acquired = this.acquire(lockpoint, lock_id, is_fair, time_out, unit, true, (first_attempt) ->
+                (this.performBooleanEval(
+                    "single_read_lock",
+                    key,
+                    this.client_id,
+                    lock_id,
+                    is_fair ? "1" : "0",
+                    first_attempt ? "1" : "0",
+                    lease_string,
+                    LOCKWAIT_LEASE_MILLISECONDS,
+                    Integer.toString(priority),
+                    this.priority_aging.getTime(TimeUnit.MILLISECONDS) + ""
+                ) ? 0 : -1)
+            );
+        }finally{
+            if(!acquired && is_fair) this.leaveLockwait(key, lock_id);
+        }
+        if(acquired) this.addHeld(new HeldLock(key, lock_id, true));
+        return acquired;
+    }
+
+    /** Removes a fair lock that gave up from the lockwait, passing the wake-up on if it was at the head
+     *  @param lockpoint lockpoint
+     *  @param lock_id id of lock
+     */
+    private void leaveLockwait(final String lockpoint, final String lock_id){
+        this.performBooleanEval("single_lockwait_leave", lockpoint, this.client_id, lock_id);
+    }
+
+    /** Performs a read lock through the read registration shared among read locks of this client
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @param priority priority in the lockwait, higher goes first, only used when fair
+     *  @return 1 if acquired, 0 if timed out, -1 if the lock has to be acquired on its own with readLock
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    int sharedReadLock(final String lockpoint, final String key, final boolean is_fair, final long time_out, final TimeUnit unit, final int priority) throws InterruptedException{
+        return this.shared_reads.acquire(lockpoint, key, is_fair, time_out, unit, priority);
+    }
+
+    /** Releases a read lock acquired by sharedReadLock
+     *  @param key server name of lockpoint to unlock
+     */
+    void sharedReadUnlock(final String key){
+        this.shared_reads.release(key);
+    }
+
+    /** Performs a single read unlock
+     *  @param lockpoint lockpoint to unlock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @return true if the lock was released, false if the lock was not held by this lock, for example after its lease expired
+     */
+    boolean readUnlock(final String lockpoint, final String key, final String lock_id){
+        LockEvents.Release event = (LockEvents.AVAILABLE ? new LockEvents.Release() : null);
+        if(event != null) event.begin();
+        boolean released = this.performBooleanEval("single_read_unlock", key, this.client_id, lock_id);
+        this.held_locks.remove(new HeldLock(key, lock_id, true));
+        commitRelease(event, lockpoint, true, released);
+        return released;
+    }
+
+    /** Converts a held write lock into a read lock in one step, waking up the readers next in line
+     *  @param key server name of lockpoint of held write lock, see getServerLockpoint
+     *  @param write_lock_id id of held write lock
+     *  @param read_lock_id id of read lock to take its place
+     *  @param lock_lease_time lease time of the read lock in milliseconds, 0 if owned by the session
+     *  @return true if converted, false if the write lock was not held, for example after its lease expired
+     */
+    boolean downgrade(final String key, final String write_lock_id, final String read_lock_id, final long lock_lease_time){
+        boolean converted = this.performBooleanEval(
+            "single_downgrade",
+            key,
+            this.client_id,
+            write_lock_id,
+            read_lock_id,
+            lock_lease_time + "",
+            newVersion(),
+            VERSION_LEASE_MILLISECONDS
+        );
+        if(converted){
+            this.held_locks.remove(new HeldLock(key, write_lock_id, false));
+            this.addHeld(new HeldLock(key, read_lock_id, true));
+        }
+        return converted;
+    }
+
+    /** Converts a held read lock into a write lock in one step if it is the only reader
+     *  @param key server name of lockpoint of held read lock, see getServerLockpoint
+     *  @param read_lock_id id of held read lock
+     *  @param write_lock_id id of write lock to take its place
+     *  @param lock_lease_time lease time of the write lock in milliseconds, 0 if owned by the session
+     *  @return true if converted, false if there are other readers or the read lock was not held
+     */
+    boolean upgrade(final String key, final String read_lock_id, final String write_lock_id, final long lock_lease_time){
+        boolean converted = this.performBooleanEval(
+            "single_upgrade",
+            key,
+            this.client_id,
+            read_lock_id,
+            write_lock_id,
+            lock_lease_time + "",
+            newVersion(),
+            VERSION_LEASE_MILLISECONDS
+        );
+        if(converted){
+            this.held_locks.remove(new HeldLock(key, read_lock_id, true));
+            this.addHeld(new HeldLock(key, write_lock_id, false));
+        }
+        return converted;
+    }
+
+    /** Fills in and commits release event if it is enabled
+     *  @param event release event, null if the flight recorder is not available
+     *  @param lockpoint lockpoint
+     *  @param read true if read lock, false if write lock
+     *  @param released true if the lock was released
+     */
+    private static void commitRelease(final LockEvents.Release event, final String lockpoint, final boolean read, final boolean released){
+        if(event != null && event.shouldCommit()){
+            event.lockpoint = lockpoint;
+            event.read = read;
+            event.released = released;
+            event.commit();
+        }
+    }
+
+    /** Returns a stamp for an optimistic read of the lockpoint
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @return stamp, 0 if the write lock is held
+     */
+    long tryOptimisticRead(final String key){
+        return Long.parseLong(this.performStringEval("single_optimistic_read", key, newVersion(), VERSION_LEASE_MILLISECONDS));
+    }
+
+    /** Checks that the lockpoint has not been write locked since the stamp was handed out
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param stamp stamp returned by tryOptimisticRead
+     *  @return true if the stamp is still valid, false otherwise
+     */
+    boolean validate(final String key, final long stamp){
+        if(stamp == 0) return false;
+        return Long.toString(stamp).equals(this.get("lockversion:" + key));
+    }
+
+    /** Returns the recheck interval with jitter of up to half the interval either way,
+     *  so waiters that missed their wake-up don't all recheck at the same moment
+     *  @return recheck interval in milliseconds
+     */
+    private long getJitteredRecheckInterval(){
+        long interval = Math.max(this.recheck_interval.getTime(TimeUnit.MILLISECONDS), 1);
+        return interval / 2 + ThreadLocalRandom.current().nextLong(interval + 1);
+    }
+
+    /** Performs acquisition attempts until one succeeds or the time runs out.
+     *  Between attempts, the thread sleeps until a wake-up message addressed to lock_id arrives
+     *  or until the retry time returned by the failed attempt passes. It also retries every recheck interval,
+     *  so a lost wake-up delays the waiter by at most one interval instead of leaving it asleep.
+     *  @param lockpoint lockpoint or other name being acquired, for the flight recorder events
+     *  @param lock_id id that wake-up messages are addressed to
+     *  @param is_fair true to only wake up on messages addressed to lock_id, false to also wake up on unfair unlock messages
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @param function acquisition attempt
+     *  @return true if acquired, false if timed out
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    boolean acquire(final String lockpoint, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final AcquireFunction function) throws InterruptedException{
+        return this.acquire(lockpoint, lock_id, is_fair, time_out, unit, false, function);
+    }
+
+    /** Performs acquisition attempts until one succeeds or the time runs out, like the other acquire,
+     *  counting the caller in the waiter limits while it waits if limited
+     *  @param lockpoint lockpoint or other name being acquired, for the flight recorder events and the waiter limits
+     *  @param lock_id id that wake-up messages are addressed to
+     *  @param is_fair true to only wake up on messages addressed to lock_id, false to also wake up on unfair unlock messages
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @param limited true to turn the caller away instead of waiting if a waiter limit is reached
+     *  @param function acquisition attempt
+     *  @return true if acquired, false if timed out
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     *  @throws TooManyWaitersException thrown if limited and the caller would wait while a waiter limit is reached
+     */
+    boolean acquire(final String lockpoint, final String lock_id, final boolean is_fair, final long time_out, final TimeUnit unit, final boolean limited, final AcquireFunction function) throws InterruptedException{
+
+        LockEvents.Acquire event = (LockEvents.AVAILABLE ? new LockEvents.Acquire() : null);
+        if(event != null) event.begin();
+        long time_out_ms = (time_out < 0 ? -1 : TimeUnit.MILLISECONDS.convert(time_out, unit));
+        boolean first_attempt = true;
+        boolean acquired = false;
+        boolean admitted = false;
+        int round_trips = 0;
+        long start_time = System.currentTimeMillis(); // Record the start time before continuing
+        try{
+            do{
+                // A closed client takes no acquisitions, and waiters woken up by closing give up here
+                if(this.closed) throw new IllegalStateException("client is closed");
+
+                // Subscribe now
+                /*  REASON WHY WE DO THIS NOW INSTEAD OF ON UNSUCCESSFUL LOCK:
+                 *  Suppose we attempt to lock but it is unavailable, as soon as the locking script exits,
+                 *  other lock may unlock the lockpoint then announce and exit the unlocking script.
+                 *  Then this lock will fire the subscription but it had already missed the announcement
+                 *  and get stuck on waiting for lock message that may never arrive.
+                 */
+                CountDownLatch cdl = this.setUpSubscription(lock_id, is_fair, first_attempt);
+
+                // Execute it
+                LockEvents.Attempt attempt_event = (LockEvents.AVAILABLE ? new LockEvents.Attempt() : null);
+                if(attempt_event != null) attempt_event.begin();
+                long result = function.attempt(first_attempt);
+                round_trips++;
+                if(attempt_event != null && attempt_event.shouldCommit()){
+                    attempt_event.lockpoint = lockpoint;
+                    attempt_event.fair = is_fair;
+                    attempt_event.firstAttempt = first_attempt;
+                    attempt_event.acquired = (result == 0);
+                    attempt_event.commit();
+                }
+                first_attempt = false;
+
+                // Successful
+                if(result == 0){
+                    acquired = true;
+                    return true;
+                }
+
+                // Find out how long we can wait
+                long wait_time = -1;
+                if(time_out_ms >= 0) wait_time = Math.max(0, time_out_ms - (System.currentTimeMillis() - start_time));
+
+                // Waiting costs a latch, a subscription and a retry on every wake-up, so it has to get past the waiter limits
+                if(limited && !admitted && wait_time != 0){
+                    this.admitWaiter(lockpoint);
+                    admitted = true;
+                }
+
+                // The attempt asked to be retried sooner than that
+                LockEvents.Wait wait_event = (LockEvents.AVAILABLE ? new LockEvents.Wait() : null);
+                if(wait_event != null) wait_event.begin();
+                long reconnects = this.reconnect_count.get();
+                String cause;
+                if(result > 0 && (wait_time < 0 || result < wait_time)){
+                    cause = (cdl.await(result, TimeUnit.MILLISECONDS) ? LockEvents.NOTIFIED : LockEvents.RETRY); // Retry whether woken up or not
+                }else{
+
+                    // Wait for next unlock, but retry after the recheck interval in case the wake-up was lost
+                    long recheck_time = this.getJitteredRecheckInterval();
+                    if(wait_time < 0 || recheck_time < wait_time) cause = (cdl.await(recheck_time, TimeUnit.MILLISECONDS) ? LockEvents.NOTIFIED : LockEvents.RECHECK);
+                    else cause = (cdl.await(wait_time, TimeUnit.MILLISECONDS) ? LockEvents.NOTIFIED : LockEvents.TIMEOUT);
+                }
+                if(wait_event != null && wait_event.shouldCommit()){
+                    wait_event.lockpoint = lockpoint;
+                    wait_event.fair = is_fair;
+                    wait_event.cause = (LockEvents.NOTIFIED.equals(cause) && reconnects != this.reconnect_count.get() ? LockEvents.RECONNECT : cause);
+                    wait_event.commit();
+                }
+                if(LockEvents.TIMEOUT.equals(cause)) return false; // Give up
+
+                // Retry to attempt to lock again
+            }while(true);
+        }finally{
+            // Tear down
+            this.tearDownSubscription(lock_id);
+            if(admitted) this.leaveWaiters(lockpoint);
+
+            if(event != null && event.shouldCommit()){
+                event.lockpoint = lockpoint;
+                event.fair = is_fair;
+                event.roundTrips = round_trips;
+                event.acquired = acquired;
+                event.commit();
+            }
+        }
+    }
+
+    /** Performs a single write unlock
+     *  @param lockpoint lockpoint to unlock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @return true if the lock was released, false if the lock was not held by this lock, for example after its lease expired
+     */
+    boolean writeUnlock(final String lockpoint, final String key, final String lock_id){
+
+        //System.out.println("writeUnlock(lockpoint=" + lockpoint + ", lock_id=" + lock_id +")");
+
+        LockEvents.Release event = (LockEvents.AVAILABLE ? new LockEvents.Release() : null);
+        if(event != null) event.begin();
+        boolean released = this.performSingleWriteUnlock(key, lock_id);
+        this.held_lockpoints.remove(key);
+        this.held_locks.remove(new HeldLock(key, lock_id, false));
+        commitRelease(event, lockpoint, false, released);
+        return released;
+    }
+
+    /** Extends the lease of a held write lock, or finds out how long another holder keeps it
+     *  @param lockpoint lockpoint of the lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of lock
+     *  @param lock_lease_time new lease time of the lock in milliseconds
+     *  @return 1 if extended, 0 if nobody holds it, or the remaining lease of another holder in milliseconds negated
+     */
+    long renewWriteLock(final String lockpoint, final String key, final String lock_id, final long lock_lease_time){
+        LockEvents.Renewal event = (LockEvents.AVAILABLE ? new LockEvents.Renewal() : null);
+        if(event != null) event.begin();
+        long result = this.performLongEval("single_write_renew", key, this.client_id, lock_id, lock_lease_time + "");
+        commitRenewal(event, lockpoint, result == 1, (result == 1 ? lock_lease_time : -result));
+        return result;
+    }
+
+    /** Fills in and commits renewal event if it is enabled
+     *  @param event renewal event, null if the flight recorder is not available
+     *  @param lockpoint lockpoint of write lock, null for the session
+     *  @param success true if the lease was extended
+     *  @param remaining_lease lease after the renewal in milliseconds, or the lease of another holder if it failed
+     */
+    private static void commitRenewal(final LockEvents.Renewal event, final String lockpoint, final boolean success, final long remaining_lease){
+        if(event != null && event.shouldCommit()){
+            event.lockpoint = lockpoint;
+            event.session = (lockpoint == null);
+            event.success = success;
+            event.remainingLease = remaining_lease;
+            event.commit();
+        }
+    }
+
+    /** Releases the write lock and waits until the condition is signalled, then reacquires the write lock
+     *  ahead of other waiters in the lockwait. The lock is reacquired even if the wait times out or is interrupted.
+     *  @param lockpoint lockpoint of held write lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of held write lock
+     *  @param condition name of condition
+     *  @param time_out maximum time to wait for the signal in nanoseconds, negative number to wait indefinitely
+     *  @param interruptible true to stop waiting for the signal when interrupted
+     *  @param lock_lease_time lease time of reacquired lock in milliseconds, 0 if owned by the session
+     *  @return true if signalled, false if timed out
+     *  @throws IllegalMonitorStateException thrown if the write lock is not held by this lock
+     *  @throws InterruptedException if interruptible and the current thread was interrupted, thrown after the lock is reacquired
+     */
+    boolean awaitCondition(final String lockpoint, final String key, final String lock_id, final String condition, final long time_out, final boolean interruptible, final long lock_lease_time) throws InterruptedException{
+
+        long start_time = System.nanoTime(); // Record the start time before continuing
+        boolean signalled = true;
+        boolean interrupted = false;
+        boolean restore_interrupt = false;
+
+        // Subscribe before releasing the lock so the wake-up cannot be missed
+        CountDownLatch cdl = this.setUpSubscription(lock_id, true, true);
+        try{
+
+            // Release the lock and join the condition queue
+            if(!this.performBooleanEval("single_condition_await", key, this.client_id, lock_id, condition, LOCKWAIT_LEASE_MILLISECONDS)){
+                throw new IllegalMonitorStateException("Write lock on '" + lockpoint + "' is not held by this lock");
+            }
+
+            // Wait for the signal. Being woken up normally means we were signalled and the lock is free, but recovering
+            // from lost messages wakes up everyone, so the condition queue is checked on every wake-up and every recheck interval.
+            // Each check also keeps our place, a waiter that stops checking is dropped by the next signal once the lease runs out
+            final String entry = this.client_id + ":" + lock_id;
+            boolean woken = false;
+            do{
+                if(this.closed) break; // Give up, the reacquisition below fails for good
+                try{
+                    long wait_time = TimeUnit.MILLISECONDS.toNanos(this.getJitteredRecheckInterval());
+                    boolean time_limited = false;
+                    if(time_out >= 0){
+                        long remaining = time_out - (System.nanoTime() - start_time);
+                        if(remaining <= wait_time){
+                            wait_time = remaining;
+                            time_limited = true;
+                        }
+                    }
+                    boolean notified = cdl.await(wait_time, TimeUnit.NANOSECONDS);
+                    if(notified){
+                        cdl = this.setUpSubscription(lock_id, true, false); // Before the check so a signal right after it is not missed
+                    }else if(time_limited){
+                        break;
+                    }
+                    if(!this.performBooleanEval("single_condition_waiting", key, condition, entry, LOCKWAIT_LEASE_MILLISECONDS)){
+                        woken = true; // Signalled, the wake-up is lost, on its way or was just received
+                        break;
+                    }
+                    if(notified && this.closed) break;
+                }catch(InterruptedException e){
+                    if(interruptible){
+                        interrupted = true;
+                        break;
+                    }
+                    restore_interrupt = true;
+                }
+            }while(true);
+
+            // Gave up on the signal, move ourselves to the lockwait unless a signal got there first
+            if(!woken){
+                signalled = this.performLongEval("single_condition_signal", key, condition, "1", entry, LOCKWAIT_LEASE_MILLISECONDS, this.client_id, lock_id) == 0;
+            }
+
+            // A closed client does not reacquire, leave the lockwait that the signal or the give-up moved us to
+            if(this.closed){
+                this.leaveLockwait(key, lock_id);
+                throw new IllegalStateException("client is closed");
+            }
+
+            // Reacquire the lock, we are in the lockwait so the next unlock hands it to us
+            do{
+                try{
+                    this.acquire(lockpoint, lock_id, true, -1, TimeUnit.MILLISECONDS, (first_attempt) ->
+                        (this.performSingleWriteLock(key, lock_id, true, false, TimeUnit.MILLISECONDS, lock_lease_time, 0, 0) == 1 ? 0 : -1)
+                    );
+                    break;
+                }catch(InterruptedException e){
+                    if(interruptible) interrupted = true;
+                    else restore_interrupt = true;
+                }
+            }while(true);
+
+        }finally{
+            this.tearDownSubscription(lock_id);
+        }
+
+        // Report interrupt once the lock is back
+        if(restore_interrupt) Thread.currentThread().interrupt();
+        if(interrupted) throw new InterruptedException();
+        return signalled;
+    }
+
+    /** Moves waiters of the condition to the front of the lockwait
+     *  @param lockpoint lockpoint of held write lock
+     *  @param key server name of lockpoint, see getServerLockpoint
+     *  @param lock_id id of held write lock
+     *  @param condition name of condition
+     *  @param count number of waiters to signal, -1 for all
+     *  @throws IllegalMonitorStateException thrown if the write lock is not held by this lock, for example because its lease ran out
+     */
+    void signalCondition(final String lockpoint, final String key, final String lock_id, final String condition, final int count){
+        long moved = this.performLongEval("single_condition_signal", key, condition, Integer.toString(count), "", LOCKWAIT_LEASE_MILLISECONDS, this.client_id, lock_id);
+        if(moved < 0) throw new IllegalMonitorStateException("Write lock on '" + lockpoint + "' is not held by this lock");
+    }
+
+    /** Passes on a wake-up that reached a lock which is no longer waiting, removing the lock from the lockwait
+     *  @param lockpoint lockpoint
+     *  @param lock_id id of lock
+     */
+    private void refire(final String lockpoint, final String lock_id){
+        try{
+            this.performBooleanEval("single_refire", lockpoint, this.client_id, lock_id);
+        }catch(RuntimeException e){
+            // Waiters still get to it on their next recheck
+        }
+    }
+
+    /** Processes a message from the lock channel in place from its bytes. Messages for other clients and messages
+     *  nobody on this client cares about are dismissed without creating anything, strings are only made for lookups.
+     *  @param message message as published, in UTF-8
+     */
+    private void processMessage(final byte[] message){
 
         // Check if it's unfair unlock message
-        if(message.equals("#")) { // Unfair
+        if(message.length == 1 && message[0] == '#') { // Unfair
 
             // "Randomly" choose an element
             String lock_id = null;
@@ -413,53 +2300,142 @@ public abstract class AbstractRedisLockClient{
             // Check if the lock actually exists
             if(lock_id == null) return;
 
-            // Find CDL if there's any and fire it
+            // Find CDL if there's any and fire it. If the lock is in between attempts, it is about to retry anyway
             CountDownLatch cdl = this.lock_to_cdl_map.get(lock_id);
             if(cdl != null) cdl.countDown();
-            else {
-                // TODO run refire function
-                System.err.println("panic 2");
-            }
+            return;
+        }
+
+        // Every other message is in format of "<event_type>:<rest>"
+        if(message.length < 2 || message[1] != ':') return;
+        switch(message[0]){
+            case 'n': // Notification for everyone waiting on an event
 
-        } else { // Possibly fair
+                // Message is in format of "n:<event>"
+                if(!this.event_to_cdl_map.isEmpty()) this.notifyEvent(decode(message, 2, message.length));
+                return;
 
-            // Read the message for the delimiters - find client index and lock index
-            // Message is in format of "<event_type>:<client_id>:<lock_id>"
-            int client_index = message.indexOf(":");
-            int lock_index = message.indexOf(":", client_index + 1);
+            case 'w': // Writer held up by shared read registrations
 
-            // If any of indices are -1, then no ":" are found so the message is invalid
-            if(client_index == -1 || lock_index == -1) return;
+                // Message is in format of "w:<lockpoint>"
+                if(this.shared_reads.size() > 0) this.shared_reads.writerWaiting(decode(message, 2, message.length));
+                return;
 
-            // Extract event type
-            String event_type = message.substring(0, client_index);
+            case 'u': // Unlock of a lockpoint that may be remembered as held
 
-            // Check event type
-            if(event_type.equals("c")){ // Claimed event
+                // Message is in format of "u:<lockpoint>", count it before forgetting so replies crossing it are not remembered
+                if(this.negative_cache_ms > 0){
+                    this.held_invalidations.incrementAndGet();
+                    this.held_lockpoints.remove(decode(message, 2, message.length));
+                }
+                return;
 
-            }else if(event_type.equals("o")){ // Unlock event
+            case 'c': // Claimed event
+            case 'o': // Unlock event
+                break;
 
-                //Extract client id
-                String client_id = message.substring(client_index + 1, lock_index);
+            default:
+                return;
+        }
 
-                // Check if client id matches
-                if(!this.client_id.equals(client_id)) { // Doesn't match
-                    // TODO run refire function
-                    System.err.println("panic 3");
-                    return;
-                }
+        // Read the message for the delimiters - find client index, lock index and lockpoint index
+        // Message is in format of "<event_type>:<client_id>:<lock_id>" or "<event_type>:<client_id>:<lock_id>:<lockpoint>"
+        int client_index = 1;
+        int lock_index = indexOf(message, client_index + 1);
+        int lockpoint_index = (lock_index == -1 ? -1 : indexOf(message, lock_index + 1));
 
-                // Extract lock id
-                String lock_id = message.substring(lock_index + 1, message.length());
+        // If the lock delimiter is missing the message is invalid
+        if(lock_index == -1) return;
 
-                // Find the matching lock and count it down
-                CountDownLatch cdl = this.lock_to_cdl_map.remove(lock_id);
-                if(cdl != null) cdl.countDown();
-                else {
-                    // TODO run refire function
-                    System.err.println("panic 4");
-                }
+        // Check if client id matches
+        boolean own = regionEquals(message, client_index + 1, lock_index, this.client_id);
+
+        if(message[0] == 'c'){ // Claimed event
+
+            // Message is in format of "c:<client_id>:<lock_id>:<lockpoint>:<holding time>", remember the lockpoint as held.
+            // Claims of this client are skipped, one arriving after its own unlock would be remembered until the unlock announcement
+            if(this.negative_cache_ms == 0 || own || lockpoint_index == -1) return;
+            int time_index = lastIndexOf(message);
+            if(time_index <= lockpoint_index) return;
+            long holding_ms = parseLong(message, time_index + 1, message.length);
+            if(holding_ms < 0) return; // Not a claim this client knows how to read
+            long held_ms = Math.min(holding_ms, this.negative_cache_ms) - CLAIM_MARGIN_MILLISECONDS;
+            if(held_ms > 0) this.rememberHeld(decode(message, lockpoint_index + 1, time_index), System.nanoTime(), held_ms);
+
+        }else{ // Unlock event
+
+            // The message is for another client otherwise
+            if(!own) return;
+
+            // Extract lock id
+            String lock_id = decode(message, lock_index + 1, (lockpoint_index == -1 ? message.length : lockpoint_index));
+
+            // Find the matching lock and count it down
+            CountDownLatch cdl = this.lock_to_cdl_map.remove(lock_id);
+            if(cdl != null) cdl.countDown();
+            else if(lockpoint_index != -1 && !this.waiting_lock_ids.contains(lock_id)){
+                // Lock is not waiting anymore, pass the wake-up on to the next in line so it is not dropped
+                this.refire(decode(message, lockpoint_index + 1, message.length), lock_id);
             }
         }
     }
+
+    /** Returns the index of the next ':' in the message
+     *  @param message message
+     *  @param from index to search from
+     *  @return index, -1 if there is none
+     */
+    private static int indexOf(final byte[] message, final int from){
+        for(int i = from; i < message.length; i++) if(message[i] == ':') return i;
+        return -1;
+    }
+
+    /** Returns the index of the last ':' in the message
+     *  @param message message
+     *  @return index, -1 if there is none
+     */
+    private static int lastIndexOf(final byte[] message){
+        for(int i = message.length - 1; i >= 0; i--) if(message[i] == ':') return i;
+        return -1;
+    }
+
+    /** Returns true if the bytes in the range spell out the ASCII string
+     *  @param message message
+     *  @param from start index, inclusive
+     *  @param to end index, exclusive
+     *  @param ascii ASCII string
+     *  @return true if equal, false otherwise
+     */
+    private static boolean regionEquals(final byte[] message, final int from, final int to, final String ascii){
+        if(to - from != ascii.length()) return false;
+        for(int i = 0; i < ascii.length(); i++) if(message[from + i] != ascii.charAt(i)) return false;
+        return true;
+    }
+
+    /** Parses the decimal number in the range
+     *  @param message message
+     *  @param from start index, inclusive
+     *  @param to end index, exclusive
+     *  @return number, -1 if the range is not a number
+     */
+    private static long parseLong(final byte[] message, final int from, final int to){
+        if(from >= to || to - from > 18) return -1;
+        long value = 0;
+        for(int i = from; i < to; i++){
+            int digit = message[i] - '0';
+            if(digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /** Decodes the range into a string
+     *  @param message message
+     *  @param from start index, inclusive
+     *  @param to end index, exclusive
+     *  @return string
+     */
+    private static String decode(final byte[] message, final int from, final int to){
+        return new String(message, from, to - from, StandardCharsets.UTF_8);
+    }
 }
@@ -18,4 +18,20 @@ public interface AutoCloseableRedisLock extends AutoCloseableLock, RedisLock{
      *  @throws InterruptedException if the current thread is interrupted while acquiring the lock (and interruption of lock acquisition is supported)
      */
     AutoCloseableRedisLock doLockInterruptibly(TimeUnit unit, long lease_time) throws InterruptedException;
+
+    /** Converts the held write lock into a read lock in one step, so no writer can get in between.
+     *  This lock is no longer held afterwards, and readers waiting next in line are woken up.
+     *  @return the held read lock, or null if the write lock had been lost, for example after its lease expired
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @throws UnsupportedOperationException thrown if this is a read lock
+     */
+    AutoCloseableRedisLock downgrade();
+
+    /** Converts the held read lock into a write lock in one step if it is the only reader on the lockpoint.
+     *  This lock is no longer held if it succeeds, and is still held if it does not.
+     *  @return the held write lock, or null if there are other readers
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @throws UnsupportedOperationException thrown if this is a write lock
+     */
+    AutoCloseableRedisLock tryUpgrade();
 }
@@ -1,21 +1,23 @@
 package com.tomansill.redis.lock;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 
 /** Generic Lock class that provides some implementation to ReadLock and WriteLock subclasses */
 abstract class GenericLock implements AutoCloseableRedisLock{
 
-    /* ID Counter */
-    private final static AtomicLong ID_COUNTER = new AtomicLong();
-
     /** Parent RedisReadWriteLock instance */
     protected final RedisReadWriteLock rrwl;
 
     /** Lock id */
     protected final long id;
 
+    /** Priority in the lockwait, higher goes first */
+    protected final int priority;
+
+    /** Lock id formatted for script arguments, created on first use */
+    private String id_string = null;
+
     /** Lock flag */
     protected boolean is_locked = false;
 
@@ -24,15 +26,47 @@ abstract class GenericLock implements AutoCloseableRedisLock{
      *  @throws IllegalArgumentException thrown when rrwl is null
      */
     protected GenericLock(final RedisReadWriteLock rrwl) throws IllegalArgumentException{
+        this(rrwl, 0);
+    }
+
+    /** Abstract constructor
+     *  @param rrwl Parent RedisReadWriteLock instance
+     *  @param priority priority in the lockwait, higher goes first
+     *  @throws IllegalArgumentException thrown when rrwl is null
+     */
+    protected GenericLock(final RedisReadWriteLock rrwl, final int priority) throws IllegalArgumentException{
 
         // Check parameter
         if(rrwl == null) throw new IllegalArgumentException("'rrwl' parameter in GenericLock(RedisReadWriteLock) is null");
 
         // Assign parameter to class variable
         this.rrwl = rrwl;
+        this.priority = priority;
+
+        // Draw unique id number from this thread's range TODO what happens if counter wraps
+        this.id = LockIdGenerator.next();
+    }
+
+    /** Returns the lock id as a string. The string is built once and reused on later lock and unlock calls.
+     *  @return lock id string
+     */
+    protected String getIdString(){
+        if(this.id_string == null) this.id_string = this.getIdPrefix() + this.id;
+        return this.id_string;
+    }
 
-        // Draw unique id number from counter TODO what happens if counter wraps
-        this.id = ID_COUNTER.getAndIncrement();
+    /** Returns the prefix that tells this kind of lock apart in the lockwait
+     *  @return lock id prefix
+     */
+    protected String getIdPrefix(){
+        return "";
+    }
+
+    /** Returns the priority of the lock in the lockwait
+     *  @return priority
+     */
+    public int getPriority(){
+        return this.priority;
     }
 
     /** Returns the state of lock
@@ -146,6 +180,27 @@ abstract class GenericLock implements AutoCloseableRedisLock{
      */
     public abstract Condition newCondition() throws UnsupportedOperationException;
 
+    /** Returns a new Condition instance with the given name that is bound to this Lock instance.
+     *  @param name name of condition
+     *  @return A new Condition instance for this Lock instance
+     *  @throws UnsupportedOperationException if the AbstractRedisLockClient does not support this
+     */
+    public abstract Condition newCondition(final String name) throws UnsupportedOperationException;
+
+    /** Converts the held write lock into a read lock in one step
+     *  @return the held read lock, or null if the write lock had been lost
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @throws UnsupportedOperationException thrown if this is a read lock
+     */
+    public abstract AutoCloseableRedisLock downgrade();
+
+    /** Converts the held read lock into a write lock in one step if it is the only reader
+     *  @return the held write lock, or null if there are other readers
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @throws UnsupportedOperationException thrown if this is a write lock
+     */
+    public abstract AutoCloseableRedisLock tryUpgrade();
+
     /** Releases the lock.
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#unlock--">Lock.unlock()</a>
      */
@@ -0,0 +1,248 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** LeaderElection class
+ *  Elects one leader among every candidate that runs an election of the same name. The leader holds the write lock
+ *  of the name with a short lease and renews it every third of the lease. Followers find out how long the leader holds
+ *  the lock and wait for it in the lock waiting, so they are woken up over the lock channel as soon as the leader steps
+ *  down, and try again as soon as the lease of a crashed leader runs out. A leader that cannot renew its lease for two
+ *  thirds of it, for example because the server is unreachable, gives up its leadership before a follower may take over.
+ *  The election runs on a daemon thread of its own, which also calls the listeners.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class LeaderElection implements AutoCloseable{
+
+    /** Default lease of leadership */
+    public final static long DEFAULT_LEASE_MILLISECONDS = 3000;
+
+    /** Listener of leadership changes, called on the election thread */
+    public interface Listener{
+
+        /** Called when this candidate became the leader */
+        void leadershipGained();
+
+        /** Called when this candidate is no longer the leader, because it stepped down or could not renew its lease */
+        void leadershipLost();
+    }
+
+    /* Redis Client */
+    private final AbstractRedisLockClient client;
+
+    /* Name of election */
+    private final String name;
+
+    /* Name of election lockpoint on the Redis server */
+    private final String server_name;
+
+    /* Id of the lock this candidate holds while leader */
+    private final String lock_id = Long.toString(LockIdGenerator.next());
+
+    /* Listeners */
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* Lease of leadership in milliseconds */
+    private volatile long lease_ms = DEFAULT_LEASE_MILLISECONDS;
+
+    /* Leader flag */
+    private volatile boolean leader = false;
+
+    /* Running flag, cleared to stop the election thread */
+    private volatile boolean running = false;
+
+    /* Election thread, null if not started */
+    private Thread thread = null;
+
+    /** Creates an instance of LeaderElection
+     *  @param name name of election
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when either name or client parameter is null
+     */
+    LeaderElection(final String name, final AbstractRedisLockClient client){
+
+        // Check parameters
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in LeaderElection(String, AbstractRedisLockClient) is null");
+        }
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in LeaderElection(String, AbstractRedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.name = name;
+        this.client = client;
+        this.server_name = client.getServerLockpoint(name);
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public AbstractRedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the name of election
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Returns true if this candidate is the leader
+     *  @return true if leader, false otherwise
+     */
+    public boolean isLeader(){
+        return this.leader;
+    }
+
+    /** Retrieves the lease of leadership
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getLease(final TimeUnit unit){
+
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+
+        // Return it
+        return unit.convert(this.lease_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sets the lease of leadership. Followers take over from a crashed leader within this time, and the leader renews
+     *  every third of it. Every candidate of the election should use the same lease.
+     *  @param time time
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is below 3 milliseconds
+     */
+    public void setLease(final long time, final TimeUnit unit){
+
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(unit.toMillis(time) < 3) throw new IllegalArgumentException("time is below the minimum value of 3 milliseconds");
+
+        this.lease_ms = unit.toMillis(time);
+    }
+
+    /** Adds a listener of leadership changes
+     *  @param listener listener
+     *  @throws IllegalArgumentException thrown if listener is null
+     */
+    public void addListener(final Listener listener){
+        if(listener == null) throw new IllegalArgumentException("listener is null");
+        this.listeners.add(listener);
+    }
+
+    /** Removes a listener of leadership changes
+     *  @param listener listener
+     */
+    public void removeListener(final Listener listener){
+        this.listeners.remove(listener);
+    }
+
+    /** Starts running for leadership, does nothing if already running */
+    public synchronized void start(){
+        if(this.thread != null) return;
+        this.running = true;
+        this.thread = new Thread(this::run, "redis-lock-election-" + this.name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** Stops running for leadership, stepping down if leader. Returns once the leadership is given up,
+     *  unless called by a listener, in which case it is given up right after the listener returns.
+     */
+    public void stop(){
+        Thread stopped;
+        synchronized(this){
+            stopped = this.thread;
+            if(stopped == null) return;
+            this.running = false;
+            this.thread = null;
+        }
+        stopped.interrupt();
+        if(stopped == Thread.currentThread()) return;
+        boolean interrupted = false;
+        while(stopped.isAlive()){
+            try{
+                stopped.join();
+            }catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** Stops running for leadership, same as stop() */
+    @Override
+    public void close(){
+        this.stop();
+    }
+
+    /** Runs the election until stopped */
+    private void run(){
+
+        long renewed_at = 0;
+        try{
+            while(this.running && !this.client.isClosed()){
+                final long lease = this.lease_ms;
+                try{
+                    if(!this.leader){
+
+                        // Find out how long the leader holds it, and wait for it in the lock waiting for that long
+                        final long sent_at = System.nanoTime();
+                        long result = this.client.renewWriteLock(this.name, this.server_name, this.lock_id, lease);
+                        if(result == 1 || this.client.writeLock(this.name, this.server_name, this.lock_id, false, (result == 0 ? 0 : -result), TimeUnit.MILLISECONDS, lease)){
+                            renewed_at = sent_at;
+                            this.setLeader(true);
+                        }
+                    }else{
+
+                        // Renew every third of the lease, so a failed renewal is retried for another third before the leader steps
+                        // down with the last third to spare for clock drift and the leader noticing late
+                        long wait = renewed_at + TimeUnit.MILLISECONDS.toNanos(lease / 3) - System.nanoTime();
+                        if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                        final long sent_at = System.nanoTime();
+                        if(this.client.renewWriteLock(this.name, this.server_name, this.lock_id, lease) == 1) renewed_at = sent_at;
+                        else this.setLeader(false);
+                    }
+                }catch(RuntimeException e){
+
+                    // The lease runs out on the server if renewals keep failing, after which a follower may take over, so step down
+                    // a third of the lease before that
+                    if(this.leader && System.nanoTime() - renewed_at >= TimeUnit.MILLISECONDS.toNanos(lease - lease / 3)) this.setLeader(false);
+                    TimeUnit.MILLISECONDS.sleep(Math.max(1, lease / 10));
+                }
+            }
+        }catch(InterruptedException e){
+            // Stopped
+        }finally{
+
+            // Step down so a follower takes over right away
+            if(this.leader){
+                try{
+                    this.client.writeUnlock(this.name, this.server_name, this.lock_id);
+                }catch(RuntimeException e){
+                    // The lease runs out instead
+                }
+                this.setLeader(false);
+            }
+        }
+    }
+
+    /** Changes the leader flag and tells the listeners
+     *  @param leader true if leader, false otherwise
+     */
+    private void setLeader(final boolean leader){
+        this.leader = leader;
+        for(Listener listener : this.listeners){
+            try{
+                if(leader) listener.leadershipGained();
+                else listener.leadershipLost();
+            }catch(RuntimeException e){
+                // A failing listener does not stop the election
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.tomansill.redis.lock;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** LockEvents class
+ *  JDK Flight Recorder events emitted by the client, so time spent on locks shows up in JMC under its own name
+ *  instead of as an anonymous CountDownLatch.await. Events are created, begun and committed in place, which the JIT
+ *  reduces to next to nothing while the events are disabled, so fields are only filled in once shouldCommit() says so.
+ *  The flight recorder API came to Java 8 with 8u262. On older runtimes the events are never created, so the event
+ *  classes are never loaded, and every call site checks AVAILABLE or for a null event first.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+final class LockEvents{
+
+    /** Category of every event */
+    private final static String CATEGORY = "Redis Lock";
+
+    /** Wake-up causes of Wait event */
+    final static String NOTIFIED = "notified";
+    final static String RECONNECT = "reconnect";
+    final static String RECHECK = "recheck";
+    final static String RETRY = "retry";
+    final static String TIMEOUT = "timeout";
+
+    /** True if the runtime has the flight recorder API */
+    final static boolean AVAILABLE = isAvailable();
+
+    /** Utility class */
+    private LockEvents(){
+    }
+
+    /** Looks up the flight recorder API without loading any event class
+     *  @return true if jdk.jfr.Event can be loaded, false otherwise
+     */
+    private static boolean isAvailable(){
+        try{
+            Class.forName("jdk.jfr.Event", false, LockEvents.class.getClassLoader());
+            return true;
+        }catch(ClassNotFoundException | LinkageError e){
+            return false;
+        }
+    }
+
+    /** Whole acquisition from the call to acquired or given up */
+    @Name("com.tomansill.redis.lock.Acquire")
+    @Label("Lock Acquire")
+    @Category(CATEGORY)
+    @Description("Acquisition of a lock, semaphore permits or reacquisition after a condition wait")
+    static class Acquire extends Event{
+        @Label("Lockpoint")
+        String lockpoint;
+
+        @Label("Fair")
+        boolean fair;
+
+        @Label("Round Trips")
+        @Description("Number of acquisition attempts sent to the server")
+        int roundTrips;
+
+        @Label("Acquired")
+        boolean acquired;
+    }
+
+    /** One acquisition attempt, a single round trip to the server */
+    @Name("com.tomansill.redis.lock.Attempt")
+    @Label("Lock Attempt")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Attempt extends Event{
+        @Label("Lockpoint")
+        String lockpoint;
+
+        @Label("Fair")
+        boolean fair;
+
+        @Label("First Attempt")
+        boolean firstAttempt;
+
+        @Label("Acquired")
+        boolean acquired;
+    }
+
+    /** Wait between attempts and what ended it */
+    @Name("com.tomansill.redis.lock.Wait")
+    @Label("Lock Wait")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Wait extends Event{
+        @Label("Lockpoint")
+        String lockpoint;
+
+        @Label("Fair")
+        boolean fair;
+
+        @Label("Wake-up Cause")
+        @Description("notified, reconnect, recheck, retry or timeout")
+        String cause;
+    }
+
+    /** Lock turned away because waiting would go over a waiter limit */
+    @Name("com.tomansill.redis.lock.Shed")
+    @Label("Lock Shed")
+    @Category(CATEGORY)
+    static class Shed extends Event{
+        @Label("Lockpoint")
+        String lockpoint;
+
+        @Label("Client Limit")
+        @Description("True if the limit of the client was reached, false if the limit of the lockpoint")
+        boolean clientLimit;
+
+        @Label("Limit")
+        int limit;
+    }
+
+    /** Release of a lock */
+    @Name("com.tomansill.redis.lock.Release")
+    @Label("Lock Release")
+    @Category(CATEGORY)
+    static class Release extends Event{
+        @Label("Lockpoint")
+        String lockpoint;
+
+        @Label("Read Lock")
+        boolean read;
+
+        @Label("Released")
+        @Description("False if the lock was no longer held, for example after its lease expired")
+        boolean released;
+    }
+
+    /** Lease renewal of a write lock or of the session of the client */
+    @Name("com.tomansill.redis.lock.Renewal")
+    @Label("Lease Renewal")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Renewal extends Event{
+        @Label("Lockpoint")
+        @Description("Lockpoint of the renewed write lock, null for the session")
+        String lockpoint;
+
+        @Label("Session")
+        boolean session;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Remaining Lease")
+        @Description("Lease after the renewal if it succeeded, otherwise the lease another holder keeps the lock for, 0 if nobody holds it")
+        @Timespan(Timespan.MILLISECONDS)
+        long remainingLease;
+    }
+
+    /** Script or function library loaded again on the server */
+    @Name("com.tomansill.redis.lock.ScriptReload")
+    @Label("Script Reload")
+    @Category(CATEGORY)
+    static class ScriptReload extends Event{
+        @Label("Script")
+        String script;
+
+        @Label("Reason")
+        @Description("noscript or reconnect")
+        String reason;
+    }
+}
@@ -0,0 +1,40 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** LockIdGenerator class
+ *  Hands out unique lock ids. Each thread reserves a range of ids from the shared counter
+ *  and draws from it locally, so the shared counter is only touched once per range.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+final class LockIdGenerator{
+
+    /** Number of ids reserved by a thread at a time */
+    private final static int RANGE_SIZE = 1024;
+
+    /** Start of the next unreserved range */
+    private final static AtomicLong NEXT_RANGE = new AtomicLong();
+
+    /** Per-thread range, index 0 is the next id to hand out and index 1 is the end of the range (exclusive) */
+    private final static ThreadLocal<long[]> RANGE = ThreadLocal.withInitial(() -> new long[2]);
+
+    private LockIdGenerator(){} // Prevents instantiation
+
+    /** Returns the next unique lock id
+     *  @return lock id
+     */
+    static long next(){
+
+        // Get this thread's range
+        long[] range = RANGE.get();
+
+        // Reserve a new range if the current one is exhausted
+        if(range[0] == range[1]){
+            range[0] = NEXT_RANGE.getAndAdd(RANGE_SIZE);
+            range[1] = range[0] + RANGE_SIZE;
+        }
+
+        // Draw from it
+        return range[0]++;
+    }
+}
@@ -0,0 +1,107 @@
+package com.tomansill.redis.lock;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** LockInfo class
+ *  State of one lockpoint on the Redis server as seen by AbstractRedisLockClient.forEachLock.
+ *  Each lockpoint is read in one go, but lockpoints are read at different times, so the listing is not a snapshot.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class LockInfo{
+
+    /* Lockpoint */
+    private final String lockpoint;
+
+    /* Write lock holder in client_id:lock_id form, null if not write locked */
+    private final String holder;
+
+    /* Number of read lock holders */
+    private final long readers;
+
+    /* Remaining lease in milliseconds, -1 if not held */
+    private final long lease_ms;
+
+    /* Number of fair waiters */
+    private final long queue_depth;
+
+    /* Fair waiters at the head of the queue in client_id:lock_id form */
+    private final List<String> waiters;
+
+    /** Creates an instance of LockInfo
+     *  @param lockpoint lockpoint
+     *  @param holder write lock holder, null if not write locked
+     *  @param readers number of read lock holders
+     *  @param lease_ms remaining lease in milliseconds, -1 if not held
+     *  @param queue_depth number of fair waiters
+     *  @param waiters fair waiters at the head of the queue
+     */
+    LockInfo(final String lockpoint, final String holder, final long readers, final long lease_ms, final long queue_depth, final List<String> waiters){
+        this.lockpoint = lockpoint;
+        this.holder = holder;
+        this.readers = readers;
+        this.lease_ms = lease_ms;
+        this.queue_depth = queue_depth;
+        this.waiters = Collections.unmodifiableList(waiters);
+    }
+
+    /** Returns the lockpoint
+     *  @return the lockpoint
+     */
+    public String getLockpoint(){
+        return this.lockpoint;
+    }
+
+    /** Returns the holder of write lock in client_id:lock_id form, the client id being AbstractRedisLockClient.getClientId()
+     *  @return the holder, null if not write locked
+     */
+    public String getHolder(){
+        return this.holder;
+    }
+
+    /** Returns the number of read lock holders, including those whose lease ran out and have not been cleaned up yet
+     *  @return number of readers
+     */
+    public long getReaderCount(){
+        return this.readers;
+    }
+
+    /** Returns true if the lockpoint is held by a writer or by readers
+     *  @return true if held, false otherwise
+     */
+    public boolean isHeld(){
+        return this.holder != null || this.readers > 0;
+    }
+
+    /** Returns the remaining lease of the write lock, or of the longest read lease
+     *  @param unit the time unit of returned time
+     *  @return remaining lease, -1 if not held
+     *  @throws IllegalArgumentException thrown if unit is null
+     */
+    public long getRemainingLease(final TimeUnit unit){
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        return (this.lease_ms < 0 ? -1 : unit.convert(this.lease_ms, TimeUnit.MILLISECONDS));
+    }
+
+    /** Returns the number of fair waiters queued on the lockpoint. Unfair waiters are not queued and are not counted.
+     *  @return queue depth
+     */
+    public long getQueueDepth(){
+        return this.queue_depth;
+    }
+
+    /** Returns the fair waiters at the head of the queue in client_id:lock_id form, in queue order.
+     *  Long queues are cut short, getQueueDepth() has the full length.
+     *  @return waiters
+     */
+    public List<String> getWaiters(){
+        return this.waiters;
+    }
+
+    @Override
+    public String toString(){
+        return "LockInfo{lockpoint=" + this.lockpoint + ", holder=" + this.holder + ", readers=" + this.readers +
+            ", lease_ms=" + this.lease_ms + ", queue_depth=" + this.queue_depth + ", waiters=" + this.waiters + "}";
+    }
+}
@@ -0,0 +1,173 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** LockRegistry class
+ *  Bounded registry that interns RedisReadWriteLock instances per lockpoint and fairness policy,
+ *  so repeated getLock calls on a hot lockpoint return the same instance instead of allocating a new one.
+ *  RedisReadWriteLock instances carry no lock state of their own, so evicting an entry is always safe;
+ *  the next getLock call on that lockpoint simply creates a new instance.
+ *  Entries are evicted with the clock policy: a hit only sets the referenced bit of its entry, and a miss on a full
+ *  registry sweeps the clock hand over the slots, clearing referenced bits, until it finds an entry to replace.
+ *  Hot lockpoints therefore survive a working set larger than the capacity, and neither hits nor misses iterate the map.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+class LockRegistry{
+
+    /** Default number of lockpoints retained per fairness policy */
+    final static int DEFAULT_CAPACITY = 4096;
+
+    /** Comfy little class that holds an interned lock and its referenced bit */
+    private static class Entry{
+        private final String lockpoint;
+        private final RedisReadWriteLock lock;
+        private volatile boolean referenced = false;
+        Entry(final String lockpoint, final RedisReadWriteLock lock){
+            this.lockpoint = lockpoint;
+            this.lock = lock;
+        }
+    }
+
+    /** Comfy little class that holds the interned locks of one fairness policy and their clock */
+    private static class Clock{
+
+        /** Entries by lockpoint, read without locking */
+        private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+
+        /** Slots of the clock, guarded by the clock's monitor */
+        private Entry[] slots;
+
+        /** Clock hand, guarded by the clock's monitor */
+        private int hand = 0;
+
+        Clock(final int capacity){
+            this.slots = new Entry[capacity];
+        }
+
+        /** Returns the interned lock and marks it as referenced
+         *  @param lockpoint lockpoint
+         *  @return lock, null if not interned
+         */
+        RedisReadWriteLock get(final String lockpoint){
+            Entry entry = this.map.get(lockpoint);
+            if(entry == null) return null;
+            if(!entry.referenced) entry.referenced = true; // Skip the write if already set, hot entries stay read-only
+            return entry.lock;
+        }
+
+        /** Interns the entry, replacing the first unreferenced entry under the hand if full
+         *  @param entry entry
+         *  @return interned lock, which is the lock of another entry if it was interned first
+         */
+        synchronized RedisReadWriteLock intern(final Entry entry){
+
+            // Another thread may have beaten us to it
+            Entry existing = this.map.get(entry.lockpoint);
+            if(existing != null) return existing.lock;
+            if(this.slots.length == 0) return entry.lock;
+
+            // Give referenced entries a second chance, ends within two turns since every step clears a bit
+            Entry current;
+            while((current = this.slots[this.hand]) != null && current.referenced){
+                current.referenced = false;
+                this.hand = (this.hand + 1) % this.slots.length;
+            }
+
+            // Replace it
+            if(current != null) this.map.remove(current.lockpoint, current);
+            this.slots[this.hand] = entry;
+            this.map.put(entry.lockpoint, entry);
+            this.hand = (this.hand + 1) % this.slots.length;
+            return entry.lock;
+        }
+
+        /** Changes the number of slots, evicting the entries the hand would reach first if there are too many
+         *  @param capacity number of slots
+         */
+        synchronized void resize(final int capacity){
+            Entry[] old_slots = this.slots;
+            Entry[] new_slots = new Entry[capacity];
+            int count = 0;
+            for(Entry entry : old_slots) if(entry != null) count++;
+            int evict = Math.max(count - capacity, 0);
+            count = 0;
+            for(int i = 0; i < old_slots.length; i++){
+                Entry entry = old_slots[(this.hand + i) % old_slots.length];
+                if(entry == null) continue;
+                if(evict > 0){
+                    evict--;
+                    this.map.remove(entry.lockpoint, entry);
+                }else{
+                    new_slots[count++] = entry;
+                }
+            }
+            this.slots = new_slots;
+            this.hand = (capacity == 0 ? 0 : count % capacity);
+        }
+    }
+
+    /** Client that owns the registry */
+    private final AbstractRedisLockClient client;
+
+    /** Interned fair locks */
+    private final Clock fair_locks = new Clock(DEFAULT_CAPACITY);
+
+    /** Interned unfair locks */
+    private final Clock unfair_locks = new Clock(DEFAULT_CAPACITY);
+
+    /** Maximum number of lockpoints retained per fairness policy */
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /** Creates a registry
+     *  @param client client that owns the registry
+     */
+    LockRegistry(final AbstractRedisLockClient client){
+        this.client = client;
+    }
+
+    /** Returns the maximum number of lockpoints retained per fairness policy
+     *  @return capacity
+     */
+    int getCapacity(){
+        return this.capacity;
+    }
+
+    /** Sets the maximum number of lockpoints retained per fairness policy
+     *  @param capacity capacity, 0 disables interning
+     */
+    void setCapacity(final int capacity){
+        this.capacity = Math.max(capacity, 0);
+        this.fair_locks.resize(this.capacity);
+        this.unfair_locks.resize(this.capacity);
+    }
+
+    /** Returns the number of lockpoints currently retained
+     *  @return number of lockpoints
+     */
+    int size(){
+        return this.fair_locks.map.size() + this.unfair_locks.map.size();
+    }
+
+    /** Returns the interned RedisReadWriteLock for the lockpoint, creating it if necessary
+     *  @param lockpoint lockpoint
+     *  @param is_fair fairness policy
+     *  @return RedisReadWriteLock instance
+     */
+    RedisReadWriteLock get(final String lockpoint, final boolean is_fair){
+
+        // Check parameter here so the failure is reported the same way whether or not it is interned
+        if(lockpoint == null){
+            throw new IllegalArgumentException("'lockpoint' parameter in RedisReadWriteLock(String, AbstractRedisLockClient, boolean) is null");
+        }
+
+        // Fast path - already interned
+        Clock clock = (is_fair ? this.fair_locks : this.unfair_locks);
+        RedisReadWriteLock rrwl = clock.get(lockpoint);
+        if(rrwl != null) return rrwl;
+
+        // Create new instance and intern it unless disabled
+        rrwl = new RedisReadWriteLock(lockpoint, this.client, is_fair);
+        if(this.capacity <= 0) return rrwl;
+        return clock.intern(new Entry(lockpoint, rrwl));
+    }
+}
@@ -0,0 +1,339 @@
+package com.tomansill.redis.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/** LockedExecutor class
+ *  Runs tasks while holding the write lock of their lockpoint, batching the tasks queued for one lockpoint
+ *  under one acquisition. A task submitted to a lockpoint without a combiner starts one, the combiner acquires
+ *  the lock, runs the queued tasks until the batch size or batch time runs out, and releases the lock.
+ *  It keeps going for tasks that came in meanwhile, so N tasks cost one acquisition and release per batch instead of N.
+ *  Tasks of one lockpoint run one at a time in submission order, tasks of different lockpoints run side by side.
+ *  Futures are completed after the lock is released, so stages chained to them do not extend the holding time.
+ *  Close it when done, so the combiner threads of its own are let go.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class LockedExecutor implements AutoCloseable{
+
+    /** Default maximum number of tasks run under one acquisition */
+    public final static int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /** Default maximum time tasks are started under one acquisition */
+    public final static long DEFAULT_MAX_BATCH_MILLISECONDS = 50;
+
+    /** Comfy little class that holds a task and its outcome until the lock is released */
+    private static class Task<T>{
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result = null;
+        private Throwable failure = null;
+        Task(final Callable<T> callable){
+            this.callable = callable;
+        }
+        void run(){
+            try{
+                this.result = this.callable.call();
+            }catch(Throwable t){
+                this.failure = t;
+            }
+        }
+        void complete(){
+            if(this.failure == null) this.future.complete(this.result);
+            else this.future.completeExceptionally(this.failure);
+        }
+    }
+
+    /** Comfy little class that holds the queue of one lockpoint and whether a combiner works on it. Tasks are queued
+     *  and the combiner is removed from the map while holding its entry, so a queue is never left behind unattended */
+    private static class Combiner{
+        private final String lockpoint;
+        private final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean active = new AtomicBoolean(false);
+        Combiner(final String lockpoint){
+            this.lockpoint = lockpoint;
+        }
+    }
+
+    /* Redis Client */
+    private final RedisLockClient client;
+
+    /* fair flag */
+    private final boolean is_fair;
+
+    /* Executor that runs the combiners */
+    private final Executor executor;
+
+    /* Executor of its own, shut down on close, null if the executor was given */
+    private final ThreadPoolExecutor own_executor;
+
+    /* Closed flag */
+    private volatile boolean closed = false;
+
+    /* Combiners by lockpoint */
+    private final ConcurrentHashMap<String, Combiner> combiners = new ConcurrentHashMap<>();
+
+    /* Maximum number of tasks run under one acquisition */
+    private volatile int max_batch_size = DEFAULT_MAX_BATCH_SIZE;
+
+    /* Maximum time tasks are started under one acquisition in nanoseconds */
+    private volatile long max_batch_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BATCH_MILLISECONDS);
+
+    /* Number of acquisitions */
+    private final LongAdder acquisitions = new LongAdder();
+
+    /* Number of tasks run */
+    private final LongAdder tasks = new LongAdder();
+
+    /** Creates an instance of LockedExecutor
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @param executor executor that runs the combiners, null for daemon threads of its own
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when client parameter is null
+     */
+    LockedExecutor(final boolean is_fair, final Executor executor, final RedisLockClient client){
+
+        // Check parameters
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in LockedExecutor(boolean, Executor, RedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.is_fair = is_fair;
+        this.client = client;
+        if(executor != null){
+            this.executor = executor;
+            this.own_executor = null;
+        }else{
+            this.own_executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "redis-lock-combiner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor = this.own_executor;
+        }
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public RedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the fairness flag
+     *  @return true if the locks are fair, false otherwise
+     */
+    public boolean isFair(){
+        return this.is_fair;
+    }
+
+    /** Retrieves the maximum number of tasks run under one acquisition
+     *  @return maximum batch size
+     */
+    public int getMaxBatchSize(){
+        return this.max_batch_size;
+    }
+
+    /** Sets the maximum number of tasks run under one acquisition
+     *  @param size maximum batch size
+     *  @throws IllegalArgumentException thrown if size is below 1
+     */
+    public void setMaxBatchSize(final int size){
+
+        // Check size
+        if(size < 1) throw new IllegalArgumentException("size is below the minimum value of 1");
+
+        this.max_batch_size = size;
+    }
+
+    /** Retrieves the maximum time tasks are started under one acquisition
+     *  @param unit TimeUnit for returned time
+     *  @return time in time unit provided in the parameter
+     *  @throws IllegalArgumentException thrown if unit parameter is null
+     */
+    public long getMaxBatchTime(final TimeUnit unit){
+
+        // Check unit
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+
+        // Return it
+        return unit.convert(this.max_batch_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Sets the maximum time tasks are started under one acquisition. The first task of a batch always runs, and the
+     *  task running when the time runs out finishes, so a batch holds the lock for this time plus its last task.
+     *  Keep it well below the lease duration.
+     *  @param time time
+     *  @param unit TimeUnit
+     *  @throws IllegalArgumentException thrown if unit parameter is null or time is a negative number
+     */
+    public void setMaxBatchTime(final long time, final TimeUnit unit){
+
+        // Check unit and time
+        if(unit == null) throw new IllegalArgumentException("unit is null");
+        if(time < 0) throw new IllegalArgumentException("time is negative");
+
+        this.max_batch_nanos = unit.toNanos(time);
+    }
+
+    /** Returns the number of lock acquisitions made so far
+     *  @return number of acquisitions
+     */
+    public long getAcquisitionCount(){
+        return this.acquisitions.sum();
+    }
+
+    /** Returns the number of tasks run so far
+     *  @return number of tasks
+     */
+    public long getTaskCount(){
+        return this.tasks.sum();
+    }
+
+    /** Submits a task to run while holding the write lock of the lockpoint
+     *  @param lockpoint lockpoint
+     *  @param task task
+     *  @param <T> type of result
+     *  @return future of the result, completed exceptionally if the task throws or the lock could not be acquired
+     *  @throws IllegalArgumentException thrown if lockpoint or task is null
+     *  @throws IllegalStateException thrown if the executor is closed
+     */
+    public <T> CompletableFuture<T> submit(final String lockpoint, final Callable<T> task){
+
+        // Check parameters
+        if(lockpoint == null) throw new IllegalArgumentException("lockpoint parameter is null");
+        if(task == null) throw new IllegalArgumentException("task parameter is null");
+        if(this.closed) throw new IllegalStateException("executor is closed");
+
+        // Queue it, and start a combiner if none works on the lockpoint
+        Task<T> entry = new Task<>(task);
+        Combiner combiner = this.combiners.compute(lockpoint, (key, current) -> {
+            if(current == null) current = new Combiner(key);
+            current.queue.add(entry);
+            return current;
+        });
+        if(combiner.active.compareAndSet(false, true)) this.start(combiner);
+        return entry.future;
+    }
+
+    /** Submits a task to run while holding the write lock of the lockpoint
+     *  @param lockpoint lockpoint
+     *  @param task task
+     *  @return future completed once the task ran, exceptionally if the task throws or the lock could not be acquired
+     *  @throws IllegalArgumentException thrown if lockpoint or task is null
+     *  @throws IllegalStateException thrown if the executor is closed
+     */
+    public CompletableFuture<Void> submit(final String lockpoint, final Runnable task){
+
+        // Check parameter
+        if(task == null) throw new IllegalArgumentException("task parameter is null");
+
+        return this.submit(lockpoint, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /** Hands the combiner to the executor, failing its queued tasks if the executor takes no more work
+     *  @param combiner combiner
+     */
+    private void start(final Combiner combiner){
+        try{
+            this.executor.execute(() -> this.combine(combiner));
+        }catch(RejectedExecutionException e){
+            do this.failQueued(combiner, e); while(!this.stepDown(combiner));
+        }
+    }
+
+    /** Runs batches of the queued tasks of the lockpoint until its queue is empty
+     *  @param combiner combiner
+     */
+    private void combine(final Combiner combiner){
+
+        final AutoCloseableRedisLock lock = this.client.getLock(combiner.lockpoint, this.is_fair).writeLock();
+        final List<Task<?>> batch = new ArrayList<>();
+        while(true){
+
+            // Run a batch under one acquisition
+            while(!combiner.queue.isEmpty()){
+                try{
+                    lock.lock();
+                }catch(RuntimeException e){
+                    this.failQueued(combiner, e);
+                    break;
+                }
+                this.acquisitions.increment();
+                try{
+                    final int max_size = this.max_batch_size;
+                    final long deadline = System.nanoTime() + this.max_batch_nanos;
+                    Task<?> task;
+                    while(batch.size() < max_size && (batch.isEmpty() || System.nanoTime() - deadline < 0) && (task = combiner.queue.poll()) != null){
+                        if(task.future.isDone()) continue; // Cancelled while queued
+                        task.run();
+                        batch.add(task);
+                    }
+                }finally{
+                    lock.unlock();
+                }
+                this.tasks.add(batch.size());
+                for(Task<?> task : batch) task.complete();
+                batch.clear();
+            }
+
+            // Step down, unless a task came in after the queue was found empty
+            if(this.stepDown(combiner)) return;
+        }
+    }
+
+    /** Removes the combiner from the map if its queue is empty. Once removed, no task is queued on it anymore, and the
+     *  next task of the lockpoint starts a new combiner. The combiner stays active until then, so no other one starts
+     *  for the same queue.
+     *  @param combiner combiner
+     *  @return true if removed, false if tasks are queued and the combiner has to go on
+     */
+    private boolean stepDown(final Combiner combiner){
+        final boolean[] removed = {false};
+        this.combiners.computeIfPresent(combiner.lockpoint, (key, current) -> {
+            if(current != combiner || !combiner.queue.isEmpty()) return current;
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /** Returns true if the executor is closed
+     *  @return true if closed
+     */
+    public boolean isClosed(){
+        return this.closed;
+    }
+
+    /** Closes the executor. Tasks submitted before still run, new ones are refused. The combiner threads of its own
+     *  are let go once the queued tasks ran, a given executor is left running.
+     */
+    @Override
+    public void close(){
+        this.closed = true;
+        if(this.own_executor != null) this.own_executor.shutdown();
+    }
+
+    /** Fails every task queued on the combiner
+     *  @param combiner combiner
+     *  @param cause cause of failure
+     */
+    private void failQueued(final Combiner combiner, final Throwable cause){
+        Task<?> task;
+        while((task = combiner.queue.poll()) != null) task.future.completeExceptionally(cause);
+    }
+}
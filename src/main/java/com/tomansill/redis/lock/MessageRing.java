@@ -0,0 +1,117 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** MessageRing class
+ *  Bounded ring that hands messages from the subscription listener thread over to the dispatcher thread.
+ *  Offering never blocks or allocates, a message that finds the ring full is dropped and counted instead,
+ *  and the dispatcher recovers from drops the way it recovers from a lost subscription.
+ *  There is normally one producer, but a listener that is being torn down can still deliver its last messages
+ *  while its replacement starts, so slots are claimed with a compare-and-set and published by sequence number.
+ *  There must only ever be one consumer.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+class MessageRing{
+
+    /** Default number of slots */
+    final static int DEFAULT_CAPACITY = 4096;
+
+    /** Slots */
+    private final byte[][] slots;
+
+    /** Sequence of each slot, equal to the position it takes next when free and one past it when filled */
+    private final AtomicLongArray sequences;
+
+    /** Mask to turn a position into a slot index */
+    private final int mask;
+
+    /** Next position to fill */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next position to take, only written by the consumer */
+    private volatile long head = 0;
+
+    /** Number of messages dropped because the ring was full */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Creates a ring
+     *  @param capacity number of slots, rounded up to a power of two
+     *  @throws IllegalArgumentException thrown if capacity is below 1
+     */
+    MessageRing(final int capacity){
+        if(capacity < 1) throw new IllegalArgumentException("capacity is below the minimum value of 1");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        this.slots = new byte[size][];
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) this.sequences.set(i, i);
+        this.mask = size - 1;
+    }
+
+    /** Puts the message in the ring, never blocking
+     *  @param message message
+     *  @return true if put in, false if the ring was full and the message was dropped
+     */
+    boolean offer(final byte[] message){
+        while(true){
+            long position = this.tail.get();
+            int index = (int) position & this.mask;
+            long sequence = this.sequences.get(index);
+            if(sequence == position){
+                if(!this.tail.compareAndSet(position, position + 1)) continue;
+                this.slots[index] = message;
+                this.sequences.set(index, position + 1);
+                return true;
+            }
+            if(sequence < position){
+                this.dropped.incrementAndGet();
+                return false;
+            }
+            // Another producer took the slot, try the next one
+        }
+    }
+
+    /** Takes the oldest message out of the ring, only to be called by the consumer
+     *  @return message, null if the ring is empty
+     */
+    byte[] poll(){
+        long position = this.head;
+        int index = (int) position & this.mask;
+        if(this.sequences.get(index) != position + 1) return null;
+        byte[] message = this.slots[index];
+        this.slots[index] = null;
+        this.sequences.lazySet(index, position + this.slots.length);
+        this.head = position + 1;
+        return message;
+    }
+
+    /** Returns true if there is nothing to take, only exact when called by the consumer
+     *  @return true if empty, false otherwise
+     */
+    boolean isEmpty(){
+        long position = this.head;
+        return this.sequences.get((int) position & this.mask) != position + 1;
+    }
+
+    /** Returns the number of messages waiting to be taken
+     *  @return number of messages
+     */
+    int size(){
+        return (int) Math.max(0, Math.min(this.tail.get() - this.head, this.slots.length));
+    }
+
+    /** Returns the number of slots
+     *  @return capacity
+     */
+    int capacity(){
+        return this.slots.length;
+    }
+
+    /** Returns the number of messages dropped so far because the ring was full
+     *  @return number of dropped messages
+     */
+    long getDroppedCount(){
+        return this.dropped.get();
+    }
+}
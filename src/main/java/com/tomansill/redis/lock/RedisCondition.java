@@ -0,0 +1,130 @@
+package com.tomansill.redis.lock;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/** RedisCondition class
+ *  Distributed Condition bound to a write lock. Waiting releases the lock and joins the condition queue in one step.
+ *  Signalling moves waiters from the condition queue to the front of the lockpoint's lockwait, so each is woken up by
+ *  a message addressed to it and reacquires the lock ahead of other waiters.
+ *  Conditions are identified by lockpoint and name, so conditions with the same name are shared by all clients.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class RedisCondition implements Condition{
+
+    /* Write lock that the condition is bound to */
+    private final SingleNodeWriteLock lock;
+
+    /* Name of condition */
+    private final String name;
+
+    /** Creates an instance of RedisCondition
+     *  @param lock write lock that the condition is bound to
+     *  @param name name of condition
+     *  @throws IllegalArgumentException thrown when either lock or name parameter is null
+     */
+    RedisCondition(final SingleNodeWriteLock lock, final String name){
+
+        // Check parameters
+        if(lock == null){
+            throw new IllegalArgumentException("'lock' parameter in RedisCondition(SingleNodeWriteLock, String) is null");
+        }
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in RedisCondition(SingleNodeWriteLock, String) is null");
+        }
+
+        // Assign parameters to class variables
+        this.lock = lock;
+        this.name = name;
+    }
+
+    /** Returns the name of condition
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Causes the current thread to wait until it is signalled or interrupted.
+     *  @throws InterruptedException if the current thread is interrupted
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#await--">Condition.await()</a>
+     */
+    public void await() throws InterruptedException{
+        this.lock.awaitCondition(this.name, -1, true);
+    }
+
+    /** Causes the current thread to wait until it is signalled.
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#awaitUninterruptibly--">Condition.awaitUninterruptibly()</a>
+     */
+    public void awaitUninterruptibly(){
+        try{
+            this.lock.awaitCondition(this.name, -1, false);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt(); // Cannot happen when not interruptible
+        }
+    }
+
+    /** Causes the current thread to wait until it is signalled or interrupted, or the specified waiting time elapses.
+     *  @param nanos the maximum time to wait, in nanoseconds
+     *  @return an estimate of the nanos value minus the time spent waiting, a value less than or equal to zero indicates that no time remains
+     *  @throws InterruptedException if the current thread is interrupted
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#awaitNanos-long-">Condition.awaitNanos(long)</a>
+     */
+    public long awaitNanos(final long nanos) throws InterruptedException{
+        long deadline = System.nanoTime() + Math.max(nanos, 0);
+        boolean signalled = this.lock.awaitCondition(this.name, Math.max(nanos, 0), true);
+        long remaining = deadline - System.nanoTime();
+        return (signalled ? remaining : Math.min(remaining, 0));
+    }
+
+    /** Causes the current thread to wait until it is signalled or interrupted, or the specified waiting time elapses.
+     *  @param time the maximum time to wait
+     *  @param unit the time unit of the time argument
+     *  @return false if the waiting time detectably elapsed before return from the method, else true
+     *  @throws InterruptedException if the current thread is interrupted
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#await-long-java.util.concurrent.TimeUnit-">Condition.await(long,TimeUnit)</a>
+     */
+    public boolean await(final long time, final TimeUnit unit) throws InterruptedException{
+
+        // Check parameter
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+
+        return this.lock.awaitCondition(this.name, Math.max(unit.toNanos(time), 0), true);
+    }
+
+    /** Causes the current thread to wait until it is signalled or interrupted, or the specified deadline elapses.
+     *  @param deadline the absolute time to wait until
+     *  @return false if the deadline has elapsed upon return, else true
+     *  @throws InterruptedException if the current thread is interrupted
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#awaitUntil-java.util.Date-">Condition.awaitUntil(Date)</a>
+     */
+    public boolean awaitUntil(final Date deadline) throws InterruptedException{
+
+        // Check parameter
+        if(deadline == null) throw new IllegalArgumentException("deadline parameter is null");
+
+        return this.await(deadline.getTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Wakes up one waiting thread on any client.
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#signal--">Condition.signal()</a>
+     */
+    public void signal(){
+        this.lock.signalCondition(this.name, 1);
+    }
+
+    /** Wakes up all waiting threads on every client.
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Condition.html#signalAll--">Condition.signalAll()</a>
+     */
+    public void signalAll(){
+        this.lock.signalCondition(this.name, -1);
+    }
+}
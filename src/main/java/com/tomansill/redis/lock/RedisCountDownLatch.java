@@ -0,0 +1,114 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.TimeUnit;
+
+/** RedisCountDownLatch class
+ *  Distributed count down latch. The count lives on the Redis server and the count down that brings it
+ *  to zero publishes a single notification that wakes up every waiter on every client.
+ *  Unlike CountDownLatch, the latch can be reused by setting a new count once it has reached zero.
+ *  The count has the lease duration of the client, renewed whenever it is counted down or waited on, so a latch
+ *  that is left alone for a whole lease is removed from the server as if it had reached zero.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class RedisCountDownLatch{
+
+    /* Redis Client */
+    private final AbstractRedisLockClient client;
+
+    /* Name of latch */
+    private final String name;
+
+    /* Name of event published when the count reaches zero */
+    private final String event;
+
+    /** Creates an instance of RedisCountDownLatch
+     *  @param name name of latch
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when either name or client parameter is null
+     */
+    RedisCountDownLatch(final String name, final AbstractRedisLockClient client){
+
+        // Check parameters
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in RedisCountDownLatch(String, AbstractRedisLockClient) is null");
+        }
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in RedisCountDownLatch(String, AbstractRedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.name = name;
+        this.client = client;
+        this.event = "countdownlatch:" + name;
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public AbstractRedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the name of latch
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Sets the count if the latch has reached zero
+     *  @param count new count
+     *  @return true if the count was set, false if the latch is still counting down
+     *  @throws IllegalArgumentException thrown if count is not positive
+     */
+    public boolean trySetCount(final long count){
+
+        // Check parameter
+        if(count <= 0) throw new IllegalArgumentException("count parameter is below the minimum value of 1");
+
+        // Set it
+        return this.client.performBooleanEval("single_latch_set_count", this.name, count + "", this.leaseTime());
+    }
+
+    /** Decrements the count, waking up all waiters if the count reaches zero */
+    public void countDown(){
+        this.client.performLongEval("single_latch_count_down", this.name, "1", this.leaseTime());
+    }
+
+    /** Returns the current count
+     *  @return the current count
+     */
+    public long getCount(){
+        return this.client.performLongEval("single_latch_count_down", this.name, "0", this.leaseTime());
+    }
+
+    /** Waits until the count reaches zero
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void await() throws InterruptedException{
+        this.client.awaitEvent(this.event, -1, TimeUnit.MILLISECONDS, () -> this.getCount() == 0);
+    }
+
+    /** Waits until the count reaches zero or the waiting time elapses
+     *  @param time the maximum time to wait
+     *  @param unit the time unit of the time argument
+     *  @return true if the count reached zero and false if the waiting time elapsed before the count reached zero
+     *  @throws IllegalArgumentException thrown if unit is null
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public boolean await(final long time, final TimeUnit unit) throws InterruptedException{
+
+        // Check parameter
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+
+        // Wait for it
+        return this.client.awaitEvent(this.event, Math.max(time, 0), unit, () -> this.getCount() == 0);
+    }
+
+    /** Returns the lease of the count, formatted for script arguments
+     *  @return lease time in milliseconds
+     */
+    private String leaseTime(){
+        return this.client.getLeaseDuration(TimeUnit.MILLISECONDS) + "";
+    }
+}
@@ -0,0 +1,238 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** RedisCyclicBarrier class
+ *  Distributed cyclic barrier. Parties on any client arrive on the Redis server and the last one to arrive
+ *  trips the barrier with a single notification that wakes up every waiting party.
+ *  Like CyclicBarrier, a party that times out or is interrupted breaks the barrier for everyone until it is reset.
+ *  While the last party runs the barrier action, parties of the next generation wait for it to finish before they arrive.
+ *  The state has the lease duration of the client, renewed whenever a party arrives or rechecks, so a barrier that
+ *  is left alone for a whole lease is removed from the server and starts over.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class RedisCyclicBarrier{
+
+    /* Redis Client */
+    private final AbstractRedisLockClient client;
+
+    /* Name of barrier */
+    private final String name;
+
+    /* Number of parties */
+    private final int parties;
+
+    /* Number of parties, formatted for script arguments */
+    private final String parties_string;
+
+    /* Action run by the last party to arrive */
+    private final Runnable barrier_action;
+
+    /* Name of event published when the barrier changes state */
+    private final String event;
+
+    /* Reply of arrival while the last party of the generation runs the action */
+    private final static String TRIPPING = "tripping";
+
+    /** Comfy little class that holds the state of barrier on the server */
+    private static class State{
+        private final long generation;
+        private final boolean broken;
+        private final int waiting;
+        State(final String state){
+            int first = state.indexOf(':');
+            int second = state.indexOf(':', first + 1);
+            this.generation = Long.parseLong(state.substring(0, first));
+            this.broken = state.charAt(first + 1) == '1';
+            this.waiting = Integer.parseInt(state.substring(second + 1));
+        }
+    }
+
+    /** Creates an instance of RedisCyclicBarrier
+     *  @param name name of barrier
+     *  @param parties number of parties
+     *  @param barrier_action action run by the last party to arrive, may be null
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when either name or client parameter is null or parties is not positive
+     */
+    RedisCyclicBarrier(final String name, final int parties, final Runnable barrier_action, final AbstractRedisLockClient client){
+
+        // Check parameters
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in RedisCyclicBarrier(String, int, Runnable, AbstractRedisLockClient) is null");
+        }
+        if(parties <= 0){
+            throw new IllegalArgumentException("'parties' parameter in RedisCyclicBarrier(String, int, Runnable, AbstractRedisLockClient) is below the minimum value of 1");
+        }
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in RedisCyclicBarrier(String, int, Runnable, AbstractRedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.name = name;
+        this.parties = parties;
+        this.parties_string = Integer.toString(parties);
+        this.barrier_action = barrier_action;
+        this.client = client;
+        this.event = "barrier:" + name;
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public AbstractRedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the name of barrier
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Returns the number of parties required to trip the barrier
+     *  @return number of parties
+     */
+    public int getParties(){
+        return this.parties;
+    }
+
+    /** Returns the number of parties currently waiting at the barrier
+     *  @return number of waiting parties
+     */
+    public int getNumberWaiting(){
+        return this.getState(-1, "get").waiting;
+    }
+
+    /** Returns true if the barrier is broken
+     *  @return true if the barrier is broken, false otherwise
+     */
+    public boolean isBroken(){
+        return this.getState(-1, "get").broken;
+    }
+
+    /** Resets the barrier. Parties currently waiting at the barrier get BrokenBarrierException. */
+    public void reset(){
+        this.getState(0, "reset");
+    }
+
+    /** Waits until all parties have arrived
+     *  @return the arrival index of the current party, getParties() - 1 for the first to arrive and 0 for the last
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     *  @throws BrokenBarrierException if the barrier was broken or reset while waiting, or was broken when await was called
+     */
+    public int await() throws InterruptedException, BrokenBarrierException{
+        try{
+            return this.innerAwait(-1, TimeUnit.MILLISECONDS);
+        }catch(TimeoutException e){
+            throw new IllegalStateException(e); // Cannot happen without a time out
+        }
+    }
+
+    /** Waits until all parties have arrived or the waiting time elapses
+     *  @param time the maximum time to wait
+     *  @param unit the time unit of the time argument
+     *  @return the arrival index of the current party, getParties() - 1 for the first to arrive and 0 for the last
+     *  @throws IllegalArgumentException thrown if unit is null
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     *  @throws BrokenBarrierException if the barrier was broken or reset while waiting, or was broken when await was called
+     *  @throws TimeoutException if the waiting time elapsed, the barrier is broken for the other parties
+     */
+    public int await(final long time, final TimeUnit unit) throws InterruptedException, BrokenBarrierException, TimeoutException{
+
+        // Check parameter
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+
+        // Wait for it
+        return this.innerAwait(Math.max(time, 0), unit);
+    }
+
+    /** Internal function for waiting
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @return the arrival index
+     */
+    private int innerAwait(final long time_out, final TimeUnit unit) throws InterruptedException, BrokenBarrierException, TimeoutException{
+
+        final long start_time = System.nanoTime();
+
+        // Arrive, after the action of the previous generation is done if it is still running
+        final String[] result = {this.arrive()};
+        if(result[0].equals(TRIPPING)){
+            if(!this.client.awaitEvent(this.event, time_out, unit, () -> !(result[0] = this.arrive()).equals(TRIPPING))){
+                throw new TimeoutException();
+            }
+        }
+        if(result[0].equals("broken")) throw new BrokenBarrierException();
+        int index_delimiter = result[0].indexOf(':');
+        final long generation = Long.parseLong(result[0].substring(0, index_delimiter));
+        final int index = Integer.parseInt(result[0].substring(index_delimiter + 1));
+
+        // Last to arrive runs the action then trips the barrier, or breaks it if the action failed
+        if(index == 0){
+            if(this.barrier_action != null){
+                boolean success = false;
+                try{
+                    this.barrier_action.run();
+                    success = true;
+                }finally{
+                    this.getState(generation, success ? "advance" : "break");
+                }
+            }
+            return 0;
+        }
+
+        // Wait for the generation to end in what is left of the waiting time
+        final long remaining = (time_out < 0 ? -1 : Math.max(unit.toNanos(time_out) - (System.nanoTime() - start_time), 0));
+        final State[] state = new State[1];
+        boolean done;
+        try{
+            done = this.client.awaitEvent(this.event, remaining, TimeUnit.NANOSECONDS, () -> {
+                state[0] = this.getState(generation, "get");
+                return state[0].generation != generation || state[0].broken;
+            });
+        }catch(InterruptedException e){
+            this.getState(generation, "break");
+            throw e;
+        }
+
+        // Timed out - break it unless it tripped in the meantime
+        if(!done){
+            state[0] = this.getState(generation, "break");
+            if(state[0].generation == generation || state[0].broken) throw new TimeoutException();
+        }
+
+        // Check how it ended
+        if(state[0].broken) throw new BrokenBarrierException();
+        return index;
+    }
+
+    /** Arrives at the barrier
+     *  @return "broken", "tripping", or "generation:index"
+     */
+    private String arrive(){
+        return this.client.performStringEval("single_barrier_await", this.name, this.parties_string, (this.barrier_action != null ? "1" : "0"), this.leaseTime());
+    }
+
+    /** Returns the lease of the state, formatted for script arguments
+     *  @return lease time in milliseconds
+     */
+    private String leaseTime(){
+        return this.client.getLeaseDuration(TimeUnit.MILLISECONDS) + "";
+    }
+
+    /** Performs operation on the barrier state and returns the state
+     *  @param generation generation to operate on, -1 for current generation
+     *  @param operation operation
+     *  @return barrier state
+     */
+    private State getState(final long generation, final String operation){
+        String generation_string;
+        if(generation >= 0) generation_string = Long.toString(generation);
+        else generation_string = Long.toString(new State(this.client.performStringEval("single_barrier_state", this.name, "0", "get", this.leaseTime())).generation);
+        return new State(this.client.performStringEval("single_barrier_state", this.name, generation_string, operation, this.leaseTime()));
+    }
+}
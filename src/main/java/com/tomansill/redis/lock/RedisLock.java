@@ -1,6 +1,7 @@
 package com.tomansill.redis.lock;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 /** RedisLock interface
@@ -19,4 +20,8 @@ public interface RedisLock extends Lock{
 
     public boolean tryLock(long wait_time, TimeUnit unit, long lease_time) throws InterruptedException;
 
+    public Condition newCondition(String name);
+
+    public int getPriority();
+
 }
@@ -0,0 +1,313 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** RedisLockClient interface
+ *  Hands out locks and other primitives by name and holds the settings they use. AbstractRedisLockClient implements it
+ *  over one Redis server, ShardedRedisLockClient over several by handing each name to the client of its shard.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public interface RedisLockClient extends AutoCloseable{
+
+    // ##### PRIMITIVES #####
+
+    /** Returns unfair RedisReadWriteLock on the lockpoint
+     *  @param lockpoint lockpoint
+     *  @return RedisReadWriteLock instance
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    RedisReadWriteLock getLock(String lockpoint);
+
+    /** Returns RedisReadWriteLock on the lockpoint
+     *  @param lockpoint lockpoint
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return RedisReadWriteLock instance
+     *  @throws IllegalArgumentException thrown if lockpoint is null
+     */
+    RedisReadWriteLock getLock(String lockpoint, boolean is_fair);
+
+    /** Returns striped lock that hashes logical keys onto a fixed number of lockpoints
+     *  @param name name of striped lock, used as prefix of the stripe lockpoints
+     *  @param stripes number of stripes
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return StripedRedisLock instance
+     *  @throws IllegalArgumentException thrown if name is null or stripes is not positive
+     */
+    StripedRedisLock getStripedLock(String name, int stripes, boolean is_fair);
+
+    /** Returns executor that runs tasks while holding the write lock of their lockpoint
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return LockedExecutor instance
+     */
+    LockedExecutor getLockedExecutor(boolean is_fair);
+
+    /** Returns executor that runs tasks while holding the write lock of their lockpoint
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @param executor executor that runs the combiners
+     *  @return LockedExecutor instance
+     *  @throws IllegalArgumentException thrown if executor is null
+     */
+    LockedExecutor getLockedExecutor(boolean is_fair, Executor executor);
+
+    /** Returns leader election among every candidate that runs an election of the same name
+     *  @param name name of election
+     *  @return LeaderElection instance
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    LeaderElection getLeaderElection(String name);
+
+    /** Returns distributed counting semaphore
+     *  @param name name of semaphore
+     *  @param permits total number of permits shared by all users of the semaphore
+     *  @return RedisSemaphore instance
+     *  @throws IllegalArgumentException thrown if name is null or permits is not positive
+     */
+    RedisSemaphore getSemaphore(String name, int permits);
+
+    /** Returns distributed count down latch
+     *  @param name name of latch
+     *  @return RedisCountDownLatch instance
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    RedisCountDownLatch getCountDownLatch(String name);
+
+    /** Returns distributed cyclic barrier
+     *  @param name name of barrier
+     *  @param parties number of parties that must call await before the barrier trips
+     *  @return RedisCyclicBarrier instance
+     *  @throws IllegalArgumentException thrown if name is null or parties is not positive
+     */
+    RedisCyclicBarrier getCyclicBarrier(String name, int parties);
+
+    /** Returns distributed cyclic barrier
+     *  @param name name of barrier
+     *  @param parties number of parties that must call await before the barrier trips
+     *  @param barrier_action action run by the last arriving party of this client before the barrier trips, may be null
+     *  @return RedisCyclicBarrier instance
+     *  @throws IllegalArgumentException thrown if name is null or parties is not positive
+     */
+    RedisCyclicBarrier getCyclicBarrier(String name, int parties, Runnable barrier_action);
+
+    // ##### ROUTING #####
+
+    /** Returns the number of servers that lockpoints are spread over
+     *  @return number of shards
+     */
+    int getShardCount();
+
+    /** Returns the index of the server that the name lives on, which orders multi-lock acquisitions by server
+     *  @param name lockpoint or name of semaphore, latch or barrier
+     *  @return shard index
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    int getShardIndex(String name);
+
+    /** Returns the client of the server that the name lives on
+     *  @param name lockpoint or name of semaphore, latch or barrier
+     *  @return client of shard
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    AbstractRedisLockClient getShard(String name);
+
+    // ##### INTROSPECTION #####
+
+    /** Lists every lockpoint that is held or has fair waiters
+     *  @param consumer consumer that receives each lockpoint as it is read
+     *  @throws IllegalArgumentException thrown if consumer is null
+     *  @throws InterruptedException if the current thread is interrupted while pacing the scan
+     */
+    void forEachLock(Consumer<LockInfo> consumer) throws InterruptedException;
+
+    /** Lists every lockpoint that is held or has fair waiters
+     *  @param consumer consumer that receives each lockpoint as it is read
+     *  @param keys_per_second maximum number of keys to scan per second
+     *  @throws IllegalArgumentException thrown if consumer is null or keys_per_second is not positive
+     *  @throws InterruptedException if the current thread is interrupted while pacing the scan
+     */
+    void forEachLock(Consumer<LockInfo> consumer, int keys_per_second) throws InterruptedException;
+
+    /** Returns the number of times the subscription came back after its connection was lost
+     *  @return reconnect count
+     */
+    long getReconnectCount();
+
+    /** Returns how long the last reconnect took, from losing the subscription to having every waiter retried
+     *  @param unit the time unit of the return value
+     *  @return recovery time, 0 if the subscription was never lost
+     */
+    long getLastRecoveryTime(TimeUnit unit);
+
+    /** Returns the number of messages waiting to be processed
+     *  @return backlog
+     */
+    int getListenerBacklog();
+
+    /** Returns the number of messages dropped because too many were waiting to be processed
+     *  @return dropped message count
+     */
+    long getDroppedMessageCount();
+
+    /** Returns the number of locks waiting
+     *  @return number of waiters
+     */
+    long getWaiterCount();
+
+    /** Returns the number of locks waiting on the lockpoint
+     *  @param lockpoint lockpoint
+     *  @return number of waiters
+     */
+    int getWaiterCount(String lockpoint);
+
+    /** Returns the number of locks turned away because a waiter limit was reached
+     *  @return shed count
+     */
+    long getShedCount();
+
+    // ##### SETTINGS #####
+
+    /** Returns the default lease of locks
+     *  @param unit the time unit of the return value
+     *  @return lease duration
+     */
+    long getLeaseDuration(TimeUnit unit);
+
+    /** Sets the default lease of locks
+     *  @param time lease duration
+     *  @param unit the time unit of the time argument
+     */
+    void setLeaseDuration(long time, TimeUnit unit);
+
+    /** Returns the interval waiters recheck the server at when no notification comes
+     *  @param unit the time unit of the return value
+     *  @return recheck interval
+     */
+    long getRecheckInterval(TimeUnit unit);
+
+    /** Sets the interval waiters recheck the server at when no notification comes
+     *  @param time recheck interval
+     *  @param unit the time unit of the time argument
+     */
+    void setRecheckInterval(long time, TimeUnit unit);
+
+    /** Returns true if scripts are called through the function library
+     *  @return true if the function library is enabled
+     */
+    boolean isFunctionLibraryEnabled();
+
+    /** Enables or disables calling scripts through the function library
+     *  @param enabled true to enable
+     */
+    void setFunctionLibraryEnabled(boolean enabled);
+
+    /** Returns true if long lockpoints are stored under a digest
+     *  @return true if keys are compact
+     */
+    boolean isCompactKeys();
+
+    /** Enables or disables storing long lockpoints under a digest
+     *  @param compact true to enable
+     *  @throws IllegalStateException thrown if the mode is changed after the client has handed out locks, semaphores or a session
+     */
+    void setCompactKeys(boolean compact);
+
+    /** Returns the time a waiter waits before it moves up one priority
+     *  @param unit the time unit of the return value
+     *  @return priority aging time
+     */
+    long getPriorityAging(TimeUnit unit);
+
+    /** Sets the time a waiter waits before it moves up one priority
+     *  @param time priority aging time
+     *  @param unit the time unit of the time argument
+     */
+    void setPriorityAging(long time, TimeUnit unit);
+
+    /** Returns true if read locks of one lockpoint share one lease on the server
+     *  @return true if read leases are shared
+     */
+    boolean isSharedReadLeases();
+
+    /** Enables or disables sharing one lease between the read locks of one lockpoint
+     *  @param shared true to enable
+     */
+    void setSharedReadLeases(boolean shared);
+
+    /** Returns the time a shared read lease is kept after its last reader left
+     *  @param unit the time unit of the return value
+     *  @return linger time
+     */
+    long getSharedReadLinger(TimeUnit unit);
+
+    /** Sets the time a shared read lease is kept after its last reader left
+     *  @param time linger time
+     *  @param unit the time unit of the time argument
+     */
+    void setSharedReadLinger(long time, TimeUnit unit);
+
+    /** Returns how long a lockpoint found held by a writer is remembered
+     *  @param unit the time unit of the return value
+     *  @return negative cache time
+     */
+    long getNegativeCacheTime(TimeUnit unit);
+
+    /** Sets how long a lockpoint found held by a writer is remembered, so tryLock() without waiting time fails without a round trip
+     *  @param time negative cache time, 0 to not remember held lockpoints
+     *  @param unit the time unit of the time argument
+     */
+    void setNegativeCacheTime(long time, TimeUnit unit);
+
+    /** Returns the maximum number of read and write locks that may wait at once
+     *  @return maximum number of waiters, 0 for no limit
+     */
+    int getMaxWaiters();
+
+    /** Sets the maximum number of read and write locks that may wait at once
+     *  @param max_waiters maximum number of waiters, 0 for no limit
+     */
+    void setMaxWaiters(int max_waiters);
+
+    /** Returns the maximum number of read and write locks that may wait at once on one lockpoint
+     *  @return maximum number of waiters per lockpoint, 0 for no limit
+     */
+    int getMaxWaitersPerLockpoint();
+
+    /** Sets the maximum number of read and write locks that may wait at once on one lockpoint
+     *  @param max_waiters maximum number of waiters per lockpoint, 0 for no limit
+     */
+    void setMaxWaitersPerLockpoint(int max_waiters);
+
+    /** Returns the session timeout
+     *  @param unit the time unit of the return value
+     *  @return session timeout, 0 if there is no session
+     */
+    long getSessionTimeout(TimeUnit unit);
+
+    /** Sets the session timeout, locks without a lease are released by the server when the session times out
+     *  @param time session timeout, 0 for no session
+     *  @param unit the time unit of the time argument
+     */
+    void setSessionTimeout(long time, TimeUnit unit);
+
+    /** Returns the maximum number of lockpoints that getLock keeps interned per fairness policy
+     *  @return lock registry capacity
+     */
+    int getLockRegistryCapacity();
+
+    /** Sets the maximum number of lockpoints that getLock keeps interned per fairness policy
+     *  @param capacity lock registry capacity, 0 to disable interning
+     */
+    void setLockRegistryCapacity(int capacity);
+
+    // ##### LIFECYCLE #####
+
+    /** Returns true if the client is closed
+     *  @return true if closed
+     */
+    boolean isClosed();
+
+    /** Releases the locks held through this client and closes it */
+    @Override
+    void close();
+}
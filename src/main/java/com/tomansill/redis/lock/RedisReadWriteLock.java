@@ -14,6 +14,9 @@ public class RedisReadWriteLock implements ReadWriteLock{
     /* Lock point */
     private final String lockpoint;
 
+    /* Name of lockpoint on the Redis server */
+    private final String server_lockpoint;
+
     /* fair flag */
     private final boolean is_fair;
 
@@ -47,6 +50,7 @@ public class RedisReadWriteLock implements ReadWriteLock{
         this.lockpoint = lockpoint;
         this.client = client;
         this.is_fair = is_fair;
+        this.server_lockpoint = client.getServerLockpoint(lockpoint);
     }
 
     /** Returns the client that this instance is using
@@ -63,6 +67,13 @@ public class RedisReadWriteLock implements ReadWriteLock{
         return this.lockpoint;
     }
 
+    /** Returns the name that the lockpoint goes by on the Redis server, computed once since the key mode of the client is fixed once used
+     *  @return the server lockpoint
+     */
+    String getServerLockpoint(){
+        return this.server_lockpoint;
+    }
+
     /** Returns the fairness flag
      *  @return true if this RedisReadWriteLock is fair, false otherwise
      */
@@ -70,6 +81,24 @@ public class RedisReadWriteLock implements ReadWriteLock{
         return this.is_fair;
     }
 
+    /** Returns a stamp for an optimistic read. Reading under the stamp takes no lock,
+     *  so the data read has to be checked with validate(long) before it is used.
+     *  @return stamp, 0 if the write lock is held
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/StampedLock.html#tryOptimisticRead--">StampedLock.tryOptimisticRead()</a>
+     */
+    public long tryOptimisticRead(){
+        return this.client.tryOptimisticRead(this.server_lockpoint);
+    }
+
+    /** Returns true if the write lock has not been acquired since the stamp was handed out
+     *  @param stamp stamp returned by tryOptimisticRead()
+     *  @return true if the stamp is still valid, false otherwise. Always false for a stamp of 0
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/StampedLock.html#validate-long-">StampedLock.validate(long)</a>
+     */
+    public boolean validate(final long stamp){
+        return this.client.validate(this.server_lockpoint, stamp);
+    }
+
     /** Returns the lock used for reading
      *  @return the lock used for reading
      *  @throws UnsupportedOperationException thrown if AbstractRedisLockClient associated to the instance does not support read locks
@@ -82,6 +111,19 @@ public class RedisReadWriteLock implements ReadWriteLock{
         else return new SingleNodeReadLock(this);
     }
 
+    /** Returns the lock used for reading with the given priority. On a fair lock, waiters of higher priority are queued
+     *  ahead of waiters of lower priority that have not waited AbstractRedisLockClient.getPriorityAging() longer per level.
+     *  Priority has no effect on unfair locks.
+     *  @param priority priority in the lockwait, higher goes first, 0 is the priority of readLock()
+     *  @return the lock used for reading
+     */
+    public AutoCloseableRedisLock readLock(final int priority){
+
+        // Return ReadLock
+        if(this.client.isCluster()) return null;
+        else return new SingleNodeReadLock(this, priority);
+    }
+
     /** Returns the lock used for writing
      *  @return the lock used for writing
      *  @throws UnsupportedOperationException thrown if AbstractRedisLockClient associated to the instance does not support write locks
@@ -93,4 +135,17 @@ public class RedisReadWriteLock implements ReadWriteLock{
         if(this.client.isCluster()) return null;
         else return new SingleNodeWriteLock(this);
     }
+
+    /** Returns the lock used for writing with the given priority. On a fair lock, waiters of higher priority are queued
+     *  ahead of waiters of lower priority that have not waited AbstractRedisLockClient.getPriorityAging() longer per level.
+     *  Priority has no effect on unfair locks.
+     *  @param priority priority in the lockwait, higher goes first, 0 is the priority of writeLock()
+     *  @return the lock used for writing
+     */
+    public AutoCloseableRedisLock writeLock(final int priority){
+
+        // Return WriteLock
+        if(this.client.isCluster()) return null;
+        else return new SingleNodeWriteLock(this, priority);
+    }
 }
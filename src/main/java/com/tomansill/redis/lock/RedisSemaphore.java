@@ -0,0 +1,296 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** RedisSemaphore class
+ *  Distributed counting semaphore. Permits are leased to the RedisSemaphore instance that acquired them,
+ *  so permits held by a client that dies are reclaimed once their lease runs out. Acquiring any number of permits
+ *  takes a single script call, and waiters queue up in order and are only woken up once enough permits are free for them.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class RedisSemaphore{
+
+    /* Redis Client */
+    private final AbstractRedisLockClient client;
+
+    /* Name of semaphore */
+    private final String name;
+
+    /* Total number of permits */
+    private final int permits;
+
+    /* Total number of permits, formatted for script arguments */
+    private final String permits_string;
+
+    /* Id of this instance as a permit holder */
+    private final String holder_id;
+
+    /* Number of permits held by this instance */
+    private final AtomicInteger held_permits = new AtomicInteger();
+
+    /** Creates an instance of RedisSemaphore
+     *  @param name name of semaphore
+     *  @param permits total number of permits
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when either name or client parameter is null or permits is not positive
+     */
+    RedisSemaphore(final String name, final int permits, final AbstractRedisLockClient client){
+
+        // Check parameters
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in RedisSemaphore(String, int, AbstractRedisLockClient) is null");
+        }
+        if(permits <= 0){
+            throw new IllegalArgumentException("'permits' parameter in RedisSemaphore(String, int, AbstractRedisLockClient) is below the minimum value of 1");
+        }
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in RedisSemaphore(String, int, AbstractRedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.name = name;
+        this.permits = permits;
+        this.permits_string = Integer.toString(permits);
+        this.client = client;
+        this.holder_id = Long.toString(LockIdGenerator.next());
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public AbstractRedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the name of semaphore
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Returns the total number of permits
+     *  @return total number of permits
+     */
+    public int getPermits(){
+        return this.permits;
+    }
+
+    /** Returns the number of permits held by this instance
+     *  @return number of held permits
+     */
+    public int getHeldPermits(){
+        return this.held_permits.get();
+    }
+
+    /** Acquires a permit, waiting until one is available
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void acquire() throws InterruptedException{
+        this.acquire(1);
+    }
+
+    /** Acquires the given number of permits, waiting until all are available
+     *  @param permits number of permits to acquire
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void acquire(final int permits) throws InterruptedException{
+
+        // Check parameter
+        this.checkPermits(permits);
+
+        // Acquire it
+        this.innerAcquire(permits, -1, TimeUnit.MILLISECONDS, this.client.getLeaseDuration(TimeUnit.MILLISECONDS));
+    }
+
+    /** Acquires the given number of permits, waiting until all are available
+     *  @param permits number of permits to acquire
+     *  @param unit the time unit of the lease_time argument
+     *  @param lease_time permit lease time
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits, or if unit or lease_time is invalid
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void acquire(final int permits, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Check parameters
+        this.checkPermits(permits);
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(lease_time <= 0) throw new IllegalArgumentException("lease_time parameter is below the minimum value of 1");
+
+        // Acquire it
+        this.innerAcquire(permits, -1, unit, lease_time);
+    }
+
+    /** Acquires a permit only if one is available at the time of invocation
+     *  @return true if the permit was acquired, false otherwise
+     */
+    public boolean tryAcquire(){
+        return this.tryAcquire(1);
+    }
+
+    /** Acquires the given number of permits only if all are available at the time of invocation
+     *  @param permits number of permits to acquire
+     *  @return true if the permits were acquired, false otherwise
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits
+     */
+    public boolean tryAcquire(final int permits){
+
+        // Check parameter
+        this.checkPermits(permits);
+
+        // Acquire it
+        try{
+            return this.innerAcquire(permits, 0, TimeUnit.MILLISECONDS, this.client.getLeaseDuration(TimeUnit.MILLISECONDS));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /** Acquires a permit if one becomes available within the given waiting time
+     *  @param time the maximum time to wait for the permit
+     *  @param unit the time unit of the time argument
+     *  @return true if the permit was acquired and false if the waiting time elapsed before the permit was acquired
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public boolean tryAcquire(final long time, final TimeUnit unit) throws InterruptedException{
+        return this.tryAcquire(1, time, unit);
+    }
+
+    /** Acquires the given number of permits if all become available within the given waiting time
+     *  @param permits number of permits to acquire
+     *  @param time the maximum time to wait for the permits
+     *  @param unit the time unit of the time argument
+     *  @return true if the permits were acquired and false if the waiting time elapsed before the permits were acquired
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits, or if unit is null
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public boolean tryAcquire(final int permits, final long time, final TimeUnit unit) throws InterruptedException{
+
+        // Check parameters
+        this.checkPermits(permits);
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+
+        // Acquire it
+        return this.innerAcquire(permits, Math.max(time, 0), unit, this.client.getLeaseDuration(unit));
+    }
+
+    /** Acquires the given number of permits if all become available within the given waiting time
+     *  @param permits number of permits to acquire
+     *  @param wait_time the maximum time to wait for the permits
+     *  @param unit the time unit of the time arguments
+     *  @param lease_time permit lease time
+     *  @return true if the permits were acquired and false if the waiting time elapsed before the permits were acquired
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits, or if unit or lease_time is invalid
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public boolean tryAcquire(final int permits, final long wait_time, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Check parameters
+        this.checkPermits(permits);
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(lease_time <= 0) throw new IllegalArgumentException("lease_time parameter is below the minimum value of 1");
+
+        // Acquire it
+        return this.innerAcquire(permits, Math.max(wait_time, 0), unit, lease_time);
+    }
+
+    /** Releases a permit held by this instance */
+    public void release(){
+        this.release(1);
+    }
+
+    /** Releases the given number of permits held by this instance
+     *  @param permits number of permits to release
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds the number of permits held by this instance
+     */
+    public void release(final int permits){
+
+        // Check parameter
+        if(permits <= 0) throw new IllegalArgumentException("permits parameter is below the minimum value of 1");
+
+        // Take them off the held count
+        int held;
+        do{
+            held = this.held_permits.get();
+            if(permits > held) throw new IllegalArgumentException("permits parameter exceeds the " + held + " permits held by this instance");
+        }while(!this.held_permits.compareAndSet(held, held - permits));
+
+        // Release and wake up waiters that fit
+        this.performRelease(permits, "");
+    }
+
+    /** Returns the number of permits currently available on the server, without changing anything there
+     *  @return number of available permits
+     */
+    public int availablePermits(){
+        return (int) this.client.performLongEval("single_semaphore_available", this.name, this.permits_string);
+    }
+
+    /** Checks number of permits requested
+     *  @param permits number of permits
+     *  @throws IllegalArgumentException thrown if permits is not positive or exceeds total number of permits
+     */
+    private void checkPermits(final int permits){
+        if(permits <= 0) throw new IllegalArgumentException("permits parameter is below the minimum value of 1");
+        if(permits > this.permits) throw new IllegalArgumentException("permits parameter exceeds the total of " + this.permits + " permits");
+    }
+
+    /** Internal function for acquiring
+     *  @param permits number of permits
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time arguments
+     *  @param lease_time permit lease time
+     *  @return true if permits were acquired, false otherwise
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    private boolean innerAcquire(final int permits, final long time_out, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Each acquisition waits under its own id
+        final String lock_id = Long.toString(LockIdGenerator.next());
+        final String permits_string = Integer.toString(permits);
+        final String lease_string = TimeUnit.MILLISECONDS.convert(lease_time, unit) + "";
+
+        boolean acquired = false;
+        try{
+            acquired = this.client.acquire(this.name, lock_id, true, time_out, unit, (first_attempt) ->
+                this.client.performLongEval(
+                    "single_semaphore_acquire",
+                    this.name,
+                    this.client.getClientId(),
+                    this.holder_id,
+                    lock_id,
+                    permits_string,
+                    this.permits_string,
+                    first_attempt ? "1" : "0",
+                    lease_string,
+                    AbstractRedisLockClient.LOCKWAIT_LEASE_MILLISECONDS
+                )
+            );
+        }finally{
+            if(acquired) this.held_permits.addAndGet(permits);
+            else this.performRelease(0, permits_string + ":" + this.client.getClientId() + ":" + lock_id); // Leave the queue and pass the wake-up on
+        }
+        return acquired;
+    }
+
+    /** Releases permits and wakes up waiters that fit in the available permits
+     *  @param permits number of permits to release
+     *  @param wait_entry queue entry to remove, empty string for none
+     *  @return number of available permits
+     */
+    private long performRelease(final int permits, final String wait_entry){
+        return this.client.performLongEval(
+            "single_semaphore_release",
+            this.name,
+            this.client.getClientId(),
+            this.holder_id,
+            Integer.toString(permits),
+            this.permits_string,
+            this.client.getLeaseDuration(TimeUnit.MILLISECONDS) + "",
+            wait_entry
+        );
+    }
+}
@@ -0,0 +1,421 @@
+package com.tomansill.redis.lock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** ShardedRedisLockClient class
+ *  Spreads lockpoints over several independent Redis servers, each reached through its own client, so lock traffic
+ *  is not bound by the single thread of one server. There is no quorum, a lockpoint lives on exactly one server
+ *  and is lost with it like it would be on a single server.
+ *  Lockpoints, semaphores, latches and barriers are routed by name with a consistent hash ring. Each shard appears
+ *  on the ring as many virtual nodes as its weight times the virtual node count, named after the shard name,
+ *  so every client configured with the same shard names and weights routes a name to the same shard, and adding
+ *  or removing a shard only moves the names on its part of the ring.
+ *  Locks returned by getLock belong to the client of their shard, so they wait on the subscription of that shard only.
+ *  Striped locks acquire their stripes grouped by shard, in shard name order and ascending stripe order within a shard.
+ *  The ring hashes the lockpoint name with FNV-1a and a 64-bit finalizer, which does not depend on the JVM.
+ *  This client has no server of its own, every call ends up on the client of a shard. Settings made on this client
+ *  are passed on to every shard and read back from the first one.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class ShardedRedisLockClient implements RedisLockClient{
+
+    /** Default number of virtual nodes per unit of weight */
+    public final static int DEFAULT_VIRTUAL_NODES = 160;
+
+    /** Shard clients in shard name order */
+    private final AbstractRedisLockClient[] shards;
+
+    /** Shard names in shard name order */
+    private final String[] names;
+
+    /** Ring positions in ascending order */
+    private final long[] ring;
+
+    /** Shard index of each ring position */
+    private final int[] owners;
+
+    /** Closed flag */
+    private volatile boolean closed = false;
+
+    /** Creates a sharded client with every shard weighted equally
+     *  @param shards shard clients by shard name
+     *  @throws IllegalArgumentException thrown if shards is null, empty, or contains a null name or client
+     */
+    public ShardedRedisLockClient(final Map<String, ? extends AbstractRedisLockClient> shards){
+        this(shards, Collections.emptyMap(), DEFAULT_VIRTUAL_NODES);
+    }
+
+    /** Creates a sharded client
+     *  @param shards shard clients by shard name
+     *  @param weights weights by shard name, shards not in the map have a weight of 1
+     *  @param virtual_nodes number of virtual nodes per unit of weight
+     *  @throws IllegalArgumentException thrown if shards or weights is null, shards is empty or contains a null name or client,
+     *          a weight is not positive, or virtual_nodes is not positive
+     */
+    public ShardedRedisLockClient(final Map<String, ? extends AbstractRedisLockClient> shards, final Map<String, Integer> weights, final int virtual_nodes){
+
+        // Check parameters
+        if(shards == null) throw new IllegalArgumentException("shards is null");
+        if(shards.isEmpty()) throw new IllegalArgumentException("shards is empty");
+        if(weights == null) throw new IllegalArgumentException("weights is null");
+        if(virtual_nodes <= 0) throw new IllegalArgumentException("virtual_nodes parameter is below the minimum value of 1");
+
+        // Order shards by name, so the shard order is the same on every client
+        TreeMap<String, AbstractRedisLockClient> sorted = new TreeMap<>();
+        for(Map.Entry<String, ? extends AbstractRedisLockClient> entry : shards.entrySet()){
+            if(entry.getKey() == null) throw new IllegalArgumentException("shards contains a null name");
+            if(entry.getValue() == null) throw new IllegalArgumentException("shards contains a null client for " + entry.getKey());
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        this.names = sorted.keySet().toArray(new String[0]);
+        this.shards = sorted.values().toArray(new AbstractRedisLockClient[0]);
+
+        // Place the virtual nodes
+        List<long[]> points = new ArrayList<>();
+        for(int i = 0; i < this.names.length; i++){
+            Integer weight = weights.get(this.names[i]);
+            if(weight != null && weight <= 0) throw new IllegalArgumentException("weight of " + this.names[i] + " is below the minimum value of 1");
+            int nodes = (weight == null ? 1 : weight) * virtual_nodes;
+            for(int node = 0; node < nodes; node++) points.add(new long[]{hash(this.names[i] + "#" + node), i});
+        }
+        points.sort((a, b) -> (a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1])));
+        this.ring = new long[points.size()];
+        this.owners = new int[points.size()];
+        for(int i = 0; i < points.size(); i++){
+            this.ring[i] = points.get(i)[0];
+            this.owners[i] = (int) points.get(i)[1];
+        }
+    }
+
+    /** Hashes a name onto the ring
+     *  @param value name
+     *  @return ring position
+     */
+    static long hash(final String value){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++){
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb93e53a5fe4fL;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    /** Returns the number of shards
+     *  @return number of shards
+     */
+    @Override
+    public int getShardCount(){
+        return this.shards.length;
+    }
+
+    /** Returns the names of the shards in shard order
+     *  @return shard names
+     */
+    public List<String> getShardNames(){
+        return Collections.unmodifiableList(Arrays.asList(this.names));
+    }
+
+    /** Returns the client of the shard that the name is routed to
+     *  @param name lockpoint or name of semaphore, latch or barrier
+     *  @return client of shard
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    @Override
+    public AbstractRedisLockClient getShard(final String name){
+        return this.shards[this.getShardIndex(name)];
+    }
+
+    /** Returns the index of the shard that the name is routed to, the shard owning the first ring position at or after its hash
+     *  @param name lockpoint or name of semaphore, latch or barrier
+     *  @return shard index
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    @Override
+    public int getShardIndex(final String name){
+        if(name == null) throw new IllegalArgumentException("name is null");
+        int index = Arrays.binarySearch(this.ring, hash(name));
+        if(index < 0) index = -index - 1;
+        if(index == this.ring.length) index = 0; // Wrap around
+        return this.owners[index];
+    }
+
+    // ##### ROUTING #####
+
+    @Override
+    public RedisReadWriteLock getLock(final String lockpoint){
+        return this.getShard(lockpoint).getLock(lockpoint);
+    }
+
+    @Override
+    public RedisReadWriteLock getLock(final String lockpoint, final boolean is_fair){
+        return this.getShard(lockpoint).getLock(lockpoint, is_fair);
+    }
+
+    @Override
+    public RedisSemaphore getSemaphore(final String name, final int permits){
+        return this.getShard(name).getSemaphore(name, permits);
+    }
+
+    @Override
+    public RedisCountDownLatch getCountDownLatch(final String name){
+        return this.getShard(name).getCountDownLatch(name);
+    }
+
+    @Override
+    public RedisCyclicBarrier getCyclicBarrier(final String name, final int parties){
+        return this.getShard(name).getCyclicBarrier(name, parties);
+    }
+
+    @Override
+    public RedisCyclicBarrier getCyclicBarrier(final String name, final int parties, final Runnable barrier_action){
+        return this.getShard(name).getCyclicBarrier(name, parties, barrier_action);
+    }
+
+    @Override
+    public LeaderElection getLeaderElection(final String name){
+        return this.getShard(name).getLeaderElection(name);
+    }
+
+    /** Returns striped lock whose stripes live on the shards their lockpoints are routed to
+     *  @param name name of striped lock, used as prefix of the stripe lockpoints
+     *  @param stripes number of stripes
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @return StripedRedisLock instance
+     *  @throws IllegalArgumentException thrown if name is null or stripes is not positive
+     */
+    @Override
+    public StripedRedisLock getStripedLock(final String name, final int stripes, final boolean is_fair){
+        return new StripedRedisLock(name, stripes, is_fair, this);
+    }
+
+    @Override
+    public LockedExecutor getLockedExecutor(final boolean is_fair){
+        return new LockedExecutor(is_fair, null, this);
+    }
+
+    @Override
+    public LockedExecutor getLockedExecutor(final boolean is_fair, final Executor executor){
+        if(executor == null) throw new IllegalArgumentException("executor is null");
+        return new LockedExecutor(is_fair, executor, this);
+    }
+
+    @Override
+    public void forEachLock(final Consumer<LockInfo> consumer) throws InterruptedException{
+        this.forEachLock(consumer, AbstractRedisLockClient.DEFAULT_INTROSPECTION_KEYS_PER_SECOND);
+    }
+
+    /** Lists every lockpoint that is held or has fair waiters on every shard, one shard after another.
+     *  Holders and waiters carry the client id of the shard client that acquired them.
+     *  @param consumer consumer that receives each lockpoint as it is read
+     *  @param keys_per_second maximum number of keys to scan per second on each shard
+     *  @throws IllegalArgumentException thrown if consumer is null or keys_per_second is not positive
+     *  @throws InterruptedException if the current thread is interrupted while pacing the scan
+     */
+    @Override
+    public void forEachLock(final Consumer<LockInfo> consumer, final int keys_per_second) throws InterruptedException{
+        for(AbstractRedisLockClient shard : this.shards) shard.forEachLock(consumer, keys_per_second);
+    }
+
+    @Override
+    public long getReconnectCount(){
+        long count = 0;
+        for(AbstractRedisLockClient shard : this.shards) count += shard.getReconnectCount();
+        return count;
+    }
+
+    @Override
+    public int getListenerBacklog(){
+        int backlog = 0;
+        for(AbstractRedisLockClient shard : this.shards) backlog += shard.getListenerBacklog();
+        return backlog;
+    }
+
+    @Override
+    public long getDroppedMessageCount(){
+        long count = 0;
+        for(AbstractRedisLockClient shard : this.shards) count += shard.getDroppedMessageCount();
+        return count;
+    }
+
+    @Override
+    public long getLastRecoveryTime(final TimeUnit unit){
+        long time = 0;
+        for(AbstractRedisLockClient shard : this.shards) time = Math.max(time, shard.getLastRecoveryTime(unit));
+        return time;
+    }
+
+    // ##### SETTINGS #####
+
+    @Override
+    public long getLeaseDuration(final TimeUnit unit){
+        return this.shards[0].getLeaseDuration(unit);
+    }
+
+    @Override
+    public void setLeaseDuration(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setLeaseDuration(time, unit);
+    }
+
+    @Override
+    public long getRecheckInterval(final TimeUnit unit){
+        return this.shards[0].getRecheckInterval(unit);
+    }
+
+    @Override
+    public void setRecheckInterval(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setRecheckInterval(time, unit);
+    }
+
+    @Override
+    public boolean isFunctionLibraryEnabled(){
+        return this.shards[0].isFunctionLibraryEnabled();
+    }
+
+    @Override
+    public void setFunctionLibraryEnabled(final boolean enabled){
+        for(AbstractRedisLockClient shard : this.shards) shard.setFunctionLibraryEnabled(enabled);
+    }
+
+    @Override
+    public boolean isCompactKeys(){
+        return this.shards[0].isCompactKeys();
+    }
+
+    @Override
+    public void setCompactKeys(final boolean compact){
+
+        // Refuse before any shard switches, so the shards never end up in different modes
+        for(AbstractRedisLockClient shard : this.shards){
+            if(shard.isCompactKeys() != compact && shard.isKeyModeFixed()) throw new IllegalStateException("compact key mode cannot be changed after the client is used");
+        }
+        for(AbstractRedisLockClient shard : this.shards) shard.setCompactKeys(compact);
+    }
+
+    @Override
+    public long getPriorityAging(final TimeUnit unit){
+        return this.shards[0].getPriorityAging(unit);
+    }
+
+    @Override
+    public void setPriorityAging(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setPriorityAging(time, unit);
+    }
+
+    @Override
+    public boolean isSharedReadLeases(){
+        return this.shards[0].isSharedReadLeases();
+    }
+
+    @Override
+    public void setSharedReadLeases(final boolean shared){
+        for(AbstractRedisLockClient shard : this.shards) shard.setSharedReadLeases(shared);
+    }
+
+    @Override
+    public long getSharedReadLinger(final TimeUnit unit){
+        return this.shards[0].getSharedReadLinger(unit);
+    }
+
+    @Override
+    public void setSharedReadLinger(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setSharedReadLinger(time, unit);
+    }
+
+    @Override
+    public long getNegativeCacheTime(final TimeUnit unit){
+        return this.shards[0].getNegativeCacheTime(unit);
+    }
+
+    @Override
+    public void setNegativeCacheTime(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setNegativeCacheTime(time, unit);
+    }
+
+    @Override
+    public int getMaxWaiters(){
+        return this.shards[0].getMaxWaiters();
+    }
+
+    /** Sets the maximum number of read and write locks that may wait at once on each shard
+     *  @param max_waiters maximum number of waiters per shard, 0 for no limit
+     *  @throws IllegalArgumentException thrown if max_waiters is a negative number
+     */
+    @Override
+    public void setMaxWaiters(final int max_waiters){
+        for(AbstractRedisLockClient shard : this.shards) shard.setMaxWaiters(max_waiters);
+    }
+
+    @Override
+    public int getMaxWaitersPerLockpoint(){
+        return this.shards[0].getMaxWaitersPerLockpoint();
+    }
+
+    @Override
+    public void setMaxWaitersPerLockpoint(final int max_waiters){
+        for(AbstractRedisLockClient shard : this.shards) shard.setMaxWaitersPerLockpoint(max_waiters);
+    }
+
+    @Override
+    public long getWaiterCount(){
+        long count = 0;
+        for(AbstractRedisLockClient shard : this.shards) count += shard.getWaiterCount();
+        return count;
+    }
+
+    @Override
+    public int getWaiterCount(final String lockpoint){
+        return this.getShard(lockpoint).getWaiterCount(lockpoint);
+    }
+
+    @Override
+    public long getShedCount(){
+        long count = 0;
+        for(AbstractRedisLockClient shard : this.shards) count += shard.getShedCount();
+        return count;
+    }
+
+    @Override
+    public long getSessionTimeout(final TimeUnit unit){
+        return this.shards[0].getSessionTimeout(unit);
+    }
+
+    @Override
+    public void setSessionTimeout(final long time, final TimeUnit unit){
+        for(AbstractRedisLockClient shard : this.shards) shard.setSessionTimeout(time, unit);
+    }
+
+    @Override
+    public int getLockRegistryCapacity(){
+        return this.shards[0].getLockRegistryCapacity();
+    }
+
+    @Override
+    public void setLockRegistryCapacity(final int capacity){
+        for(AbstractRedisLockClient shard : this.shards) shard.setLockRegistryCapacity(capacity);
+    }
+
+    @Override
+    public boolean isClosed(){
+        return this.closed;
+    }
+
+    /** Closes every shard, each releasing the locks held through it in one batch */
+    @Override
+    public void close(){
+        this.closed = true;
+        for(AbstractRedisLockClient shard : this.shards) shard.close();
+    }
+}
@@ -0,0 +1,298 @@
+package com.tomansill.redis.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** SharedReadLeases class
+ *  Shares one read registration on the Redis server among all read locks of the client on the same lockpoint.
+ *  The first reader registers on the server, and readers that come while it is registered only count themselves in locally.
+ *  The registration is released once the last local reader leaves, or after the linger time if one is set.
+ *  A writer that finds the registration in its way announces itself, after which the registration takes no new readers
+ *  and is released as soon as the local readers holding it are done. New readers go through the server on their own meanwhile,
+ *  so they queue up behind the writer on fair locks. The registration also stops taking new readers after half of its lease,
+ *  so every local reader has at least half a lease left when it gets in.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+class SharedReadLeases{
+
+    /** Default time a registration is kept after its last local reader leaves in milliseconds */
+    final static long DEFAULT_LINGER_MILLISECONDS = 100;
+
+    /** Results of acquire */
+    final static int ACQUIRED = 1;
+    final static int TIMED_OUT = 0;
+    final static int DECLINED = -1;
+
+    /** Prefix of lock ids of shared registrations, which writers look for to know whom to announce themselves to */
+    final static String LOCK_ID_PREFIX = "rs";
+
+    /** Comfy little class that holds the state of one lockpoint, guarded by its own monitor */
+    private static class Lease{
+        private final String lockpoint;
+        private final String key;
+        private final ReentrantLock registering = new ReentrantLock();
+        private String lock_id = null;
+        private int holders = 0;
+        private boolean draining = false;
+        private boolean removed = false;
+        private long accept_until = 0;
+        private long linger_generation = 0;
+        Lease(final String lockpoint, final String key){
+            this.lockpoint = lockpoint;
+            this.key = key;
+        }
+
+        /** Counts in a local reader if the registration takes new readers, must be called while holding the monitor
+         *  @return true if counted in, false otherwise
+         */
+        private boolean join(){
+            if(this.lock_id == null || this.draining) return false;
+            if(System.nanoTime() - this.accept_until >= 0){
+                this.draining = true;
+                return false;
+            }
+            this.holders++;
+            this.linger_generation++;
+            return true;
+        }
+    }
+
+    /** Client that owns the leases */
+    private final AbstractRedisLockClient client;
+
+    /** Leases by server lockpoint */
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /** Enabled flag */
+    private volatile boolean enabled = false;
+
+    /** Linger time in milliseconds */
+    private volatile long linger_ms = DEFAULT_LINGER_MILLISECONDS;
+
+    /** Closed flag, registrations do not linger once closed */
+    private volatile boolean closed = false;
+
+    /** Scheduler of lingering releases, created on first use */
+    private ScheduledExecutorService scheduler = null;
+
+    /** Creates the leases
+     *  @param client client that owns the leases
+     */
+    SharedReadLeases(final AbstractRedisLockClient client){
+        this.client = client;
+    }
+
+    boolean isEnabled(){
+        return this.enabled;
+    }
+
+    void setEnabled(final boolean enabled){
+        this.enabled = enabled;
+    }
+
+    long getLinger(final TimeUnit unit){
+        return unit.convert(this.linger_ms, TimeUnit.MILLISECONDS);
+    }
+
+    void setLinger(final long time, final TimeUnit unit){
+        this.linger_ms = unit.toMillis(time);
+    }
+
+    /** Returns the number of lockpoints that have a registration or one being set up
+     *  @return number of lockpoints
+     */
+    int size(){
+        return this.leases.size();
+    }
+
+    /** Acquires a read lock through the shared registration, registering on the server if there is none
+     *  @param lockpoint lockpoint to acquire a lock
+     *  @param key server lockpoint
+     *  @param is_fair true to enforce fairness policy, false otherwise
+     *  @param time_out maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of time_out
+     *  @param priority priority of the registration in the lockwait, only used when fair
+     *  @return ACQUIRED, TIMED_OUT, or DECLINED if the registration is draining and the caller has to register on its own
+     *  @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    int acquire(final String lockpoint, final String key, final boolean is_fair, final long time_out, final TimeUnit unit, final int priority) throws InterruptedException{
+
+        final long deadline = (time_out < 0 ? 0 : System.nanoTime() + unit.toNanos(time_out));
+        while(true){
+
+            // Count in locally if possible
+            Lease lease = this.leases.computeIfAbsent(key, k -> new Lease(lockpoint, key));
+            synchronized(lease){
+                if(lease.removed) continue;
+                if(lease.join()) return ACQUIRED;
+                if(lease.lock_id != null && lease.holders > 0) return DECLINED;
+            }
+
+            // Let one reader at a time register, the rest wait for it. A try without waiting goes on its own instead
+            if(time_out == 0){
+                if(!lease.registering.tryLock()) return DECLINED;
+            }else if(time_out < 0){
+                lease.registering.lockInterruptibly();
+            }else if(!lease.registering.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)){
+                return TIMED_OUT;
+            }
+            try{
+
+                // Someone may have registered while this one waited
+                String stale;
+                synchronized(lease){
+                    if(lease.removed) continue;
+                    if(lease.join()) return ACQUIRED;
+                    if(lease.lock_id != null && lease.holders > 0) return DECLINED;
+                    stale = lease.lock_id;
+                    lease.lock_id = null;
+                }
+
+                // Drop a registration that nobody holds anymore and register anew
+                if(stale != null) this.unregister(lease, stale);
+                final String lock_id = LOCK_ID_PREFIX + LockIdGenerator.next();
+                final long lease_ms = this.client.getLeaseDuration(TimeUnit.MILLISECONDS);
+                final long registered_at = System.nanoTime();
+                long remaining = (time_out < 0 ? -1 : Math.max(0, deadline - registered_at));
+                boolean registered = false;
+                this.client.retainSubscription(); // Writers announce themselves over the subscription
+                try{
+                    registered = this.client.readLock(lockpoint, key, lock_id, is_fair, remaining, TimeUnit.NANOSECONDS, lease_ms * 1000000, priority);
+                }finally{
+                    if(!registered) this.client.releaseSubscription();
+                }
+                if(!registered){
+                    this.removeIfIdle(key, lease);
+                    return TIMED_OUT;
+                }
+                synchronized(lease){
+                    lease.lock_id = lock_id;
+                    lease.draining = false;
+                    lease.accept_until = registered_at + TimeUnit.MILLISECONDS.toNanos(lease_ms / 2);
+                    lease.holders = 1;
+                    lease.linger_generation++;
+                }
+                return ACQUIRED;
+            }finally{
+                lease.registering.unlock();
+            }
+        }
+    }
+
+    /** Counts out a local reader, releasing the registration if it was the last one and the registration does not linger
+     *  @param key server lockpoint
+     */
+    void release(final String key){
+
+        Lease lease = this.leases.get(key);
+        if(lease == null) return;
+        String lock_id;
+        synchronized(lease){
+            if(lease.holders == 0 || --lease.holders > 0) return;
+            long linger = this.linger_ms;
+            if(!lease.draining && !this.closed && linger > 0 && System.nanoTime() - lease.accept_until < 0){
+                final long generation = ++lease.linger_generation;
+                this.getScheduler().schedule(() -> this.expire(key, lease, generation), linger, TimeUnit.MILLISECONDS);
+                return;
+            }
+            lock_id = this.take(key, lease);
+        }
+        if(lock_id != null) this.unregister(lease, lock_id);
+    }
+
+    /** Called when a writer announces itself on the lockpoint. The registration takes no new readers and is released
+     *  right away if no local reader holds it.
+     *  @param key server lockpoint
+     */
+    void writerWaiting(final String key){
+        Lease lease = this.leases.get(key);
+        if(lease == null) return;
+        String lock_id = null;
+        synchronized(lease){
+            lease.draining = true;
+            if(lease.holders == 0) lock_id = this.take(key, lease);
+        }
+        if(lock_id != null) this.unregister(lease, lock_id);
+    }
+
+    /** Releases a lingering registration if no reader came back in the meantime
+     *  @param key server lockpoint
+     *  @param lease lease
+     *  @param generation linger generation the release was scheduled in
+     */
+    private void expire(final String key, final Lease lease, final long generation){
+        String lock_id = null;
+        synchronized(lease){
+            if(lease.holders == 0 && lease.linger_generation == generation) lock_id = this.take(key, lease);
+        }
+        if(lock_id != null) this.unregister(lease, lock_id);
+    }
+
+    /** Takes the registration off an idle lease and removes the lease, must be called while holding its monitor
+     *  @param key server lockpoint
+     *  @param lease lease
+     *  @return lock id of registration, null if there is none
+     */
+    private String take(final String key, final Lease lease){
+        String lock_id = lease.lock_id;
+        lease.lock_id = null;
+        if(!lease.registering.isLocked()){
+            lease.removed = true;
+            this.leases.remove(key, lease);
+        }
+        return lock_id;
+    }
+
+    /** Removes the lease if it has no registration
+     *  @param key server lockpoint
+     *  @param lease lease
+     */
+    private void removeIfIdle(final String key, final Lease lease){
+        synchronized(lease){
+            if(lease.lock_id == null && lease.holders == 0 && !lease.registering.hasQueuedThreads()){
+                lease.removed = true;
+                this.leases.remove(key, lease);
+            }
+        }
+    }
+
+    /** Releases a registration on the server
+     *  @param lease lease of registration
+     *  @param lock_id lock id of registration
+     */
+    private void unregister(final Lease lease, final String lock_id){
+        try{
+            this.client.readUnlock(lease.lockpoint, lease.key, lock_id);
+        }catch(RuntimeException e){
+            // The registration runs out with its lease
+        }finally{
+            this.client.releaseSubscription();
+        }
+    }
+
+    /** Stops the scheduler of lingering releases. Registrations are left to the client, which releases them with its other locks */
+    synchronized void close(){
+        this.enabled = false;
+        this.closed = true;
+        if(this.scheduler != null) this.scheduler.shutdownNow();
+    }
+
+    /** Returns the scheduler of lingering releases, creating it on first use
+     *  @return scheduler
+     */
+    private synchronized ScheduledExecutorService getScheduler(){
+        if(this.scheduler == null){
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "redis-lock-shared-read-linger");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            this.scheduler = executor;
+        }
+        return this.scheduler;
+    }
+}
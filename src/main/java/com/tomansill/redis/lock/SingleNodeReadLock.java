@@ -6,6 +6,12 @@ import java.util.concurrent.locks.Condition;
 /** SingleNodeReadLock class */
 class SingleNodeReadLock extends GenericLock{
 
+    /** True if the held lock is counted in the read registration shared by the client */
+    private boolean is_shared = false;
+
+    /** Lease time of the held lock in milliseconds, kept by the write lock it is upgraded to */
+    private long lease_time_ms = 0;
+
     /** Creates ReadLock instance
      *  @param rrwl Parent RedisReadWriteLock instance
      *  @throws IllegalArgumentException thrown when rrwl is null
@@ -14,23 +20,58 @@ class SingleNodeReadLock extends GenericLock{
         super(rrwl);
     }
 
+    /** Creates ReadLock instance
+     *  @param rrwl Parent RedisReadWriteLock instance
+     *  @param priority priority in the lockwait
+     *  @throws IllegalArgumentException thrown when rrwl is null
+     */
+    SingleNodeReadLock(final RedisReadWriteLock rrwl, final int priority){
+        super(rrwl, priority);
+    }
+
+    /** Returns the prefix that tells read locks apart in the lockwait, so woken up readers can wake up the readers behind them
+     *  @return lock id prefix
+     */
+    protected String getIdPrefix(){
+        return "r";
+    }
+
     /** Acquires the lock.
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lock--">Lock.lock()</a>
      */
     public void lock(){
-        if(this.is_locked) return;
+
+        // Call it
+        this.innerLock(null, 0);
     }
 
     /** Acquires the lock.
      *  @param lease_time lock lease time
      *  @param unit the time unit of the time argument
+     *  @throws IllegalArgumentException thrown if unit or lease_time is invalid
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lock--">Lock.lock()</a>
      */
-    public void lock(final TimeUnit unit, final long lease_time){
+    public void lock(final TimeUnit unit, final long lease_time) throws IllegalArgumentException{
 
-        // Short circuit if already locked
-        if(this.is_locked) return;
+        // Check parameter
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(lease_time <= 0) throw new IllegalArgumentException("lease_time parameter is below the minimum value of 1");
 
+        // Call it
+        this.innerLock(unit, lease_time);
+    }
+
+    /** Internal function for locking
+     *  @param lease_time lock lease time
+     *  @param unit the time unit of the time argument
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lock--">Lock.lock()</a>
+     */
+    private void innerLock(final TimeUnit unit, final long lease_time){
+        try{
+            this.innerLockInterruptibly(unit, lease_time);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
     }
 
     /** Acquires the lock unless the current thread is interrupted.
@@ -38,26 +79,54 @@ class SingleNodeReadLock extends GenericLock{
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lockInterruptibly--">Lock.lockInterruptibly()</a>
      */
     public void lockInterruptibly() throws InterruptedException{
-        if(this.is_locked) return;
+
+        // Call it
+        this.innerLockInterruptibly(null, 0);
     }
 
-    /** Acquires the lock unless the current thread is interrupted.
+    /** Inner function of lockInterruptibly. Acquires the lock unless the current thread is interrupted.
      *  @param lease_time lock lease time
      *  @param unit the time unit of the time argument
+     *  @throws IllegalArgumentException thrown if unit or lease_time is invalid
      *  @throws InterruptedException if the current thread is interrupted while acquiring the lock (and interruption of lock acquisition is supported)
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lockInterruptibly--">Lock.lockInterruptibly()</a>
      */
     public void lockInterruptibly(final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Check parameter
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(lease_time <= 0) throw new IllegalArgumentException("lease_time parameter is below the minimum value of 1");
+
+        // Call it
+        this.innerLockInterruptibly(unit, lease_time);
+    }
+
+    /** Acquires the lock unless the current thread is interrupted.
+     *  @param lease_time lock lease time
+     *  @param unit the time unit of the time argument
+     *  @throws InterruptedException if the current thread is interrupted while acquiring the lock (and interruption of lock acquisition is supported)
+     *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lockInterruptibly--">Lock.lockInterruptibly()</a>
+     */
+    private void innerLockInterruptibly(final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Short circuit
         if(this.is_locked) return;
+
+        // Lock it
+        if(unit == null) this.is_locked = this.acquire(-1, TimeUnit.MILLISECONDS, 0);
+        else this.is_locked = this.acquire(-1, unit, lease_time);
     }
 
     /** Acquires the lock if it is free within the given waiting time and the current thread has not been interrupted.
      *  @return true if the lock was acquired and false if the waiting time elapsed before the lock was acquired
-     *  @throws InterruptedException if the current thread is interrupted while acquiring the lock (and interruption of lock acquisition is supported)
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#tryLock-long-java.util.concurrent.TimeUnit-">Lock.tryLock(long,TimeUnit)</a>
      */
     public boolean tryLock(){
-        if(this.is_locked) return true;
+        try{
+            return this.innerTryLock(0, TimeUnit.MILLISECONDS, 0);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
         return false;
     }
 
@@ -68,7 +137,17 @@ class SingleNodeReadLock extends GenericLock{
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#tryLock--">Lock.tryLock()</a>
      */
     public boolean tryLock(final TimeUnit unit, final long lease_time){
-        if(this.is_locked) return true;
+
+        // Check parameters
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(lease_time <= 0) throw new IllegalArgumentException("lease_time parameter is below the minimum value of 1");
+
+        // Lock it
+        try{
+            return this.innerTryLock(0, unit, lease_time);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
         return false;
     }
 
@@ -80,8 +159,13 @@ class SingleNodeReadLock extends GenericLock{
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#tryLock-long-java.util.concurrent.TimeUnit-">Lock.tryLock(long,TimeUnit)</a>
      */
     public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException{
-        if(this.is_locked) return true;
-        return false;
+
+        // Check parameters
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(time <= 0) throw new IllegalArgumentException("time parameter is below the minimum value of 1");
+
+        // Lock it
+        return this.innerTryLock(time, unit, 0);
     }
 
     /** Acquires the lock if it is free within the given waiting time and the current thread has not been interrupted.
@@ -92,9 +176,44 @@ class SingleNodeReadLock extends GenericLock{
      *  @throws InterruptedException if the current thread is interrupted while acquiring the lock (and interruption of lock acquisition is supported)
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#tryLock-long-java.util.concurrent.TimeUnit-">Lock.tryLock(long,TimeUnit)</a>
      */
-    public boolean tryLock(final long wait_time, final TimeUnit unit, final long lease_time)  throws InterruptedException{
+    public boolean tryLock(final long wait_time, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Check parameters
+        if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+        if(wait_time <= 0) throw new IllegalArgumentException("wait_time parameter is below the minimum value of 1");
+        if(lease_time <= 0) throw new IllegalArgumentException("wait_time parameter is below the minimum value of 1");
+
+        // Lock it
+        return this.innerTryLock(wait_time, unit, lease_time);
+    }
+
+    private boolean innerTryLock(final long wait_time, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+        // Short circuit
         if(this.is_locked) return true;
-        return false;
+
+        // Lock it
+        if(unit == null) return (this.is_locked = this.acquire(wait_time, TimeUnit.MILLISECONDS, 0));
+        else return (this.is_locked = this.acquire(wait_time, unit, lease_time));
+    }
+
+    /** Acquires the lock through the read registration shared by the client if the client shares them and the lock
+     *  uses the client lease duration, on its own otherwise
+     *  @param wait_time maximum time to wait, negative number to wait indefinitely
+     *  @param unit the time unit of the time arguments
+     *  @param lease_time lock lease time, 0 for the client lease duration
+     *  @return true if the lock was acquired, false otherwise
+     *  @throws InterruptedException if the current thread is interrupted while acquiring the lock
+     */
+    private boolean acquire(final long wait_time, final TimeUnit unit, final long lease_time) throws InterruptedException{
+        AbstractRedisLockClient client = this.rrwl.getClient();
+        this.lease_time_ms = (lease_time < 1 ? client.getDefaultLockLease() : TimeUnit.MILLISECONDS.convert(lease_time, unit));
+        if(lease_time < 1 && client.isSharedReadLeases()){
+            int result = client.sharedReadLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.rrwl.isFair(), wait_time, unit, this.priority);
+            if(result != SharedReadLeases.DECLINED) return (this.is_shared = (result == SharedReadLeases.ACQUIRED));
+        }
+        this.is_shared = false;
+        return client.readLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), this.rrwl.isFair(), wait_time, unit, lease_time, this.priority);
     }
 
     /** Returns a new Condition instance that is bound to this Lock instance.
@@ -106,10 +225,67 @@ class SingleNodeReadLock extends GenericLock{
         throw new UnsupportedOperationException("Conditions on ReadLocks are not supported.");
     }
 
+    /** Returns a new Condition instance with the given name that is bound to this Lock instance.
+     *  @param name name of condition
+     *  @return A new Condition instance for this Lock instance
+     *  @throws UnsupportedOperationException always, conditions on read locks are not supported
+     */
+    public Condition newCondition(final String name) throws UnsupportedOperationException{
+        throw new UnsupportedOperationException("Conditions on ReadLocks are not supported.");
+    }
+
+    /** Read locks cannot be downgraded
+     *  @return nothing
+     *  @throws UnsupportedOperationException always
+     */
+    public AutoCloseableRedisLock downgrade(){
+        throw new UnsupportedOperationException("Downgrading ReadLocks is not supported.");
+    }
+
+    /** Converts the held read lock into a write lock in one step if it is the only reader on the lockpoint.
+     *  The write lock goes ahead of waiters queued on the lockpoint, since the lockpoint is held already,
+     *  and keeps the lease time of this lock. A read lock counted in a shared read registration cannot be upgraded.
+     *  @return the held write lock, or null if there are other readers
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     */
+    public AutoCloseableRedisLock tryUpgrade(){
+
+        // Must hold the lock
+        if(!this.is_locked) throw new IllegalMonitorStateException("Lock is not held");
+
+        // Other readers of this client share the registration
+        if(this.is_shared) return null;
+
+        // Convert it
+        SingleNodeWriteLock write_lock = new SingleNodeWriteLock(this.rrwl, this.priority);
+        if(!this.rrwl.getClient().upgrade(this.rrwl.getServerLockpoint(), this.getIdString(), write_lock.getIdString(), this.lease_time_ms)) return null;
+        this.is_locked = false;
+        write_lock.setHeld(this.lease_time_ms);
+        return write_lock;
+    }
+
+    /** Marks the lock as held after it took the place of a held write lock
+     *  @param lease_time_ms lease time of the held lock in milliseconds, 0 if owned by the session
+     */
+    void setHeld(final long lease_time_ms){
+        this.lease_time_ms = lease_time_ms;
+        this.is_shared = false;
+        this.is_locked = true;
+    }
+
     /** Releases the lock.
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#unlock--">Lock.unlock()</a>
      */
     public void unlock(){
+
+        // Short circuit
         if(!this.is_locked) return;
+
+        // Unlock
+        if(this.is_shared) this.rrwl.getClient().sharedReadUnlock(this.rrwl.getServerLockpoint());
+        else this.rrwl.getClient().readUnlock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString());
+
+        // Update flag
+        this.is_locked = false;
     }
 }
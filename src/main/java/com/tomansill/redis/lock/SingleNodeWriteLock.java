@@ -6,6 +6,12 @@ import java.util.concurrent.locks.Condition;
 /** SingleNodeWriteLock class */
 class SingleNodeWriteLock extends GenericLock implements AutoCloseableRedisLock{
 
+    /** Name of condition returned by newCondition() */
+    final static String DEFAULT_CONDITION_NAME = "default";
+
+    /** Lease time of the held lock in milliseconds, reused when the lock is reacquired after waiting on a condition */
+    private long lease_time_ms = 0;
+
     /** Creates WriteLock instance
      *  @param rrwl Parent RedisReadWriteLock instance
      *  @throws IllegalArgumentException thrown when rrwl is null
@@ -14,6 +20,15 @@ class SingleNodeWriteLock extends GenericLock implements AutoCloseableRedisLock{
         super(rrwl);
     }
 
+    /** Creates WriteLock instance
+     *  @param rrwl Parent RedisReadWriteLock instance
+     *  @param priority priority in the lockwait
+     *  @throws IllegalArgumentException thrown when rrwl is null
+     */
+    SingleNodeWriteLock(final RedisReadWriteLock rrwl, final int priority){
+        super(rrwl, priority);
+    }
+
     /** Acquires the lock.
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#lock--">Lock.lock()</a>
      */
@@ -87,14 +102,23 @@ class SingleNodeWriteLock extends GenericLock implements AutoCloseableRedisLock{
      */
     private void innerLockInterruptibly(final TimeUnit unit, final long lease_time) throws InterruptedException{
 
-        System.out.println("SingleNodeWriteLock::innerLockInterruptibly() id= " + this.id);
-
         // Short circuit
         if(this.is_locked) return;
 
         // Lock it
-        if(unit == null) this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.id + "", this.rrwl.isFair(), -1, null);
-        else this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.id + "", this.rrwl.isFair(), -1, unit, lease_time);
+        this.lease_time_ms = this.toLeaseMilliseconds(unit, lease_time);
+        if(unit == null) this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), this.rrwl.isFair(), -1, TimeUnit.MILLISECONDS, 0, null, this.priority);
+        else this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), this.rrwl.isFair(), -1, unit, lease_time, null, this.priority);
+    }
+
+    /** Converts the lease time to milliseconds, falling back to the client lease duration
+     *  @param unit the time unit of the lease_time argument, null for the client lease duration
+     *  @param lease_time lock lease time
+     *  @return lease time in milliseconds
+     */
+    private long toLeaseMilliseconds(final TimeUnit unit, final long lease_time){
+        if(unit == null || lease_time < 1) return this.rrwl.getClient().getDefaultLockLease();
+        return TimeUnit.MILLISECONDS.convert(lease_time, unit);
     }
 
     /** Acquires the lock if it is free within the given waiting time and the current thread has not been interrupted.
@@ -173,17 +197,104 @@ class SingleNodeWriteLock extends GenericLock implements AutoCloseableRedisLock{
         if(this.is_locked) return true;
 
         // Lock it
-        if(unit == null) return (this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.id + "", this.rrwl.isFair(), wait_time, null));
-        else return (this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.id + "", this.rrwl.isFair(), wait_time, unit, lease_time));
+        this.lease_time_ms = this.toLeaseMilliseconds(unit, lease_time);
+        if(unit == null) return (this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), this.rrwl.isFair(), wait_time, TimeUnit.MILLISECONDS, 0, null, this.priority));
+        else return (this.is_locked = this.rrwl.getClient().writeLock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), this.rrwl.isFair(), wait_time, unit, lease_time, null, this.priority));
     }
 
     /** Returns a new Condition instance that is bound to this Lock instance.
+     *  Conditions are shared by name across all clients on the lockpoint, and every condition returned by this method
+     *  has the same default name. Use newCondition(String) to wait on distinct conditions of the same lockpoint.
      *  @return A new Condition instance for this Lock instance
-     *  @throws UnsupportedOperationException if the RedisClient does not support this
      *  @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/Lock.html#newCondition--">Lock.newCondition()</a>
      */
-    public Condition newCondition() throws UnsupportedOperationException{
-        throw new UnsupportedOperationException(this.getClass().getName() + " does not support newCondition() for write locks");
+    public Condition newCondition(){
+        return new RedisCondition(this, DEFAULT_CONDITION_NAME);
+    }
+
+    /** Returns a new Condition instance with the given name that is bound to this Lock instance.
+     *  Conditions with the same name on the same lockpoint are the same condition on every client.
+     *  @param name name of condition
+     *  @return A new Condition instance for this Lock instance
+     *  @throws IllegalArgumentException thrown if name is null
+     */
+    public Condition newCondition(final String name){
+        return new RedisCondition(this, name);
+    }
+
+    /** Releases the lock and waits on the condition, reacquiring the lock before returning
+     *  @param name name of condition
+     *  @param time_out maximum time to wait for the signal in nanoseconds, negative number to wait indefinitely
+     *  @param interruptible true to stop waiting when interrupted
+     *  @return true if signalled, false if timed out
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     *  @throws InterruptedException if interruptible and the current thread was interrupted
+     */
+    boolean awaitCondition(final String name, final long time_out, final boolean interruptible) throws InterruptedException{
+
+        // Must hold the lock
+        if(!this.is_locked) throw new IllegalMonitorStateException("Lock is not held");
+
+        // Wait on it
+        try{
+            return this.rrwl.getClient().awaitCondition(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), name, time_out, interruptible, this.lease_time_ms);
+        }catch(IllegalMonitorStateException e){
+            this.is_locked = false; // Lease has run out
+            throw e;
+        }
+    }
+
+    /** Wakes up waiters of the condition
+     *  @param name name of condition
+     *  @param count number of waiters to wake up, -1 for all
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     */
+    void signalCondition(final String name, final int count){
+
+        // Must hold the lock
+        if(!this.is_locked) throw new IllegalMonitorStateException("Lock is not held");
+
+        // Signal it
+        try{
+            this.rrwl.getClient().signalCondition(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString(), name, count);
+        }catch(IllegalMonitorStateException e){
+            this.is_locked = false; // Lease has run out
+            throw e;
+        }
+    }
+
+    /** Converts the held write lock into a read lock in one step, so no writer can get in between.
+     *  The read lock keeps the lease time of this lock.
+     *  @return the held read lock, or null if the write lock had been lost, for example after its lease expired
+     *  @throws IllegalMonitorStateException thrown if the lock is not held
+     */
+    public AutoCloseableRedisLock downgrade(){
+
+        // Must hold the lock
+        if(!this.is_locked) throw new IllegalMonitorStateException("Lock is not held");
+
+        // Convert it, this lock is gone either way
+        SingleNodeReadLock read_lock = new SingleNodeReadLock(this.rrwl, this.priority);
+        this.is_locked = false;
+        if(!this.rrwl.getClient().downgrade(this.rrwl.getServerLockpoint(), this.getIdString(), read_lock.getIdString(), this.lease_time_ms)) return null;
+        read_lock.setHeld(this.lease_time_ms);
+        return read_lock;
+    }
+
+    /** Write locks cannot be upgraded
+     *  @return nothing
+     *  @throws UnsupportedOperationException always
+     */
+    public AutoCloseableRedisLock tryUpgrade(){
+        throw new UnsupportedOperationException("Upgrading WriteLocks is not supported.");
+    }
+
+    /** Marks the lock as held after it took the place of a held read lock
+     *  @param lease_time_ms lease time of the held lock in milliseconds, 0 if owned by the session
+     */
+    void setHeld(final long lease_time_ms){
+        this.lease_time_ms = lease_time_ms;
+        this.is_locked = true;
     }
 
     /** Releases the lock.
@@ -200,7 +311,7 @@ class SingleNodeWriteLock extends GenericLock implements AutoCloseableRedisLock{
         //System.out.println("SingleNodeWriteLock::unlock()");
 
         // Unlock
-        this.rrwl.getClient().writeUnlock(this.rrwl.getLockpoint(), this.id + "");
+        this.rrwl.getClient().writeUnlock(this.rrwl.getLockpoint(), this.rrwl.getServerLockpoint(), this.getIdString());
 
         // Update flag
         this.is_locked = false;
@@ -0,0 +1,374 @@
+package com.tomansill.redis.lock;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** StripedRedisLock class
+ *  Hashes logical keys onto a fixed number of stripes, each stripe being an ordinary write lockpoint named
+ *  "&lt;name&gt;:stripe:&lt;index&gt;". The Redis server only ever holds keys for the stripes, no matter how many
+ *  logical keys there are, at the cost of unrelated keys that share a stripe excluding each other.
+ *  Stripes are picked from String.hashCode(), which is specified by the language, so every client maps a key to the same stripe.
+ *  Multi-key locks acquire their stripes in ascending stripe order, so two multi-key locks can never deadlock on each other.
+ *  On a sharded client, the stripes are grouped by shard first, which is an order every client shares just the same.
+ *  @author <a href="mailto:tom@ansill.com">Tom Ansill</a>
+ */
+public class StripedRedisLock{
+
+    /* Redis Client */
+    private final RedisLockClient client;
+
+    /* Name of striped lock */
+    private final String name;
+
+    /* Number of stripes */
+    private final int stripes;
+
+    /* fair flag */
+    private final boolean is_fair;
+
+    /* Number of stripe acquisitions */
+    private final LongAdder acquisitions = new LongAdder();
+
+    /* Number of stripe acquisitions that found the stripe already held */
+    private final LongAdder contended = new LongAdder();
+
+    /* Number of requested keys */
+    private final LongAdder keys = new LongAdder();
+
+    /* Number of requested keys that landed on a stripe already needed by another key of the same request */
+    private final LongAdder merged_keys = new LongAdder();
+
+    /** Creates an instance of StripedRedisLock
+     *  @param name name of striped lock
+     *  @param stripes number of stripes
+     *  @param is_fair true to enforce fair locking order, false to let locks to acquire in unspecified way
+     *  @param client Redis client
+     *  @throws IllegalArgumentException thrown when either name or client parameter is null or stripes is not positive
+     */
+    StripedRedisLock(final String name, final int stripes, final boolean is_fair, final RedisLockClient client){
+
+        // Check parameters
+        if(name == null){
+            throw new IllegalArgumentException("'name' parameter in StripedRedisLock(String, int, boolean, RedisLockClient) is null");
+        }
+        if(stripes <= 0){
+            throw new IllegalArgumentException("'stripes' parameter in StripedRedisLock(String, int, boolean, RedisLockClient) is below the minimum value of 1");
+        }
+        if(client == null){
+            throw new IllegalArgumentException("'client' parameter in StripedRedisLock(String, int, boolean, RedisLockClient) is null");
+        }
+
+        // Assign parameters to class variables
+        this.name = name;
+        this.stripes = stripes;
+        this.is_fair = is_fair;
+        this.client = client;
+    }
+
+    /** Returns the client that this instance is using
+     *  @return the Redis client
+     */
+    public RedisLockClient getClient(){
+        return this.client;
+    }
+
+    /** Returns the name of striped lock
+     *  @return the name
+     */
+    public String getName(){
+        return this.name;
+    }
+
+    /** Returns the number of stripes
+     *  @return number of stripes
+     */
+    public int getStripes(){
+        return this.stripes;
+    }
+
+    /** Returns the fairness flag
+     *  @return true if the stripes are fair, false otherwise
+     */
+    public boolean isFair(){
+        return this.is_fair;
+    }
+
+    /** Returns the stripe that the key maps to
+     *  @param key logical key
+     *  @return stripe index, between 0 and getStripes() - 1
+     *  @throws IllegalArgumentException thrown if key is null
+     */
+    public int getStripe(final String key){
+
+        // Check parameter
+        if(key == null) throw new IllegalArgumentException("key parameter is null");
+
+        // Spread the bits so keys differing only in their last characters don't pile up on neighbouring stripes
+        int hash = key.hashCode() * 0x9E3779B9;
+        hash ^= (hash >>> 16);
+        return (hash & 0x7FFFFFFF) % this.stripes;
+    }
+
+    /** Returns the lockpoint of the stripe
+     *  @param stripe stripe index
+     *  @return lockpoint
+     */
+    public String getStripeLockpoint(final int stripe){
+        return this.name + ":stripe:" + stripe;
+    }
+
+    /** Returns the write lock of the stripe that the key maps to
+     *  @param key logical key
+     *  @return lock on the stripe
+     *  @throws IllegalArgumentException thrown if key is null
+     */
+    public MultiLock getLock(final String key){
+        return this.getLocks(key);
+    }
+
+    /** Returns a lock over the stripes that the keys map to
+     *  @param keys logical keys
+     *  @return lock on the stripes
+     *  @throws IllegalArgumentException thrown if keys is null or contains null
+     */
+    public MultiLock getLocks(final String... keys){
+
+        // Check parameter
+        if(keys == null) throw new IllegalArgumentException("keys parameter is null");
+
+        return this.getLocks(Arrays.asList(keys));
+    }
+
+    /** Returns a lock over the stripes that the keys map to
+     *  @param keys logical keys
+     *  @return lock on the stripes
+     *  @throws IllegalArgumentException thrown if keys is null or contains null
+     */
+    public MultiLock getLocks(final Collection<String> keys){
+
+        // Check parameter
+        if(keys == null) throw new IllegalArgumentException("keys parameter is null");
+
+        // Map keys to stripes
+        int[] stripes = new int[keys.size()];
+        int count = 0;
+        for(String key : keys) stripes[count++] = this.getStripe(key);
+
+        // Sort into canonical order and drop duplicates
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for(int i = 0; i < count; i++){
+            if(distinct == 0 || stripes[distinct - 1] != stripes[i]) stripes[distinct++] = stripes[i];
+        }
+
+        // Update statistics
+        this.keys.add(count);
+        this.merged_keys.add(count - distinct);
+
+        // Group stripes by shard on a sharded client, keeping ascending order within each shard
+        if(this.client.getShardCount() > 1){
+            long[] ordered = new long[distinct];
+            for(int i = 0; i < distinct; i++) ordered[i] = (((long) this.client.getShardIndex(this.getStripeLockpoint(stripes[i]))) << 32) | stripes[i];
+            Arrays.sort(ordered);
+            for(int i = 0; i < distinct; i++) stripes[i] = (int) ordered[i];
+        }
+
+        return new MultiLock(Arrays.copyOf(stripes, distinct));
+    }
+
+    /** Returns the number of stripe acquisitions made through this instance
+     *  @return number of acquisitions
+     */
+    public long getAcquisitionCount(){
+        return this.acquisitions.sum();
+    }
+
+    /** Returns the number of stripe acquisitions that found the stripe already held and had to wait or give up
+     *  @return number of contended acquisitions
+     */
+    public long getContendedCount(){
+        return this.contended.sum();
+    }
+
+    /** Returns the fraction of stripe acquisitions that found the stripe already held.
+     *  This includes contention on the same logical key as well as collisions of different keys on one stripe.
+     *  @return contention rate between 0 and 1
+     */
+    public double getContentionRate(){
+        long acquisitions = this.acquisitions.sum();
+        return (acquisitions == 0 ? 0 : ((double) this.contended.sum()) / acquisitions);
+    }
+
+    /** Returns the fraction of keys requested through getLocks that shared a stripe with another key of the same request
+     *  @return collision rate between 0 and 1
+     */
+    public double getCollisionRate(){
+        long keys = this.keys.sum();
+        return (keys == 0 ? 0 : ((double) this.merged_keys.sum()) / keys);
+    }
+
+    /** Returns the probability that a key shares its stripe with at least one of the other keys held at the same time,
+     *  assuming keys are spread evenly. Use it to size the number of stripes against the expected number of held keys.
+     *  @param held_keys number of keys held at the same time
+     *  @return collision probability between 0 and 1
+     */
+    public double getExpectedCollisionRate(final long held_keys){
+        if(held_keys <= 1) return 0;
+        return 1 - Math.pow(1 - 1.0 / this.stripes, held_keys - 1);
+    }
+
+    /** Resets the statistics */
+    public void resetStatistics(){
+        this.acquisitions.reset();
+        this.contended.reset();
+        this.keys.reset();
+        this.merged_keys.reset();
+    }
+
+    /** MultiLock class
+     *  Lock over a set of stripes. Stripes are acquired in ascending order and released in descending order.
+     *  If acquisition of any stripe fails, the stripes already acquired are released before returning.
+     *  Like the other locks, an instance is meant to be used by one thread at a time.
+     */
+    public class MultiLock implements AutoCloseable{
+
+        /* Stripes in canonical order */
+        private final int[] stripes;
+
+        /* Lock ids per stripe, created on acquisition */
+        private final String[] lock_ids;
+
+        /* Number of stripes currently held */
+        private int held = 0;
+
+        /** Creates an instance of MultiLock
+         *  @param stripes distinct stripes in ascending order
+         */
+        private MultiLock(final int[] stripes){
+            this.stripes = stripes;
+            this.lock_ids = new String[stripes.length];
+        }
+
+        /** Returns the stripes covered by this lock in acquisition order
+         *  @return stripe indices
+         */
+        public int[] getStripes(){
+            return this.stripes.clone();
+        }
+
+        /** Returns the state of lock
+         *  @return true if all stripes are held, false otherwise
+         */
+        public boolean isLocked(){
+            return this.held == this.stripes.length;
+        }
+
+        /** Acquires all stripes */
+        public void lock(){
+            this.lock(null, 0);
+        }
+
+        /** Acquires all stripes
+         *  @param unit the time unit of the lease_time argument
+         *  @param lease_time lock lease time
+         */
+        public void lock(final TimeUnit unit, final long lease_time){
+            boolean interrupted = false;
+            while(true){
+                try{
+                    this.innerLock(-1, unit, lease_time);
+                    break;
+                }catch(InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+
+        /** Acquires all stripes unless the current thread is interrupted
+         *  @throws InterruptedException if the current thread is interrupted while acquiring
+         */
+        public void lockInterruptibly() throws InterruptedException{
+            this.innerLock(-1, null, 0);
+        }
+
+        /** Acquires all stripes only if they are all free at the time of invocation
+         *  @return true if all stripes were acquired, false otherwise
+         */
+        public boolean tryLock(){
+            try{
+                return this.innerLock(0, null, 0);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /** Acquires all stripes if they all become free within the given waiting time
+         *  @param time the maximum time to wait for all stripes
+         *  @param unit the time unit of the time argument
+         *  @return true if all stripes were acquired, false otherwise
+         *  @throws IllegalArgumentException thrown if unit is null
+         *  @throws InterruptedException if the current thread is interrupted while acquiring
+         */
+        public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException{
+
+            // Check parameter
+            if(unit == null) throw new IllegalArgumentException("unit parameter is null");
+
+            return this.innerLock(TimeUnit.MILLISECONDS.convert(Math.max(time, 0), unit), null, 0);
+        }
+
+        /** Releases all held stripes */
+        public void unlock(){
+            while(this.held > 0){
+                this.held--;
+                String lockpoint = getStripeLockpoint(this.stripes[this.held]);
+                AbstractRedisLockClient shard = client.getShard(lockpoint);
+                shard.writeUnlock(lockpoint, shard.getServerLockpoint(lockpoint), this.lock_ids[this.held]);
+            }
+        }
+
+        /** Releases all held stripes */
+        public void close(){
+            this.unlock();
+        }
+
+        /** Internal function for acquiring the stripes
+         *  @param time_out maximum time to wait in milliseconds, negative number to wait indefinitely
+         *  @param unit the time unit of the lease_time argument, null for the client lease duration
+         *  @param lease_time lock lease time
+         *  @return true if all stripes were acquired, false otherwise
+         *  @throws InterruptedException if the current thread is interrupted while acquiring
+         */
+        private boolean innerLock(final long time_out, final TimeUnit unit, final long lease_time) throws InterruptedException{
+
+            // Short circuit
+            if(this.isLocked()) return true;
+
+            // Find out the lease
+            long lease_ms = (unit == null || lease_time < 1 ? client.getLeaseDuration(TimeUnit.MILLISECONDS) : TimeUnit.MILLISECONDS.convert(lease_time, unit));
+
+            // Acquire the remaining stripes in order, sharing the waiting time
+            long start_time = System.currentTimeMillis();
+            boolean success = false;
+            try{
+                while(this.held < this.stripes.length){
+                    long remaining = (time_out < 0 ? -1 : Math.max(0, time_out - (System.currentTimeMillis() - start_time)));
+                    if(this.lock_ids[this.held] == null) this.lock_ids[this.held] = Long.toString(LockIdGenerator.next());
+                    acquisitions.increment();
+                    String lockpoint = getStripeLockpoint(this.stripes[this.held]);
+                    AbstractRedisLockClient shard = client.getShard(lockpoint);
+                    if(!shard.writeLock(lockpoint, shard.getServerLockpoint(lockpoint), this.lock_ids[this.held], is_fair, remaining, TimeUnit.MILLISECONDS, lease_ms, contended)) return false;
+                    this.held++;
+                }
+                success = true;
+                return true;
+            }finally{
+                if(!success) this.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+-- Input - barrier parties has_action lease_time
+-- Returns "broken" if the barrier is broken, "tripping" if the last party of the generation is still running the action,
+-- otherwise "<generation>:<arrival index>"
+-- Only the arrival that completes the generation gets index 0. It trips the barrier unless it has an action to run first,
+-- in which case arrivals are turned away until the generation is advanced, so they count toward the next generation
+
+local barrier = "barrier:" .. KEYS[1]
+local parties = tonumber(KEYS[2])
+local has_action = tonumber(KEYS[3])
+local lease_time = tonumber(KEYS[4])
+local generation = tonumber(redis.call("HGET", barrier, "generation") or "0")
+local result
+
+-- Broken barrier stays broken until reset
+if redis.call("HGET", barrier, "broken") == "1" then
+    result = "broken"
+
+-- Last party of the generation is running the action
+elseif redis.call("HGET", barrier, "tripping") == "1" then
+    result = "tripping"
+
+-- Arrive
+else
+    local index = parties - redis.call("HINCRBY", barrier, "arrived", 1)
+    if index <= 0 then
+        index = 0
+        if has_action == 0 then
+            redis.call("HSET", barrier, "generation", generation + 1)
+            redis.call("HSET", barrier, "arrived", 0)
+            redis.call("PUBLISH", "lockchannel", "n:barrier:" .. KEYS[1])
+        else
+            redis.call("HSET", barrier, "tripping", 1)
+        end
+    end
+    result = generation .. ":" .. index
+end
+
+-- Barrier lives on while it is used
+if lease_time > 0 then
+    redis.call("PEXPIRE", barrier, lease_time)
+end
+return result
@@ -0,0 +1,51 @@
+-- Input - barrier generation operation lease_time
+-- Operations: "get" reads the state, "advance" trips the barrier of the generation,
+-- "break" breaks the barrier of the generation, "reset" breaks waiting parties and starts a new generation
+-- Returns "<current generation>:<1 if the given generation was broken, 0 otherwise>:<number of parties waiting>"
+
+local barrier = "barrier:" .. KEYS[1]
+local generation = tonumber(KEYS[2])
+local operation = KEYS[3]
+local lease_time = tonumber(KEYS[4])
+local current = tonumber(redis.call("HGET", barrier, "generation") or "0")
+local arrived = tonumber(redis.call("HGET", barrier, "arrived") or "0")
+local broken = redis.call("HGET", barrier, "broken") == "1"
+
+if (operation == "advance") and (current == generation) and (not broken) then
+    current = current + 1
+    arrived = 0
+    redis.call("HSET", barrier, "generation", current)
+    redis.call("HSET", barrier, "arrived", 0)
+    redis.call("HDEL", barrier, "tripping")
+    redis.call("PUBLISH", "lockchannel", "n:barrier:" .. KEYS[1])
+elseif (operation == "break") and (current == generation) and (not broken) then
+    broken = true
+    redis.call("HSET", barrier, "broken", 1)
+    redis.call("HSET", barrier, "b:" .. current, 1)
+    redis.call("HDEL", barrier, "b:" .. (current - 64), "tripping")
+    redis.call("PUBLISH", "lockchannel", "n:barrier:" .. KEYS[1])
+elseif operation == "reset" then
+    if (arrived > 0) or broken then
+        redis.call("HSET", barrier, "b:" .. current, 1)
+        redis.call("HDEL", barrier, "b:" .. (current - 64))
+    end
+    current = current + 1
+    arrived = 0
+    broken = false
+    redis.call("HSET", barrier, "generation", current)
+    redis.call("HSET", barrier, "arrived", 0)
+    redis.call("HDEL", barrier, "broken", "tripping")
+    redis.call("PUBLISH", "lockchannel", "n:barrier:" .. KEYS[1])
+end
+
+-- Barrier lives on while it is used, waiting parties renew it every time they recheck
+if lease_time > 0 then
+    redis.call("PEXPIRE", barrier, lease_time)
+end
+
+-- Report whether the given generation was broken
+local generation_broken = 0
+if (redis.call("HEXISTS", barrier, "b:" .. generation) == 1) or ((generation == current) and broken) then
+    generation_broken = 1
+end
+return current .. ":" .. generation_broken .. ":" .. arrived
@@ -0,0 +1,40 @@
+-- Input - lockpoint client_id lock_id condition lockwait_lease
+-- Releases the write lock and joins the condition queue in one step, the queue shares the lockwait lease and
+-- waiters keep their place by being seen within it, see single_condition_waiting
+-- Returns 1 if done, 0 if the lock is not held by this lock
+
+-- Initialization
+local lockpoint = "lockpoint:" .. KEYS[1]
+local lockwait = "lockwait:" .. KEYS[1]
+local condition = "condition:" .. KEYS[1] .. ":" .. KEYS[4]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
+local lockwait_lease_time = KEYS[5]
+
+-- Only the holder can wait
+if redis.call("GET", lockpoint) ~= client_lock_id then
+    return 0
+end
+
+-- Join the condition queue
+local seen = "conditionseen:" .. KEYS[1] .. ":" .. KEYS[4]
+local time = redis.call("TIME")
+redis.call("RPUSH", condition, client_lock_id)
+redis.call("ZADD", seen, tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), client_lock_id)
+redis.call("PEXPIRE", condition, lockwait_lease_time)
+redis.call("PEXPIRE", seen, lockwait_lease_time)
+
+-- Release the lock
+redis.call("DEL", lockpoint)
+if redis.call("EXISTS", "lockwatched:" .. KEYS[1]) == 1 then
+    redis.call("PUBLISH", "lockchannel", "u:" .. KEYS[1])
+end
+
+-- Wake up the next lock in the lockwait, or any unfair lock if nobody is in it
+local element = redis.call("LINDEX", lockwait, 0)
+if(not element) then
+    element = "#"
+else
+    element = "o:" .. element .. ":" .. KEYS[1]
+end
+redis.call("PUBLISH", "lockchannel", element)
+return 1
@@ -0,0 +1,63 @@
+-- Input - lockpoint condition count entry lockwait_lease client_id lock_id
+-- Moves up to count waiters (all if count is -1) from the condition queue to the front of the lockwait,
+-- or only the given entry if entry is not empty, so they reacquire the lock ahead of other waiters
+-- Signalling requires the write lock to be held by client_id:lock_id, a waiter moving its own entry does not
+-- Waiters not seen within the lockwait lease are gone and dropped without taking up the count
+-- Returns number of waiters moved, or -1 if the signalling lock does not hold the write lock
+
+-- Initialization
+local lockpoint = "lockpoint:" .. KEYS[1]
+local lockwait = "lockwait:" .. KEYS[1]
+local condition = "condition:" .. KEYS[1] .. ":" .. KEYS[2]
+local count = tonumber(KEYS[3])
+local entry = KEYS[4]
+local lockwait_lease_time = KEYS[5]
+local condition_seen = "conditionseen:" .. KEYS[1] .. ":" .. KEYS[2]
+
+-- Only the holder can signal
+if (entry == "") and (redis.call("GET", lockpoint) ~= KEYS[6] .. ":" .. KEYS[7]) then
+    return -1
+end
+
+-- Take the waiters off the condition queue
+local time = redis.call("TIME")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local moved = {}
+if entry ~= "" then
+    if redis.call("LREM", condition, 1, entry) == 1 then
+        moved[1] = entry
+    end
+    redis.call("ZREM", condition_seen, entry)
+else
+    while (count == -1) or (#moved < count) do
+        local element = redis.call("LPOP", condition)
+        if not element then
+            break
+        end
+        local last_seen = redis.call("ZSCORE", condition_seen, element)
+        redis.call("ZREM", condition_seen, element)
+        if last_seen and (now - tonumber(last_seen) < tonumber(lockwait_lease_time)) then
+            moved[#moved + 1] = element
+        end
+    end
+end
+if #moved == 0 then
+    return 0
+end
+
+-- Put them on the front of the lockwait in the same order, unranked so that priority waiters queue behind them,
+-- and seen now since they retry from here on
+local seen = "lockwaitseen:" .. KEYS[1]
+for i = #moved, 1, -1 do
+    redis.call("LPUSH", lockwait, moved[i])
+    redis.call("ZREM", "lockwaitrank:" .. KEYS[1], moved[i])
+    redis.call("ZADD", seen, now, moved[i])
+end
+redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+redis.call("PEXPIRE", seen, lockwait_lease_time)
+
+-- Wake up the first one if nobody holds the lock
+if redis.call("EXISTS", lockpoint) == 0 then
+    redis.call("PUBLISH", "lockchannel", "o:" .. moved[1] .. ":" .. KEYS[1])
+end
+return #moved
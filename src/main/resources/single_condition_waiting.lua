@@ -0,0 +1,16 @@
+-- Input - lockpoint condition entry lockwait_lease
+-- Returns 1 if the entry is still waiting on the condition, 0 if it has been signalled
+-- A waiting entry is seen now and renews the lease of the condition queue
+
+local condition = "condition:" .. KEYS[1] .. ":" .. KEYS[2]
+for _, element in ipairs(redis.call("LRANGE", condition, 0, -1)) do
+    if element == KEYS[3] then
+        local seen = "conditionseen:" .. KEYS[1] .. ":" .. KEYS[2]
+        local time = redis.call("TIME")
+        redis.call("ZADD", seen, tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), element)
+        redis.call("PEXPIRE", condition, KEYS[4])
+        redis.call("PEXPIRE", seen, KEYS[4])
+        return 1
+    end
+end
+return 0
@@ -0,0 +1,50 @@
+-- Input - lockpoint client_id write_lock_id read_lock_id lock_lease version_init version_lease
+
+-- Initialization
+local lockpoint = "lockpoint:" .. KEYS[1]
+local readers = "lockreaders:" .. KEYS[1]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[4]
+local lock_lease_time = KEYS[5]
+
+-- Only the holder can downgrade
+if redis.call("GET", lockpoint) ~= KEYS[2] .. ":" .. KEYS[3] then
+    return 0
+end
+
+-- Trade the write lock for a read lock in one go so no writer can get in between
+redis.call("DEL", lockpoint)
+if redis.call("EXISTS", "lockwatched:" .. KEYS[1]) == 1 then
+    redis.call("PUBLISH", "lockchannel", "u:" .. KEYS[1])
+end
+-- The set lives as long as its longest reader, a set without expiry keeps a session-owned reader
+local readers_lease = redis.call("PTTL", readers)
+redis.call("SADD", readers, client_lock_id)
+if lock_lease_time == "0" then
+    redis.call("SET", "lockreader:" .. KEYS[1] .. ":" .. client_lock_id, "1")
+    redis.call("PERSIST", readers)
+else
+    redis.call("SET", "lockreader:" .. KEYS[1] .. ":" .. client_lock_id, "1", "PX", lock_lease_time)
+    if (readers_lease ~= -1) and (readers_lease < tonumber(lock_lease_time)) then
+        redis.call("PEXPIRE", readers, lock_lease_time)
+    end
+end
+
+-- Invalidate optimistic reads like an unlock does
+local version = "lockversion:" .. KEYS[1]
+if redis.call("EXISTS", version) == 1 then
+    redis.call("INCR", version)
+else
+    redis.call("SET", version, KEYS[6])
+end
+redis.call("PEXPIRE", version, KEYS[7])
+
+-- Readers can share with it now, wake up the next in line if it is a reader. A writer has to keep waiting
+local element = redis.call("LINDEX", "lockwait:" .. KEYS[1], 0)
+if element then
+    if string.find(element, ":rs?%d+$") then
+        redis.call("PUBLISH", "lockchannel", "o:" .. element .. ":" .. KEYS[1])
+    end
+elseif redis.call("EXISTS", "lockcontended:" .. KEYS[1]) == 1 then
+    redis.call("PUBLISH", "lockchannel", "#")
+end
+return 1
@@ -0,0 +1,29 @@
+-- Input - latch decrement lease_time
+-- Returns the remaining count, decrement of 0 only reads it
+-- Every call renews the lease of the latch, so it lives on while it is counted down or waited on
+
+local latch = "countdownlatch:" .. KEYS[1]
+local decrement = tonumber(KEYS[2])
+local lease_time = tonumber(KEYS[3])
+
+-- Already reached zero
+local count = redis.call("GET", latch)
+if not count then
+    return 0
+end
+
+-- Count down and wake up everyone waiting if it reached zero
+if decrement > 0 then
+    count = redis.call("DECRBY", latch, decrement)
+    if count <= 0 then
+        redis.call("DEL", latch)
+        redis.call("PUBLISH", "lockchannel", "n:countdownlatch:" .. KEYS[1])
+        return 0
+    end
+end
+
+-- Renew it
+if lease_time > 0 then
+    redis.call("PEXPIRE", latch, lease_time)
+end
+return tonumber(count)
@@ -0,0 +1,14 @@
+-- Input - latch count lease_time
+-- Returns 1 if the count was set, 0 if the latch is still counting down
+
+local latch = "countdownlatch:" .. KEYS[1]
+local lease_time = tonumber(KEYS[3])
+
+-- Only set if the previous count has reached zero
+if redis.call("SET", latch, KEYS[2], "NX") then
+    if lease_time > 0 then
+        redis.call("PEXPIRE", latch, lease_time)
+    end
+    return 1
+end
+return 0
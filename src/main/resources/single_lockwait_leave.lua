@@ -0,0 +1,23 @@
+-- Input - lockpoint client_id lock_id
+
+-- Initialization
+local lockwait = "lockwait:" .. KEYS[1]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
+
+-- Leave the lockwait, nothing more to do if we were not at the head
+local was_head = (redis.call("LINDEX", lockwait, 0) == client_lock_id)
+redis.call("ZREM", "lockwaitrank:" .. KEYS[1], client_lock_id)
+redis.call("ZREM", "lockwaitseen:" .. KEYS[1], client_lock_id)
+if redis.call("LREM", lockwait, 1, client_lock_id) == 0 or not was_head then
+    return 0
+end
+
+-- The wake-up may have been meant for us, pass it on if the lockpoint is free
+if redis.call("EXISTS", "lockpoint:" .. KEYS[1]) == 1 then
+    return 1
+end
+local element = redis.call("LINDEX", lockwait, 0)
+if element then
+    redis.call("PUBLISH", "lockchannel", "o:" .. element .. ":" .. KEYS[1])
+end
+return 1
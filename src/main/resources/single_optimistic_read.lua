@@ -0,0 +1,15 @@
+-- Input - lockpoint version_init version_lease
+
+-- No stamp while a writer holds it
+if redis.call("EXISTS", "lockpoint:" .. KEYS[1]) == 1 then
+    return "0"
+end
+
+-- Return current version, starting a new one if there is none
+local version = "lockversion:" .. KEYS[1]
+local stamp = redis.call("GET", version)
+if not stamp then
+    redis.call("SET", version, KEYS[2], "PX", KEYS[3])
+    stamp = KEYS[2]
+end
+return stamp
@@ -1,8 +1,145 @@
---
--- Created by IntelliJ IDEA.
--- User: tom
--- Date: 7/19/18
--- Time: 8:36 PM
--- To change this template use File | Settings | File Templates.
---
+-- Input - lockpoint client_id lock_id is_fair first_attempt lock_lease lockwait_lease priority aging
 
+-- Initialization
+local lockpoint = "lockpoint:" .. KEYS[1]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
+local is_fair = tonumber(KEYS[4])
+local first_attempt = tonumber(KEYS[5])
+local lock_lease_time = KEYS[6]
+local lockwait_lease_time = KEYS[7]
+local lockwait = "lockwait:" .. KEYS[1]
+local readers = "lockreaders:" .. KEYS[1]
+
+-- Checks if a key that belongs to a session-owned lock outlived the session of its client.
+-- Session-owned locks carry no lease of their own, the holder starts with the id of the client whose session keeps it
+local function session_ended(key, holder)
+    return (redis.call("PTTL", key) == -1) and (redis.call("EXISTS", "locksession:" .. string.match(holder, "^[^:]*")) == 0)
+end
+
+-- Queues this lock by priority. A waiter ranks as if it had arrived priority * aging milliseconds earlier,
+-- so higher priorities go first, equal priorities keep arrival order and no waiter is passed by later arrivals forever.
+-- Entries without a rank, such as signalled condition waiters, stay ahead of everyone.
+local function enqueue()
+    local ranks = "lockwaitrank:" .. KEYS[1]
+    local time = redis.call("TIME")
+    local rank = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) - tonumber(KEYS[8]) * tonumber(KEYS[9])
+    local tail = redis.call("LINDEX", lockwait, -1)
+    local tail_rank = tail and redis.call("ZSCORE", ranks, tail)
+    if (not tail_rank) or (tonumber(tail_rank) <= rank) then
+        redis.call("RPUSH", lockwait, client_lock_id)
+    else
+        -- Insert behind the last waiter that ranks ahead
+        local entries = redis.call("LRANGE", lockwait, 0, -1)
+        local pivot = nil
+        for i = #entries, 1, -1 do
+            local entry_rank = redis.call("ZSCORE", ranks, entries[i])
+            if (not entry_rank) or (tonumber(entry_rank) <= rank) then
+                pivot = entries[i]
+                break
+            end
+        end
+        if pivot then
+            redis.call("LINSERT", lockwait, "AFTER", pivot, client_lock_id)
+        else
+            redis.call("LPUSH", lockwait, client_lock_id)
+        end
+    end
+    redis.call("ZADD", ranks, rank, client_lock_id)
+    redis.call("ZADD", "lockwaitseen:" .. KEYS[1], tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), client_lock_id)
+    redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+    redis.call("PEXPIRE", ranks, lockwait_lease_time)
+    redis.call("PEXPIRE", "lockwaitseen:" .. KEYS[1], lockwait_lease_time)
+end
+
+-- Checks whether a fair lock that retries has its turn. Waiters retry when woken up, on every recheck and after a reconnect,
+-- so a retry only goes ahead at the head of the lockwait or when nobody waits, and never passes the waiters ahead of it.
+-- Every retry marks the waiter as seen, and a head that has not been seen for a whole lockwait lease is taken to be gone
+-- and dropped so it does not hold up everyone behind it. A waiter that lost its place, for example because the lockwait
+-- ran out, queues up again.
+local function wait_turn()
+    local ranks = "lockwaitrank:" .. KEYS[1]
+    local seen = "lockwaitseen:" .. KEYS[1]
+    local time = redis.call("TIME")
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local head = redis.call("LINDEX", lockwait, 0)
+    while head and (head ~= client_lock_id) do
+        local last_seen = redis.call("ZSCORE", seen, head)
+        if last_seen and (now - tonumber(last_seen) < tonumber(lockwait_lease_time)) then
+            break
+        end
+        redis.call("LPOP", lockwait)
+        redis.call("ZREM", ranks, head)
+        redis.call("ZREM", seen, head)
+        head = redis.call("LINDEX", lockwait, 0)
+    end
+    if not head then
+        return true
+    end
+    if redis.call("ZSCORE", seen, client_lock_id) then
+        redis.call("ZADD", seen, now, client_lock_id)
+        redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+        redis.call("PEXPIRE", ranks, lockwait_lease_time)
+        redis.call("PEXPIRE", seen, lockwait_lease_time)
+    elseif head ~= client_lock_id then
+        enqueue()
+    end
+    return head == client_lock_id
+end
+
+-- Fair readers queue up behind anyone already waiting
+if (first_attempt == 1) and (is_fair == 1) and (redis.call("LLEN", lockwait) ~= 0) then
+    enqueue()
+    return 0
+end
+
+-- Fair retries wait for their turn, so only the reader at the head gets in and passes the wake-up on
+if (first_attempt == 0) and (is_fair == 1) and (not wait_turn()) then
+    return 0
+end
+
+-- Readers cannot share with a writer, unless the writer was owned by a session that ended
+local writer = redis.call("GET", lockpoint)
+if writer and session_ended(lockpoint, writer) then
+    redis.call("DEL", lockpoint)
+    writer = false
+end
+if writer then
+    if (first_attempt == 1) and (is_fair == 1) then
+        enqueue()
+    elseif is_fair == 0 then
+        redis.call("SET", "lockcontended:" .. KEYS[1], "1", "PX", lockwait_lease_time)
+    end
+    return 0
+end
+
+-- Register the reader with its own lease, or with none if owned by the client session.
+-- The set lives as long as its longest reader, a set without expiry keeps a session-owned reader
+local readers_lease = redis.call("PTTL", readers)
+redis.call("SADD", readers, client_lock_id)
+if lock_lease_time == "0" then
+    redis.call("SET", "lockreader:" .. KEYS[1] .. ":" .. client_lock_id, "1")
+    redis.call("PERSIST", readers)
+else
+    redis.call("SET", "lockreader:" .. KEYS[1] .. ":" .. client_lock_id, "1", "PX", lock_lease_time)
+    if (readers_lease ~= -1) and (readers_lease < tonumber(lock_lease_time)) then
+        redis.call("PEXPIRE", readers, lock_lease_time)
+    end
+end
+
+-- Woken up readers pass the wake-up on so readers waiting in a row all get in
+if first_attempt == 0 then
+    if is_fair == 1 then
+        if redis.call("LINDEX", lockwait, 0) == client_lock_id then
+            redis.call("LPOP", lockwait)
+            redis.call("ZREM", "lockwaitrank:" .. KEYS[1], client_lock_id)
+            redis.call("ZREM", "lockwaitseen:" .. KEYS[1], client_lock_id)
+        end
+        local element = redis.call("LINDEX", lockwait, 0)
+        if element and string.find(element, ":rs?%d+$") then
+            redis.call("PUBLISH", "lockchannel", "o:" .. element .. ":" .. KEYS[1])
+        end
+    elseif redis.call("EXISTS", "lockcontended:" .. KEYS[1]) == 1 then
+        redis.call("PUBLISH", "lockchannel", "#")
+    end
+end
+return 1
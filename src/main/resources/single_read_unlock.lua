@@ -0,0 +1,46 @@
+-- Input - lockpoint client_id lock_id
+
+-- Initialization
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
+local readers = "lockreaders:" .. KEYS[1]
+
+-- Checks if a key that belongs to a session-owned lock outlived the session of its client.
+-- Session-owned locks carry no lease of their own, the holder starts with the id of the client whose session keeps it
+local function session_ended(key, holder)
+    return (redis.call("PTTL", key) == -1) and (redis.call("EXISTS", "locksession:" .. string.match(holder, "^[^:]*")) == 0)
+end
+
+-- Only registered readers can unlock
+if redis.call("SREM", readers, client_lock_id) == 0 then
+    return 0
+end
+redis.call("DEL", "lockreader:" .. KEYS[1] .. ":" .. client_lock_id)
+
+-- Nothing to announce while other readers still hold it, dropping the expired ones along the way
+for _, reader in ipairs(redis.call("SMEMBERS", readers)) do
+    local reader_key = "lockreader:" .. KEYS[1] .. ":" .. reader
+    if redis.call("EXISTS", reader_key) == 1 then
+        if not session_ended(reader_key, reader) then
+            return 1
+        end
+        redis.call("DEL", reader_key)
+    end
+    redis.call("SREM", readers, reader)
+end
+
+-- Nothing to announce while a writer holds it
+if redis.call("EXISTS", "lockpoint:" .. KEYS[1]) == 1 then
+    return 1
+end
+
+-- Last reader is gone, wake up the next in line
+local element = redis.call("LINDEX", "lockwait:" .. KEYS[1], 0)
+if element then
+    element = "o:" .. element .. ":" .. KEYS[1]
+elseif redis.call("EXISTS", "lockcontended:" .. KEYS[1]) == 1 then
+    element = "#"
+else
+    return 1 -- Nobody waits, skip the publish
+end
+redis.call("PUBLISH", "lockchannel", element)
+return 1
@@ -1,21 +1,30 @@
--- Input - lockpoint
+-- Input - lockpoint client_id lock_id
+-- Passes on a wake-up that reached a lock which is no longer waiting
 
-local key = "lockwait_refire:" .. KEYS[1]
+-- Initialization
 local lockwait = "lockwait:" .. KEYS[1]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
 
--- Only one get to access
-if(redis.call("SETNX", key, ".")) then
-
-    -- Drop the dead element on the lockwait
+-- Drop the dead entry, and only the dead entry
+if redis.call("LINDEX", lockwait, 0) == client_lock_id then
     redis.call("LPOP", lockwait)
+else
+    redis.call("LREM", lockwait, 1, client_lock_id)
+end
+redis.call("ZREM", "lockwaitrank:" .. KEYS[1], client_lock_id)
+redis.call("ZREM", "lockwaitseen:" .. KEYS[1], client_lock_id)
 
-    -- Get next element
-    local element = redis.call("LINDEX", lockwait, 0)
-
-    -- Release
-    redis.call("DEL", key)
+-- Nothing to pass on if the lockpoint has been taken in the meantime
+if redis.call("EXISTS", "lockpoint:" .. KEYS[1]) == 1 then
+    return 0
+end
 
-    -- Return it
-    return element
+-- Wake up the next in line, or any unfair lock if nobody is in the lockwait
+local element = redis.call("LINDEX", lockwait, 0)
+if(not element) then
+    element = "#"
+else
+    element = "o:" .. element .. ":" .. KEYS[1]
 end
-return nil
+redis.call("PUBLISH", "lockchannel", element)
+return 1
@@ -0,0 +1,80 @@
+-- Input - client_id version_init version_lease followed by kind lockpoint lock_id of each lock
+-- Releases every lock given, kind being w for a write lock and r for a read lock, then ends the session of the client
+-- Each lock is released the way single_write_unlock and single_read_unlock release it, announcements included
+-- Returns the number of locks released
+
+-- Initialization
+local client_id = KEYS[1]
+
+-- Checks if a key that belongs to a session-owned lock outlived the session of its client
+local function session_ended(key, holder)
+    return (redis.call("PTTL", key) == -1) and (redis.call("EXISTS", "locksession:" .. string.match(holder, "^[^:]*")) == 0)
+end
+
+-- Wakes up the next in line, or any unfair lock if nobody is in it
+local function wake_up(lockpoint)
+    local element = redis.call("LINDEX", "lockwait:" .. lockpoint, 0)
+    if element then
+        redis.call("PUBLISH", "lockchannel", "o:" .. element .. ":" .. lockpoint)
+    elseif redis.call("EXISTS", "lockcontended:" .. lockpoint) == 1 then
+        redis.call("PUBLISH", "lockchannel", "#")
+    end
+end
+
+-- Releases a write lock if this client holds it
+local function write_unlock(lockpoint, lock_id)
+    if redis.call("GET", "lockpoint:" .. lockpoint) ~= client_id .. ":" .. lock_id then
+        return 0
+    end
+    redis.call("DEL", "lockpoint:" .. lockpoint)
+    if redis.call("EXISTS", "lockwatched:" .. lockpoint) == 1 then
+        redis.call("PUBLISH", "lockchannel", "u:" .. lockpoint)
+    end
+    local version = "lockversion:" .. lockpoint
+    if redis.call("EXISTS", version) == 1 then
+        redis.call("INCR", version)
+    else
+        redis.call("SET", version, KEYS[2])
+    end
+    redis.call("PEXPIRE", version, KEYS[3])
+    wake_up(lockpoint)
+    return 1
+end
+
+-- Releases a read lock if this client holds it, waking up the next in line if it was the last reader
+local function read_unlock(lockpoint, lock_id)
+    local readers = "lockreaders:" .. lockpoint
+    local client_lock_id = client_id .. ":" .. lock_id
+    if redis.call("SREM", readers, client_lock_id) == 0 then
+        return 0
+    end
+    redis.call("DEL", "lockreader:" .. lockpoint .. ":" .. client_lock_id)
+    for _, reader in ipairs(redis.call("SMEMBERS", readers)) do
+        local reader_key = "lockreader:" .. lockpoint .. ":" .. reader
+        if redis.call("EXISTS", reader_key) == 1 then
+            if not session_ended(reader_key, reader) then
+                return 1
+            end
+            redis.call("DEL", reader_key)
+        end
+        redis.call("SREM", readers, reader)
+    end
+    if redis.call("EXISTS", "lockpoint:" .. lockpoint) == 0 then
+        wake_up(lockpoint)
+    end
+    return 1
+end
+
+-- Release them all
+local released = 0
+for i = 4, #KEYS, 3 do
+    if KEYS[i] == "w" then
+        released = released + write_unlock(KEYS[i + 1], KEYS[i + 2])
+    else
+        released = released + read_unlock(KEYS[i + 1], KEYS[i + 2])
+    end
+end
+
+-- Locks the client may still own through its session go with it
+redis.call("DEL", "locksession:" .. client_id)
+return released
@@ -0,0 +1,106 @@
+-- Input - semaphore client_id holder_id lock_id permits total_permits first_attempt lease_time lockwait_lease
+-- Returns 0 if acquired, milliseconds until the earliest holder lease expires if permits are taken, -1 if queued behind other waiters
+
+-- Initialization
+local semaphore = "semaphore:" .. KEYS[1]
+local lease_prefix = "semaphore_lease:" .. KEYS[1] .. ":"
+local semaphorewait = "semaphorewait:" .. KEYS[1]
+local holder_id = KEYS[2] .. ":" .. KEYS[3]
+local wait_entry = KEYS[5] .. ":" .. KEYS[2] .. ":" .. KEYS[4]
+local permits = tonumber(KEYS[5])
+local total_permits = tonumber(KEYS[6])
+local first_attempt = tonumber(KEYS[7])
+local lease_time = KEYS[8]
+local lockwait_lease_time = KEYS[9]
+local seen = "semaphorewaitseen:" .. KEYS[1]
+
+-- Queues up at the back, seen now
+local function enqueue()
+    local time = redis.call("TIME")
+    redis.call("RPUSH", semaphorewait, wait_entry)
+    redis.call("ZADD", seen, tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), wait_entry)
+    redis.call("PEXPIRE", semaphorewait, lockwait_lease_time)
+    redis.call("PEXPIRE", seen, lockwait_lease_time)
+end
+
+-- Counts the permits the waiters ahead of a retrying waiter are asking for. Waiters retry when woken up, on every recheck
+-- and after a reconnect, so a retry only goes ahead if the permits also cover everyone ahead of it, the same waiters
+-- that a release wakes up, and never takes permits a waiter ahead is waiting for. Every retry marks the waiter as seen,
+-- and a waiter ahead that has not been seen for a whole lockwait lease is taken to be gone and dropped. A waiter that
+-- lost its place, for example because the queue ran out, queues up again.
+local function permits_ahead()
+    local time = redis.call("TIME")
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local ahead = 0
+    for _, element in ipairs(redis.call("LRANGE", semaphorewait, 0, -1)) do
+        if element == wait_entry then
+            redis.call("ZADD", seen, now, wait_entry)
+            redis.call("PEXPIRE", semaphorewait, lockwait_lease_time)
+            redis.call("PEXPIRE", seen, lockwait_lease_time)
+            return ahead
+        end
+        local last_seen = redis.call("ZSCORE", seen, element)
+        if last_seen and (now - tonumber(last_seen) < tonumber(lockwait_lease_time)) then
+            ahead = ahead + tonumber(string.sub(element, 1, string.find(element, ":", 1, true) - 1))
+        else
+            redis.call("LREM", semaphorewait, 1, element)
+            redis.call("ZREM", seen, element)
+        end
+    end
+    enqueue()
+    return ahead
+end
+
+-- Waiters go first, queue up behind them
+if (first_attempt == 1) and (redis.call("LLEN", semaphorewait) ~= 0) then
+    enqueue()
+    return -1
+end
+
+-- Count permits in use, reclaiming permits of holders whose lease has expired
+local used = 0
+local soonest = -1
+local holders = redis.call("HGETALL", semaphore)
+for i = 1, #holders, 2 do
+    local ttl = redis.call("PTTL", lease_prefix .. holders[i])
+    if ttl < 0 then
+        redis.call("HDEL", semaphore, holders[i])
+    else
+        used = used + tonumber(holders[i + 1])
+        if (soonest == -1) or (ttl < soonest) then
+            soonest = ttl
+        end
+    end
+end
+
+-- Not enough permits
+if used + permits > total_permits then
+    if first_attempt == 1 then
+        enqueue()
+    else
+        permits_ahead()
+    end
+    if soonest < 1 then
+        return 1
+    end
+    return soonest
+end
+
+-- Enough permits, but they go to the waiters ahead first
+if (first_attempt == 0) and (used + permits_ahead() + permits > total_permits) then
+    return -1
+end
+
+-- Take the permits and renew the lease
+redis.call("HINCRBY", semaphore, holder_id, permits)
+redis.call("SET", lease_prefix .. holder_id, ".", "PX", lease_time)
+if redis.call("PTTL", semaphore) < tonumber(lease_time) then
+    redis.call("PEXPIRE", semaphore, lease_time)
+end
+
+-- Leave the queue if we were waiting in it
+if first_attempt == 0 then
+    redis.call("LREM", semaphorewait, 1, wait_entry)
+    redis.call("ZREM", seen, wait_entry)
+end
+return 0
@@ -0,0 +1,22 @@
+-- Input - semaphore total_permits
+-- Returns number of available permits, without reclaiming expired permits or waking up waiters
+
+-- Initialization
+local semaphore = "semaphore:" .. KEYS[1]
+local lease_prefix = "semaphore_lease:" .. KEYS[1] .. ":"
+local total_permits = tonumber(KEYS[2])
+
+-- Count permits in use, skipping holders whose lease has expired
+local used = 0
+local holders = redis.call("HGETALL", semaphore)
+for i = 1, #holders, 2 do
+    if redis.call("EXISTS", lease_prefix .. holders[i]) == 1 then
+        used = used + tonumber(holders[i + 1])
+    end
+end
+
+-- Return available permits
+if used >= total_permits then
+    return 0
+end
+return total_permits - used
@@ -0,0 +1,61 @@
+-- Input - semaphore client_id holder_id permits total_permits lease_time wait_entry
+-- Returns number of available permits
+
+-- Initialization
+local semaphore = "semaphore:" .. KEYS[1]
+local lease_prefix = "semaphore_lease:" .. KEYS[1] .. ":"
+local semaphorewait = "semaphorewait:" .. KEYS[1]
+local holder_id = KEYS[2] .. ":" .. KEYS[3]
+local permits = tonumber(KEYS[4])
+local total_permits = tonumber(KEYS[5])
+local lease_time = KEYS[6]
+local wait_entry = KEYS[7]
+
+-- Give up the permits
+if permits > 0 then
+    if redis.call("HINCRBY", semaphore, holder_id, -permits) <= 0 then
+        redis.call("HDEL", semaphore, holder_id)
+        redis.call("DEL", lease_prefix .. holder_id)
+    else
+        redis.call("PEXPIRE", lease_prefix .. holder_id, lease_time)
+    end
+end
+
+-- Leave the queue if a waiter gave up
+if wait_entry ~= "" then
+    redis.call("LREM", semaphorewait, 1, wait_entry)
+    redis.call("ZREM", "semaphorewaitseen:" .. KEYS[1], wait_entry)
+end
+
+-- Count permits in use, reclaiming permits of holders whose lease has expired
+local used = 0
+local holders = redis.call("HGETALL", semaphore)
+for i = 1, #holders, 2 do
+    if redis.call("EXISTS", lease_prefix .. holders[i]) == 0 then
+        redis.call("HDEL", semaphore, holders[i])
+    else
+        used = used + tonumber(holders[i + 1])
+    end
+end
+local available = total_permits - used
+
+-- Wake up waiters in queue order as long as there are enough permits for them
+local free = available
+if free > 0 then
+    local waiters = redis.call("LRANGE", semaphorewait, 0, free - 1)
+    for i = 1, #waiters do
+        local index = string.find(waiters[i], ":", 1, true)
+        local needed = tonumber(string.sub(waiters[i], 1, index - 1))
+        if needed > free then
+            break
+        end
+        free = free - needed
+        redis.call("PUBLISH", "lockchannel", "o:" .. string.sub(waiters[i], index + 1))
+    end
+end
+
+-- Return available permits
+if available < 0 then
+    return 0
+end
+return available
@@ -0,0 +1,5 @@
+-- Input - client_id session_timeout
+-- Keeps the session of the client alive, locks owned by the session live as long as this key
+
+redis.call("SET", "locksession:" .. KEYS[1], "1", "PX", KEYS[2])
+return 1
@@ -0,0 +1,54 @@
+-- Input - lockpoint client_id read_lock_id write_lock_id lock_lease version_init version_lease
+
+-- Initialization
+local readers = "lockreaders:" .. KEYS[1]
+local client_lock_id = KEYS[2] .. ":" .. KEYS[3]
+local reader_key = "lockreader:" .. KEYS[1] .. ":" .. client_lock_id
+
+-- Checks if a key that belongs to a session-owned lock outlived the session of its client.
+-- Session-owned locks carry no lease of their own, the holder starts with the id of the client whose session keeps it
+local function session_ended(key, holder)
+    return (redis.call("PTTL", key) == -1) and (redis.call("EXISTS", "locksession:" .. string.match(holder, "^[^:]*")) == 0)
+end
+
+-- Only a registered reader whose lease is still running can upgrade
+if redis.call("EXISTS", reader_key) == 0 then
+    return 0
+end
+
+-- It has to be the only reader, dropping the expired ones along the way
+for _, reader in ipairs(redis.call("SMEMBERS", readers)) do
+    if reader ~= client_lock_id then
+        local other_key = "lockreader:" .. KEYS[1] .. ":" .. reader
+        if redis.call("EXISTS", other_key) == 1 then
+            if not session_ended(other_key, reader) then
+                return 0
+            end
+            redis.call("DEL", other_key)
+        end
+        redis.call("SREM", readers, reader)
+    end
+end
+
+-- Trade the read lock for a write lock in one go. It goes ahead of queued waiters since it holds the lock already
+redis.call("SREM", readers, client_lock_id)
+redis.call("DEL", reader_key)
+if KEYS[5] == "0" then
+    redis.call("SET", "lockpoint:" .. KEYS[1], KEYS[2] .. ":" .. KEYS[4])
+else
+    redis.call("SET", "lockpoint:" .. KEYS[1], KEYS[2] .. ":" .. KEYS[4], "PX", KEYS[5])
+end
+local watched_lease = redis.call("PTTL", "lockwatched:" .. KEYS[1])
+if watched_lease > 0 then
+    redis.call("PUBLISH", "lockchannel", "c:" .. KEYS[2] .. ":" .. KEYS[4] .. ":" .. KEYS[1] .. ":" .. (KEYS[5] == "0" and watched_lease or math.min(watched_lease, tonumber(KEYS[5]))))
+end
+
+-- Invalidate optimistic reads like a write lock does
+local version = "lockversion:" .. KEYS[1]
+if redis.call("EXISTS", version) == 1 then
+    redis.call("INCR", version)
+else
+    redis.call("SET", version, KEYS[6])
+end
+redis.call("PEXPIRE", version, KEYS[7])
+return 1
@@ -1,4 +1,4 @@
--- Input - lockpoint client_id lock_id is_fair first_attempt lock_lease lockwait_lease
+-- Input - lockpoint client_id lock_id is_fair first_attempt lock_lease lockwait_lease version_init version_lease priority aging watch_lease
 
 -- Initialization
 local lockpoint = "lockpoint:" .. KEYS[1]
@@ -10,35 +10,181 @@ local first_attempt = tonumber(KEYS[5])
 local lock_lease_time = KEYS[6]
 local lockwait_lease_time = KEYS[7]
 local lockwait = "lockwait:" .. KEYS[1]
+local readers = "lockreaders:" .. KEYS[1]
+local version = "lockversion:" .. KEYS[1]
+local watched = "lockwatched:" .. KEYS[1]
+
+-- Checks if a key that belongs to a session-owned lock outlived the session of its client.
+-- Session-owned locks carry no lease of their own, the holder starts with the id of the client whose session keeps it
+local function session_ended(key, holder)
+    return (redis.call("PTTL", key) == -1) and (redis.call("EXISTS", "locksession:" .. string.match(holder, "^[^:]*")) == 0)
+end
+
+-- Checks for readers whose lease or session is still running, dropping the expired ones along the way
+local function has_live_readers()
+    for _, reader in ipairs(redis.call("SMEMBERS", readers)) do
+        local reader_key = "lockreader:" .. KEYS[1] .. ":" .. reader
+        if redis.call("EXISTS", reader_key) == 1 then
+            if not session_ended(reader_key, reader) then
+                return true
+            end
+            redis.call("DEL", reader_key)
+        end
+        redis.call("SREM", readers, reader)
+    end
+    return false
+end
+
+-- Takes the lockpoint if it is free, a lease of 0 makes the lock owned by the client session
+local function take()
+    local holder = redis.call("GET", lockpoint)
+    if holder and session_ended(lockpoint, holder) then
+        redis.call("DEL", lockpoint)
+    end
+    if lock_lease_time == "0" then
+        return redis.call("SET", lockpoint, client_lock_id, "NX")
+    end
+    return redis.call("SET", lockpoint, client_lock_id, "NX", "PX", lock_lease_time)
+end
+
+-- Asks clients that share one read registration among their readers to give it up, as they take no new readers after this
+local function announce_to_shared_readers()
+    for _, reader in ipairs(redis.call("SMEMBERS", readers)) do
+        if string.find(reader, ":rs%d+$") then
+            redis.call("PUBLISH", "lockchannel", "w:" .. KEYS[1])
+            return
+        end
+    end
+end
+
+-- Queues this lock by priority. A waiter ranks as if it had arrived priority * aging milliseconds earlier,
+-- so higher priorities go first, equal priorities keep arrival order and no waiter is passed by later arrivals forever.
+-- Entries without a rank, such as signalled condition waiters, stay ahead of everyone.
+local function enqueue()
+    local ranks = "lockwaitrank:" .. KEYS[1]
+    local time = redis.call("TIME")
+    local rank = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) - tonumber(KEYS[10]) * tonumber(KEYS[11])
+    local tail = redis.call("LINDEX", lockwait, -1)
+    local tail_rank = tail and redis.call("ZSCORE", ranks, tail)
+    if (not tail_rank) or (tonumber(tail_rank) <= rank) then
+        redis.call("RPUSH", lockwait, client_lock_id)
+    else
+        -- Insert behind the last waiter that ranks ahead
+        local entries = redis.call("LRANGE", lockwait, 0, -1)
+        local pivot = nil
+        for i = #entries, 1, -1 do
+            local entry_rank = redis.call("ZSCORE", ranks, entries[i])
+            if (not entry_rank) or (tonumber(entry_rank) <= rank) then
+                pivot = entries[i]
+                break
+            end
+        end
+        if pivot then
+            redis.call("LINSERT", lockwait, "AFTER", pivot, client_lock_id)
+        else
+            redis.call("LPUSH", lockwait, client_lock_id)
+        end
+    end
+    redis.call("ZADD", ranks, rank, client_lock_id)
+    redis.call("ZADD", "lockwaitseen:" .. KEYS[1], tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000), client_lock_id)
+    redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+    redis.call("PEXPIRE", ranks, lockwait_lease_time)
+    redis.call("PEXPIRE", "lockwaitseen:" .. KEYS[1], lockwait_lease_time)
+end
+
+-- Checks whether a fair lock that retries has its turn. Waiters retry when woken up, on every recheck and after a reconnect,
+-- so a retry only goes ahead at the head of the lockwait or when nobody waits, and never passes the waiters ahead of it.
+-- Every retry marks the waiter as seen, and a head that has not been seen for a whole lockwait lease is taken to be gone
+-- and dropped so it does not hold up everyone behind it. A waiter that lost its place, for example because the lockwait
+-- ran out, queues up again.
+local function wait_turn()
+    local ranks = "lockwaitrank:" .. KEYS[1]
+    local seen = "lockwaitseen:" .. KEYS[1]
+    local time = redis.call("TIME")
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local head = redis.call("LINDEX", lockwait, 0)
+    while head and (head ~= client_lock_id) do
+        local last_seen = redis.call("ZSCORE", seen, head)
+        if last_seen and (now - tonumber(last_seen) < tonumber(lockwait_lease_time)) then
+            break
+        end
+        redis.call("LPOP", lockwait)
+        redis.call("ZREM", ranks, head)
+        redis.call("ZREM", seen, head)
+        head = redis.call("LINDEX", lockwait, 0)
+    end
+    if not head then
+        return true
+    end
+    if redis.call("ZSCORE", seen, client_lock_id) then
+        redis.call("ZADD", seen, now, client_lock_id)
+        redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+        redis.call("PEXPIRE", ranks, lockwait_lease_time)
+        redis.call("PEXPIRE", seen, lockwait_lease_time)
+    elseif head ~= client_lock_id then
+        enqueue()
+    end
+    return head == client_lock_id
+end
 
 -- Check if fair and first time
 if (first_attempt == 1) and (is_fair == 1) and (redis.call("LLEN", lockwait) ~= 0) then
-    redis.call("RPUSH", lockwait, client_lock_id)
-    redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+    enqueue()
     return 0
 end
 
--- Notify others that the lock is picked up
-if first_attempt == 0 then
-   redis.call("PUBLISH", "lockchannel", "c:" .. client_lock_id)
+-- Fair retries wait for their turn
+if (first_attempt == 0) and (is_fair == 1) and (not wait_turn()) then
+    return 0
 end
 
--- Lock it
-if redis.call("SET", lockpoint, "something", "NX", "PX", lock_lease_time) then
+-- Lock it unless readers still hold it, the value identifies the holder
+local blocked_by_readers = has_live_readers()
+if (not blocked_by_readers) and take() then
     -- Success
-    -- If this is not first attempt, then the lockwait needs to be popped
-    if (first_attempt == 0) and (is_fair == 1) then
+    -- Invalidate optimistic reads
+    if redis.call("EXISTS", version) == 1 then
+        redis.call("INCR", version)
+    else
+        redis.call("SET", version, KEYS[8])
+    end
+    redis.call("PEXPIRE", version, KEYS[9])
+
+    -- Tell clients that remember held lockpoints who holds it now, for no longer than they are told about the unlock
+    local watched_lease = redis.call("PTTL", watched)
+    if watched_lease > 0 then
+        redis.call("PUBLISH", "lockchannel", "c:" .. client_lock_id .. ":" .. KEYS[1] .. ":" .. (lock_lease_time == "0" and watched_lease or math.min(watched_lease, tonumber(lock_lease_time))))
+    end
+
+    -- If this is not first attempt, then this lock leaves the head of the lockwait
+    if (first_attempt == 0) and (is_fair == 1) and (redis.call("LINDEX", lockwait, 0) == client_lock_id) then
         redis.call("LPOP", lockwait)
-        if (redis.call("LLEN", lockwait) == 0) then
-            redis.call("DEL", lockwait)
-        end
+        redis.call("ZREM", "lockwaitrank:" .. KEYS[1], client_lock_id)
+        redis.call("ZREM", "lockwaitseen:" .. KEYS[1], client_lock_id)
     end
     return 1
 else
     -- Lock failed
+    if blocked_by_readers then
+        announce_to_shared_readers()
+    end
     if (first_attempt == 1) and (is_fair == 1) then
-        redis.call("RPUSH", lockwait, client_lock_id)
-        redis.call("PEXPIRE", lockwait, lockwait_lease_time)
+        enqueue()
+    elseif is_fair == 0 then
+        -- Unfair waiters are not queued, leave a mark so that unlock knows to publish
+        redis.call("SET", "lockcontended:" .. KEYS[1], "1", "PX", lockwait_lease_time)
+    end
+
+    -- A client that remembers held lockpoints is told how long the writer holds it, and unlocks are announced while it may remember
+    local watch_lease = tonumber(KEYS[12])
+    if (watch_lease > 0) and (not blocked_by_readers) then
+        if redis.call("PTTL", watched) < watch_lease then
+            redis.call("SET", watched, "1", "PX", watch_lease)
+        end
+        local lease = redis.call("PTTL", lockpoint)
+        if lease > 0 then
+            return -lease
+        end
     end
     return 0
 end
@@ -0,0 +1,26 @@
+-- Input - lockpoint client_id lock_id lock_lease
+-- Extends the lease of a write lock held by this lock
+-- Returns 1 if extended, 0 if nobody holds it, or the remaining lease of another holder negated
+
+-- Initialization
+local lockpoint = "lockpoint:" .. KEYS[1]
+local holder = redis.call("GET", lockpoint)
+
+-- Extend it if this lock holds it
+if holder == KEYS[2] .. ":" .. KEYS[3] then
+    redis.call("PEXPIRE", lockpoint, KEYS[4])
+    return 1
+end
+if not holder then
+    return 0
+end
+
+-- Tell how long the other holder keeps it. A session-owned holder keeps it for as long as its session lasts
+local lease = redis.call("PTTL", lockpoint)
+if lease == -1 then
+    lease = redis.call("PTTL", "locksession:" .. string.match(holder, "^[^:]*"))
+    if lease < 0 then
+        return 0
+    end
+end
+return -math.max(lease, 1)
@@ -1,16 +1,37 @@
--- Input - lockpoint
+-- Input - lockpoint client_id lock_id version_init version_lease
+
+-- Only the holder can unlock
+if redis.call("GET", "lockpoint:" .. KEYS[1]) ~= KEYS[2] .. ":" .. KEYS[3] then
+    return 0
+end
 
 -- Delete key and publish that lock has been released
 redis.call("DEL", "lockpoint:" .. KEYS[1])
 
+-- Clients that remember the lockpoint as held forget it
+if redis.call("EXISTS", "lockwatched:" .. KEYS[1]) == 1 then
+    redis.call("PUBLISH", "lockchannel", "u:" .. KEYS[1])
+end
+
+-- Invalidate optimistic reads taken while the lock was held
+local version = "lockversion:" .. KEYS[1]
+if redis.call("EXISTS", version) == 1 then
+    redis.call("INCR", version)
+else
+    redis.call("SET", version, KEYS[4])
+end
+redis.call("PEXPIRE", version, KEYS[5])
+
 -- Get from lockwait
 local element = redis.call("LINDEX", "lockwait:" .. KEYS[1], 0)
 
--- If empty, either nobody is waiting on queue or there's unfair locks waiting for it
-if(not element) then
+-- If empty, either there's unfair locks waiting for it or nobody is waiting at all
+if element then
+    element = "o:" .. element .. ":" .. KEYS[1]
+elseif redis.call("EXISTS", "lockcontended:" .. KEYS[1]) == 1 then
     element = "#"
 else
-    element = "o:" .. element
+    return 1 -- Nobody waits, skip the publish
 end
 
 -- Call it
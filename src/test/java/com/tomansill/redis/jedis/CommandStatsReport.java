@@ -0,0 +1,98 @@
+package com.tomansill.redis.jedis;
+
+import com.tomansill.redis.lock.AutoCloseableRedisLock;
+import com.tomansill.redis.lock.RedisReadWriteLock;
+import com.tomansill.redis.lock.TestSingleInstance;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/** Reports the Redis commands executed per lock operation, read from INFO commandstats before and after each run.
+ *  Commands called by scripts and functions are counted along with the EVALSHA or FCALL that runs them.
+ *  Runs with EVALSHA, then with the function library if the server supports Redis Functions.
+ *  Not part of the test suite, run its main method after mvn test-compile with the test classpath against an otherwise idle Redis server.
+ */
+public class CommandStatsReport{
+
+    private final static int OPERATIONS = 1000;
+
+    public static void main(String[] args){
+        try(JedisPool pool = new JedisPool(new JedisPoolConfig(), TestSingleInstance.HOSTNAME, TestSingleInstance.PORT);
+            Jedis stats = pool.getResource()){
+
+            JedisLockClient client = new JedisLockClient(pool);
+            report(client, stats, "evalsha");
+            try{
+                client.setFunctionLibraryEnabled(true);
+            }catch(RuntimeException e){
+                System.out.println("Function library is not available on this server: " + e.getMessage());
+                return;
+            }
+            report(client, stats, "fcall");
+        }
+    }
+
+    /** Runs every operation and prints its commands
+     *  @param client client
+     *  @param stats connection to read the statistics on
+     *  @param mode name of mode
+     */
+    private static void report(final JedisLockClient client, final Jedis stats, final String mode){
+        final RedisReadWriteLock unfair = client.getLock("commandstats:" + System.nanoTime(), false);
+        final RedisReadWriteLock fair = client.getLock("commandstats:" + System.nanoTime(), true);
+        run(stats, mode, "write lock + unlock", i -> cycle(unfair.writeLock()));
+        run(stats, mode, "fair write lock + unlock", i -> cycle(fair.writeLock()));
+        run(stats, mode, "read lock + unlock", i -> cycle(unfair.readLock()));
+        run(stats, mode, "optimistic read + validate", i -> unfair.validate(unfair.tryOptimisticRead()));
+    }
+
+    /** Locks and unlocks once
+     *  @param lock lock
+     */
+    private static void cycle(final AutoCloseableRedisLock lock){
+        if(lock.tryLock()) lock.unlock();
+    }
+
+    /** Runs an operation and prints the commands per operation
+     *  @param stats connection to read the statistics on
+     *  @param mode name of mode
+     *  @param name name of operation
+     *  @param operation operation
+     */
+    private static void run(final Jedis stats, final String mode, final String name, final Consumer<Integer> operation){
+        Map<String, Long> before = read(stats);
+        for(int i = 0; i < OPERATIONS; i++) operation.accept(i);
+        Map<String, Long> after = read(stats);
+
+        // Difference, leaving out the statistics reads themselves
+        long total = 0;
+        StringBuilder breakdown = new StringBuilder();
+        for(Map.Entry<String, Long> entry : after.entrySet()){
+            if(entry.getKey().equals("info")) continue;
+            long calls = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            if(calls <= 0) continue;
+            total += calls;
+            breakdown.append(String.format(" %s=%.2f", entry.getKey(), ((double) calls) / OPERATIONS));
+        }
+        System.out.printf("%-8s %-28s %6.2f |%s%n", mode, name, ((double) total) / OPERATIONS, breakdown);
+    }
+
+    /** Reads the number of calls per command
+     *  @param stats connection to read the statistics on
+     *  @return calls by command name
+     */
+    private static Map<String, Long> read(final Jedis stats){
+        Map<String, Long> calls = new TreeMap<>();
+        for(String line : stats.info("commandstats").split("\r?\n")){
+            if(!line.startsWith("cmdstat_")) continue;
+            int start = line.indexOf("calls=") + 6;
+            int end = line.indexOf(',', start);
+            calls.put(line.substring(8, line.indexOf(':')), Long.parseLong(line.substring(start, end)));
+        }
+        return calls;
+    }
+}
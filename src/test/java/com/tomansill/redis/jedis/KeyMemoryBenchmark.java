@@ -0,0 +1,77 @@
+package com.tomansill.redis.jedis;
+
+import com.tomansill.redis.lock.AutoCloseableRedisLock;
+import com.tomansill.redis.lock.TestSingleInstance;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Compares Redis memory per held lock and per waiter between full lockpoint names and compact keys.
+ *  Held locks are real locks taken through the client. Waiters are lockwait entries written in the form the client
+ *  would queue them, since parking thousands of threads would measure the JVM rather than Redis.
+ *  Not part of the test suite, run its main method after mvn test-compile with the test classpath against an otherwise idle Redis server.
+ */
+public class KeyMemoryBenchmark{
+
+    private final static int LOCKS = 10000;
+    private final static int WAITERS_PER_LOCK = 10;
+
+    public static void main(String[] args){
+        try(JedisPool pool = new JedisPool(new JedisPoolConfig(), TestSingleInstance.HOSTNAME, TestSingleInstance.PORT);
+            Jedis jedis = pool.getResource()){
+
+            System.out.printf("%-8s %16s %16s%n", "layout", "bytes/held lock", "bytes/waiter");
+            for(boolean compact : new boolean[]{false, true}){
+                JedisLockClient client = new JedisLockClient(pool);
+                client.setCompactKeys(compact);
+                String prefix = "https://example.com/api/v1/tenants/42/resources/" + System.nanoTime() + "/items/";
+
+                // Held locks, each leaves its lockpoint and its version behind
+                long before = usedMemory(jedis);
+                List<AutoCloseableRedisLock> locks = new ArrayList<>(LOCKS);
+                for(int i = 0; i < LOCKS; i++){
+                    AutoCloseableRedisLock lock = client.getLock(prefix + i + "?expand=owner,history").writeLock();
+                    lock.tryLock();
+                    locks.add(lock);
+                }
+                long held = usedMemory(jedis) - before;
+
+                // Waiters
+                before = usedMemory(jedis);
+                Pipeline pipeline = jedis.pipelined();
+                for(int i = 0; i < LOCKS; i++){
+                    String key = "lockwait:" + client.getServerLockpoint(prefix + i + "?expand=owner,history");
+                    for(int j = 0; j < WAITERS_PER_LOCK; j++) pipeline.rpush(key, client.getClientId() + ":" + (100000 + i * WAITERS_PER_LOCK + j));
+                }
+                pipeline.sync();
+                long waiting = usedMemory(jedis) - before;
+
+                System.out.printf("%-8s %16.1f %16.1f%n", compact ? "compact" : "full", ((double) held) / LOCKS, ((double) waiting) / (LOCKS * WAITERS_PER_LOCK));
+
+                // Clean up, waiters first so the unlocks don't try to wake them up
+                pipeline = jedis.pipelined();
+                for(int i = 0; i < LOCKS; i++) pipeline.del("lockwait:" + client.getServerLockpoint(prefix + i + "?expand=owner,history"));
+                pipeline.sync();
+                for(AutoCloseableRedisLock lock : locks) lock.unlock();
+                pipeline = jedis.pipelined();
+                for(int i = 0; i < LOCKS; i++) pipeline.del("lockversion:" + client.getServerLockpoint(prefix + i + "?expand=owner,history"));
+                pipeline.sync();
+            }
+        }
+    }
+
+    /** Reads used_memory from INFO memory
+     *  @param jedis connection
+     *  @return used memory in bytes
+     */
+    private static long usedMemory(final Jedis jedis){
+        for(String line : jedis.info("memory").split("\r?\n")){
+            if(line.startsWith("used_memory:")) return Long.parseLong(line.substring(12).trim());
+        }
+        throw new IllegalStateException("used_memory is missing from INFO memory");
+    }
+}
@@ -0,0 +1,406 @@
+package com.tomansill.redis.jedis;
+
+import com.tomansill.redis.lock.AutoCloseableRedisLock;
+import com.tomansill.redis.lock.TestSingleInstance;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/** Generates lock load from several worker JVMs at once, so pub/sub fan-out, fair queueing and skew between clients
+ *  show up the way they do between the processes of a deployment. The coordinator starts the workers with the same
+ *  classpath, lets them run the workload together and reports throughput, acquisition latency percentiles,
+ *  Jain's fairness index across worker processes and across threads, and the Redis commands executed per lock
+ *  operation, read from INFO commandstats before and after the run.
+ *  Each run uses lockpoints of its own, so locks left behind by an earlier run that was cut short do not get in the way.
+ *  Options are given as name=value arguments:
+ *  <pre>
+ *  workers=4              worker processes
+ *  threads=16             threads per worker, each with its own locks
+ *  lockpoints=1024        number of lockpoints
+ *  distribution=uniform   lockpoint popularity, uniform or zipf:&lt;exponent&gt;, for example zipf:1.1
+ *  hold=fixed:100         hold time in microseconds, fixed:&lt;us&gt;, uniform:&lt;min&gt;:&lt;max&gt; or exp:&lt;mean&gt;
+ *  fair=0.0               share of acquisitions made with fair locks, 0.0 to 1.0
+ *  timeout=1000           waiting time in milliseconds, 0 for tryLock() and -1 for lock()
+ *  duration=10000         measured time in milliseconds
+ *  </pre>
+ *  Not part of the test suite, run its main method after mvn test-compile with the test classpath against an otherwise idle local Redis server.
+ */
+public class LoadGenerator{
+
+    /** Sub-buckets per power of two in latency histograms, good for about 3% precision */
+    private final static int SUB_BUCKETS = 32;
+
+    /** Latency buckets, enough for anything up to an hour in microseconds */
+    private final static int BUCKETS = 64 * SUB_BUCKETS;
+
+    /** Percentiles reported */
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9, 99.99, 100};
+
+    /** Prefix of the line a worker reports its results on */
+    private final static String RESULT = "RESULT";
+
+    /** Line a worker prints once it is connected and about to wait for the start */
+    private final static String READY = "READY";
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> options = parse(args);
+        if(options.containsKey("worker")) worker(options);
+        else coordinate(options, args);
+    }
+
+    // ##### COORDINATOR #####
+
+    /** Starts the workers, runs them together and prints the report
+     *  @param options options
+     *  @param args arguments to pass on to the workers
+     */
+    private static void coordinate(final Map<String, String> options, final String[] args) throws Exception{
+        int workers = Integer.parseInt(options.get("workers"));
+        int threads = Integer.parseInt(options.get("threads"));
+        long run = System.currentTimeMillis();
+        System.out.println("Workload: " + options);
+
+        // Start the workers with the same classpath and options
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<BufferedReader> outputs = new ArrayList<>();
+        try(JedisPool pool = new JedisPool(new JedisPoolConfig(), TestSingleInstance.HOSTNAME, TestSingleInstance.PORT);
+            Jedis stats = pool.getResource()){
+            try{
+                for(int i = 0; i < workers; i++){
+                    List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"), LoadGenerator.class.getName()));
+                    command.addAll(Arrays.asList(args));
+                    command.add("worker=" + i);
+                    command.add("run=" + run);
+                    Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                    processes.add(process);
+                    outputs.add(new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)));
+                }
+
+                // Wait until every worker is connected, then start them together
+                for(BufferedReader output : outputs){
+                    String line;
+                    while((line = output.readLine()) != null && !line.equals(READY));
+                    if(line == null) throw new IllegalStateException("Worker exited before it was ready");
+                }
+                Map<String, Long> before = readCommandStats(stats);
+                for(Process process : processes){
+                    OutputStream input = process.getOutputStream();
+                    input.write('\n');
+                    input.flush();
+                }
+
+                // Collect the results
+                long[] histogram = new long[BUCKETS];
+                long[] worker_ops = new long[workers];
+                List<Long> thread_ops = new ArrayList<>();
+                long acquired = 0;
+                long timed_out = 0;
+                long elapsed_nanos = 0;
+                for(int i = 0; i < workers; i++){
+                    String line;
+                    while((line = outputs.get(i).readLine()) != null && !line.startsWith(RESULT));
+                    if(line == null) throw new IllegalStateException("Worker " + i + " exited without results");
+                    String[] fields = line.split(" ");
+                    acquired += Long.parseLong(fields[1]);
+                    timed_out += Long.parseLong(fields[2]);
+                    elapsed_nanos = Math.max(elapsed_nanos, Long.parseLong(fields[3]));
+                    worker_ops[i] = Long.parseLong(fields[1]);
+                    for(String count : fields[4].split(",")) thread_ops.add(Long.parseLong(count));
+                    if(fields.length > 5){
+                        for(String bucket : fields[5].split(",")){
+                            int colon = bucket.indexOf(':');
+                            histogram[Integer.parseInt(bucket.substring(0, colon))] += Long.parseLong(bucket.substring(colon + 1));
+                        }
+                    }
+                }
+                Map<String, Long> after = readCommandStats(stats);
+
+                // Throughput and fairness
+                double seconds = elapsed_nanos / 1e9;
+                System.out.printf("%nworkers=%d threads/worker=%d elapsed=%.2fs%n", workers, threads, seconds);
+                System.out.printf("acquired     %12d %12.0f ops/s%n", acquired, acquired / seconds);
+                System.out.printf("timed out    %12d %12.0f ops/s%n", timed_out, timed_out / seconds);
+                long[] per_thread = new long[thread_ops.size()];
+                for(int i = 0; i < per_thread.length; i++) per_thread[i] = thread_ops.get(i);
+                System.out.printf("fairness     %12.4f across workers, %.4f across threads (Jain's index, 1.0 is even)%n", jain(worker_ops), jain(per_thread));
+                System.out.printf("per worker   %s%n", Arrays.toString(worker_ops));
+
+                // Latency of acquisitions, timed out ones included
+                System.out.print("latency (us)");
+                for(double percentile : PERCENTILES) System.out.printf(" p%s=%d", format(percentile), percentile(histogram, percentile));
+                System.out.println();
+
+                // Commands per lock operation, an operation being one acquisition attempt and its unlock
+                long operations = Math.max(1, acquired + timed_out);
+                long total = 0;
+                StringBuilder breakdown = new StringBuilder();
+                for(Map.Entry<String, Long> entry : after.entrySet()){
+                    if(entry.getKey().equals("info")) continue;
+                    long calls = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+                    if(calls <= 0) continue;
+                    total += calls;
+                    breakdown.append(String.format(" %s=%.3f", entry.getKey(), ((double) calls) / operations));
+                }
+                System.out.printf("commands/op  %12.3f |%s%n", ((double) total) / operations, breakdown);
+            }finally{
+                for(Process process : processes) process.destroy();
+            }
+        }
+    }
+
+    /** Jain's fairness index, (sum x)^2 / (n * sum x^2)
+     *  @param values values
+     *  @return index from 1/n to 1.0
+     */
+    private static double jain(final long[] values){
+        double sum = 0;
+        double squares = 0;
+        for(long value : values){
+            sum += value;
+            squares += ((double) value) * value;
+        }
+        return (squares == 0 ? 1.0 : (sum * sum) / (values.length * squares));
+    }
+
+    /** Returns the value at the percentile of the histogram
+     *  @param histogram histogram
+     *  @param percentile percentile from 0 to 100
+     *  @return value in microseconds, rounded up to the bucket
+     */
+    private static long percentile(final long[] histogram, final double percentile){
+        long count = 0;
+        for(long bucket : histogram) count += bucket;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < histogram.length; i++){
+            seen += histogram[i];
+            if(seen >= rank) return upperBound(i);
+        }
+        return 0;
+    }
+
+    private static String format(final double percentile){
+        return (percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile));
+    }
+
+    /** Reads the number of calls per command
+     *  @param stats connection to read the statistics on
+     *  @return calls by command name
+     */
+    private static Map<String, Long> readCommandStats(final Jedis stats){
+        Map<String, Long> calls = new TreeMap<>();
+        for(String line : stats.info("commandstats").split("\r?\n")){
+            if(!line.startsWith("cmdstat_")) continue;
+            int start = line.indexOf("calls=") + 6;
+            int end = line.indexOf(',', start);
+            calls.put(line.substring(8, line.indexOf(':')), Long.parseLong(line.substring(start, end)));
+        }
+        return calls;
+    }
+
+    // ##### WORKER #####
+
+    /** Runs the workload once the coordinator says so and prints the results
+     *  @param options options
+     */
+    private static void worker(final Map<String, String> options) throws Exception{
+        final int threads = Integer.parseInt(options.get("threads"));
+        final int lockpoints = Integer.parseInt(options.get("lockpoints"));
+        final double fair_share = Double.parseDouble(options.get("fair"));
+        final long timeout = Long.parseLong(options.get("timeout"));
+        final long duration = Long.parseLong(options.get("duration"));
+        final LockpointPicker picker = new LockpointPicker(options.get("distribution"), lockpoints);
+        final HoldTime hold = new HoldTime(options.get("hold"));
+        final String prefix = "loadgenerator:" + options.get("run") + ":";
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(threads * 2);
+        config.setMaxIdle(threads * 2);
+        try(JedisPool pool = new JedisPool(config, TestSingleInstance.HOSTNAME, TestSingleInstance.PORT)){
+            final JedisLockClient client = new JedisLockClient(pool);
+
+            // Connect and subscribe before the start so the first acquisitions are not slowed down by it
+            AutoCloseableRedisLock warmup = client.getLock(prefix + "warmup").writeLock();
+            if(warmup.tryLock()) warmup.unlock();
+            System.out.println(READY);
+            System.out.flush();
+            if(System.in.read() == -1) return;
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final long[][] histograms = new long[threads][BUCKETS];
+            final long[] acquired = new long[threads];
+            final long[] timed_out = new long[threads];
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for(int t = 0; t < threads; t++){
+                final int index = t;
+                workers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while(running.get()){
+                        boolean fair = random.nextDouble() < fair_share;
+                        AutoCloseableRedisLock lock = client.getLock(prefix + picker.next(random), fair).writeLock();
+                        long begin = System.nanoTime();
+                        boolean locked;
+                        try{
+                            if(timeout < 0){
+                                lock.lock();
+                                locked = true;
+                            }else{
+                                locked = (timeout == 0 ? lock.tryLock() : lock.tryLock(timeout, TimeUnit.MILLISECONDS));
+                            }
+                        }catch(InterruptedException e){
+                            return;
+                        }
+                        histograms[index][bucketOf((System.nanoTime() - begin) / 1000)]++;
+                        if(!locked){
+                            timed_out[index]++;
+                            continue;
+                        }
+                        long hold_nanos = hold.next(random);
+                        if(hold_nanos > 0) LockSupport.parkNanos(hold_nanos);
+                        lock.unlock();
+                        acquired[index]++;
+                    }
+                }, "load-" + t);
+                workers[t].start();
+            }
+            TimeUnit.MILLISECONDS.sleep(duration);
+            running.set(false);
+            for(Thread thread : workers) thread.join();
+            long elapsed = System.nanoTime() - start;
+
+            // RESULT <acquired> <timed out> <elapsed ns> <acquired per thread> <bucket:count,...>
+            long total_acquired = 0;
+            long total_timed_out = 0;
+            long[] histogram = new long[BUCKETS];
+            StringBuilder per_thread = new StringBuilder();
+            for(int t = 0; t < threads; t++){
+                total_acquired += acquired[t];
+                total_timed_out += timed_out[t];
+                for(int i = 0; i < BUCKETS; i++) histogram[i] += histograms[t][i];
+                per_thread.append(t == 0 ? "" : ",").append(acquired[t]);
+            }
+            StringBuilder buckets = new StringBuilder();
+            for(int i = 0; i < BUCKETS; i++){
+                if(histogram[i] == 0) continue;
+                buckets.append(buckets.length() == 0 ? "" : ",").append(i).append(':').append(histogram[i]);
+            }
+            System.out.println(RESULT + " " + total_acquired + " " + total_timed_out + " " + elapsed + " " + per_thread + " " + buckets);
+            System.out.flush();
+        }
+    }
+
+    /** Returns the histogram bucket of a latency, linear below SUB_BUCKETS and log-linear above
+     *  @param micros latency in microseconds
+     *  @return bucket index
+     */
+    static int bucketOf(final long micros){
+        if(micros < SUB_BUCKETS) return (int) Math.max(0, micros);
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = power - Integer.numberOfTrailingZeros(SUB_BUCKETS);
+        int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /** Returns the largest latency that falls in a bucket
+     *  @param bucket bucket index
+     *  @return latency in microseconds
+     */
+    static long upperBound(final int bucket){
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long base = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    /** Parses name=value arguments over the defaults
+     *  @param args arguments
+     *  @return options
+     */
+    private static Map<String, String> parse(final String[] args){
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("workers", "4");
+        options.put("threads", "16");
+        options.put("lockpoints", "1024");
+        options.put("distribution", "uniform");
+        options.put("hold", "fixed:100");
+        options.put("fair", "0.0");
+        options.put("timeout", "1000");
+        options.put("duration", "10000");
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals <= 0) throw new IllegalArgumentException("Argument '" + arg + "' is not in name=value form");
+            String name = arg.substring(0, equals);
+            if(!options.containsKey(name) && !name.equals("worker") && !name.equals("run")) throw new IllegalArgumentException("Unknown option '" + name + "'");
+            options.put(name, arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /** Picks lockpoints uniformly or by Zipf's law, lockpoint 0 being the most popular */
+    private static class LockpointPicker{
+        private final int lockpoints;
+        private final double[] cdf;
+        LockpointPicker(final String distribution, final int lockpoints){
+            this.lockpoints = lockpoints;
+            if(distribution.equals("uniform")){
+                this.cdf = null;
+            }else if(distribution.startsWith("zipf:")){
+                double exponent = Double.parseDouble(distribution.substring(5));
+                this.cdf = new double[lockpoints];
+                double sum = 0;
+                for(int i = 0; i < lockpoints; i++) this.cdf[i] = (sum += 1 / Math.pow(i + 1, exponent));
+                for(int i = 0; i < lockpoints; i++) this.cdf[i] /= sum;
+            }else{
+                throw new IllegalArgumentException("Unknown distribution '" + distribution + "'");
+            }
+        }
+
+        int next(final ThreadLocalRandom random){
+            if(this.cdf == null) return random.nextInt(this.lockpoints);
+            int index = Arrays.binarySearch(this.cdf, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, this.lockpoints - 1);
+        }
+    }
+
+    /** Draws hold times from a fixed, uniform or exponential distribution given in microseconds */
+    private static class HoldTime{
+        private final String kind;
+        private final long first;
+        private final long second;
+        HoldTime(final String hold){
+            String[] parts = hold.split(":");
+            this.kind = parts[0];
+            if(!Arrays.asList("fixed", "uniform", "exp").contains(this.kind) || parts.length != (this.kind.equals("uniform") ? 3 : 2)){
+                throw new IllegalArgumentException("Unknown hold time '" + hold + "'");
+            }
+            this.first = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[1]));
+            this.second = (parts.length > 2 ? TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[2])) : 0);
+        }
+
+        long next(final ThreadLocalRandom random){
+            switch(this.kind){
+                case "uniform": return (this.second > this.first ? random.nextLong(this.first, this.second + 1) : this.first);
+                case "exp": return (long) (-Math.log(1 - random.nextDouble()) * this.first);
+                default: return this.first;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.tomansill.redis.jedis;
+
+import com.tomansill.redis.lock.AutoCloseableRedisLock;
+import com.tomansill.redis.lock.TestSingleInstance;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** Compares lock throughput of pooled and pipelined JedisLockClient as round trip time grows.
+ *  Round trip time is added by a local TCP proxy that delays every chunk in both directions.
+ *  Not part of the test suite, run its main method after mvn test-compile with the test classpath against a local Redis server.
+ */
+public class PipelineBenchmark{
+
+    private final static int THREADS = 64;
+    private final static int LOCKPOINTS = 1024;
+    private final static long DURATION_MILLISECONDS = 3000;
+    private final static long[] ADDED_RTT_MICROSECONDS = {0, 250, 1000, 2000, 5000};
+
+    public static void main(String[] args) throws Exception{
+
+        System.out.printf("%-12s %-10s %12s %12s%n", "added RTT", "mode", "ops/s", "avg batch");
+        for(long rtt : ADDED_RTT_MICROSECONDS){
+            try(DelayProxy proxy = new DelayProxy(TestSingleInstance.HOSTNAME, TestSingleInstance.PORT, rtt * 1000 / 2)){
+                JedisPoolConfig config = new JedisPoolConfig();
+                config.setMaxTotal(THREADS * 2);
+                config.setMaxIdle(THREADS * 2);
+                try(JedisPool pool = new JedisPool(config, "localhost", proxy.getPort())){
+
+                    // Pooled, each evaluation checks out a connection
+                    JedisLockClient pooled = new JedisLockClient(pool);
+                    System.out.printf("%-12s %-10s %12.0f %12s%n", rtt + "us", "pooled", run(pooled), "-");
+
+                    // Pipelined over a few connections
+                    JedisLockClient pipelined = new JedisLockClient(pool, 4);
+                    double ops = run(pipelined);
+                    System.out.printf("%-12s %-10s %12.0f %12.1f%n", rtt + "us", "pipelined", ops, pipelined.getAveragePipelineBatchSize());
+                    pipelined.closePipeline();
+                }
+            }
+        }
+    }
+
+    /** Runs tryLock and unlock on random lockpoints from many threads
+     *  @param client client
+     *  @return lock and unlock pairs per second
+     */
+    private static double run(final JedisLockClient client) throws InterruptedException{
+        final String prefix = "benchmark:" + System.nanoTime() + ":";
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder operations = new LongAdder();
+        Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++){
+            threads[i] = new Thread(() -> {
+                while(running.get()){
+                    AutoCloseableRedisLock lock = client.getLock(prefix + ThreadLocalRandom.current().nextInt(LOCKPOINTS)).writeLock();
+                    if(lock.tryLock()){
+                        lock.unlock();
+                        operations.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(DURATION_MILLISECONDS);
+        running.set(false);
+        for(Thread thread : threads) thread.join();
+        return operations.sum() * 1000.0 / DURATION_MILLISECONDS;
+    }
+
+    /** TCP proxy that delays everything it forwards by a fixed time in each direction */
+    private static class DelayProxy implements AutoCloseable{
+
+        private final ServerSocket server;
+        private final String host;
+        private final int port;
+        private final long delay_nanos;
+
+        DelayProxy(final String host, final int port, final long delay_nanos) throws IOException{
+            this.server = new ServerSocket(0);
+            this.host = host;
+            this.port = port;
+            this.delay_nanos = delay_nanos;
+            Thread acceptor = new Thread(this::accept);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort(){
+            return this.server.getLocalPort();
+        }
+
+        public void close() throws IOException{
+            this.server.close();
+        }
+
+        private void accept(){
+            try{
+                while(true){
+                    Socket downstream = this.server.accept();
+                    Socket upstream = new Socket(this.host, this.port);
+                    downstream.setTcpNoDelay(true);
+                    upstream.setTcpNoDelay(true);
+                    this.forward(downstream, upstream);
+                    this.forward(upstream, downstream);
+                }
+            }catch(IOException e){
+                // Closed
+            }
+        }
+
+        /** Forwards one direction, reading chunks as they come and writing each once its delay has passed */
+        private void forward(final Socket from, final Socket to){
+            final LinkedBlockingQueue<Object[]> chunks = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[65536];
+                try(InputStream in = from.getInputStream()){
+                    int read;
+                    while((read = in.read(buffer)) != -1){
+                        chunks.add(new Object[]{System.nanoTime() + this.delay_nanos, Arrays.copyOf(buffer, read)});
+                    }
+                }catch(IOException e){
+                    // Closed
+                }
+                chunks.add(new Object[]{0L, null});
+            });
+            Thread writer = new Thread(() -> {
+                try(OutputStream out = to.getOutputStream()){
+                    while(true){
+                        Object[] chunk = chunks.take();
+                        if(chunk[1] == null) break;
+                        long wait;
+                        while((wait = ((Long) chunk[0]) - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                        out.write((byte[]) chunk[1]);
+                        out.flush();
+                    }
+                }catch(IOException | InterruptedException e){
+                    // Closed
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+    }
+}
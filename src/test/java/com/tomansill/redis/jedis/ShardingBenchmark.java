@@ -0,0 +1,97 @@
+package com.tomansill.redis.jedis;
+
+import com.tomansill.redis.lock.AutoCloseableRedisLock;
+import com.tomansill.redis.lock.ShardedRedisLockClient;
+import com.tomansill.redis.lock.TestSingleInstance;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Measures lock throughput of ShardedRedisLockClient over 1, 2, 4 and 8 Redis servers.
+ *  Uses servers on ports 6379 to 6386 of the test host, or starts its own on ports 7000 to 7007 when the
+ *  redis.server system property names a redis-server binary. Scaling is only near-linear when the servers and the
+ *  benchmark have cores of their own, so run it on a machine with at least as many free cores as servers plus a few.
+ *  Not part of the test suite, run its main method after mvn test-compile with the test classpath.
+ */
+public class ShardingBenchmark{
+
+    private final static int THREADS = 128;
+    private final static int LOCKPOINTS = 4096;
+    private final static long DURATION_MILLISECONDS = 5000;
+    private final static int[] SHARDS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception{
+
+        // Start servers if asked to
+        String binary = System.getProperty("redis.server");
+        int base_port = (binary == null ? TestSingleInstance.PORT : 7000);
+        List<Process> servers = new ArrayList<>();
+        if(binary != null){
+            for(int i = 0; i < SHARDS[SHARDS.length - 1]; i++){
+                servers.add(new ProcessBuilder(binary, "--port", Integer.toString(base_port + i), "--save", "", "--appendonly", "no").start());
+            }
+            Thread.sleep(500);
+        }
+
+        try{
+            double baseline = 0;
+            System.out.printf("%-8s %12s %10s%n", "shards", "ops/s", "scaling");
+            for(int shard_count : SHARDS){
+                JedisPoolConfig config = new JedisPoolConfig();
+                config.setMaxTotal(THREADS);
+                config.setMaxIdle(THREADS);
+                List<JedisPool> pools = new ArrayList<>();
+                Map<String, JedisLockClient> shards = new HashMap<>();
+                for(int i = 0; i < shard_count; i++){
+                    JedisPool pool = new JedisPool(config, TestSingleInstance.HOSTNAME, base_port + i);
+                    pools.add(pool);
+                    shards.put("shard" + i, new JedisLockClient(pool));
+                }
+                try{
+                    double ops = run(new ShardedRedisLockClient(shards));
+                    if(baseline == 0) baseline = ops;
+                    System.out.printf("%-8d %12.0f %9.2fx%n", shard_count, ops, ops / baseline);
+                }finally{
+                    for(JedisPool pool : pools) pool.close();
+                }
+            }
+        }finally{
+            for(Process server : servers) server.destroy();
+        }
+    }
+
+    /** Runs tryLock and unlock on random lockpoints from many threads
+     *  @param client client
+     *  @return lock and unlock pairs per second
+     */
+    private static double run(final ShardedRedisLockClient client) throws InterruptedException{
+        final String prefix = "benchmark:" + System.nanoTime() + ":";
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder operations = new LongAdder();
+        Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++){
+            threads[i] = new Thread(() -> {
+                while(running.get()){
+                    AutoCloseableRedisLock lock = client.getLock(prefix + ThreadLocalRandom.current().nextInt(LOCKPOINTS)).writeLock();
+                    if(lock.tryLock()){
+                        lock.unlock();
+                        operations.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        TimeUnit.MILLISECONDS.sleep(DURATION_MILLISECONDS);
+        running.set(false);
+        for(Thread thread : threads) thread.join();
+        return operations.sum() * 1000.0 / DURATION_MILLISECONDS;
+    }
+}
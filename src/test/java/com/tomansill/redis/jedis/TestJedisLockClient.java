@@ -2,11 +2,29 @@ package com.tomansill.redis.jedis;
 
 import com.tomansill.redis.lock.TestMultiInstance;
 import com.tomansill.redis.lock.TestSingleInstance;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import com.tomansill.redis.lock.AbstractRedisLockClient;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Protocol;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertTrue;
 
 public class TestJedisLockClient {
 
@@ -14,6 +32,7 @@ public class TestJedisLockClient {
 
     private static JedisPool[] pools = null;
     private static JedisLockClient[] clients = null;
+    private final static JedisServer server = new JedisServer();
 
     @BeforeClass
     public static void setUp(){
@@ -28,10 +47,15 @@ public class TestJedisLockClient {
             clients[i] = new JedisLockClient(pools[i]);
         }
 
-        TestSingleInstance.setUp(clients[0]);
+        TestSingleInstance.setUp(clients[0], server);
         TestMultiInstance.setUp(clients);
     }
 
+    @After
+    public void closeDedicatedClients(){
+        server.closePools();
+    }
+
     @AfterClass
     public static void tearDown(){
         for(JedisPool pool : pools) pool.close();
@@ -43,8 +67,373 @@ public class TestJedisLockClient {
         TestSingleInstance.testMultipleWriteLocks();
     }
 
+    @Test
+    public void testLockRegistry(){
+        TestSingleInstance.testLockRegistry();
+    }
+
+    @Test
+    public void testSemaphore(){
+        TestSingleInstance.testSemaphore();
+    }
+
+    @Test
+    public void testStripedLock(){
+        TestSingleInstance.testStripedLock();
+    }
+
+    @Test
+    public void testReadLock(){
+        TestSingleInstance.testReadLock();
+    }
+
+    @Test
+    public void testOptimisticRead(){
+        TestSingleInstance.testOptimisticRead();
+    }
+
+    @Test
+    public void testFlightRecorderEvents(){
+        TestSingleInstance.testFlightRecorderEvents();
+    }
+
+    @Test
+    public void testLockIntrospection(){
+        TestSingleInstance.testLockIntrospection();
+    }
+
+    @Test
+    public void testPriorityWaiters(){
+        TestSingleInstance.testPriorityWaiters();
+    }
+
+    @Test
+    public void testSharedReadLeases(){
+        TestSingleInstance.testSharedReadLeases();
+    }
+
+    @Test
+    public void testUpgradeDowngrade(){
+        TestSingleInstance.testUpgradeDowngrade();
+    }
+
+    @Test
+    public void testNegativeCache(){
+        TestSingleInstance.testNegativeCache();
+    }
+
+    @Test
+    public void testSessionOwnership(){
+        TestSingleInstance.testSessionOwnership();
+    }
+
+    @Test
+    public void testLockedExecutor(){
+        TestSingleInstance.testLockedExecutor();
+    }
+
+    @Test
+    public void testLeaderElection(){
+        TestSingleInstance.testLeaderElection();
+    }
+
+    @Test
+    public void testAdmissionControl(){
+        TestSingleInstance.testAdmissionControl();
+    }
+
+    @Test
+    public void testClientClose(){
+        TestSingleInstance.testClientClose();
+    }
+
+    @Test
+    public void testConditionRecovery(){
+        TestSingleInstance.testConditionRecovery();
+    }
+
+    @Test
+    public void testAbandonedConditionWaiter(){
+        TestSingleInstance.testAbandonedConditionWaiter();
+    }
+
+    @Test
+    public void testMessageRing(){
+        TestSingleInstance.testMessageRing();
+    }
+
+    @Test
+    public void testPipelinedClient(){
+
+        // Run the single instance tests over a pipelined client
+        JedisLockClient pipelined = new JedisLockClient(pools[0], 2);
+        try{
+            TestSingleInstance.setUp(pipelined);
+            TestSingleInstance.testMultipleWriteLocks();
+            TestSingleInstance.testReadLock();
+            TestSingleInstance.testOptimisticRead();
+            TestSingleInstance.testSemaphore();
+            assertTrue("Concurrent evaluations should have been batched.", pipelined.getAveragePipelineBatchSize() > 1);
+        }finally{
+            TestSingleInstance.setUp(clients[0]);
+            pipelined.closePipeline();
+        }
+    }
+
     @Test
     public void testMultipleWriteLockOnMultiInstance(){
         TestMultiInstance.testMultipleWriteLocks();
     }
+
+    @Test
+    public void testCountDownLatchOnMultiInstance(){
+        TestMultiInstance.testCountDownLatch();
+    }
+
+    @Test
+    public void testCyclicBarrierOnMultiInstance(){
+        TestMultiInstance.testCyclicBarrier();
+    }
+
+    @Test
+    public void testConditionOnMultiInstance(){
+        TestMultiInstance.testCondition();
+    }
+
+    @Test
+    public void testSubscriptionRecovery(){
+        TestSingleInstance.testSubscriptionRecovery();
+    }
+
+    @Test
+    public void testConnectionRecovery(){
+        TestSingleInstance.testConnectionRecovery(server.newClient(0));
+        TestSingleInstance.testConnectionRecovery(server.newPipelinedClient(0, 2));
+    }
+
+    @Test
+    public void testFailoverRecovery(){
+        TestSingleInstance.testFailoverRecovery(server.newClient(0));
+        TestSingleInstance.testFailoverRecovery(server.newPipelinedClient(0, 1));
+    }
+
+    @Test
+    public void testLostWakeUpRecovery(){
+        TestSingleInstance.testLostWakeUpRecovery();
+    }
+
+    @Test
+    public void testFairRecheckOrder(){
+        TestSingleInstance.testFairRecheckOrder();
+    }
+
+    @Test
+    public void testSemaphoreRecheckOrder(){
+        TestSingleInstance.testSemaphoreRecheckOrder();
+    }
+
+    @Test
+    public void testUnlockWithoutWaiters(){
+        TestSingleInstance.testUnlockWithoutWaiters();
+    }
+
+    @Test
+    public void testSubscriptionChurn(){
+        TestSingleInstance.testSubscriptionChurn();
+    }
+
+    @Test
+    public void testFunctionLibrary(){
+        TestSingleInstance.testFunctionLibrary();
+    }
+
+    @Test
+    public void testCompactKeys(){
+        TestSingleInstance.testCompactKeys();
+    }
+
+    @Test
+    public void testShardedClient(){
+        TestSingleInstance.testShardedClient();
+    }
+
+    /** Server of the shared tests over Jedis, its dedicated clients get pools of their own that are closed after each test */
+    private static class JedisServer implements TestSingleInstance.Server{
+
+        /** Pools of dedicated clients */
+        private final List<JedisPool> dedicated_pools = new CopyOnWriteArrayList<>();
+
+        /** Connection names of dedicated clients, so their connections can be found on the server */
+        private final Map<AbstractRedisLockClient, String> connection_names = new ConcurrentHashMap<>();
+
+        /** Counter for connection names */
+        private final AtomicInteger pool_count = new AtomicInteger();
+
+        /** Creates a pool that is closed after the test, its connections are named
+         *  @param database database number
+         *  @param name connection name
+         *  @return pool
+         */
+        JedisPool newPool(final int database, final String name){
+            JedisPool pool = new JedisPool(new JedisPoolConfig(), TestSingleInstance.HOSTNAME, TestSingleInstance.PORT, Protocol.DEFAULT_TIMEOUT, null, database, name);
+            this.dedicated_pools.add(pool);
+            return pool;
+        }
+
+        /** Creates a pipelined client with connections of its own, closed after the test
+         *  @param database database number
+         *  @param threads number of pipeline threads
+         *  @return client
+         */
+        JedisLockClient newPipelinedClient(final int database, final int threads){
+            String name = "dedicated" + this.pool_count.incrementAndGet();
+            JedisLockClient client = new JedisLockClient(this.newPool(database, name), threads);
+            this.connection_names.put(client, name);
+            return client;
+        }
+
+        /** Closes the pools of dedicated clients */
+        void closePools(){
+            for(JedisPool pool : this.dedicated_pools) pool.close();
+            this.dedicated_pools.clear();
+            this.connection_names.clear();
+        }
+
+        @Override
+        public AbstractRedisLockClient newClient(final int database){
+            String name = "dedicated" + this.pool_count.incrementAndGet();
+            JedisLockClient client = new JedisLockClient(this.newPool(database, name));
+            this.connection_names.put(client, name);
+            return client;
+        }
+
+        @Override
+        public int getMajorVersion(){
+            try(Jedis jedis = pools[0].getResource()){
+                return Integer.parseInt(jedis.info("server").replaceAll("(?s).*redis_version:(\\d+).*", "$1"));
+            }
+        }
+
+        @Override
+        public boolean exists(final int database, final String key){
+            try(Jedis jedis = pools[0].getResource()){
+                jedis.select(database);
+                try{
+                    return jedis.exists(key);
+                }finally{
+                    jedis.select(0);
+                }
+            }
+        }
+
+        @Override
+        public String get(final String key){
+            try(Jedis jedis = pools[0].getResource()){
+                return jedis.get(key);
+            }
+        }
+
+        @Override
+        public long llen(final String key){
+            try(Jedis jedis = pools[0].getResource()){
+                return jedis.llen(key);
+            }
+        }
+
+        @Override
+        public long scard(final String key){
+            try(Jedis jedis = pools[0].getResource()){
+                return jedis.scard(key);
+            }
+        }
+
+        @Override
+        public void rpush(final String key, final String value){
+            try(Jedis jedis = pools[0].getResource()){
+                jedis.rpush(key, value);
+            }
+        }
+
+        @Override
+        public void del(final String key){
+            try(Jedis jedis = pools[0].getResource()){
+                jedis.del(key);
+            }
+        }
+
+        @Override
+        public void killSubscribers(){
+            try(Jedis jedis = pools[0].getResource()){
+                for(String line : jedis.clientList().split("\n")){
+                    if(!line.contains(" sub=0 ") && line.contains(" sub=")){
+                        String address = line.substring(line.indexOf(" addr=") + 6);
+                        jedis.clientKill(address.substring(0, address.indexOf(' ')));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void killConnections(final AbstractRedisLockClient dedicated){
+            String name = this.connection_names.get(dedicated);
+            assertTrue("Client was not made by the server.", name != null);
+            try(Jedis jedis = pools[0].getResource()){
+                for(String line : jedis.clientList().split("\n")){
+                    if(line.contains(" name=" + name + " ")){
+                        String address = line.substring(line.indexOf(" addr=") + 6);
+                        jedis.clientKill(address.substring(0, address.indexOf(' ')));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Set<String> getConnections(final AbstractRedisLockClient dedicated){
+            String name = this.connection_names.get(dedicated);
+            assertTrue("Client was not made by the server.", name != null);
+            Set<String> ids = new HashSet<>();
+            try(Jedis jedis = pools[0].getResource()){
+                for(String line : jedis.clientList().split("\n")){
+                    if(line.contains(" name=" + name + " ")) ids.add(line.substring(3, line.indexOf(' ')));
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public void setReadOnly(final boolean read_only){
+            try(Jedis jedis = pools[0].getResource()){
+                if(read_only) jedis.slaveof(TestSingleInstance.HOSTNAME, 1);
+                else jedis.slaveofNoOne();
+            }
+        }
+
+        @Override
+        public AutoCloseable subscribe(final Consumer<String> listener){
+            final Jedis subscriber = this.newPool(0, "subscriber" + this.pool_count.incrementAndGet()).getResource();
+            final CountDownLatch subscribed = new CountDownLatch(1);
+            final JedisPubSub pubsub = new JedisPubSub(){
+                @Override
+                public void onSubscribe(final String channel, final int subscribed_channels){
+                    subscribed.countDown();
+                }
+                @Override
+                public void onMessage(final String channel, final String message){
+                    listener.accept(message);
+                }
+            };
+            final Thread thread = new Thread(() -> subscriber.subscribe(pubsub, "lockchannel"));
+            thread.start();
+            try{
+                subscribed.await(5, TimeUnit.SECONDS);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return () -> {
+                pubsub.unsubscribe();
+                thread.join();
+                subscriber.close();
+            };
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package com.tomansill.redis.lock;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.Assert.assertTrue;
@@ -105,4 +107,193 @@ public class TestMultiInstance{
             }
         }
     }
+
+    public static void testCountDownLatch(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",clients != null);
+
+        // Set up latch with one count per client
+        final String name = Utility.generateRandomString(8);
+        assertTrue("Failed to set latch count.", clients[0].getCountDownLatch(name).trySetCount(clients.length));
+        assertTrue("Latch count was set twice.", !clients[0].getCountDownLatch(name).trySetCount(clients.length));
+
+        // Every client waits and counts down
+        ExecutorService es = Executors.newCachedThreadPool();
+        Future<Boolean>[] futures = new Future[clients.length];
+        for(int i = 0; i < clients.length; i++){
+            final RedisCountDownLatch latch = clients[i].getCountDownLatch(name);
+            futures[i] = es.submit(() -> {
+                Thread.sleep(50);
+                latch.countDown();
+                return latch.await(5, TimeUnit.SECONDS);
+            });
+        }
+
+        // Check
+        for(Future<Boolean> future : futures){
+            try{
+                assertTrue("Latch await timed out.", future.get().booleanValue());
+            }catch(InterruptedException | ExecutionException e){
+                assertTrue("Exception was thrown. Reason: " + e.getMessage(), false);
+            }
+        }
+        assertTrue("Latch count should be zero.", clients[0].getCountDownLatch(name).getCount() == 0);
+        es.shutdown();
+    }
+
+    public static void testCyclicBarrier(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",clients != null);
+
+        // Every client is a party and goes through the barrier a few times
+        final String name = Utility.generateRandomString(8);
+        final int cycles = 3;
+        ExecutorService es = Executors.newCachedThreadPool();
+        Future<Integer>[] futures = new Future[clients.length];
+        for(int i = 0; i < clients.length; i++){
+            final RedisCyclicBarrier barrier = clients[i].getCyclicBarrier(name, clients.length);
+            futures[i] = es.submit(() -> {
+                int index_sum = 0;
+                for(int cycle = 0; cycle < cycles; cycle++) index_sum += barrier.await(5, TimeUnit.SECONDS);
+                return index_sum;
+            });
+        }
+
+        // Each cycle hands out indices 0 to parties - 1 once
+        int index_sum = 0;
+        for(Future<Integer> future : futures){
+            try{
+                index_sum += future.get().intValue();
+            }catch(InterruptedException | ExecutionException e){
+                assertTrue("Exception was thrown. Reason: " + e.getMessage(), false);
+            }
+        }
+        assertTrue("Barrier arrival indices are wrong.", index_sum == cycles * (clients.length * (clients.length - 1) / 2));
+
+        // A party that times out breaks the barrier
+        RedisCyclicBarrier barrier = clients[0].getCyclicBarrier(name, clients.length);
+        try{
+            barrier.await(100, TimeUnit.MILLISECONDS);
+            assertTrue("Barrier did not time out.", false);
+        }catch(TimeoutException e){
+            assertTrue("Barrier should be broken.", barrier.isBroken());
+        }catch(InterruptedException | BrokenBarrierException e){
+            assertTrue("Exception was thrown. Reason: " + e.getMessage(), false);
+        }
+        barrier.reset();
+        assertTrue("Barrier should not be broken after reset.", !barrier.isBroken());
+
+        // Parties of the next generation that arrive while the action runs wait for it and count toward the next generation
+        final String action_name = Utility.generateRandomString(8);
+        final AtomicInteger actions = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        Runnable action = () -> {
+            if(running.incrementAndGet() != 1) overlaps.incrementAndGet();
+            try{
+                Thread.sleep(300);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            actions.incrementAndGet();
+            running.decrementAndGet();
+        };
+        Future<Integer>[] first_round = new Future[2];
+        Future<Integer>[] second_round = new Future[2];
+        try{
+            for(int i = 0; i < 2; i++){
+                final RedisCyclicBarrier party = clients[i % clients.length].getCyclicBarrier(action_name, 2, action);
+                first_round[i] = es.submit(() -> party.await(5, TimeUnit.SECONDS));
+            }
+            while(running.get() == 0 && actions.get() == 0) Thread.sleep(5);
+            for(int i = 0; i < 2; i++){
+                final RedisCyclicBarrier party = clients[(i + 1) % clients.length].getCyclicBarrier(action_name, 2, action);
+                second_round[i] = es.submit(() -> party.await(5, TimeUnit.SECONDS));
+            }
+            int first_sum = 0;
+            int second_sum = 0;
+            for(int i = 0; i < 2; i++){
+                first_sum += first_round[i].get();
+                second_sum += second_round[i].get();
+            }
+            assertTrue("Each generation should hand out indices 0 and 1 once.", first_sum == 1 && second_sum == 1);
+            assertTrue("Action should run once per generation, ran " + actions.get() + " times.", actions.get() == 2);
+            assertTrue("Actions should not overlap.", overlaps.get() == 0);
+        }catch(InterruptedException | ExecutionException e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+        es.shutdown();
+    }
+
+    public static void testCondition(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",clients != null && clients.length > 1);
+
+        // Shared queue guarded by the distributed lock
+        final String lockpoint = Utility.generateRandomString(8);
+        final AtomicInteger queue = new AtomicInteger();
+        final int items = 10;
+        ExecutorService es = Executors.newCachedThreadPool();
+
+        // Consumer waits on one client
+        Future<Integer> consumer = es.submit(() -> {
+            int consumed = 0;
+            AutoCloseableRedisLock lock = clients[0].getLock(lockpoint, true).writeLock();
+            Condition not_empty = lock.newCondition("not_empty");
+            lock.lock();
+            try{
+                while(consumed < items){
+                    while(queue.get() == 0){
+                        if(!not_empty.await(5, TimeUnit.SECONDS)) return consumed;
+                    }
+                    queue.decrementAndGet();
+                    consumed++;
+                }
+            }finally{
+                lock.unlock();
+            }
+            return consumed;
+        });
+
+        // Producer signals from another client
+        Future<Boolean> producer = es.submit(() -> {
+            for(int i = 0; i < items; i++){
+                AutoCloseableRedisLock lock = clients[1].getLock(lockpoint, true).writeLock();
+                lock.lock();
+                try{
+                    queue.incrementAndGet();
+                    lock.newCondition("not_empty").signal();
+                }finally{
+                    lock.unlock();
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        });
+
+        // Check
+        try{
+            assertTrue("Producer failed.", producer.get().booleanValue());
+            assertTrue("Consumer did not receive every item.", consumer.get().intValue() == items);
+        }catch(InterruptedException | ExecutionException e){
+            assertTrue("Exception was thrown. Reason: " + e.getMessage(), false);
+        }
+
+        // Waiting without a signal times out and still holds the lock afterwards
+        AutoCloseableRedisLock lock = clients[0].getLock(lockpoint, true).writeLock();
+        lock.lock();
+        try{
+            assertTrue("Await should have timed out.", !lock.newCondition().await(100, TimeUnit.MILLISECONDS));
+            assertTrue("Lock should be held after await.", lock.isLocked());
+            assertTrue("Lock should still be held on the server after await.", !clients[1].getLock(lockpoint, true).writeLock().tryLock());
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            lock.unlock();
+        }
+        es.shutdown();
+    }
 }
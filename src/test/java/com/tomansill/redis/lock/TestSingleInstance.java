@@ -1,14 +1,124 @@
 package com.tomansill.redis.lock;
 
+import com.tomansill.redis.exception.TooManyWaitersException;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 public class TestSingleInstance {
 
+    /** Server the tests run against, for tests that need a client of their own or look behind the client's back */
+    public interface Server{
+
+        /** Creates a client with connections of its own, so changing its settings or breaking its connections
+         *  does not disturb other tests. Its connections are closed after the test.
+         *  @param database database number
+         *  @return client
+         */
+        AbstractRedisLockClient newClient(int database);
+
+        /** Returns the major version of the server
+         *  @return major version
+         */
+        int getMajorVersion();
+
+        /** Returns true if the key exists
+         *  @param database database number
+         *  @param key key
+         *  @return true if the key exists
+         */
+        boolean exists(int database, String key);
+
+        /** Returns the value of the key in database 0
+         *  @param key key
+         *  @return value, null if the key does not exist
+         */
+        String get(String key);
+
+        /** Returns the length of the list in database 0
+         *  @param key key
+         *  @return length
+         */
+        long llen(String key);
+
+        /** Returns the size of the set in database 0
+         *  @param key key
+         *  @return size
+         */
+        long scard(String key);
+
+        /** Appends the value to the list in database 0
+         *  @param key key
+         *  @param value value
+         */
+        void rpush(String key, String value);
+
+        /** Deletes the key in database 0
+         *  @param key key
+         */
+        void del(String key);
+
+        /** Drops every subscribed connection on the server */
+        void killSubscribers();
+
+        /** Drops every connection of a client made by {@link #newClient(int)}
+         *  @param dedicated client
+         */
+        void killConnections(AbstractRedisLockClient dedicated);
+
+        /** Returns the ids of the connections a client made by {@link #newClient(int)} has open on the server
+         *  @param dedicated client
+         *  @return connection ids
+         */
+        Set<String> getConnections(AbstractRedisLockClient dedicated);
+
+        /** Makes the server a replica of a primary that cannot be reached, so it refuses writes like an old primary
+         *  after a failover, or makes it a primary again
+         *  @param read_only true to refuse writes
+         */
+        void setReadOnly(boolean read_only);
+
+        /** Subscribes to the lock channel, returning once subscribed
+         *  @param listener listener of messages
+         *  @return handle that unsubscribes when closed
+         */
+        AutoCloseable subscribe(Consumer<String> listener);
+    }
+
     private static AbstractRedisLockClient client = null;
+    private static Server server = null;
     public final static String HOSTNAME = "localhost";
     public final static int PORT = 6379;
 
@@ -21,6 +131,14 @@ public class TestSingleInstance {
         client = in_client;
     }
 
+    public static void setUp(AbstractRedisLockClient in_client, Server in_server){
+
+        assertTrue("in_server is null!", in_server != null);
+
+        setUp(in_client);
+        server = in_server;
+    }
+
     public static void testMultipleWriteLocks(){
 
         // Check database connection
@@ -42,4 +160,1587 @@ public class TestSingleInstance {
         assertTrue("The fair experiment test has failed.", TestFunction.performMultipleWriteLock(client.getLock(Utility.generateRandomString(8), true), num_threads, 5, TimeUnit.SECONDS));
 
     }
-}
\ No newline at end of file
+
+    public static void testLockRegistry(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        // Same lockpoint and fairness should be interned
+        String lockpoint = Utility.generateRandomString(8);
+        assertSame("getLock did not return the interned instance.", client.getLock(lockpoint), client.getLock(lockpoint));
+        assertSame("getLock did not return the interned fair instance.", client.getLock(lockpoint, true), client.getLock(lockpoint, true));
+        assertNotSame("Fair and unfair locks should not share the instance.", client.getLock(lockpoint, false), client.getLock(lockpoint, true));
+
+        // Eviction must keep registry bounded
+        int old_capacity = client.getLockRegistryCapacity();
+        try{
+            client.setLockRegistryCapacity(8);
+            for(int i = 0; i < 100; i++) client.getLock(lockpoint + i);
+            assertTrue("Lock registry is not bounded.", client.getLockRegistrySize() <= 16);
+
+            // A hot lockpoint survives a stream of cold ones larger than the capacity
+            RedisReadWriteLock hot = client.getLock(lockpoint + "hot");
+            for(int i = 0; i < 100; i++){
+                client.getLock(lockpoint + "cold" + i);
+                assertSame("Hot lockpoint should stay interned.", hot, client.getLock(lockpoint + "hot"));
+            }
+            assertTrue("Lock registry is not bounded.", client.getLockRegistrySize() <= 16);
+        }finally{
+            client.setLockRegistryCapacity(old_capacity);
+        }
+    }
+
+    public static void testSemaphore(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        // Create semaphore
+        final int permits = 3;
+        final String name = Utility.generateRandomString(8);
+        final AtomicInteger in_use = new AtomicInteger();
+        final AtomicBoolean exceeded = new AtomicBoolean(false);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        // Create threads that acquire one or two permits at a time
+        Thread[] threads = new Thread[10];
+        for(int i = 0; i < threads.length; i++){
+            final int wanted = (i % 2) + 1;
+            threads[i] = new Thread(() -> {
+                RedisSemaphore semaphore = client.getSemaphore(name, permits);
+                try{
+                    if(!semaphore.tryAcquire(wanted, 5, TimeUnit.SECONDS)){
+                        failed.set(true);
+                        return;
+                    }
+                    if(in_use.addAndGet(wanted) > permits) exceeded.set(true);
+                    Thread.sleep(20);
+                    in_use.addAndGet(-wanted);
+                    semaphore.release(wanted);
+                }catch(InterruptedException e){
+                    failed.set(true);
+                }
+            });
+        }
+        for(Thread thread : threads) thread.start();
+        for(Thread thread : threads){
+            try{
+                thread.join();
+            }catch(InterruptedException e){
+                assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+            }
+        }
+        assertTrue("A semaphore acquisition timed out.", !failed.get());
+        assertTrue("More permits were handed out than the semaphore has.", !exceeded.get());
+
+        // Bulk acquisition takes all permits
+        RedisSemaphore holder = client.getSemaphore(name, permits);
+        RedisSemaphore other = client.getSemaphore(name, permits);
+        try{
+            assertTrue("Failed to acquire all permits.", holder.tryAcquire(permits, 1, TimeUnit.SECONDS));
+            assertTrue("Available permits should be zero.", other.availablePermits() == 0);
+            assertTrue("Acquired a permit while all were taken.", !other.tryAcquire(1, 100, TimeUnit.MILLISECONDS));
+            holder.release(permits);
+            assertTrue("Available permits should be restored.", other.availablePermits() == permits);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testStripedLock(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        // Create striped lock
+        StripedRedisLock striped = client.getStripedLock(Utility.generateRandomString(8), 4, false);
+
+        // Find two keys sharing a stripe and one key on another stripe
+        String first = "key0";
+        String same = null;
+        String other = null;
+        for(int i = 1; same == null || other == null; i++){
+            String key = "key" + i;
+            if(striped.getStripe(key) == striped.getStripe(first)){
+                if(same == null) same = key;
+            }else if(other == null) other = key;
+        }
+        assertTrue("Stripe should be stable.", striped.getStripe(first) == striped.getStripe(first));
+
+        // Keys on one stripe are merged and stripes are in ascending order
+        StripedRedisLock.MultiLock holder = striped.getLocks(other, first, same);
+        int[] stripes = holder.getStripes();
+        assertTrue("Keys sharing a stripe should be merged.", stripes.length == 2);
+        assertTrue("Stripes should be in ascending order.", stripes[0] < stripes[1]);
+        assertTrue("Merged key should count as a collision.", striped.getCollisionRate() > 0);
+
+        try{
+            // Colliding key is excluded, and a failed multi-key lock keeps nothing
+            assertTrue("Failed to lock the stripes.", holder.tryLock(1, TimeUnit.SECONDS));
+            StripedRedisLock.MultiLock single = striped.getLock(same);
+            assertTrue("Acquired a stripe that is already held.", !single.tryLock());
+            assertTrue("Contention should be counted.", striped.getContendedCount() == 1);
+            holder.unlock();
+            assertTrue("Stripes should be released.", !holder.isLocked());
+            assertTrue("Failed to lock the released stripe.", single.tryLock(1, TimeUnit.SECONDS));
+            StripedRedisLock.MultiLock both = striped.getLocks(first, other);
+            assertTrue("Acquired a stripe that is already held.", !both.tryLock(100, TimeUnit.MILLISECONDS));
+            single.unlock();
+            StripedRedisLock.MultiLock lone = striped.getLock(other);
+            assertTrue("Failed multi-key lock should have released its stripes.", lone.tryLock());
+            lone.unlock();
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+
+        // Expected collision rate grows with the number of held keys
+        assertTrue("Single key cannot collide.", striped.getExpectedCollisionRate(1) == 0);
+        assertTrue("Collision rate should grow.", striped.getExpectedCollisionRate(2) < striped.getExpectedCollisionRate(3));
+    }
+
+    public static void testReadLock(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        for(boolean is_fair : new boolean[]{false, true}){
+            RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8), is_fair);
+            AutoCloseableRedisLock first = rrwl.readLock();
+            AutoCloseableRedisLock second = rrwl.readLock();
+            AutoCloseableRedisLock writer = rrwl.writeLock();
+            try{
+                // Readers share the lock and keep the writer out
+                assertTrue("Failed to acquire first read lock.", first.tryLock(1, TimeUnit.SECONDS));
+                assertTrue("Failed to acquire second read lock.", second.tryLock(1, TimeUnit.SECONDS));
+                assertTrue("Acquired write lock while readers hold it.", !writer.tryLock(100, TimeUnit.MILLISECONDS));
+
+                // Writer gets in once the last reader leaves
+                first.unlock();
+                second.unlock();
+                assertTrue("Failed to acquire write lock after readers left.", writer.tryLock(1, TimeUnit.SECONDS));
+
+                // Writer keeps readers out, and a waiting reader gets in once the writer leaves
+                final AutoCloseableRedisLock waiting = rrwl.readLock();
+                Thread thread = new Thread(waiting::lock);
+                thread.start();
+                Thread.sleep(100);
+                assertTrue("Acquired read lock while writer holds it.", !waiting.isLocked());
+                writer.unlock();
+                thread.join(5000);
+                assertTrue("Waiting reader did not get in after writer left.", waiting.isLocked());
+                waiting.unlock();
+            }catch(InterruptedException e){
+                assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+            }
+        }
+    }
+
+    public static void testOptimisticRead(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8));
+        AutoCloseableRedisLock writer = rrwl.writeLock();
+
+        // Stamp stays valid while nobody writes
+        long stamp = rrwl.tryOptimisticRead();
+        assertTrue("Stamp should not be zero.", stamp != 0);
+        assertTrue("Stamp should be valid.", rrwl.validate(stamp));
+        assertTrue("Stamp should be repeatable.", rrwl.tryOptimisticRead() == stamp);
+
+        // Readers do not invalidate stamps
+        AutoCloseableRedisLock reader = rrwl.readLock();
+        assertTrue("Failed to acquire read lock.", reader.tryLock());
+        reader.unlock();
+        assertTrue("Stamp should survive readers.", rrwl.validate(stamp));
+
+        // Writers do
+        assertTrue("Failed to acquire write lock.", writer.tryLock());
+        assertTrue("Stamp should be invalidated by writer.", !rrwl.validate(stamp));
+        assertTrue("No stamp while writer holds it.", rrwl.tryOptimisticRead() == 0);
+        assertTrue("Zero stamp should never validate.", !rrwl.validate(0));
+        writer.unlock();
+        long next = rrwl.tryOptimisticRead();
+        assertTrue("Stamp after writer should be valid.", next != 0 && next != stamp && rrwl.validate(next));
+    }
+
+    public static void testFlightRecorderEvents(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        assertTrue("Flight recorder should be available on this runtime.", LockEvents.AVAILABLE);
+        String lockpoint = Utility.generateRandomString(8);
+        RedisReadWriteLock rrwl = client.getLock(lockpoint);
+        Path file = null;
+        try(Recording recording = new Recording()){
+            recording.enable("com.tomansill.redis.lock.Acquire");
+            recording.enable("com.tomansill.redis.lock.Attempt");
+            recording.enable("com.tomansill.redis.lock.Wait");
+            recording.enable("com.tomansill.redis.lock.Release");
+            recording.enable("com.tomansill.redis.lock.Renewal");
+            recording.start();
+
+            // One uncontended lock, then a waiter that times out and a renewal by someone who does not hold it
+            AutoCloseableRedisLock holder = rrwl.writeLock();
+            assertTrue("Failed to acquire lock.", holder.tryLock());
+            assertTrue("Lock should be held.", !rrwl.writeLock().tryLock(100, TimeUnit.MILLISECONDS));
+            assertTrue("Renewal should fail.", client.renewWriteLock(lockpoint, rrwl.getServerLockpoint(), "not-held", 1000) < 0);
+            holder.unlock();
+
+            // Session heartbeat
+            String session_client_id = null;
+            if(server != null){
+                AbstractRedisLockClient dedicated = server.newClient(0);
+                session_client_id = dedicated.getClientId();
+                dedicated.setSessionTimeout(1, TimeUnit.SECONDS);
+                dedicated.setSessionTimeout(0, TimeUnit.SECONDS);
+            }
+
+            recording.stop();
+            file = Files.createTempFile("redis-lock", ".jfr");
+            recording.dump(file);
+
+            // Count the events of this lockpoint
+            Map<String, Integer> counts = new HashMap<>();
+            boolean timed_out = false;
+            boolean session_renewed = false;
+            for(RecordedEvent event : RecordingFile.readAllEvents(file)){
+                if(event.getEventType().getName().equals("com.tomansill.redis.lock.Renewal") && event.getBoolean("session")){
+                    session_renewed |= event.getBoolean("success") && event.getLong("remainingLease") == 1000;
+                    continue;
+                }
+                if(!lockpoint.equals(event.getString("lockpoint"))) continue;
+                counts.merge(event.getEventType().getName(), 1, Integer::sum);
+                if(event.getEventType().getName().equals("com.tomansill.redis.lock.Wait")){
+                    timed_out |= "timeout".equals(event.getString("cause"));
+                }
+                if(event.getEventType().getName().equals("com.tomansill.redis.lock.Acquire") && !event.getBoolean("acquired")){
+                    assertTrue("Failed acquisition should have made a round trip.", event.getInt("roundTrips") >= 1);
+                }
+                if(event.getEventType().getName().equals("com.tomansill.redis.lock.Renewal")){
+                    assertFalse("Renewal should have failed.", event.getBoolean("success"));
+                    assertTrue("Renewal should report the lease of the holder.", event.getLong("remainingLease") > 0);
+                }
+            }
+            assertTrue("Expected two acquisitions.", counts.getOrDefault("com.tomansill.redis.lock.Acquire", 0) == 2);
+            assertTrue("Expected attempts.", counts.getOrDefault("com.tomansill.redis.lock.Attempt", 0) >= 2);
+            assertTrue("Expected one release.", counts.getOrDefault("com.tomansill.redis.lock.Release", 0) == 1);
+            assertTrue("Expected the wait to time out.", timed_out);
+            assertTrue("Expected one renewal.", counts.getOrDefault("com.tomansill.redis.lock.Renewal", 0) == 1);
+            assertTrue("Expected a session renewal.", session_client_id == null || session_renewed);
+        }catch(IOException e){
+            assertTrue("IOException was thrown. Reason: " + e.getMessage(), false);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            if(file != null) file.toFile().delete();
+        }
+    }
+
+    public static void testLockIntrospection(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        String written = Utility.generateRandomString(8);
+        String read = Utility.generateRandomString(8);
+        RedisReadWriteLock writer_rrwl = client.getLock(written, true);
+        AutoCloseableRedisLock writer = writer_rrwl.writeLock();
+        AutoCloseableRedisLock reader = client.getLock(read).readLock();
+        AutoCloseableRedisLock waiter = writer_rrwl.writeLock();
+        Thread thread = null;
+        try{
+            assertTrue("Failed to acquire write lock.", writer.tryLock());
+            assertTrue("Failed to acquire read lock.", reader.tryLock());
+
+            // Queue up a fair waiter
+            thread = new Thread(() -> {
+                try{
+                    if(waiter.tryLock(5, TimeUnit.SECONDS)) waiter.unlock();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            Thread.sleep(200);
+
+            // List them
+            final Map<String, LockInfo> infos = new ConcurrentHashMap<>();
+            final AtomicInteger duplicates = new AtomicInteger();
+            client.forEachLock(info -> {
+                if(infos.put(info.getLockpoint(), info) != null) duplicates.incrementAndGet();
+            });
+            assertTrue("Lockpoints should be listed once.", duplicates.get() == 0);
+
+            LockInfo info = infos.get(written);
+            assertTrue("Write locked lockpoint should be listed.", info != null);
+            assertTrue("Holder should be this client.", info.getHolder() != null && info.getHolder().startsWith(client.getClientId() + ":"));
+            assertTrue("Lease should be running.", info.getRemainingLease(TimeUnit.MILLISECONDS) > 0);
+            assertTrue("One waiter should be queued.", info.getQueueDepth() == 1 && info.getWaiters().size() == 1);
+            assertTrue("Waiter should be this client.", info.getWaiters().get(0).startsWith(client.getClientId() + ":"));
+
+            info = infos.get(read);
+            assertTrue("Read locked lockpoint should be listed.", info != null);
+            assertTrue("Read lock should have one reader and no writer.", info.getReaderCount() == 1 && info.getHolder() == null && info.isHeld());
+            assertTrue("Read lease should be running.", info.getRemainingLease(TimeUnit.MILLISECONDS) > 0);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            writer.unlock();
+            reader.unlock();
+            if(thread != null){
+                try{
+                    thread.join();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public static void testPriorityWaiters(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8), true);
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+        Thread low = null;
+        Thread high = null;
+        try{
+            assertTrue("Failed to acquire write lock.", holder.tryLock());
+
+            // Queue a low priority waiter, then a high priority one
+            low = waiter(rrwl.writeLock(), "low", order);
+            Thread.sleep(200);
+            high = waiter(rrwl.writeLock(5), "high", order);
+            Thread.sleep(200);
+
+            // High priority waiter should go first
+            holder.unlock();
+            low.join(10000);
+            high.join(10000);
+            assertTrue("Higher priority waiter should acquire first, order was " + order, "high,low".equals(String.join(",", order)));
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            holder.unlock();
+        }
+    }
+
+    public static void testSharedReadLeases(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        String lockpoint = Utility.generateRandomString(8);
+        RedisReadWriteLock rrwl = client.getLock(lockpoint);
+        AutoCloseableRedisLock[] readers = new AutoCloseableRedisLock[20];
+        client.setSharedReadLeases(true);
+        client.setSharedReadLinger(10, TimeUnit.SECONDS);
+        try{
+
+            // Readers should share one registration on the server
+            for(int i = 0; i < readers.length; i++){
+                readers[i] = rrwl.readLock();
+                assertTrue("Failed to acquire read lock.", readers[i].tryLock());
+            }
+            assertTrue("Readers should share one registration.", readerCount(lockpoint) == 1);
+
+            // Registration lingers after the last reader leaves
+            for(AutoCloseableRedisLock reader : readers) reader.unlock();
+            assertTrue("Registration should linger.", readerCount(lockpoint) == 1);
+
+            // Writer should not have to wait out the linger
+            AutoCloseableRedisLock writer = rrwl.writeLock();
+            long start = System.nanoTime();
+            assertTrue("Writer failed to acquire the lock.", writer.tryLock(5, TimeUnit.SECONDS));
+            assertTrue("Writer should not wait out the linger.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertTrue("Registration should be given up.", readerCount(lockpoint) == 0);
+            writer.unlock();
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            for(AutoCloseableRedisLock reader : readers) if(reader != null) reader.unlock();
+            client.setSharedReadLeases(false);
+            client.setSharedReadLinger(SharedReadLeases.DEFAULT_LINGER_MILLISECONDS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void testUpgradeDowngrade(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8));
+        AutoCloseableRedisLock writer = rrwl.writeLock();
+        AutoCloseableRedisLock other = rrwl.readLock();
+        AutoCloseableRedisLock read = null;
+        AutoCloseableRedisLock upgraded = null;
+        final AtomicBoolean other_acquired = new AtomicBoolean(false);
+        try{
+            assertTrue("Failed to acquire write lock.", writer.tryLock());
+
+            // Reader waits for the writer
+            Thread thread = new Thread(() -> {
+                try{
+                    other_acquired.set(other.tryLock(5, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            Thread.sleep(200);
+            assertTrue("Reader should wait for the writer.", !other_acquired.get());
+
+            // Downgrade lets the waiting reader in
+            read = writer.downgrade();
+            assertTrue("Downgrade should return a held read lock.", read != null && read.isLocked() && !writer.isLocked());
+            thread.join(5000);
+            assertTrue("Waiting reader should get in after downgrade.", other_acquired.get());
+
+            // Upgrade only works for the only reader
+            assertTrue("Upgrade should fail while another reader holds it.", read.tryUpgrade() == null && read.isLocked());
+            other.unlock();
+            upgraded = read.tryUpgrade();
+            assertTrue("Upgrade should return a held write lock.", upgraded != null && upgraded.isLocked() && !read.isLocked());
+            assertTrue("Readers should be kept out after upgrade.", !rrwl.readLock().tryLock());
+            try{
+                upgraded.tryUpgrade();
+                assertTrue("Upgrading a write lock should not be supported.", false);
+            }catch(UnsupportedOperationException e){
+                // Expected
+            }
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            writer.unlock();
+            other.unlock();
+            if(read != null) read.unlock();
+            if(upgraded != null) upgraded.unlock();
+        }
+    }
+
+    public static void testNegativeCache(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8));
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        AutoCloseableRedisLock other = rrwl.writeLock();
+        AutoCloseableRedisLock third = rrwl.writeLock();
+        client.setNegativeCacheTime(5, TimeUnit.SECONDS);
+        try{
+            assertTrue("Failed to acquire write lock.", holder.tryLock(TimeUnit.MILLISECONDS, 500));
+
+            // Found held on the server, then remembered
+            assertTrue("tryLock should fail while held.", !other.tryLock());
+            assertTrue("tryLock should fail while remembered as held.", !other.tryLock());
+
+            // Not remembered past the lease of the holder
+            Thread.sleep(700);
+            assertTrue("tryLock should succeed once the lease of the holder ran out.", other.tryLock());
+
+            // Forgotten once unlocked
+            assertTrue("tryLock should fail while held.", !third.tryLock());
+            other.unlock();
+            assertTrue("tryLock should succeed after unlock.", third.tryLock());
+
+            // Waiting locks always go to the server
+            assertTrue("tryLock should fail while held.", !other.tryLock());
+            third.unlock();
+            assertTrue("Waiting tryLock should succeed after unlock.", other.tryLock(1, TimeUnit.SECONDS));
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            client.setNegativeCacheTime(0, TimeUnit.SECONDS);
+            holder.unlock();
+            other.unlock();
+            third.unlock();
+        }
+    }
+
+    public static void testSessionOwnership(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        RedisReadWriteLock rrwl = client.getLock(Utility.generateRandomString(8));
+        RedisReadWriteLock read_rrwl = client.getLock(Utility.generateRandomString(8));
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        AutoCloseableRedisLock other = rrwl.writeLock();
+        AutoCloseableRedisLock reader = read_rrwl.readLock();
+        AutoCloseableRedisLock writer = read_rrwl.writeLock();
+        client.setSessionTimeout(300, TimeUnit.MILLISECONDS);
+        try{
+            assertEquals("Session timeout should be set.", 300, client.getSessionTimeout(TimeUnit.MILLISECONDS));
+            assertTrue("Failed to acquire write lock.", holder.tryLock());
+            assertTrue("Failed to acquire read lock.", reader.tryLock());
+
+            // Held past the session timeout while the heartbeat keeps the session alive
+            Thread.sleep(1000);
+            assertTrue("tryLock should fail while the session holds the write lock.", !other.tryLock());
+            assertTrue("tryLock should fail while the session holds the read lock.", !writer.tryLock());
+
+            // Released once the session runs out
+            client.setSessionTimeout(0, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            assertTrue("tryLock should succeed once the session of the holder ran out.", other.tryLock());
+            assertTrue("tryLock should succeed once the session of the reader ran out.", writer.tryLock());
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            client.setSessionTimeout(0, TimeUnit.MILLISECONDS);
+            holder.unlock();
+            other.unlock();
+            reader.unlock();
+            writer.unlock();
+        }
+    }
+
+    public static void testLockedExecutor(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        final String lockpoint = Utility.generateRandomString(8);
+        final LockedExecutor executor = client.getLockedExecutor(false);
+        final int[] counter = {0};
+        final int tasks = 400;
+        List<CompletableFuture<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            threads[t] = new Thread(() -> {
+                for(int i = 0; i < tasks / threads.length; i++){
+                    futures.add(executor.submit(lockpoint, () -> {
+                        assertTrue("Task should run while the lock is held.", !client.getLock(lockpoint).writeLock().tryLock());
+                        return ++counter[0];
+                    }));
+                }
+            });
+            threads[t].start();
+        }
+        CompletableFuture<Integer> failing = null;
+        try{
+            for(Thread thread : threads) thread.join();
+            failing = executor.submit(lockpoint, () -> {
+                throw new IllegalStateException("failing task");
+            });
+            for(CompletableFuture<Integer> future : futures) future.get(10, TimeUnit.SECONDS);
+        }catch(Exception e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+
+        // Every task ran once, in batches
+        assertEquals("Every task should run once.", tasks, counter[0]);
+        try{
+            failing.get(10, TimeUnit.SECONDS);
+            assertTrue("Failing task should complete exceptionally.", false);
+        }catch(ExecutionException e){
+            assertTrue("Failure of the task should be passed on.", e.getCause() instanceof IllegalStateException);
+        }catch(Exception e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+        assertEquals("Task count should include every task.", tasks + 1, executor.getTaskCount());
+        assertTrue("Tasks should share acquisitions.", executor.getAcquisitionCount() < executor.getTaskCount());
+        AutoCloseableRedisLock lock = client.getLock(lockpoint).writeLock();
+        assertTrue("Lock should be released after the batches.", lock.tryLock());
+        lock.unlock();
+
+        // Tasks submitted while combiners step down still run in submission order of each submitter
+        final String ordered_lockpoint = Utility.generateRandomString(8);
+        final AtomicInteger out_of_order = new AtomicInteger();
+        final List<CompletableFuture<Void>> ordered = Collections.synchronizedList(new ArrayList<>());
+        for(int t = 0; t < threads.length; t++){
+            threads[t] = new Thread(() -> {
+                final int[] ran = {0};
+                for(int i = 0; i < 500; i++){
+                    final int index = i;
+                    ordered.add(executor.submit(ordered_lockpoint, () -> {
+                        if(ran[0]++ != index) out_of_order.incrementAndGet();
+                    }));
+                    if(ThreadLocalRandom.current().nextInt(4) == 0) LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(200000));
+                }
+            });
+            threads[t].start();
+        }
+        try{
+            for(Thread thread : threads) thread.join();
+            for(CompletableFuture<Void> future : ordered) future.get(10, TimeUnit.SECONDS);
+        }catch(Exception e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+        assertEquals("Tasks of a submitter should run in submission order.", 0, out_of_order.get());
+
+        // Closed executor takes no more tasks
+        executor.close();
+        assertTrue("Executor should be closed.", executor.isClosed());
+        try{
+            executor.submit(lockpoint, () -> {});
+            assertTrue("Closed executor should refuse tasks.", false);
+        }catch(IllegalStateException e){
+            // Expected
+        }
+    }
+
+    public static void testLeaderElection(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        final String name = Utility.generateRandomString(8);
+        final AtomicInteger gained = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+        LeaderElection first = client.getLeaderElection(name);
+        LeaderElection second = client.getLeaderElection(name);
+        first.setLease(300, TimeUnit.MILLISECONDS);
+        second.setLease(300, TimeUnit.MILLISECONDS);
+        first.addListener(new LeaderElection.Listener(){
+            public void leadershipGained(){
+                gained.incrementAndGet();
+            }
+            public void leadershipLost(){
+                lost.incrementAndGet();
+            }
+        });
+
+        // A holder that never unlocks stands in for a crashed leader
+        AutoCloseableRedisLock crashed = client.getLock(name).writeLock();
+        try{
+            assertTrue("Failed to acquire write lock.", crashed.tryLock(TimeUnit.MILLISECONDS, 400));
+            final long crashed_at = System.nanoTime();
+            first.start();
+            Thread.sleep(200);
+            assertTrue("Candidate should not lead while the lock is held.", !first.isLeader());
+            while(!first.isLeader() && System.nanoTime() - crashed_at < TimeUnit.SECONDS.toNanos(2)) Thread.sleep(5);
+            long takeover = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - crashed_at);
+            assertTrue("Candidate should take over once the lease ran out, took " + takeover + " ms.", first.isLeader() && takeover < 600);
+
+            // Leadership outlives the lease while renewed
+            second.start();
+            Thread.sleep(1000);
+            assertTrue("Leader should keep leading while it renews.", first.isLeader() && !second.isLeader());
+
+            // Followers take over right after a step-down
+            final long stepped_down_at = System.nanoTime();
+            first.stop();
+            while(!second.isLeader() && System.nanoTime() - stepped_down_at < TimeUnit.SECONDS.toNanos(2)) Thread.sleep(1);
+            long failover = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stepped_down_at);
+            assertTrue("Follower should take over right after the step-down, took " + failover + " ms.", second.isLeader() && failover < 100);
+            assertTrue("Listener should be told once of each change.", gained.get() == 1 && lost.get() == 1 && !first.isLeader());
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            first.stop();
+            second.stop();
+            crashed.unlock();
+        }
+    }
+
+    public static void testAdmissionControl(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        final String lockpoint = Utility.generateRandomString(8);
+        final String other_lockpoint = Utility.generateRandomString(8);
+        final RedisReadWriteLock rrwl = client.getLock(lockpoint);
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        AutoCloseableRedisLock other_holder = client.getLock(other_lockpoint).writeLock();
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread[] waiters = new Thread[2];
+        final long shed_before = client.getShedCount();
+        client.setMaxWaitersPerLockpoint(2);
+        try{
+            assertTrue("Failed to acquire write lock.", holder.tryLock());
+            assertTrue("Failed to acquire write lock.", other_holder.tryLock());
+            for(int i = 0; i < waiters.length; i++){
+                waiters[i] = new Thread(() -> {
+                    AutoCloseableRedisLock waiter = rrwl.writeLock();
+                    try{
+                        if(waiter.tryLock(5, TimeUnit.SECONDS)){
+                            acquired.incrementAndGet();
+                            waiter.unlock();
+                        }
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                waiters[i].start();
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while(client.getWaiterCount(lockpoint) < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals("Both waiters should be counted.", 2, client.getWaiterCount(lockpoint));
+
+            // Locks that do not wait are never turned away, locks that would wait over the limit are
+            assertTrue("tryLock should fail while held.", !rrwl.writeLock().tryLock());
+            try{
+                rrwl.writeLock().tryLock(1, TimeUnit.SECONDS);
+                assertTrue("Lock over the limit of the lockpoint should be turned away.", false);
+            }catch(TooManyWaitersException e){
+                assertTrue("Limit of the lockpoint should be reported.", !e.isClientLimit() && e.getLimit() == 2 && lockpoint.equals(e.getLockpoint()));
+            }
+
+            // Limit of the client covers every lockpoint
+            client.setMaxWaitersPerLockpoint(0);
+            client.setMaxWaiters(2);
+            try{
+                client.getLock(other_lockpoint).readLock().tryLock(1, TimeUnit.SECONDS);
+                assertTrue("Lock over the limit of the client should be turned away.", false);
+            }catch(TooManyWaitersException e){
+                assertTrue("Limit of the client should be reported.", e.isClientLimit() && e.getLimit() == 2);
+            }
+            assertEquals("Shed locks should be counted.", shed_before + 2, client.getShedCount());
+            assertEquals("Shed locks should not stay counted as waiters.", 2, client.getWaiterCount());
+
+            // Waiters that got in are served
+            holder.unlock();
+            for(Thread waiter : waiters) waiter.join();
+            assertEquals("Admitted waiters should acquire the lock.", 2, acquired.get());
+            assertEquals("Waiters should be counted out.", 0, client.getWaiterCount(lockpoint));
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            client.setMaxWaiters(0);
+            client.setMaxWaitersPerLockpoint(0);
+            holder.unlock();
+            other_holder.unlock();
+        }
+    }
+
+    public static void testClientClose(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        final AbstractRedisLockClient closing = server.newClient(0);
+
+        final String write_lockpoint = Utility.generateRandomString(8);
+        final String read_lockpoint = Utility.generateRandomString(8);
+        final AutoCloseableRedisLock held_write = closing.getLock(write_lockpoint).writeLock();
+        final AutoCloseableRedisLock held_read = closing.getLock(read_lockpoint).readLock();
+        final AutoCloseableRedisLock waiting = closing.getLock(write_lockpoint).writeLock();
+        final AtomicReference<Throwable> waiter_failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try{
+                waiting.tryLock(10, TimeUnit.SECONDS);
+            }catch(Throwable t){
+                waiter_failure.set(t);
+            }
+        });
+        try{
+            assertTrue("Failed to acquire write lock.", held_write.tryLock(TimeUnit.SECONDS, 30));
+            assertTrue("Failed to acquire read lock.", held_read.tryLock(TimeUnit.SECONDS, 30));
+            waiter.start();
+            Thread.sleep(100);
+
+            // Closing wakes the waiter up and releases what is held, well before the leases run out
+            closing.close();
+            waiter.join(2000);
+            assertTrue("Waiter should give up once the client is closed.", !waiter.isAlive() && waiter_failure.get() instanceof IllegalStateException);
+            assertTrue("Client should be closed.", closing.isClosed());
+            AutoCloseableRedisLock write = client.getLock(write_lockpoint).writeLock();
+            AutoCloseableRedisLock read = client.getLock(read_lockpoint).writeLock();
+            assertTrue("Write lock should be released on close.", write.tryLock());
+            assertTrue("Read lock should be released on close.", read.tryLock());
+            write.unlock();
+            read.unlock();
+
+            // Unlocking released locks and closing again do nothing, acquiring fails
+            held_write.unlock();
+            held_read.unlock();
+            closing.close();
+            try{
+                closing.getLock(Utility.generateRandomString(8)).writeLock().tryLock();
+                assertTrue("Acquiring on a closed client should fail.", false);
+            }catch(IllegalStateException e){
+                // Expected
+            }
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            closing.close();
+        }
+    }
+
+    public static void testConditionRecovery(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+
+        final String lockpoint = Utility.generateRandomString(8);
+        final AutoCloseableRedisLock waiting_lock = client.getLock(lockpoint, true).writeLock();
+        final Condition waiting_condition = waiting_lock.newCondition("recovery");
+        final AtomicBoolean signalled = new AtomicBoolean(false);
+        final AtomicBoolean returned = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> {
+            waiting_lock.lock();
+            try{
+                signalled.set(waiting_condition.await(10, TimeUnit.SECONDS));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }finally{
+                returned.set(true);
+                waiting_lock.unlock();
+            }
+        });
+        AutoCloseableRedisLock signaller = client.getLock(lockpoint, true).writeLock();
+        try{
+            waiter.start();
+            Thread.sleep(300);
+
+            // Recovering from lost messages wakes up every waiter, the condition waiter is still queued and keeps waiting
+            client.recoverLostMessages();
+            Thread.sleep(300);
+            assertTrue("Waiter should keep waiting after a recovery wake-up.", !returned.get());
+
+            // So the signal reaches it
+            assertTrue("Failed to acquire write lock.", signaller.tryLock(5, TimeUnit.SECONDS));
+            signaller.newCondition("recovery").signal();
+            signaller.unlock();
+            waiter.join(5000);
+            assertTrue("Waiter should be signalled.", signalled.get());
+
+            // Signalling after the lease ran out is refused
+            assertTrue("Failed to acquire write lock.", signaller.tryLock(TimeUnit.MILLISECONDS, 100));
+            Thread.sleep(200);
+            try{
+                signaller.newCondition("recovery").signal();
+                assertTrue("Signalling without holding the lock should fail.", false);
+            }catch(IllegalMonitorStateException e){
+                // Expected
+            }
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testAbandonedConditionWaiter(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        final String lockpoint = Utility.generateRandomString(8);
+        final String condition = "condition:" + lockpoint + ":abandoned";
+        final AutoCloseableRedisLock waiting_lock = client.getLock(lockpoint, true).writeLock();
+        final Condition waiting_condition = waiting_lock.newCondition("abandoned");
+        final AtomicBoolean signalled = new AtomicBoolean(false);
+        final AtomicBoolean returned = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> {
+            waiting_lock.lock();
+            try{
+                signalled.set(waiting_condition.await(10, TimeUnit.SECONDS));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }finally{
+                returned.set(true);
+                waiting_lock.unlock();
+            }
+        });
+        AutoCloseableRedisLock signaller = client.getLock(lockpoint, true).writeLock();
+        try{
+
+            // A waiter that went away without leaving the condition queue, ahead of a live one
+            server.rpush(condition, "gone:1");
+            waiter.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while(server.llen(condition) < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals("Waiter should be queued behind the abandoned one.", 2, server.llen(condition));
+
+            // Signalling one passes over the abandoned waiter and reaches the live one
+            assertTrue("Failed to acquire write lock.", signaller.tryLock(5, TimeUnit.SECONDS));
+            signaller.newCondition("abandoned").signal();
+            signaller.unlock();
+            waiter.join(5000);
+            assertTrue("Waiter should return after the signal.", returned.get());
+            assertTrue("Waiter should be signalled.", signalled.get());
+            assertEquals("Abandoned waiter should be dropped.", 0, server.llen(condition));
+            assertEquals("Abandoned waiter should not be moved to the lockwait.", 0, server.llen("lockwait:" + lockpoint));
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testSubscriptionRecovery(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Dedicated client so the other tests don't see the reconnect
+        AbstractRedisLockClient dedicated = server.newClient(0);
+        RedisReadWriteLock rrwl = dedicated.getLock("recovery:" + System.nanoTime(), true);
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        assertTrue("Failed to acquire lock.", holder.tryLock());
+
+        // Park a waiter
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        final AutoCloseableRedisLock waiter = rrwl.writeLock();
+        Thread thread = new Thread(() -> {
+            try{
+                acquired.set(waiter.tryLock(10, TimeUnit.SECONDS));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        Path file = null;
+        try(Recording recording = new Recording()){
+            recording.enable("com.tomansill.redis.lock.ScriptReload");
+            recording.start();
+            thread.start();
+            Thread.sleep(200);
+
+            // Drop the subscription connection and unlock before it comes back, so the unlock notification is lost
+            server.killSubscribers();
+            holder.unlock();
+
+            // The reconnect retries the waiter
+            thread.join(5000);
+
+            // Scripts were loaded again by the dispatcher, the listener thread only handed the reconnect over
+            recording.stop();
+            file = Files.createTempFile("redis-lock", ".jfr");
+            recording.dump(file);
+            int reloads = 0;
+            for(RecordedEvent event : RecordingFile.readAllEvents(file)){
+                if(!event.getEventType().getName().equals("com.tomansill.redis.lock.ScriptReload") || !"reconnect".equals(event.getString("reason"))) continue;
+                reloads++;
+                assertTrue("Scripts should be loaded again off the listener thread.", event.getThread().getJavaName().startsWith("redis-lock-dispatcher-"));
+            }
+            assertTrue("Scripts should be loaded again after the reconnect.", reloads > 0);
+        }catch(IOException e){
+            assertTrue("IOException was thrown. Reason: " + e.getMessage(), false);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }finally{
+            if(file != null) file.toFile().delete();
+        }
+        assertTrue("Waiter did not acquire the lock after the subscription came back.", acquired.get());
+        assertTrue("Reconnect should have been counted.", dedicated.getReconnectCount() >= 1);
+        assertTrue("Recovery time should have been measured.", dedicated.getLastRecoveryTime(TimeUnit.NANOSECONDS) > 0);
+        waiter.unlock();
+    }
+
+    public static void testConnectionRecovery(AbstractRedisLockClient dedicated){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        AutoCloseableRedisLock lock = dedicated.getLock("connrecovery:" + System.nanoTime()).writeLock();
+        assertTrue("Failed to acquire lock.", lock.tryLock());
+        lock.unlock();
+
+        // Commands on the dropped connections may fail, after that the client must be on new ones
+        server.killConnections(dedicated);
+        boolean locked = false;
+        boolean recovered = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!recovered && System.nanoTime() < deadline){
+            try{
+                if(!locked) locked = lock.tryLock();
+                if(locked){
+                    lock.unlock();
+                    recovered = true;
+                }
+            }catch(RuntimeException e){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            }
+        }
+        assertTrue("Client did not get a new connection after its connections were dropped.", recovered);
+    }
+
+    public static void testFailoverRecovery(AbstractRedisLockClient dedicated){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        AutoCloseableRedisLock lock = dedicated.getLock("failover:" + System.nanoTime()).writeLock();
+        assertTrue("Failed to acquire lock.", lock.tryLock());
+        lock.unlock();
+        Set<String> before = server.getConnections(dedicated);
+
+        // Old primary refuses the write
+        server.setReadOnly(true);
+        boolean refused = false;
+        try{
+            lock.tryLock();
+        }catch(RuntimeException e){
+            refused = true;
+        }finally{
+            server.setReadOnly(false);
+        }
+        assertTrue("Read-only server took the write.", refused);
+
+        // Client gets going again once there is a primary
+        boolean recovered = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!recovered && System.nanoTime() < deadline){
+            try{
+                recovered = lock.tryLock();
+            }catch(RuntimeException e){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            }
+        }
+        assertTrue("Client did not recover after the server took writes again.", recovered);
+        lock.unlock();
+
+        // Connection that got the refusal was dropped rather than kept for the next command. The server may list a
+        // closed connection until it gets around to the disconnect, so it is given a moment
+        boolean dropped = false;
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while(!dropped && System.nanoTime() < deadline){
+            Set<String> kept = new HashSet<>(before);
+            kept.retainAll(server.getConnections(dedicated));
+            dropped = kept.size() < before.size();
+            if(!dropped) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assertTrue("Connection to the read-only server was kept.", dropped);
+    }
+
+    public static void testLostWakeUpRecovery(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Dedicated client so the recheck interval can be changed
+        AbstractRedisLockClient dedicated = server.newClient(0);
+        dedicated.setRecheckInterval(60, TimeUnit.SECONDS);
+        String lockpoint = "lostwakeup:" + System.nanoTime();
+        RedisReadWriteLock rrwl = dedicated.getLock(lockpoint, true);
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        try{
+
+            // Wake-up for a lock that is no longer waiting is passed on to the lock behind it
+            AutoCloseableRedisLock holder = rrwl.writeLock();
+            assertTrue("Failed to acquire lock.", holder.tryLock());
+            server.rpush("lockwait:" + lockpoint, dedicated.getClientId() + ":12345");
+            final AutoCloseableRedisLock waiter = rrwl.writeLock();
+            Thread thread = new Thread(() -> {
+                try{
+                    acquired.set(waiter.tryLock(10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            Thread.sleep(200);
+            holder.unlock();
+            thread.join(2000);
+            assertTrue("Orphaned wake-up was not passed on.", acquired.get());
+
+            // Release whose notification never arrives is picked up by the recheck
+            dedicated.setRecheckInterval(200, TimeUnit.MILLISECONDS);
+            acquired.set(false);
+            final AutoCloseableRedisLock second_waiter = rrwl.writeLock();
+            thread = new Thread(() -> {
+                try{
+                    acquired.set(second_waiter.tryLock(10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            Thread.sleep(200);
+            server.del("lockpoint:" + lockpoint); // Lock goes away without anyone being told
+            thread.join(2000);
+            assertTrue("Waiter did not recover from the lost wake-up.", acquired.get());
+            second_waiter.unlock();
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testSemaphoreRecheckOrder(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Waiter for every permit goes first, the waiter for a single permit behind it rechecks all the time
+        AbstractRedisLockClient rechecking = server.newClient(0);
+        rechecking.setRecheckInterval(100, TimeUnit.MILLISECONDS);
+        final String name = "semaphorerecheck:" + System.nanoTime();
+        final AtomicBoolean large_acquired = new AtomicBoolean(false);
+        final AtomicBoolean small_acquired = new AtomicBoolean(false);
+        final RedisSemaphore large = client.getSemaphore(name, 2);
+        final RedisSemaphore small = rechecking.getSemaphore(name, 2);
+        Thread[] threads = new Thread[]{
+            new Thread(() -> {
+                try{
+                    large_acquired.set(large.tryAcquire(2, 10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }),
+            new Thread(() -> {
+                try{
+                    small_acquired.set(small.tryAcquire(1, 10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            })
+        };
+        RedisSemaphore holder = client.getSemaphore(name, 2);
+        try{
+            assertTrue("Failed to acquire all permits.", holder.tryAcquire(2, 1, TimeUnit.SECONDS));
+            for(Thread thread : threads){
+                thread.start();
+                Thread.sleep(200);
+            }
+            assertEquals("Every waiter should be queued.", 2L, server.llen("semaphorewait:" + name));
+
+            // A single permit is not enough for the head, the recheck behind it must not take it
+            holder.release(1);
+            Thread.sleep(700);
+            assertFalse("Waiter behind the head took the permit.", small_acquired.get());
+
+            // Head gets both permits, then the waiter behind it
+            holder.release(1);
+            threads[0].join(5000);
+            assertTrue("Head did not get the permits.", large_acquired.get());
+            assertFalse("Waiter went ahead of the head.", small_acquired.get());
+            large.release(2);
+            threads[1].join(2000);
+            assertTrue("Waiter did not get the permit after the head.", small_acquired.get());
+            small.release(1);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testFairRecheckOrder(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Head of the lockwait never rechecks in time, the waiters behind it recheck all the time
+        AbstractRedisLockClient slow = server.newClient(0);
+        slow.setRecheckInterval(60, TimeUnit.SECONDS);
+        AbstractRedisLockClient rechecking = server.newClient(0);
+        rechecking.setRecheckInterval(100, TimeUnit.MILLISECONDS);
+        String lockpoint = "fairrecheck:" + System.nanoTime();
+        final AtomicBoolean head_acquired = new AtomicBoolean(false);
+        final AtomicBoolean writer_acquired = new AtomicBoolean(false);
+        final AtomicBoolean reader_acquired = new AtomicBoolean(false);
+        final AutoCloseableRedisLock head = slow.getLock(lockpoint, true).writeLock();
+        final AutoCloseableRedisLock writer = rechecking.getLock(lockpoint, true).writeLock();
+        final AutoCloseableRedisLock reader = rechecking.getLock(lockpoint, true).readLock();
+        Thread[] threads = new Thread[]{
+            new Thread(() -> {
+                try{
+                    head_acquired.set(head.tryLock(1500, TimeUnit.MILLISECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }),
+            new Thread(() -> {
+                try{
+                    writer_acquired.set(writer.tryLock(10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }),
+            new Thread(() -> {
+                try{
+                    reader_acquired.set(reader.tryLock(10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            })
+        };
+        AutoCloseableRedisLock holder = slow.getLock(lockpoint, true).writeLock();
+        try{
+            assertTrue("Failed to acquire lock.", holder.tryLock());
+            for(Thread thread : threads){
+                thread.start();
+                Thread.sleep(200);
+            }
+            assertEquals("Every waiter should be queued.", 3L, server.llen("lockwait:" + lockpoint));
+
+            // Lock goes away without anyone being told, the rechecks behind the head must not take it
+            server.del("lockpoint:" + lockpoint);
+            Thread.sleep(700);
+            assertFalse("Writer behind the head took the lock.", writer_acquired.get());
+            assertFalse("Reader behind the head took the lock.", reader_acquired.get());
+
+            // Head gives up and passes the wake-up on, then the writer and the reader go in order
+            threads[0].join(2000);
+            threads[1].join(2000);
+            assertFalse("Head should have timed out.", head_acquired.get());
+            assertTrue("Writer did not get the lock after the head left.", writer_acquired.get());
+            assertFalse("Reader went ahead of the writer.", reader_acquired.get());
+            writer.unlock();
+            threads[2].join(2000);
+            assertTrue("Reader did not get the lock after the writer.", reader_acquired.get());
+            reader.unlock();
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+    }
+
+    public static void testUnlockWithoutWaiters(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        AbstractRedisLockClient dedicated = server.newClient(0);
+        dedicated.setRecheckInterval(60, TimeUnit.SECONDS);
+        RedisReadWriteLock rrwl = dedicated.getLock("nowaiters:" + System.nanoTime(), false);
+
+        // Count the unfair wake-ups
+        final AtomicInteger published = new AtomicInteger();
+        try(AutoCloseable subscription = server.subscribe(message -> {
+            if(message.equals("#")) published.incrementAndGet();
+        })){
+
+            // Nobody waits, nothing is published
+            AutoCloseableRedisLock lock = rrwl.writeLock();
+            for(int i = 0; i < 20; i++){
+                assertTrue("Failed to acquire lock.", lock.tryLock());
+                lock.unlock();
+            }
+            Thread.sleep(200);
+            assertEquals("Unlock published without waiters.", 0, published.get());
+
+            // Unfair waiter is still woken up by the unlock
+            assertTrue("Failed to acquire lock.", lock.tryLock());
+            final AtomicBoolean acquired = new AtomicBoolean(false);
+            final AutoCloseableRedisLock waiter = rrwl.writeLock();
+            Thread waiting = new Thread(() -> {
+                try{
+                    acquired.set(waiter.tryLock(10, TimeUnit.SECONDS));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiting.start();
+            Thread.sleep(200);
+            lock.unlock();
+            waiting.join(2000);
+            assertTrue("Unfair waiter was not woken up.", acquired.get());
+            waiter.unlock();
+        }catch(Exception e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+    }
+
+    public static void testSubscriptionChurn(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Waits start and end all the time, so the subscription is set up and torn down while the pool is busy
+        final AbstractRedisLockClient dedicated = server.newClient(0);
+        final String prefix = "churn:" + System.nanoTime() + ":";
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            threads[t] = new Thread(() -> {
+                try{
+                    for(int i = 0; i < 500; i++){
+                        AutoCloseableRedisLock lock = dedicated.getLock(prefix + ThreadLocalRandom.current().nextInt(16)).writeLock();
+                        if(lock.tryLock(5, TimeUnit.SECONDS)){
+                            LockSupport.parkNanos(200000);
+                            lock.unlock();
+                            acquired.incrementAndGet();
+                        }
+                    }
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }catch(RuntimeException e){
+                    failures.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        try{
+            for(Thread thread : threads) thread.join(60000);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+        assertEquals("Replies got mixed up between connections.", 0, failures.get());
+        assertEquals("Failed to acquire every lock.", threads.length * 500, acquired.get());
+    }
+
+    public static void testFunctionLibrary(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        AbstractRedisLockClient dedicated = server.newClient(0);
+        RedisReadWriteLock rrwl = dedicated.getLock("functions:" + System.nanoTime(), true);
+        if(server.getMajorVersion() < 7){
+
+            // Server without Redis Functions refuses the library every time and the client stays on EVALSHA
+            for(int i = 0; i < 2; i++){
+                boolean refused = false;
+                try{
+                    dedicated.setFunctionLibraryEnabled(true);
+                }catch(RuntimeException e){
+                    assertFalse("Connection was left out of step.", e instanceof IllegalStateException);
+                    refused = true;
+                }
+                assertTrue("Library was loaded on a server without Redis Functions.", refused);
+                assertFalse("Function library enabled after it failed to load.", dedicated.isFunctionLibraryEnabled());
+            }
+        }else{
+            dedicated.setFunctionLibraryEnabled(true);
+            assertTrue("Function library is not enabled.", dedicated.isFunctionLibraryEnabled());
+        }
+
+        // Locking works either way, including the hand-off to a fair waiter
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        assertTrue("Failed to acquire lock.", holder.tryLock());
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        final AutoCloseableRedisLock waiter = rrwl.writeLock();
+        Thread thread = new Thread(() -> {
+            try{
+                acquired.set(waiter.tryLock(10, TimeUnit.SECONDS));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        try{
+            thread.start();
+            Thread.sleep(200);
+            holder.unlock();
+            thread.join(2000);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+        assertTrue("Fair waiter did not get the lock.", acquired.get());
+        waiter.unlock();
+        long stamp = rrwl.tryOptimisticRead();
+        assertTrue("Optimistic read failed.", stamp != 0 && rrwl.validate(stamp));
+    }
+
+    public static void testCompactKeys(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        AbstractRedisLockClient dedicated = server.newClient(0);
+        dedicated.setCompactKeys(true);
+        String lockpoint = "https://example.com/api/v1/tenants/42/resources/" + System.nanoTime() + "/items?page=1";
+        String server_lockpoint = dedicated.getServerLockpoint(lockpoint);
+        assertEquals("Server lockpoint should be fixed size.", 17, server_lockpoint.length());
+        assertEquals("Client id should be shortened.", 11, dedicated.getClientId().length());
+        RedisReadWriteLock rrwl = dedicated.getLock(lockpoint, true);
+
+        // Held lock goes by the digest
+        AutoCloseableRedisLock holder = rrwl.writeLock();
+        assertTrue("Failed to acquire lock.", holder.tryLock());
+        assertFalse("Full name should not be on the server.", server.exists(0, "lockpoint:" + lockpoint));
+        assertTrue("Holder should be stored under the digest.", server.get("lockpoint:" + server_lockpoint).startsWith(dedicated.getClientId() + ":"));
+
+        // Fair waiter is queued under the digest and gets the lock on unlock
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        final AutoCloseableRedisLock waiter = rrwl.writeLock();
+        Thread thread = new Thread(() -> {
+            try{
+                acquired.set(waiter.tryLock(10, TimeUnit.SECONDS));
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        try{
+            thread.start();
+            Thread.sleep(200);
+            assertEquals("Waiter should be queued under the digest.", 1L, server.llen("lockwait:" + server_lockpoint));
+            holder.unlock();
+            thread.join(2000);
+        }catch(InterruptedException e){
+            assertTrue("InterruptedException was thrown. Reason: " + e.getMessage(), false);
+        }
+        assertTrue("Fair waiter did not get the lock.", acquired.get());
+
+        // Optimistic reads and read locks follow the same names
+        assertTrue("No stamp while writer holds it.", rrwl.tryOptimisticRead() == 0);
+        waiter.unlock();
+        long stamp = rrwl.tryOptimisticRead();
+        assertTrue("Stamp should be valid.", stamp != 0 && rrwl.validate(stamp));
+        AutoCloseableRedisLock reader = rrwl.readLock();
+        assertTrue("Failed to acquire read lock.", reader.tryLock());
+        assertEquals("Reader should be stored under the digest.", 1L, server.scard("lockreaders:" + server_lockpoint));
+        reader.unlock();
+
+        // The mode is fixed once the client is used
+        dedicated.setCompactKeys(true);
+        try{
+            dedicated.setCompactKeys(false);
+            assertTrue("Switching key mode of a used client should be refused.", false);
+        }catch(IllegalStateException e){
+            // Expected
+        }
+        assertTrue("Key mode should not change.", dedicated.isCompactKeys());
+        assertEquals("Server lockpoint should not change.", server_lockpoint, dedicated.getServerLockpoint(lockpoint));
+        assertEquals("Client id should not change.", 11, dedicated.getClientId().length());
+
+        // An unused client may still switch
+        AbstractRedisLockClient unused = server.newClient(0);
+        unused.setCompactKeys(true);
+        unused.setCompactKeys(false);
+        assertEquals("Client id should be hex again.", 16, unused.getClientId().length());
+        assertEquals("Server lockpoint should be the lockpoint.", lockpoint, unused.getServerLockpoint(lockpoint));
+    }
+
+    public static void testShardedClient(){
+
+        // Check database connection
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null && server != null);
+
+        // Two shards on separate databases of the same server, so each key can be found on the shard it was routed to
+        Map<String, AbstractRedisLockClient> shards = new HashMap<>();
+        shards.put("first", server.newClient(1));
+        shards.put("second", server.newClient(2));
+        ShardedRedisLockClient sharded = new ShardedRedisLockClient(shards);
+
+        // Another client with its own connections routes the same way
+        Map<String, AbstractRedisLockClient> other_shards = new HashMap<>();
+        other_shards.put("second", server.newClient(2));
+        other_shards.put("first", server.newClient(1));
+        ShardedRedisLockClient other = new ShardedRedisLockClient(other_shards);
+
+        // Names spread evenly and are routed the same on both clients
+        int on_first = 0;
+        for(int i = 0; i < 10000; i++){
+            String name = "shard:" + i;
+            boolean routed_first = sharded.getShard(name) == shards.get("first");
+            assertEquals("Clients should route names alike.", routed_first, other.getShard(name) == other_shards.get("first"));
+            if(routed_first) on_first++;
+        }
+        assertTrue("Names should spread evenly, first shard has " + on_first, on_first > 4000 && on_first < 6000);
+
+        // Weights skew the spread
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("first", 3);
+        ShardedRedisLockClient weighted = new ShardedRedisLockClient(shards, weights, ShardedRedisLockClient.DEFAULT_VIRTUAL_NODES);
+        on_first = 0;
+        for(int i = 0; i < 10000; i++) if(weighted.getShard("shard:" + i) == shards.get("first")) on_first++;
+        assertTrue("Weighted shard should take three quarters, first shard has " + on_first, on_first > 6500 && on_first < 8500);
+
+        // Adding a shard only moves names onto the new shard
+        Map<String, AbstractRedisLockClient> grown_shards = new HashMap<>(shards);
+        grown_shards.put("third", server.newClient(1));
+        ShardedRedisLockClient grown = new ShardedRedisLockClient(grown_shards);
+        for(int i = 0; i < 10000; i++){
+            String name = "shard:" + i;
+            AbstractRedisLockClient shard = grown.getShard(name);
+            assertTrue("Names should only move to the new shard.", shard == sharded.getShard(name) || shard == grown_shards.get("third"));
+        }
+
+        // Lock lives on its shard only and excludes the other client
+        String lockpoint = "sharded:" + System.nanoTime();
+        int owner = (sharded.getShard(lockpoint) == shards.get("first") ? 1 : 2);
+        int bystander = (owner == 1 ? 2 : 1);
+        AutoCloseableRedisLock lock = sharded.getLock(lockpoint).writeLock();
+        assertTrue("Failed to acquire lock.", lock.tryLock());
+        assertTrue("Lock should be on its shard.", server.exists(owner, "lockpoint:" + lockpoint) && !server.exists(bystander, "lockpoint:" + lockpoint));
+        assertFalse("Other client should be locked out.", other.getLock(lockpoint).writeLock().tryLock());
+        lock.unlock();
+
+        // Striped locks over both shards
+        StripedRedisLock striped = sharded.getStripedLock("sharded:stripes:" + System.nanoTime(), 16, false);
+        StripedRedisLock other_striped = other.getStripedLock(striped.getName(), 16, false);
+        String[] keys = new String[16];
+        for(int i = 0; i < keys.length; i++) keys[i] = "key" + i;
+        StripedRedisLock.MultiLock multi = striped.getLocks(keys);
+        int[] stripes = multi.getStripes();
+        int previous_shard = -1;
+        for(int stripe : stripes){
+            int shard = (sharded.getShard(striped.getStripeLockpoint(stripe)) == shards.get("first") ? 0 : 1);
+            assertTrue("Stripes should be grouped by shard.", shard >= previous_shard);
+            previous_shard = shard;
+        }
+        assertTrue("Failed to acquire stripes.", multi.tryLock());
+        assertFalse("Other client should be locked out of the stripes.", other_striped.getLocks(keys).tryLock());
+        multi.unlock();
+        StripedRedisLock.MultiLock other_multi = other_striped.getLocks(keys);
+        assertTrue("Other client should get the stripes once released.", other_multi.tryLock());
+        other_multi.unlock();
+
+        // Everything else is handed to the shard of its name too
+        String election = "sharded:election:" + System.nanoTime();
+        assertSame("Election should run on its shard.", sharded.getShard(election), sharded.getLeaderElection(election).getClient());
+        String task_lockpoint = "sharded:task:" + System.nanoTime();
+        try(LockedExecutor executor = sharded.getLockedExecutor(false)){
+            assertTrue("Task should run under the lock of its shard.", executor.submit(task_lockpoint, () -> !other.getLock(task_lockpoint).writeLock().tryLock()).get(10, TimeUnit.SECONDS));
+        }catch(Exception e){
+            assertTrue("Exception was thrown. Reason: " + e, false);
+        }
+
+        // Settings reach every shard
+        sharded.setLeaseDuration(30, TimeUnit.SECONDS);
+        for(AbstractRedisLockClient shard : shards.values()) assertEquals("Setting should reach every shard.", 30L, shard.getLeaseDuration(TimeUnit.SECONDS));
+        assertEquals("Setting should be read back.", 30L, sharded.getLeaseDuration(TimeUnit.SECONDS));
+    }
+
+    public static void testMessageRing(){
+
+        // Fills up, drops and drains in order
+        MessageRing ring = new MessageRing(3);
+        assertEquals("Capacity should be rounded up to a power of two.", 4, ring.capacity());
+        for(int i = 0; i < 4; i++) assertTrue("Offer should succeed while there is room.", ring.offer(new byte[]{(byte) i}));
+        assertTrue("Offer should fail when full.", !ring.offer(new byte[]{4}));
+        assertEquals("Dropped message should be counted.", 1, ring.getDroppedCount());
+        assertEquals("Backlog should count the messages waiting.", 4, ring.size());
+        for(int i = 0; i < 4; i++) assertEquals("Messages should come out in order.", i, ring.poll()[0]);
+        assertTrue("Ring should be empty.", ring.poll() == null && ring.isEmpty());
+
+        // Wraps around with producers on several threads
+        final MessageRing shared = new MessageRing(64);
+        final int per_thread = 10000;
+        Thread[] producers = new Thread[2];
+        for(int t = 0; t < producers.length; t++){
+            final byte tag = (byte) t;
+            producers[t] = new Thread(() -> {
+                for(int i = 0; i < per_thread; i++) while(!shared.offer(new byte[]{tag}));
+            });
+            producers[t].start();
+        }
+        int[] received = new int[producers.length];
+        int total = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while(total < producers.length * per_thread && System.currentTimeMillis() < deadline){
+            byte[] message = shared.poll();
+            if(message == null) continue;
+            received[message[0]]++;
+            total++;
+        }
+        for(int count : received) assertEquals("Every message should be taken exactly once.", per_thread, count);
+
+        // Client keeps up with the workload of the other tests
+        assumeTrue("We are not connected to Redis server, this test cannot continue.",client != null);
+        assertEquals("No message should have been dropped.", 0, client.getDroppedMessageCount());
+    }
+
+    /** Returns the number of readers registered on the lockpoint on the server */
+    private static long readerCount(final String lockpoint) throws InterruptedException{
+        final AtomicLong count = new AtomicLong();
+        client.forEachLock(info -> {
+            if(info.getLockpoint().equals(lockpoint)) count.set(info.getReaderCount());
+        });
+        return count.get();
+    }
+
+    /** Starts a thread that waits for the lock, records its name once acquired and unlocks shortly after */
+    private static Thread waiter(final AutoCloseableRedisLock lock, final String name, final ConcurrentLinkedQueue<String> order){
+        Thread thread = new Thread(() -> {
+            try{
+                if(lock.tryLock(10, TimeUnit.SECONDS)){
+                    order.add(name);
+                    Thread.sleep(50);
+                    lock.unlock();
+                }
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}